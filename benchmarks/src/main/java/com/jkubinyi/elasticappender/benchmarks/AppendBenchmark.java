@@ -0,0 +1,82 @@
+package com.jkubinyi.elasticappender.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jkubinyi.elasticappender.L4JElasticAppender;
+import com.jkubinyi.elasticappender.NodeConnection;
+
+/**
+ * Throughput of {@link L4JElasticAppender#append(LogEvent)} including serialization and
+ * enqueueing, while the bulks are sent to {@link StubBulkServer}. The queue is unbounded,
+ * so the producers measure the hot path rather than the speed of the stub.
+ * 
+ * @author jurajkubinyi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppendBenchmark {
+
+	@Param({ "blockingQueue", "ringBuffer" })
+	public String batcher;
+
+	@Param({ "false", "true" })
+	public boolean garbageFree;
+
+	private StubBulkServer server;
+	private L4JElasticAppender appender;
+	private LogEvent event;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		this.server = new StubBulkServer();
+		L4JElasticAppender.Builder<?> builder = L4JElasticAppender.newBuilder();
+		builder.withName("benchmark");
+		builder.setIndex("benchmark");
+		builder.setConnectionNodes(new NodeConnection[] { this.server.getNodeConnection() });
+		builder.setBulkSize(500);
+		builder.setLingerMs(50);
+		builder.setBatcher(this.batcher);
+		builder.setGarbageFree(this.garbageFree);
+		builder.setJmx(false);
+		this.appender = (L4JElasticAppender) builder.build();
+		this.appender.start();
+		this.event = Events.simple();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.appender.stop(10, TimeUnit.SECONDS);
+		this.server.close();
+	}
+
+	@Benchmark
+	public void append() {
+		this.appender.append(this.event);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void append4Threads() {
+		this.appender.append(this.event);
+	}
+}
@@ -0,0 +1,88 @@
+package com.jkubinyi.elasticappender.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.jkubinyi.elasticappender.batch.Batcher;
+import com.jkubinyi.elasticappender.batch.BlockingQueueBatcher;
+import com.jkubinyi.elasticappender.batch.RingBufferBatcher;
+import com.jkubinyi.elasticappender.batch.WaitStrategy;
+
+/**
+ * Contention of {@link Batcher#offer(Object, long, TimeUnit)} with 1, 4, 16 and 64 producers
+ * and a single flusher discarding the batches. The queue is bounded, so a producer faster
+ * than the flusher waits, as it would in the appender.
+ * 
+ * @author jurajkubinyi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatcherOfferBenchmark {
+
+	@Param({ "blockingQueue", "ringBuffer" })
+	public String batcher;
+
+	@Param({ "65536" })
+	public int maxUnprocessed;
+
+	private Batcher<Object> instance;
+	private final Object element = new Object();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Batcher.BatchProcessor<Object> discard = work -> Blackhole.consumeCPU(work.size());
+		if("ringBuffer".equals(this.batcher))
+			this.instance = new RingBufferBatcher<>(discard, 500, this.maxUnprocessed, 50, WaitStrategy.PARK);
+		else
+			this.instance = new BlockingQueueBatcher<>(discard, 500, this.maxUnprocessed, 50);
+		this.instance.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		this.instance.stop(10, TimeUnit.SECONDS);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean offer1Thread() throws InterruptedException {
+		return this.instance.offer(this.element, 1, TimeUnit.SECONDS);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean offer4Threads() throws InterruptedException {
+		return this.instance.offer(this.element, 1, TimeUnit.SECONDS);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public boolean offer16Threads() throws InterruptedException {
+		return this.instance.offer(this.element, 1, TimeUnit.SECONDS);
+	}
+
+	@Benchmark
+	@Threads(64)
+	public boolean offer64Threads() throws InterruptedException {
+		return this.instance.offer(this.element, 1, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,84 @@
+package com.jkubinyi.elasticappender.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.layout.JsonLayout;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jkubinyi.elasticappender.bulk.BulkBodyWriter;
+import com.jkubinyi.elasticappender.bulk.BulkBuffer;
+import com.jkubinyi.elasticappender.bulk.BulkBufferPool;
+import com.jkubinyi.elasticappender.bulk.BulkItem;
+import com.jkubinyi.elasticappender.bulk.GzipCompressor;
+import com.jkubinyi.elasticappender.bulk.IndexTarget;
+import com.jkubinyi.elasticappender.bulk.OffHeapArena;
+import com.jkubinyi.elasticappender.bulk.OffHeapBulkItem;
+import com.jkubinyi.elasticappender.layout.LayoutSerializer;
+
+/**
+ * Cost of writing a batch of serialized documents into a bulk body, optionally gzipped,
+ * from the documents on the heap or in the off-heap arena.
+ * 
+ * @author jurajkubinyi
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BulkBodyBenchmark {
+
+	@Param({ "none", "gzip" })
+	public String compression;
+
+	@Param({ "500" })
+	public int batchSize;
+
+	@Param({ "heap", "offHeap" })
+	public String storage;
+
+	private BulkBodyWriter bodyWriter;
+	private List<BulkItem> batch;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		LayoutSerializer serializer = new LayoutSerializer(JsonLayout.newBuilder()
+				.setCompact(true)
+				.setCharset(StandardCharsets.UTF_8)
+				.build(), false);
+		this.bodyWriter = new BulkBodyWriter(new BulkBufferPool(2, 64 * 1024, 8 * 1024 * 1024),
+				"gzip".equals(this.compression) ? new GzipCompressor(6) : null);
+
+		IndexTarget target = new IndexTarget("benchmark_20200101");
+		OffHeapArena arena = new OffHeapArena(64L * 1024 * 1024, OffHeapArena.DEFAULT_CHUNK_BYTES);
+		this.batch = new ArrayList<>(this.batchSize);
+		for(int i = 0; i < this.batchSize; i++) {
+			byte[] document = serializer.serialize(Events.simple());
+			this.batch.add("offHeap".equals(this.storage) ? OffHeapBulkItem.store(arena, target, document, null) : new BulkItem(target, document));
+		}
+	}
+
+	@Benchmark
+	public int write() {
+		BulkBuffer body = this.bodyWriter.write(this.batch);
+		int length = body.length();
+		this.bodyWriter.release(body);
+		return length;
+	}
+}
@@ -0,0 +1,48 @@
+package com.jkubinyi.elasticappender.benchmarks;
+
+import java.io.IOException;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+
+/**
+ * Log events used by the benchmarks.
+ * 
+ * @author jurajkubinyi
+ */
+final class Events {
+
+	private Events() {}
+
+	/**
+	 * @return Typical short event without an exception.
+	 */
+	static LogEvent simple() {
+		return Log4jLogEvent.newBuilder()
+				.setLoggerName("com.example.orders.OrderService")
+				.setLoggerFqcn(Events.class.getName())
+				.setLevel(Level.INFO)
+				.setMessage(new ParameterizedMessage("Order {} of customer {} was accepted in {} ms.", 1234567, "c-0042", 17))
+				.setThreadName("http-nio-8080-exec-7")
+				.setTimeMillis(System.currentTimeMillis())
+				.build();
+	}
+
+	/**
+	 * @return Error event with an exception wrapped in a cause, as repeated during an incident.
+	 */
+	static LogEvent failed() {
+		return Log4jLogEvent.newBuilder()
+				.setLoggerName("com.example.orders.OrderService")
+				.setLoggerFqcn(Events.class.getName())
+				.setLevel(Level.ERROR)
+				.setMessage(new ParameterizedMessage("Order {} of customer {} could not be accepted.", 1234567, "c-0042"))
+				.setThreadName("http-nio-8080-exec-7")
+				.setTimeMillis(System.currentTimeMillis())
+				.setThrown(new IllegalStateException("Order could not be stored.",
+						new IOException("Connection reset by peer")))
+				.build();
+	}
+}
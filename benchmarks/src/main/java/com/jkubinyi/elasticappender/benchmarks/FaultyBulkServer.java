@@ -0,0 +1,347 @@
+package com.jkubinyi.elasticappender.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+import com.jkubinyi.elasticappender.NodeConnection;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the bulk endpoint injecting the failures of a struggling cluster:
+ * latency, whole bulks throttled with 429, items failed temporarily (429) or permanently (400)
+ * and connections dropped after the bulk was indexed, so the appender does not know it
+ * succeeded. Every document is expected to carry a sequence number in its message,
+ * see {@link #MESSAGE_PREFIX}, and the server tracks which of them were indexed and how many times.
+ * 
+ * @author jurajkubinyi
+ */
+public class FaultyBulkServer implements AutoCloseable {
+
+	/** Message of the documents is this prefix followed by the sequence number of the document. */
+	public static final String MESSAGE_PREFIX = "load ";
+
+	private static final byte[] MESSAGE_FIELD = ("\"message\":\"" + MESSAGE_PREFIX).getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] THROTTLED = ("{\"error\":{\"type\":\"es_rejected_execution_exception\","
+			+ "\"reason\":\"rejected execution of bulk\"},\"status\":429}").getBytes(StandardCharsets.UTF_8);
+
+	private static final String ITEM_SUCCESS = "{\"index\":{\"status\":201}}";
+	private static final String ITEM_THROTTLED = "{\"index\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\","
+			+ "\"reason\":\"rejected execution of item\"}}}";
+	private static final String ITEM_REJECTED = "{\"index\":{\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\","
+			+ "\"reason\":\"failed to parse\"}}}";
+
+	/**
+	 * Failures injected by the server. Rates are probabilities from 0 to 1.
+	 */
+	public static final class Faults {
+		private long latencyMs;
+		private long jitterMs;
+		private double throttleRate;
+		private double itemFailureRate;
+		private double rejectionRate;
+		private double dropRate;
+
+		/**
+		 * @param latencyMs Time every bulk takes.
+		 */
+		public Faults setLatencyMs(long latencyMs) {
+			this.latencyMs = latencyMs;
+			return this;
+		}
+
+		/**
+		 * @param jitterMs Maximum random time added to the latency.
+		 */
+		public Faults setJitterMs(long jitterMs) {
+			this.jitterMs = jitterMs;
+			return this;
+		}
+
+		/**
+		 * @param throttleRate Probability of the whole bulk being answered with 429.
+		 */
+		public Faults setThrottleRate(double throttleRate) {
+			this.throttleRate = throttleRate;
+			return this;
+		}
+
+		/**
+		 * @param itemFailureRate Probability of an item failing with 429.
+		 */
+		public Faults setItemFailureRate(double itemFailureRate) {
+			this.itemFailureRate = itemFailureRate;
+			return this;
+		}
+
+		/**
+		 * @param rejectionRate Probability of an item being rejected permanently with 400.
+		 */
+		public Faults setRejectionRate(double rejectionRate) {
+			this.rejectionRate = rejectionRate;
+			return this;
+		}
+
+		/**
+		 * @param dropRate Probability of the connection being closed without a response after the bulk was indexed.
+		 */
+		public Faults setDropRate(double dropRate) {
+			this.dropRate = dropRate;
+			return this;
+		}
+	}
+
+	private final Faults faults;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Deliveries deliveries = new Deliveries();
+	private final LongAdder bulks = new LongAdder();
+	private final LongAdder throttled = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder itemFailures = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder unknown = new LongAdder();
+
+	/**
+	 * Starts the server on a free port of the loopback interface.
+	 * 
+	 * @param faults Failures to inject.
+	 */
+	public FaultyBulkServer(Faults faults) throws IOException {
+		this.faults = faults;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		this.executor = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "FaultyBulkServer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.server.setExecutor(this.executor);
+		this.server.createContext("/", this::handle);
+		this.server.start();
+	}
+
+	/**
+	 * Sequence numbers seen by the server in pages of bits allocated on demand.
+	 */
+	private static final class Deliveries {
+		private static final int PAGE_BITS = 1 << 20;
+		private static final int PAGES = 4096;
+
+		private final AtomicReferenceArray<AtomicLongArray> pages = new AtomicReferenceArray<>(PAGES);
+		private final LongAdder delivered = new LongAdder();
+		private final LongAdder duplicated = new LongAdder();
+
+		private void record(long sequence) {
+			int pageIndex = (int) (sequence / PAGE_BITS);
+			if(sequence < 0 || pageIndex >= PAGES) return;
+			AtomicLongArray page = this.pages.get(pageIndex);
+			if(page == null) {
+				this.pages.compareAndSet(pageIndex, null, new AtomicLongArray(PAGE_BITS / 64));
+				page = this.pages.get(pageIndex);
+			}
+			int bit = (int) (sequence % PAGE_BITS);
+			long mask = 1L << (bit & 63);
+			while(true) {
+				long word = page.get(bit >>> 6);
+				if((word & mask) != 0) {
+					this.duplicated.increment();
+					return;
+				}
+				if(page.compareAndSet(bit >>> 6, word, word | mask)) {
+					this.delivered.increment();
+					return;
+				}
+			}
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		byte[] body = this.readBody(exchange);
+		this.bulks.increment();
+		this.sleep();
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if(random.nextDouble() < this.faults.throttleRate) {
+			this.throttled.increment();
+			this.respond(exchange, 429, THROTTLED);
+			return;
+		}
+
+		StringBuilder response = new StringBuilder(64 + body.length / 20).append("{\"took\":1,\"errors\":");
+		int errorsAt = response.length();
+		response.append("false,\"items\":[");
+		boolean errors = false;
+		boolean first = true;
+		int lineStart = 0;
+		boolean document = false;
+		for(int i = 0; i < body.length; i++) {
+			if(body[i] != '\n') continue;
+			if(document) {
+				String item;
+				double chance = random.nextDouble();
+				if(chance < this.faults.rejectionRate) {
+					this.rejected.increment();
+					item = ITEM_REJECTED;
+					errors = true;
+				} else if(chance < this.faults.rejectionRate + this.faults.itemFailureRate) {
+					this.itemFailures.increment();
+					item = ITEM_THROTTLED;
+					errors = true;
+				} else {
+					long sequence = sequence(body, lineStart, i);
+					if(sequence >= 0) this.deliveries.record(sequence);
+					else this.unknown.increment();
+					item = ITEM_SUCCESS;
+				}
+				if(!first) response.append(',');
+				response.append(item);
+				first = false;
+			}
+			document = !document;
+			lineStart = i + 1;
+		}
+		response.append("]}");
+		if(errors) response.replace(errorsAt, errorsAt + 5, "true");
+
+		if(random.nextDouble() < this.faults.dropRate) {
+			// Indexed, but the client never learns about it.
+			this.dropped.increment();
+			exchange.close();
+			return;
+		}
+		this.respond(exchange, 200, response.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private byte[] readBody(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		if("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+			in = new GZIPInputStream(in);
+		ByteArrayOutputStream body = new ByteArrayOutputStream(64 * 1024);
+		byte[] buffer = new byte[64 * 1024];
+		int read;
+		while((read = in.read(buffer)) >= 0)
+			body.write(buffer, 0, read);
+		in.close();
+		return body.toByteArray();
+	}
+
+	private void sleep() {
+		long delay = this.faults.latencyMs;
+		if(this.faults.jitterMs > 0) delay += ThreadLocalRandom.current().nextLong(this.faults.jitterMs + 1);
+		if(delay <= 0) return;
+		try {
+			Thread.sleep(delay);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, body.length);
+		try(OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * @return Sequence number in the message of the document or -1 if there is none.
+	 */
+	private static long sequence(byte[] body, int from, int to) {
+		outer:
+		for(int i = from; i <= to - MESSAGE_FIELD.length; i++) {
+			for(int j = 0; j < MESSAGE_FIELD.length; j++)
+				if(body[i + j] != MESSAGE_FIELD[j]) continue outer;
+			long sequence = -1;
+			for(int k = i + MESSAGE_FIELD.length; k < to && body[k] >= '0' && body[k] <= '9'; k++)
+				sequence = (sequence < 0 ? 0 : sequence * 10) + (body[k] - '0');
+			return sequence;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Connection pointing to the server.
+	 */
+	public NodeConnection getNodeConnection() {
+		return NodeConnection.newBuilder()
+				.setScheme("http")
+				.setHost(InetAddress.getLoopbackAddress())
+				.setPort(this.server.getAddress().getPort())
+				.build();
+	}
+
+	/**
+	 * @return Number of the distinct documents indexed.
+	 */
+	public long getDelivered() {
+		return this.deliveries.delivered.sum();
+	}
+
+	/**
+	 * @return Number of the documents indexed again after they already were.
+	 */
+	public long getDuplicated() {
+		return this.deliveries.duplicated.sum();
+	}
+
+	/**
+	 * @return Number of the received bulk requests.
+	 */
+	public long getBulks() {
+		return this.bulks.sum();
+	}
+
+	/**
+	 * @return Number of the bulks answered with 429.
+	 */
+	public long getThrottled() {
+		return this.throttled.sum();
+	}
+
+	/**
+	 * @return Number of the bulks indexed without sending the response.
+	 */
+	public long getDropped() {
+		return this.dropped.sum();
+	}
+
+	/**
+	 * @return Number of the items failed with 429.
+	 */
+	public long getItemFailures() {
+		return this.itemFailures.sum();
+	}
+
+	/**
+	 * @return Number of the items rejected with 400.
+	 */
+	public long getRejected() {
+		return this.rejected.sum();
+	}
+
+	/**
+	 * @return Number of the indexed documents without a sequence number.
+	 */
+	public long getUnknown() {
+		return this.unknown.sum();
+	}
+
+	@Override
+	public void close() {
+		this.server.stop(0);
+		this.executor.shutdownNow();
+	}
+}
@@ -0,0 +1,248 @@
+package com.jkubinyi.elasticappender.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+
+import com.jkubinyi.elasticappender.L4JElasticAppender;
+import com.jkubinyi.elasticappender.NodeConnection;
+import com.jkubinyi.elasticappender.layout.EcsJsonLayout;
+import com.jkubinyi.elasticappender.metrics.AppenderMetrics;
+import com.jkubinyi.elasticappender.metrics.DropReason;
+import com.jkubinyi.elasticappender.metrics.Histogram;
+
+/**
+ * Drives {@link L4JElasticAppender} from many threads against {@link FaultyBulkServer} for a given time
+ * and reports the sustained rate, append latency, delivered, lost and duplicated logs and the heap growth.
+ * Exits with 1 when more logs than allowed by --max-loss were lost, so it can guard against regressions.
+ * 
+ * Run with: java -cp target/benchmarks.jar com.jkubinyi.elasticappender.benchmarks.LoadTest [--option value]...
+ * 
+ * @author jurajkubinyi
+ */
+public class LoadTest {
+
+	private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+	static {
+		DEFAULTS.put("threads", "16");
+		DEFAULTS.put("duration-s", "30");
+		DEFAULTS.put("rate", "0");
+		DEFAULTS.put("batcher", "blockingQueue");
+		DEFAULTS.put("overflow-policy", "wait");
+		DEFAULTS.put("layout", "json");
+		DEFAULTS.put("garbage-free", "false");
+		DEFAULTS.put("dispatch", "direct");
+		DEFAULTS.put("off-heap-bytes", "0");
+		DEFAULTS.put("bulk-size", "500");
+		DEFAULTS.put("max-unprocessed", "20000");
+		DEFAULTS.put("max-in-flight", "8");
+		DEFAULTS.put("max-retries", "5");
+		DEFAULTS.put("latency-ms", "5");
+		DEFAULTS.put("jitter-ms", "5");
+		DEFAULTS.put("throttle", "0");
+		DEFAULTS.put("item-failures", "0");
+		DEFAULTS.put("rejections", "0");
+		DEFAULTS.put("drops", "0");
+		DEFAULTS.put("max-loss", "-1");
+	}
+
+	private final Map<String, String> options;
+	private final AtomicLong sequence = new AtomicLong();
+	private final Histogram appendLatency = new Histogram();
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	private volatile long peakHeap;
+
+	private LoadTest(Map<String, String> options) {
+		this.options = options;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+		for(int i = 0; i < args.length; i++) {
+			if("--help".equals(args[i])) {
+				usage();
+				return;
+			}
+			String name = args[i].startsWith("--") ? args[i].substring(2) : null;
+			if(name == null || !DEFAULTS.containsKey(name) || i + 1 >= args.length) {
+				System.err.println("Unknown or incomplete option " + args[i] + ".");
+				usage();
+				System.exit(2);
+			}
+			options.put(name, args[++i]);
+		}
+		System.exit(new LoadTest(options).run() ? 0 : 1);
+	}
+
+	private static void usage() {
+		System.err.println("Options and their defaults:");
+		for(Map.Entry<String, String> option : DEFAULTS.entrySet())
+			System.err.println("  --" + option.getKey() + " " + option.getValue());
+	}
+
+	private int intOption(String name) {
+		return Integer.parseInt(this.options.get(name));
+	}
+
+	private double doubleOption(String name) {
+		return Double.parseDouble(this.options.get(name));
+	}
+
+	/**
+	 * @return {@code false} if more logs than allowed were lost.
+	 */
+	private boolean run() throws Exception {
+		System.out.println("Options: " + this.options);
+		long heapBefore = this.usedHeapAfterGc();
+		this.peakHeap = heapBefore;
+
+		FaultyBulkServer.Faults faults = new FaultyBulkServer.Faults()
+				.setLatencyMs(this.intOption("latency-ms"))
+				.setJitterMs(this.intOption("jitter-ms"))
+				.setThrottleRate(this.doubleOption("throttle"))
+				.setItemFailureRate(this.doubleOption("item-failures"))
+				.setRejectionRate(this.doubleOption("rejections"))
+				.setDropRate(this.doubleOption("drops"));
+		try(FaultyBulkServer server = new FaultyBulkServer(faults)) {
+			L4JElasticAppender appender = this.createAppender(server.getNodeConnection());
+			appender.start();
+
+			int threads = this.intOption("threads");
+			double rate = this.doubleOption("rate");
+			long intervalNanos = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * threads / rate) : 0;
+			long start = System.nanoTime();
+			long end = start + TimeUnit.SECONDS.toNanos(this.intOption("duration-s"));
+			List<Thread> producers = new ArrayList<>();
+			for(int i = 0; i < threads; i++) {
+				Thread producer = new Thread(() -> this.produce(appender, end, intervalNanos), "producer-" + i);
+				producers.add(producer);
+				producer.start();
+			}
+			while(System.nanoTime() - end < 0) {
+				LockSupport.parkNanos(Math.min(TimeUnit.SECONDS.toNanos(5), end - System.nanoTime()));
+				this.progress(appender, server, start);
+			}
+			for(Thread producer : producers)
+				producer.join();
+			long elapsed = System.nanoTime() - start;
+
+			long stopStart = System.nanoTime();
+			appender.stop(60, TimeUnit.SECONDS);
+			long stopMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stopStart);
+			long heapAfter = this.usedHeapAfterGc();
+			return this.report(appender.getMetrics(), server, elapsed, stopMillis, heapBefore, heapAfter);
+		}
+	}
+
+	private L4JElasticAppender createAppender(NodeConnection node) {
+		L4JElasticAppender.Builder<?> builder = L4JElasticAppender.newBuilder();
+		builder.withName("load-test");
+		builder.setIndex("load");
+		builder.setConnectionNodes(new NodeConnection[] { node });
+		builder.setBulkSize(this.intOption("bulk-size"));
+		builder.setLingerMs(50);
+		builder.setMaxUnprocessedLogs(this.intOption("max-unprocessed"));
+		builder.setMaxInFlightBulks(this.intOption("max-in-flight"));
+		builder.setMaxRetries(this.intOption("max-retries"));
+		builder.setRetryInitialBackoffMs(50);
+		builder.setRetryMaxBackoffMs(2000);
+		builder.setBatcher(this.options.get("batcher"));
+		builder.setOverflowPolicy(this.options.get("overflow-policy"));
+		builder.setGarbageFree(Boolean.parseBoolean(this.options.get("garbage-free")));
+		builder.setDispatch(this.options.get("dispatch"));
+		builder.setOffHeapBytes(Long.parseLong(this.options.get("off-heap-bytes")));
+		builder.setJmx(false);
+		if("ecs".equalsIgnoreCase(this.options.get("layout")))
+			builder.withLayout(EcsJsonLayout.newBuilder().setServiceName("load-test").build());
+		return (L4JElasticAppender) builder.build();
+	}
+
+	private void produce(L4JElasticAppender appender, long end, long intervalNanos) {
+		String threadName = Thread.currentThread().getName();
+		long next = System.nanoTime();
+		while(true) {
+			long now = System.nanoTime();
+			if(now - end >= 0) return;
+			if(intervalNanos > 0) {
+				if(next - now > 0) {
+					LockSupport.parkNanos(next - now);
+					continue;
+				}
+				next += intervalNanos;
+			}
+			Log4jLogEvent event = Log4jLogEvent.newBuilder()
+					.setLoggerName("com.example.load.LoadTest")
+					.setLoggerFqcn(LoadTest.class.getName())
+					.setLevel(Level.INFO)
+					.setMessage(new SimpleMessage(FaultyBulkServer.MESSAGE_PREFIX + this.sequence.getAndIncrement()))
+					.setThreadName(threadName)
+					.setTimeMillis(System.currentTimeMillis())
+					.build();
+			long start = System.nanoTime();
+			appender.append(event);
+			this.appendLatency.record(System.nanoTime() - start);
+		}
+	}
+
+	private void progress(L4JElasticAppender appender, FaultyBulkServer server, long start) {
+		long heap = this.memory.getHeapMemoryUsage().getUsed();
+		if(heap > this.peakHeap) this.peakHeap = heap;
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format(Locale.ROOT, "%6.1f s  appended %,d (%,.0f/s)  delivered %,d  queue %,d  in flight %d/%d  heap %,d MB",
+				seconds, this.sequence.get(), this.sequence.get() / seconds, server.getDelivered(), appender.getQueueDepth(),
+				appender.getNumInFlight(), appender.getInFlightLimit(), heap >> 20));
+	}
+
+	private boolean report(AppenderMetrics metrics, FaultyBulkServer server, long elapsedNanos, long stopMillis,
+			long heapBefore, long heapAfter) {
+		long appended = this.sequence.get();
+		long delivered = server.getDelivered();
+		long lost = appended - delivered;
+		double seconds = elapsedNanos / 1e9;
+
+		System.out.println();
+		System.out.println(String.format(Locale.ROOT, "Sustained rate:   %,.0f events/s over %.1f s, %,d delivered/s",
+				appended / seconds, seconds, (long) (delivered / seconds)));
+		System.out.println(String.format(Locale.ROOT, "Append latency:   p50 %.1f us  p99 %.1f us  p99.9 %.1f us  max %.1f ms",
+				this.appendLatency.getPercentile(0.5) / 1e3, this.appendLatency.getPercentile(0.99) / 1e3,
+				this.appendLatency.getPercentile(0.999) / 1e3, this.appendLatency.getMax() / 1e6));
+		System.out.println(String.format(Locale.ROOT, "Logs:             appended %,d  delivered %,d  lost %,d (%.3f %%)  duplicated %,d",
+				appended, delivered, lost, appended > 0 ? lost * 100.0 / appended : 0, server.getDuplicated()));
+		StringBuilder drops = new StringBuilder();
+		for(DropReason reason : DropReason.values())
+			drops.append(String.format(Locale.ROOT, "%s %,d  ", reason, metrics.getDropped(reason)));
+		System.out.println("Dropped:          " + drops.toString().trim());
+		System.out.println(String.format(Locale.ROOT, "Appender:         bulks %,d  failed %,d  retried %,d  bulk p99 %.1f ms  stop %,d ms",
+				metrics.getBulksSent(), metrics.getBulksFailed(), metrics.getRetried(), metrics.getBulkLatencyP99Millis(), stopMillis));
+		System.out.println(String.format(Locale.ROOT, "Server:           bulks %,d  throttled %,d  item 429 %,d  rejected %,d  dropped %,d",
+				server.getBulks(), server.getThrottled(), server.getItemFailures(), server.getRejected(), server.getDropped()));
+		System.out.println(String.format(Locale.ROOT, "Heap:             before %,d MB  peak %,d MB  after %,d MB (after GC)",
+				heapBefore >> 20, this.peakHeap >> 20, heapAfter >> 20));
+
+		double maxLoss = this.doubleOption("max-loss");
+		if(maxLoss >= 0 && appended > 0 && (double) lost / appended > maxLoss) {
+			System.out.println(String.format(Locale.ROOT, "FAILED: lost %.3f %% of the logs, allowed %.3f %%.",
+					lost * 100.0 / appended, maxLoss * 100));
+			return false;
+		}
+		return true;
+	}
+
+	private long usedHeapAfterGc() {
+		for(int i = 0; i < 3; i++)
+			System.gc();
+		return this.memory.getHeapMemoryUsage().getUsed();
+	}
+}
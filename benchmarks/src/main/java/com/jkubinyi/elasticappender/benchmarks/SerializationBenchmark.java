@@ -0,0 +1,84 @@
+package com.jkubinyi.elasticappender.benchmarks;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.layout.JsonLayout;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jkubinyi.elasticappender.layout.EcsJsonLayout;
+import com.jkubinyi.elasticappender.layout.LayoutSerializer;
+import com.jkubinyi.elasticappender.layout.StackTraceCache;
+
+/**
+ * Cost of turning a log event into its bulk document with the default {@link JsonLayout}
+ * and with the {@link EcsJsonLayout}. A negative stackTraceCacheSize logs an exception without
+ * the cache, a positive one logs the same exception with it.
+ * 
+ * @author jurajkubinyi
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+	@Param({ "json", "ecs" })
+	public String layout;
+
+	@Param({ "false", "true" })
+	public boolean garbageFree;
+
+	/** Number of the exceptions cached serialized, 0 logs without an exception. */
+	@Param({ "0", "-1", "1024" })
+	public int stackTraceCacheSize;
+
+	private LogEvent event;
+	private LayoutSerializer serializer;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		this.event = this.stackTraceCacheSize == 0 ? Events.simple() : Events.failed();
+		Layout<? extends Serializable> layout;
+		if("ecs".equals(this.layout)) {
+			layout = EcsJsonLayout.newBuilder()
+					.setServiceName("benchmark")
+					.setIncludeStacktrace(true)
+					.setLocationInfo(true)
+					.setProperties(true)
+					.build();
+		} else {
+			layout = JsonLayout.newBuilder()
+					.setCompact(true)
+					.setCharset(StandardCharsets.UTF_8)
+					.setIncludeStacktrace(true)
+					.setLocationInfo(true)
+					.setProperties(true)
+					.build();
+		}
+		this.serializer = new LayoutSerializer(layout, this.garbageFree,
+				this.stackTraceCacheSize > 0 ? new StackTraceCache(this.stackTraceCacheSize) : null);
+	}
+
+	@Benchmark
+	public byte[] serialize() throws IOException {
+		return this.serializer.serialize(this.event);
+	}
+}
@@ -0,0 +1,124 @@
+package com.jkubinyi.elasticappender.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jkubinyi.elasticappender.batch.ElementCodec;
+import com.jkubinyi.elasticappender.batch.SpillingBatcher;
+
+/**
+ * Writing the elements to the spill files of {@link SpillingBatcher} and replaying them
+ * back by its flusher. Each iteration uses a new directory and moves {@value #RECORDS}
+ * records of the given size, the memory holds a single element so all of them go to the disk.
+ * 
+ * @author jurajkubinyi
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SpillBenchmark {
+
+	static final int RECORDS = 100_000;
+
+	private static final int SEGMENT_BYTES = 16 * 1024 * 1024;
+	private static final long MAX_SPILL_BYTES = 1024L * 1024 * 1024;
+
+	private static final ElementCodec<byte[]> CODEC = new ElementCodec<byte[]>() {
+		@Override
+		public byte[] encode(byte[] obj) {
+			return obj;
+		}
+
+		@Override
+		public byte[] decode(byte[] bytes) {
+			return bytes;
+		}
+	};
+
+	@State(Scope.Thread)
+	public static class Spill {
+
+		@Param({ "200", "1024" })
+		public int recordBytes;
+
+		byte[] record;
+		Path directory;
+		SpillingBatcher<byte[]> batcher;
+		final AtomicInteger processed = new AtomicInteger();
+		volatile CountDownLatch replayed;
+
+		@Setup(Level.Iteration)
+		public void setUp() throws IOException {
+			this.record = new byte[this.recordBytes];
+			this.directory = Files.createTempDirectory("spill-benchmark");
+			this.processed.set(0);
+			this.replayed = new CountDownLatch(1);
+			this.batcher = new SpillingBatcher<>(work -> {
+				if(this.processed.addAndGet(work.size()) >= RECORDS) this.replayed.countDown();
+			}, 500, 1, 50, null, 0, CODEC, this.directory, SEGMENT_BYTES, MAX_SPILL_BYTES);
+		}
+
+		void fill() throws InterruptedException {
+			for(int i = 0; i < RECORDS; i++)
+				if(!this.batcher.tryAdd(this.record)) throw new IllegalStateException("Spill files are full");
+		}
+
+		@TearDown(Level.Iteration)
+		public void tearDown() throws InterruptedException, IOException {
+			this.batcher.stop(10, TimeUnit.SECONDS);
+			try(Stream<Path> files = Files.walk(this.directory)) {
+				files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Spilled extends Spill {
+
+		@Override
+		@Setup(Level.Iteration)
+		public void setUp() throws IOException {
+			super.setUp();
+			try {
+				this.fill();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Benchmark
+	public long write(Spill spill) throws InterruptedException {
+		spill.fill();
+		return spill.batcher.getSpilledBytes();
+	}
+
+	@Benchmark
+	public int replay(Spilled spilled) throws InterruptedException {
+		spilled.batcher.start();
+		if(!spilled.replayed.await(1, TimeUnit.MINUTES)) throw new IllegalStateException("Replay did not finish");
+		return spilled.processed.get();
+	}
+}
@@ -0,0 +1,96 @@
+package com.jkubinyi.elasticappender.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.jkubinyi.elasticappender.NodeConnection;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the bulk endpoint. Reads the whole body, counts the documents
+ * and answers that all of them succeeded.
+ * 
+ * @author jurajkubinyi
+ */
+public class StubBulkServer implements AutoCloseable {
+
+	private static final byte[] SUCCESS = "{\"took\":1,\"errors\":false,\"items\":[]}".getBytes(StandardCharsets.UTF_8);
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final LongAdder bulks = new LongAdder();
+	private final LongAdder documents = new LongAdder();
+
+	/**
+	 * Starts the server on a free port of the loopback interface.
+	 */
+	public StubBulkServer() throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		this.executor = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "StubBulkServer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.server.setExecutor(this.executor);
+		this.server.createContext("/", this::handle);
+		this.server.start();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		long lines = 0;
+		byte[] buffer = new byte[64 * 1024];
+		try(InputStream in = exchange.getRequestBody()) {
+			int read;
+			while((read = in.read(buffer)) >= 0) {
+				for(int i = 0; i < read; i++)
+					if(buffer[i] == '\n') lines++;
+			}
+		}
+		this.bulks.increment();
+		this.documents.add(lines / 2);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, SUCCESS.length);
+		try(OutputStream out = exchange.getResponseBody()) {
+			out.write(SUCCESS);
+		}
+	}
+
+	/**
+	 * @return Connection pointing to the server.
+	 */
+	public NodeConnection getNodeConnection() {
+		return NodeConnection.newBuilder()
+				.setScheme("http")
+				.setHost(InetAddress.getLoopbackAddress())
+				.setPort(this.server.getAddress().getPort())
+				.build();
+	}
+
+	/**
+	 * @return Number of the received bulk requests.
+	 */
+	public long getBulks() {
+		return this.bulks.sum();
+	}
+
+	/**
+	 * @return Number of the received documents. Not exact for gzipped bodies.
+	 */
+	public long getDocuments() {
+		return this.documents.sum();
+	}
+
+	@Override
+	public void close() {
+		this.server.stop(0);
+		this.executor.shutdownNow();
+	}
+}
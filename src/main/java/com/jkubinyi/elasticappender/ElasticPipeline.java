@@ -0,0 +1,579 @@
+package com.jkubinyi.elasticappender;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.logging.log4j.core.appender.AbstractManager;
+import org.apache.logging.log4j.core.appender.ManagerFactory;
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+import org.apache.logging.log4j.spi.StandardLevel;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
+
+import com.jkubinyi.elasticappender.batch.Batcher;
+import com.jkubinyi.elasticappender.batch.BlockingQueueBatcher;
+import com.jkubinyi.elasticappender.batch.OverflowPolicy;
+import com.jkubinyi.elasticappender.batch.PriorityLaneBatcher;
+import com.jkubinyi.elasticappender.batch.RingBufferBatcher;
+import com.jkubinyi.elasticappender.batch.SpillingBatcher;
+import com.jkubinyi.elasticappender.batch.WaitStrategy;
+import com.jkubinyi.elasticappender.bulk.BulkBodyWriter;
+import com.jkubinyi.elasticappender.bulk.BulkBufferPool;
+import com.jkubinyi.elasticappender.bulk.BulkDispatcher;
+import com.jkubinyi.elasticappender.bulk.BulkItem;
+import com.jkubinyi.elasticappender.bulk.BulkItemCodec;
+import com.jkubinyi.elasticappender.bulk.ConcurrencyLimiter;
+import com.jkubinyi.elasticappender.bulk.DeadLetterSink;
+import com.jkubinyi.elasticappender.bulk.GzipCompressor;
+import com.jkubinyi.elasticappender.bulk.IndexTarget;
+import com.jkubinyi.elasticappender.bulk.OffHeapArena;
+import com.jkubinyi.elasticappender.bulk.OffHeapBulkItem;
+import com.jkubinyi.elasticappender.bulk.RetryPolicy;
+import com.jkubinyi.elasticappender.dispatch.DispatchExecutors;
+import com.jkubinyi.elasticappender.metrics.AppenderMetrics;
+import com.jkubinyi.elasticappender.metrics.DropReason;
+import com.jkubinyi.elasticappender.metrics.MetricsListener;
+import com.jkubinyi.elasticappender.node.HealthAwareNodeSelector;
+import com.jkubinyi.elasticappender.node.NodeMonitor;
+import com.jkubinyi.elasticappender.node.NodePool;
+import com.jkubinyi.elasticappender.node.NodeSelectionStrategy;
+import com.jkubinyi.elasticappender.node.NodeStats;
+
+/**
+ * <p>Everything between the serialized logs and Elasticsearch: the batcher, the bulk dispatcher,
+ * the REST client with its IO reactor and the node monitoring. Each appender has its own pipeline
+ * unless it is shared.</p>
+ * <p>Shared pipelines are reference counted Log4J managers keyed by the nodes and the credentials,
+ * so the appenders writing to the same cluster feed one batcher and their logs, each carrying its
+ * own index, are mixed in the same bulks. The pipeline is created with the settings of the first
+ * appender and closed when the last one stops. A reconfiguration keeps it running, as the new
+ * appenders acquire it before the old ones release it.</p>
+ * <p>The pending logs are delivered when the last appender releases the pipeline, before it is stopped,
+ * so Log4J's manager lock is not held meanwhile. An appender acquiring the pipeline during the delivery
+ * restarts the batching.</p>
+ *
+ * @author jurajkubinyi
+ */
+final class ElasticPipeline extends AbstractManager {
+
+	/** Maximum number of bulk body buffers kept for reuse. */
+	private static final int BULK_BUFFER_POOL_SIZE = 8;
+
+	/** Initial size of the bulk body buffer. */
+	private static final int BULK_BUFFER_INITIAL_BYTES = 64 * 1024;
+
+	/** Bulk body buffers which grew above this size are not reused. */
+	private static final int BULK_BUFFER_MAX_RETAINED_BYTES = 8 * 1024 * 1024;
+
+	/** Number of the lanes of the "priorityLanes" batcher: FATAL and ERROR, WARN, INFO, the rest. */
+	static final int PRIORITY_LANES = 4;
+
+	private static final ManagerFactory<ElasticPipeline, Config> FACTORY = ElasticPipeline::new;
+
+	/** Makes the keys of the dedicated pipelines unique, as the old and new appender of the same name coexist during a reconfiguration. */
+	private static final AtomicLong DEDICATED_IDS = new AtomicLong();
+
+	private final Config config;
+	private final int bulkSize;
+	private final int maxUnprocessedLogs;
+	private final int[] laneCapacities;
+
+	/** Used for bulk sending. */
+	private final RestClient restClient;
+
+	/** Counters and histograms of the whole pipeline. */
+	private final AppenderMetrics metrics;
+
+	/** Batcher instance having the batching logic. */
+	private final Batcher<BulkItem> batcher;
+
+	/** Writer of the bulk bodies. */
+	private final BulkBodyWriter bodyWriter;
+
+	/** Stores the pending documents off the heap, {@code null} if they stay on the heap. */
+	private final OffHeapArena arena;
+
+	/** Delays the retries of the failed logs and closes the collapsing windows of the appenders. */
+	private final ScheduledThreadPoolExecutor scheduler;
+
+	/** Dispatch executor created by the pipeline and shut down on release, {@code null} if none. */
+	private final ExecutorService ownedDispatchExecutor;
+
+	/** Processor instance having the processing of the batches logic. */
+	private final BulkDispatcher dispatcher;
+
+	/** Nodes the logs are sent to. */
+	private final NodePool nodePool;
+
+	/** Routes the bulks to the nodes, {@code null} if round robin is used. */
+	private final HealthAwareNodeSelector nodeSelector;
+
+	/** Sniffs and health checks the nodes, {@code null} if neither is enabled. */
+	private final NodeMonitor nodeMonitor;
+
+	private boolean started;
+
+	/** Number of the appenders holding the pipeline. Guarded by this. */
+	private int references;
+
+	/** {@code true} when the batching was stopped by the last appender releasing the pipeline. Guarded by this. */
+	private boolean drained;
+
+	private ElasticPipeline(String name, Config config) {
+		super(null, name);
+		this.config = config;
+		this.bulkSize = config.bulkSize < 2 ? 1 : config.bulkSize;
+		if(config.maxUnprocessedLogs != 0 && this.bulkSize > config.maxUnprocessedLogs) {
+			LOGGER.warn("MaxUnprocessedLogs is smaller than bulkSize. Upsizing maxUnprocessedLogs to avoid dropping messages.");
+			this.maxUnprocessedLogs = this.bulkSize * 2;
+		} else
+			this.maxUnprocessedLogs = config.maxUnprocessedLogs;
+		if(config.laneCapacities != null) {
+			this.laneCapacities = config.laneCapacities;
+		} else {
+			this.laneCapacities = new int[PRIORITY_LANES];
+			Arrays.fill(this.laneCapacities, (this.maxUnprocessedLogs + PRIORITY_LANES - 1) / PRIORITY_LANES);
+		}
+
+		if(config.offHeapBytes > 0 && "spilling".equalsIgnoreCase(config.batcher)) {
+			LOGGER.warn("Off-heap storage is not supported by the spilling batcher of {}. Keeping the logs on the heap.", name);
+			this.arena = null;
+		} else
+			this.arena = config.offHeapBytes > 0 ? new OffHeapArena(config.offHeapBytes, config.offHeapChunkBytes) : null;
+		this.ownedDispatchExecutor = config.dispatchExecutor == null ? DispatchExecutors.create(config.dispatch, config.dispatchThreads) : null;
+		this.metrics = new AppenderMetrics(this::getQueueDepth, config.limiter::getInFlight, config.limiter::getLimit, config.metricsListener);
+		this.nodePool = new NodePool(Arrays.stream(config.nodeConnections).map(NodeConnection::getHttpHost).collect(Collectors.toList()));
+		this.nodeSelector = config.nodeSelection == NodeSelectionStrategy.ROUND_ROBIN ? null : new HealthAwareNodeSelector(this.nodePool, config.nodeSelection);
+		this.restClient = this.createRestClient();
+		this.nodeMonitor = config.sniff || config.healthCheckIntervalMs > 0
+				? new NodeMonitor(this.restClient, this.nodePool, config.nodeConnections[0].getHttpHost().getSchemeName(), config.user, config.password,
+						config.sniff ? config.sniffIntervalMs : 0, config.healthCheckIntervalMs)
+				: null;
+		this.bodyWriter = new BulkBodyWriter(new BulkBufferPool(BULK_BUFFER_POOL_SIZE, BULK_BUFFER_INITIAL_BYTES, BULK_BUFFER_MAX_RETAINED_BYTES),
+				"gzip".equalsIgnoreCase(config.compression) ? new GzipCompressor(config.compressionLevel) : null);
+		this.scheduler = new ScheduledThreadPoolExecutor(1, Log4jThreadFactory.createDaemonThreadFactory("ElasticAppender-retry"));
+		this.dispatcher = new BulkDispatcher(this.restClient, this.bodyWriter, this::requeue,
+				config.retryPolicy, this.scheduler, config.deadLetterSink, config.limiter, this.nodeSelector, this.metrics,
+				config.dispatchExecutor != null ? config.dispatchExecutor : this.ownedDispatchExecutor);
+		this.batcher = this.createBatcher();
+	}
+
+	/**
+	 * Acquires the pipeline shared by all the appenders with the same nodes and credentials, creating it
+	 * from the given settings if there is none. Must be released by {@link #stop(long, TimeUnit)}.
+	 */
+	static ElasticPipeline shared(Config config) {
+		return getManager(keyOf(config), FACTORY, config).acquired();
+	}
+
+	/**
+	 * Creates a pipeline used only by the given appender. Must be released by {@link #stop(long, TimeUnit)}.
+	 */
+	static ElasticPipeline dedicated(String appenderName, Config config) {
+		return getManager("ElasticPipeline[" + appenderName + "]#" + DEDICATED_IDS.incrementAndGet(), FACTORY, config).acquired();
+	}
+
+	/**
+	 * Counts the appender acquiring the pipeline and restarts the batching if the last appender
+	 * released the pipeline meanwhile.
+	 */
+	private synchronized ElasticPipeline acquired() {
+		this.references++;
+		if(this.drained) {
+			this.drained = false;
+			this.batcher.start();
+		}
+		return this;
+	}
+
+	/**
+	 * @return Key of the shared pipeline. The password is only digested, as the key shows up in the logs and JMX.
+	 */
+	static String keyOf(Config config) {
+		StringBuilder key = new StringBuilder("SharedElasticPipeline[");
+		if(config.user != null && !config.user.isEmpty())
+			key.append(config.user).append('@');
+		for(int i = 0; i < config.nodeConnections.length; i++) {
+			if(i > 0) key.append(',');
+			key.append(config.nodeConnections[i].getHttpHost().toURI());
+		}
+		if(config.user != null && !config.user.isEmpty() && config.password != null)
+			key.append('#').append(digest(config.password));
+		return key.append(']').toString();
+	}
+
+	/**
+	 * @return First 8 bytes of the SHA-256 of the value in hex.
+	 */
+	private static String digest(String value) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder(16);
+			for(int i = 0; i < 8; i++)
+				hex.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+			return hex.toString();
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available.", e);
+		}
+	}
+
+	/**
+	 * Starts the batching, node monitoring and JMX registration. Only the first call does anything.
+	 */
+	synchronized void start() {
+		if(this.started) return;
+		this.started = true;
+		this.batcher.start();
+		if(this.nodeMonitor != null)
+			this.nodeMonitor.start();
+		if(this.config.jmx)
+			this.metrics.register(this.config.metricsName);
+	}
+
+	/**
+	 * Puts the log into the batcher, handling the full batcher by the overflow policy. The document
+	 * is copied to the off-heap arena if there is one.
+	 *
+	 * @param target Index the document is persisted into.
+	 * @param document UTF-8 encoded JSON document.
+	 * @param level Level of the log.
+	 * @return {@code false} if the log was swallowed due to the full batcher or arena. It is counted as dropped.
+	 */
+	boolean offer(IndexTarget target, byte[] document, StandardLevel level) throws InterruptedException {
+		BulkItem item;
+		if(this.arena != null) {
+			item = OffHeapBulkItem.store(this.arena, target, document, level);
+			if(item == null) {
+				this.metrics.onDropped(DropReason.QUEUE_FULL, level, 1);
+				return false;
+			}
+		} else
+			item = new BulkItem(target, document, level);
+		if(this.config.maxBulkBytes > 0 && item.getBulkLength() > this.config.maxBulkBytes) {
+			LOGGER.debug("Log of {} bytes exceeds maxBulkBytes, it will be sent alone in its own bulk.", item.getBulkLength());
+			this.metrics.onOversized();
+		}
+		long start = System.nanoTime();
+		if(this.batcher.offer(item, this.config.overflowPolicy, this.config.overflowWaitMicros, this::evicted)) {
+			this.metrics.onEnqueued(item.getBulkLength(), System.nanoTime() - start);
+			return true;
+		}
+		item.release();
+		this.metrics.onDropped(DropReason.QUEUE_FULL, level, 1);
+		return false;
+	}
+
+	/**
+	 * Runs the task periodically on the pipeline's scheduler until the returned future is cancelled.
+	 */
+	ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long delayMs) {
+		return this.scheduler.scheduleWithFixedDelay(task, delayMs, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return Time in milliseconds to deliver the pending logs on release when Log4J does not set it.
+	 */
+	long getShutdownTimeoutMs() {
+		return this.config.shutdownTimeoutMs;
+	}
+
+	int getQueueDepth() {
+		return this.batcher.size();
+	}
+
+	ConcurrencyLimiter getLimiter() {
+		return this.config.limiter;
+	}
+
+	DeadLetterSink getDeadLetterSink() {
+		return this.config.deadLetterSink;
+	}
+
+	AppenderMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	BulkBodyWriter getBodyWriter() {
+		return this.bodyWriter;
+	}
+
+	Collection<NodeStats> getNodes() {
+		return this.nodePool.getNodes();
+	}
+
+	/**
+	 * @return Arena storing the pending documents off the heap, {@code null} if they stay on the heap.
+	 */
+	OffHeapArena getArena() {
+		return this.arena;
+	}
+
+	OverflowPolicy getOverflowPolicy() {
+		return this.config.overflowPolicy;
+	}
+
+	/**
+	 * @return Number of the logs which found the batcher full with the overflow policy.
+	 */
+	long getOverflows() {
+		return this.batcher.getOverflows(this.config.overflowPolicy);
+	}
+
+	/**
+	 * @return Number of the logs dropped by the overflow policy.
+	 */
+	long getOverflowDrops() {
+		return this.batcher.getOverflowDrops(this.config.overflowPolicy);
+	}
+
+	/**
+	 * Puts back the logs which failed to be persisted and should be retried. Logs which do not
+	 * fit into the full batcher are counted as dropped.
+	 */
+	private void requeue(Collection<BulkItem> work) {
+		// One by one to know which of the logs did not fit, retries are rare.
+		int dropped = 0;
+		for(BulkItem item : work) {
+			if(!this.batcher.addAll(Collections.singletonList(item))) {
+				this.metrics.onDropped(DropReason.QUEUE_FULL, item.getLevel(), 1);
+				item.release();
+				dropped++;
+			}
+		}
+		if(dropped > 0)
+			LOGGER.warn("{} failed logs could not be put back due to exhausted consumer.", dropped);
+	}
+
+	/**
+	 * Creates the configured {@link Batcher} implementation.
+	 */
+	private Batcher<BulkItem> createBatcher() {
+		if("spilling".equalsIgnoreCase(this.config.batcher)) {
+			try {
+				return new SpillingBatcher<BulkItem>(this.dispatcher, this.bulkSize, this.maxUnprocessedLogs, this.config.lingerMs,
+						BulkItem::getBulkLength, this.config.maxBulkBytes, new BulkItemCodec(), Paths.get(this.config.spillDirectory),
+						this.config.spillSegmentBytes, this.config.maxSpillBytes);
+			} catch(IOException | InvalidPathException e) {
+				LOGGER.error("Spill directory {} could not be opened. Falling back to blockingQueue batcher.", this.config.spillDirectory, e);
+			}
+		}
+		if("priorityLanes".equalsIgnoreCase(this.config.batcher))
+			return new PriorityLaneBatcher<BulkItem>(this.dispatcher, this.bulkSize, this.config.lingerMs, ElasticPipeline::laneOf,
+					this.laneCapacities, this.config.laneWeights, this::shed,
+					BulkItem::getBulkLength, this.config.maxBulkBytes);
+		if("ringBuffer".equalsIgnoreCase(this.config.batcher))
+			return new RingBufferBatcher<BulkItem>(this.dispatcher, this.bulkSize, this.maxUnprocessedLogs, this.config.lingerMs, this.config.waitStrategy,
+					BulkItem::getBulkLength, this.config.maxBulkBytes);
+		return new BlockingQueueBatcher<BulkItem>(this.dispatcher, this.bulkSize, this.maxUnprocessedLogs, this.config.lingerMs,
+				BulkItem::getBulkLength, this.config.maxBulkBytes);
+	}
+
+	private void evicted(BulkItem item) {
+		this.metrics.onDropped(DropReason.EVICTED, item.getLevel(), 1);
+		item.release();
+	}
+
+	private void lost(BulkItem item) {
+		this.metrics.onDropped(DropReason.SHUTDOWN, item.getLevel(), 1);
+		item.release();
+	}
+
+	private void shed(BulkItem item) {
+		this.metrics.onDropped(DropReason.SHED, item.getLevel(), 1);
+		item.release();
+	}
+
+	/**
+	 * @return Lane of the "priorityLanes" batcher the log belongs to.
+	 */
+	private static int laneOf(BulkItem item) {
+		StandardLevel level = item.getLevel();
+		if(level == null) return PRIORITY_LANES - 1;
+		switch(level) {
+		case OFF:
+		case FATAL:
+		case ERROR:
+			return 0;
+		case WARN:
+			return 1;
+		case INFO:
+			return 2;
+		default:
+			return 3;
+		}
+	}
+
+	/**
+	 * Creates a low level RestClient for the Elasticsearch using configured nodes and
+	 * authentication.
+	 */
+	private RestClient createRestClient() {
+		HttpHost[] hosts = Arrays.stream(this.config.nodeConnections)
+				.map(node -> node.getHttpHost())
+				.collect(Collectors.toList())
+				.toArray(new HttpHost[this.config.nodeConnections.length]);
+
+		RestClientBuilder restClientBuilder = RestClient.builder(hosts);
+		if(this.nodeSelector != null)
+			restClientBuilder.setNodeSelector(this.nodeSelector);
+		restClientBuilder.setFailureListener(new RestClient.FailureListener() {
+			@Override
+			public void onFailure(org.elasticsearch.client.Node node) {
+				nodePool.markDead(node.getHost());
+			}
+		});
+
+		if(this.config.user != null && !this.config.user.isEmpty()) {
+			CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+			credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(this.config.user, this.config.password));
+			restClientBuilder.setHttpClientConfigCallback(callback -> {
+				return callback.setDefaultCredentialsProvider(credentialsProvider);
+			});
+		}
+
+		return restClientBuilder.build();
+	}
+
+	/**
+	 * Releases the pipeline acquired by {@link #shared(Config)} or {@link #dedicated(String, Config)}. When
+	 * the last appender releases it, retries still waiting for their backoff are put back right away, the
+	 * batcher is drained in full bulks and the bulks in flight are awaited, all within the timeout. This
+	 * happens before the pipeline is stopped, outside of Log4J's manager lock.
+	 */
+	@Override
+	public boolean stop(long timeout, TimeUnit timeUnit) {
+		long deadline = System.nanoTime() + (timeout > 0 ? timeUnit.toNanos(timeout) : TimeUnit.MILLISECONDS.toNanos(this.config.shutdownTimeoutMs));
+		boolean stopped = true;
+		boolean last;
+		synchronized(this) {
+			last = --this.references == 0;
+		}
+		if(last) {
+			stopped = this.drain(deadline);
+			synchronized(this) {
+				if(this.references > 0)
+					this.batcher.start();
+				else
+					this.drained = true;
+			}
+		}
+		return super.stop(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS) && stopped;
+	}
+
+	/**
+	 * Delivers the pending logs till the deadline.
+	 *
+	 * @return {@code true} if all the logs were delivered in time.
+	 */
+	private boolean drain(long deadline) {
+		this.runDelayedTasks();
+		try {
+			return this.batcher.stop(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS, this::lost)
+					& this.config.limiter.awaitIdle(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Runs the delayed one-shot tasks, i.e. the retries, right away. Must be called before the scheduler is
+	 * shut down, the tasks of a stopped scheduler cancel themselves instead of running.
+	 */
+	private void runDelayedTasks() {
+		for(Runnable task : this.scheduler.getQueue().toArray(new Runnable[0])) {
+			// Collapsing windows run periodically and are left to their appenders.
+			if(task instanceof RunnableScheduledFuture && !((RunnableScheduledFuture<?>) task).isPeriodic() && this.scheduler.remove(task))
+				task.run();
+		}
+	}
+
+	/**
+	 * Called under Log4J's manager lock when the last appender released the pipeline, after the pending
+	 * logs were delivered. Closes the client and counts the logs which were not delivered in time as dropped.
+	 */
+	@Override
+	protected boolean releaseSub(long timeout, TimeUnit timeUnit) {
+		// Retries scheduled by the bulks completed during the drain are put back and counted below.
+		this.runDelayedTasks();
+		this.scheduler.shutdownNow();
+		if(this.ownedDispatchExecutor != null)
+			this.ownedDispatchExecutor.shutdown();
+		int undelivered = this.batcher.size() + this.dispatcher.getNumInFlightItems();
+
+		if(this.nodeMonitor != null)
+			this.nodeMonitor.stop();
+		try {
+			this.restClient.close();
+		} catch(IOException e) {
+			LOGGER.warn("Error during closing the client of {}.", this.getName(), e);
+		}
+		this.bodyWriter.close();
+		this.metrics.unregister();
+		if(undelivered > 0) {
+			LOGGER.warn("{} stopped with {} logs not delivered.", this.getName(), undelivered);
+			this.metrics.onDropped(DropReason.SHUTDOWN, undelivered);
+		}
+		return true;
+	}
+
+	/**
+	 * Settings of the pipeline. Appenders sharing a pipeline use the settings of the first one.
+	 */
+	static final class Config {
+		NodeConnection[] nodeConnections;
+		String user;
+		String password;
+		int bulkSize;
+		long maxBulkBytes;
+		int maxUnprocessedLogs;
+		long lingerMs;
+		String batcher;
+		WaitStrategy waitStrategy;
+		OverflowPolicy overflowPolicy;
+		long overflowWaitMicros;
+		String compression;
+		int compressionLevel;
+		RetryPolicy retryPolicy;
+		DeadLetterSink deadLetterSink;
+		String spillDirectory;
+		int spillSegmentBytes;
+		long maxSpillBytes;
+		ConcurrencyLimiter limiter;
+		NodeSelectionStrategy nodeSelection;
+		boolean sniff;
+		long sniffIntervalMs;
+		long healthCheckIntervalMs;
+		MetricsListener metricsListener;
+		boolean jmx;
+		String metricsName;
+		long shutdownTimeoutMs;
+		int[] laneCapacities;
+		int[] laneWeights;
+		String dispatch;
+		int dispatchThreads;
+		Executor dispatchExecutor;
+		long offHeapBytes;
+		int offHeapChunkBytes;
+	}
+}
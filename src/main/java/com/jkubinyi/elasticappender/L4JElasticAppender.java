@@ -2,26 +2,22 @@ package com.jkubinyi.elasticappender;
 
 import java.io.Serializable;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.security.InvalidParameterException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.Date;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Collectors;
-
-import org.apache.http.HttpHost;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.CredentialsProvider;
-import org.apache.http.impl.client.BasicCredentialsProvider;
+
 import org.apache.logging.log4j.core.Appender;
 import org.apache.logging.log4j.core.Core;
 import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.StringLayout;
 import org.apache.logging.log4j.core.appender.AbstractAppender;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
 import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
@@ -29,26 +25,38 @@ import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
 import org.apache.logging.log4j.core.config.plugins.PluginElement;
 import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
 import org.apache.logging.log4j.core.layout.JsonLayout;
-import org.elasticsearch.action.ActionListener;
-import org.elasticsearch.action.bulk.BulkRequest;
-import org.elasticsearch.action.bulk.BulkResponse;
-import org.elasticsearch.action.index.IndexRequest;
-import org.elasticsearch.client.RequestOptions;
-import org.elasticsearch.client.RestClient;
-import org.elasticsearch.client.RestClientBuilder;
-import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.common.xcontent.XContentType;
-
-import com.jkubinyi.elasticappender.batch.Batcher;
-import com.jkubinyi.elasticappender.batch.BlockingQueueBatcher;
-import com.jkubinyi.elasticappender.batch.Batcher.BatchProcessor;
+
+import com.jkubinyi.elasticappender.batch.AbstractBatcher;
+import com.jkubinyi.elasticappender.batch.OverflowPolicy;
+import com.jkubinyi.elasticappender.batch.SpillingBatcher;
+import com.jkubinyi.elasticappender.batch.WaitStrategy;
+import com.jkubinyi.elasticappender.bulk.BoundedDeadLetterQueue;
+import com.jkubinyi.elasticappender.bulk.ConcurrencyLimiter;
+import com.jkubinyi.elasticappender.bulk.DeadLetterSink;
+import com.jkubinyi.elasticappender.bulk.IndexTarget;
+import com.jkubinyi.elasticappender.bulk.OffHeapArena;
+import com.jkubinyi.elasticappender.bulk.RetryPolicy;
+import com.jkubinyi.elasticappender.dispatch.DispatchExecutors;
+import com.jkubinyi.elasticappender.index.IndexNameResolver;
+import com.jkubinyi.elasticappender.index.RoutingIndexResolver;
+import com.jkubinyi.elasticappender.layout.LayoutSerializer;
+import com.jkubinyi.elasticappender.layout.StackTraceCache;
+import com.jkubinyi.elasticappender.metrics.AppenderMetrics;
+import com.jkubinyi.elasticappender.metrics.DropReason;
+import com.jkubinyi.elasticappender.metrics.MetricsListener;
+import com.jkubinyi.elasticappender.node.NodeSelectionStrategy;
+import com.jkubinyi.elasticappender.node.NodeStats;
+import com.jkubinyi.elasticappender.throttle.EventCollapser;
+import com.jkubinyi.elasticappender.throttle.RateLimiter;
 
 /**
  * <p>Elasticsearch Log4J 2 appender using asynchronous bulk operations to insert the batches
  * of logs into the appropriate index. Class provides a way to customize bulk size,
  * authentication used with Elasticsearch, index name, date format, etc.</p>
  * <p>It allows to add one or more than one Elasticsearch nodes. In the latter case it uses a
- * robin round mechanism to persist the batches.</p>
+ * robin round mechanism to persist the batches by default. Nodes can be also chosen by their load
+ * and latency, discovered from the cluster and health checked.</p>
+ * <p>Appenders writing to the same cluster can share one pipeline, see {@link Builder#setSharedPipeline(boolean)}.</p>
  * 
  * @author jurajkubinyi
  *
@@ -56,61 +64,37 @@ import com.jkubinyi.elasticappender.batch.Batcher.BatchProcessor;
 @Plugin(name = "ElasticAppender", category = Core.CATEGORY_NAME, elementType = Appender.ELEMENT_TYPE)
 public class L4JElasticAppender extends AbstractAppender {
 
-	private final String index;
-	private final NodeConnection[] nodeConnections;
+	/** Number of the lanes of the "priorityLanes" batcher: FATAL and ERROR, WARN, INFO, the rest. */
+	public static final int PRIORITY_LANES = ElasticPipeline.PRIORITY_LANES;
+
 	private final boolean useBulk;
-	private final int bulkSize;
-	private final String user;
-	private final String password;
-	private final DateFormat dateFormat;
-	private final int maxUnprocessedLogs;
+	private final LayoutSerializer serializer;
 
-	/** Used for bulk sending. */
-	private RestHighLevelClient restClient;
+	/** Batches and sends the logs, shared with other appenders if sharedPipeline is set. */
+	private final ElasticPipeline pipeline;
 
-	/** Number of logs which were not persisted. */
-	private final AtomicLong swallowedLogs = new AtomicLong(0);
+	/** Metrics of the pipeline, shared with the other appenders of a shared pipeline. */
+	private final AppenderMetrics metrics;
 
-	/** Batcher instance having the batching logic. */
-	private final Batcher<IndexRequest> requestAsyncBatch;
+	/** {@code true} if the full batcher drops the logs by design, so swallowing them is not warned about. */
+	private final boolean dropsOnOverflow;
 
-	/** Processor instance having the processing of the batches logic. */
-	private final BatchProcessor<IndexRequest> asyncBatchProcessor = new AsyncBatchProcessor();
+	/** Limits the rate of the logs per logger and level, {@code null} if unlimited. */
+	private final RateLimiter rateLimiter;
 
-	/** Computed date used to distinguish log indexes. */
-	private String computedDate;
-	
-	/** Computed index name to persist logs into. */
-	private String computedIndex;
+	/** Folds the repeated logs, {@code null} if disabled. */
+	private final EventCollapser collapser;
 
-	/**
-	 * Batching logic using {@link RestHighLevelClient}'s async bulk operations.
-	 * 
-	 * @author jurajkubinyi
-	 */
-	private class AsyncBatchProcessor implements BatchProcessor<IndexRequest> {
+	private final long collapseWindowMs;
 
-		@Override
-		public void process(Collection<IndexRequest> work) {
-			BulkRequest request = new BulkRequest();
-			work.forEach(request::add);
-			LOGGER.debug("{}", restClient);
-			restClient.bulkAsync(request, RequestOptions.DEFAULT, new ActionListener<BulkResponse>() {
-
-				@Override
-				public void onResponse(BulkResponse response) {
-					// Do nothing
-				}
+	/** Periodically closes the collapsing windows, {@code null} if not running. */
+	private ScheduledFuture<?> collapseTask;
 
-				@Override
-				public void onFailure(Exception e) {
-					LOGGER.error("Error during persisting batch. Will retry next time.", e);
-					requestAsyncBatch.addAll(work);
-				}
-			});
-		}
+	/** Resolves the index of the log from its timestamp. */
+	private final IndexNameResolver indexResolver;
 
-	}
+	/** Routes the logs by the index pattern, {@code null} if all the logs go to the index. */
+	private final RoutingIndexResolver router;
 
 	/**
 	 * Creates Elasticsearch Appender for Log4J 2. Probably you should not initialize the class
@@ -121,42 +105,40 @@ public class L4JElasticAppender extends AbstractAppender {
 	 * @param layout Layout must be json.
 	 * @param ignoreExceptions If you wish to ignore exceptions.
 	 * @param index Base of the index name used for the logging.
-	 * @param nodeConnections {@link NodeConnection}s of pointing to the Elasticsearch node.
 	 * @param useBulk If {@code false} it will pretend to not divide logs into the batch and rather send them one by one.
 	 * It may still use the same overhead as batching algorithm, but sends them right off the bat without waiting to fill the space.
-	 * @param bulkSize Number of elements needed to wait before trying to persist them in Elasticsearch.
-	 * @param user It will try to authenticate using the username and password if it is not null.
-	 * @param password If username is not null the password will be used during authentication.
-	 * @param maxUnprocessedLogs Maximum number of unprocessed, piled up logs in the cache. No more logs will be persisted when the cache
-	 * is full till they will be cleared by the batching algorithm.
 	 * @param dateFormat The actual computed date using this format will be appended to the index name in order to create a unique index name.
+	 * @param indexPattern Pattern routing the logs to the indices by their context and marker, may be {@code null}.
+	 * @param dataStream If {@code true} the logs are written by the "create" action, as the data streams require.
+	 * @param garbageFree If {@code true} events are serialized into thread-local buffers without intermediate Strings.
+	 * @param stackTraceCacheSize Maximum number of the serialized exceptions cached, 0 disables the cache.
+	 * @param rateLimiter Limits the rate of the logs per logger and level, may be {@code null}.
+	 * @param collapseWindowMs Window in milliseconds in which the identical logs are folded, 0 disables it.
+	 * @param maxFingerprints Maximum number of the distinct logs folded at once.
+	 * @param pipelineConfig Settings of the batching and sending of the logs.
+	 * @param sharedPipeline If {@code true} the pipeline is shared with the other appenders having the same nodes and credentials.
 	 */
 	private L4JElasticAppender(String name, Filter filter, Layout<? extends Serializable> layout, final boolean ignoreExceptions,
-			String index, NodeConnection[] nodeConnections, boolean useBulk, int bulkSize,
-			String user, String password, int maxUnprocessedLogs, DateFormat dateFormat) {
+			String index, boolean useBulk, DateFormat dateFormat, String indexPattern, boolean dataStream,
+			boolean garbageFree, int stackTraceCacheSize,
+			RateLimiter rateLimiter, long collapseWindowMs, int maxFingerprints,
+			ElasticPipeline.Config pipelineConfig, boolean sharedPipeline) {
 		super(name, filter, layout, ignoreExceptions);
-		this.index = index;
-		this.nodeConnections = nodeConnections;
 		this.useBulk = useBulk;
-		this.user = user;
-		this.password = password;
-		this.dateFormat = dateFormat;
-		if(!useBulk || bulkSize < 2)
-			this.bulkSize = 1;
-		else
-			this.bulkSize = bulkSize;
-
-		if(maxUnprocessedLogs != 0 && this.bulkSize > maxUnprocessedLogs) {
-			LOGGER.warn("MaxUnprocessedLogs is smaller than bulkSize. Upsizing maxUnprocessedLogs to avoid dropping messages.");
-			this.maxUnprocessedLogs = bulkSize * 2;
-		} else
-			this.maxUnprocessedLogs = maxUnprocessedLogs;
-
-		this.requestAsyncBatch = new BlockingQueueBatcher<IndexRequest>(this.asyncBatchProcessor, this.bulkSize, this.maxUnprocessedLogs);
+		this.indexResolver = new IndexNameResolver(index, dateFormat, dataStream);
+		this.router = indexPattern != null && !indexPattern.isEmpty()
+				? new RoutingIndexResolver(indexPattern, this.indexResolver, dataStream, RoutingIndexResolver.DEFAULT_MAX_TARGETS)
+				: null;
+		this.serializer = new LayoutSerializer(layout, garbageFree, stackTraceCacheSize > 0 ? new StackTraceCache(stackTraceCacheSize) : null);
+		this.rateLimiter = rateLimiter;
+		this.collapseWindowMs = collapseWindowMs;
+		this.collapser = collapseWindowMs > 0 ? new EventCollapser(collapseWindowMs, maxFingerprints, this::enqueue) : null;
 
 		this.validate();
-		this.createRestClient();
-		this.calculateCurrentDate();
+		this.pipeline = sharedPipeline ? ElasticPipeline.shared(pipelineConfig) : ElasticPipeline.dedicated(name, pipelineConfig);
+		this.metrics = this.pipeline.getMetrics();
+		this.dropsOnOverflow = this.pipeline.getOverflowPolicy() == OverflowPolicy.DROP_NEWEST
+				|| this.pipeline.getOverflowPolicy() == OverflowPolicy.DROP_OLDEST;
 	}
 
 	/**
@@ -168,55 +150,153 @@ public class L4JElasticAppender extends AbstractAppender {
 	}
 
 	/**
-	 * Used to calculate a new date and thus index name using current date/time.
+	 * Used to calculate a new date and thus index name using current date/time. Index of every log
+	 * is resolved from its timestamp, so calling this is needed only to refresh the values returned by
+	 * {@link #getCurrentComputedDate()} and {@link #getCurrentComputedIndex()} while no logs are coming.
 	 */
 	public void calculateCurrentDate() {
-		this.computedDate = this.dateFormat.format(new Date());
-		this.computedIndex = new StringBuilder().append(this.index).append("_").append(this.computedDate).toString();
+		this.indexResolver.resolve(System.currentTimeMillis());
 	}
 
 	/**
 	 * @return Number of logs which were not persisted.
 	 */
 	public long getNumSwallowed() {
-		return this.swallowedLogs.get();
+		return this.metrics.getDropped(DropReason.QUEUE_FULL);
 	}
 	
+	/**
+	 * @return What happens to a log when the batcher is full.
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return this.pipeline.getOverflowPolicy();
+	}
+
+	/**
+	 * @return Number of logs which found the batcher full.
+	 */
+	public long getNumOverflows() {
+		return this.pipeline.getOverflows();
+	}
+
+	/**
+	 * @return Number of logs dropped by the overflow policy, either swallowed or evicted.
+	 */
+	public long getNumOverflowDrops() {
+		return this.pipeline.getOverflowDrops();
+	}
+
+	/**
+	 * @return Number of logs scheduled for a retry because Elasticsearch failed them temporarily.
+	 */
+	public long getNumRetried() {
+		return this.metrics.getRetried();
+	}
+
+	/**
+	 * @return Number of logs which failed permanently and were handed over to the dead letter sink.
+	 */
+	public long getNumFailed() {
+		return this.metrics.getItemFailures();
+	}
+
+	/**
+	 * @return Number of logs waiting in the batcher.
+	 */
+	public int getQueueDepth() {
+		return this.pipeline.getQueueDepth();
+	}
+
+	/**
+	 * @return Number of the bulk requests currently in flight.
+	 */
+	public int getNumInFlight() {
+		return this.pipeline.getLimiter().getInFlight();
+	}
+
+	/**
+	 * @return Current limit of the bulk requests in flight. Changes over time in the adaptive mode.
+	 */
+	public int getInFlightLimit() {
+		return this.pipeline.getLimiter().getLimit();
+	}
+
+	/**
+	 * @return Sink receiving the logs which failed permanently.
+	 */
+	public DeadLetterSink getDeadLetterSink() {
+		return this.pipeline.getDeadLetterSink();
+	}
+
+	/**
+	 * @return Number of logs bigger than maxBulkBytes which were sent alone in their own bulk.
+	 */
+	public long getNumOversized() {
+		return this.metrics.getOversized();
+	}
+
+	/**
+	 * @return Metrics of the appender's pipeline. Appenders sharing the pipeline share the metrics as well.
+	 */
+	public AppenderMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * @return Number of bytes of all the bulk bodies sent so far before compression.
+	 */
+	public long getUncompressedBytes() {
+		return this.pipeline.getBodyWriter().getUncompressedBytes();
+	}
+
+	/**
+	 * @return Number of bytes of all the bulk bodies sent so far after compression. Equals to
+	 * {@link #getUncompressedBytes()} when the compression is disabled.
+	 */
+	public long getCompressedBytes() {
+		return this.pipeline.getBodyWriter().getCompressedBytes();
+	}
+
 	/**
 	 * @return Computed date used to distinguish log indexes.
 	 */
 	public String getCurrentComputedDate() {
-		return this.computedDate;
+		return this.indexResolver.getCurrentDate();
 	}
 
 	/**
-	 * @return Computed index name to persist logs into.
+	 * @return Computed index name to persist the logs not routed by the indexPattern into.
 	 */
 	public String getCurrentComputedIndex() {
-		return this.computedDate;
+		return this.indexResolver.getCurrentTarget().getName();
 	}
 
 	/**
-	 * Creates a low level and high level RestClient for the Elasticsearch using configured nodes and
-	 * authentication.
+	 * @return Statistics of the nodes the logs are sent to.
 	 */
-	private void createRestClient() {
-		HttpHost[] hosts = Arrays.stream(this.nodeConnections)
-				.map(node -> node.getHttpHost())
-				.collect(Collectors.toList())
-				.toArray(new HttpHost[this.nodeConnections.length]);
+	public Collection<NodeStats> getNodes() {
+		return this.pipeline.getNodes();
+	}
 
-		RestClientBuilder restClientBuilder = RestClient.builder(hosts);
+	/**
+	 * @return Cache of the serialized exceptions with its hit, miss and eviction counters, {@code null} if disabled.
+	 */
+	public StackTraceCache getStackTraceCache() {
+		return this.serializer.getStackTraceCache();
+	}
 
-		if(this.user != null && !this.user.isEmpty()) {
-			CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
-			credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(this.user, this.password));
-			restClientBuilder.setHttpClientConfigCallback(callback -> {
-				return callback.setDefaultCredentialsProvider(credentialsProvider);
-			});
-		}
+	/**
+	 * @return Number of bytes of direct memory holding the pending logs, 0 if they are kept on the heap.
+	 */
+	public long getOffHeapUsedBytes() {
+		return this.pipeline.getArena() != null ? this.pipeline.getArena().getUsedBytes() : 0;
+	}
 
-		this.restClient = new RestHighLevelClient(restClientBuilder);
+	/**
+	 * @return Name of the pipeline sending the logs, the same for the appenders sharing it.
+	 */
+	public String getPipelineName() {
+		return this.pipeline.getName();
 	}
 
 	/**
@@ -226,6 +306,10 @@ public class L4JElasticAppender extends AbstractAppender {
 		if(this.getLayout() != null) {
 			if(!this.getLayout().getContentType().toLowerCase().contains("application/json"))
 				throw new InvalidParameterException("Layout must produce an \"application/json\" content type.");
+			if(this.getLayout() instanceof StringLayout
+					&& !StandardCharsets.UTF_8.equals(((StringLayout) this.getLayout()).getCharset())
+					&& !(this.serializer.isGarbageFree() && this.getLayout() instanceof JsonLayout))
+				LOGGER.warn("Layout of appender {} uses {} charset, Elasticsearch expects UTF-8.", this.getName(), ((StringLayout) this.getLayout()).getCharset());
 		} else throw new InvalidParameterException("Layout does not exist.");
 	}
 
@@ -234,18 +318,75 @@ public class L4JElasticAppender extends AbstractAppender {
 		return new Builder<B>().asBuilder();
 	}
 
+	@Override
+	public void start() {
+		this.pipeline.start();
+		if(this.collapser != null)
+			this.collapseTask = this.pipeline.scheduleWithFixedDelay(this.collapser::closeExpired, this.collapseWindowMs);
+		super.start();
+	}
+
+	/**
+	 * Stops the appender gracefully and releases its pipeline. When the pipeline is not shared or this
+	 * is its last appender, logs waiting for a retry are put back right away, the batcher is drained in
+	 * full bulks and the bulks in flight are awaited, all within the timeout. The client is closed afterwards
+	 * and the logs which were not delivered in time are counted as dropped. A shared pipeline still in use
+	 * keeps delivering the logs of this appender.
+	 * 
+	 * @param timeout Maximum time to deliver the pending logs. If 0 the shutdownTimeoutMs is used.
+	 * @param timeUnit Unit of the timeout.
+	 */
+	@Override
+	public boolean stop(long timeout, TimeUnit timeUnit) {
+		this.setStopping();
+		boolean stopped = super.stop(timeout, timeUnit, false);
+
+		// Folded logs are put back so they are drained as well.
+		if(this.collapseTask != null)
+			this.collapseTask.cancel(false);
+		if(this.collapser != null)
+			this.collapser.closeAll();
+		stopped &= this.pipeline.stop(timeout, timeUnit);
+		this.setStopped();
+		return stopped;
+	}
+
 	@Override
 	public void append(LogEvent event) {
-		String log = new String(this.getLayout().toByteArray(event));
-		IndexRequest logRequest = new IndexRequest(this.computedIndex)
-				.source(log, XContentType.JSON);
+		if(this.collapser != null && !this.collapser.admit(event)) {
+			this.metrics.onCollapsed();
+			return;
+		}
+		if(this.rateLimiter != null && !this.rateLimiter.tryAcquire(event)) {
+			this.metrics.onDropped(DropReason.RATE_LIMITED, event.getLevel().getStandardLevel(), 1);
+			return;
+		}
+		this.enqueue(event, 0);
+	}
+
+	/**
+	 * Serializes the log and puts it into the batcher.
+	 * 
+	 * @param event Log to persist.
+	 * @param repeatCount Number of the identical logs folded into this one, 0 if none.
+	 */
+	private void enqueue(LogEvent event, long repeatCount) {
 		try {
-			if(!this.requestAsyncBatch.offer(logRequest, 1, TimeUnit.SECONDS)) {
+			byte[] document = this.serializer.serialize(event);
+			if(repeatCount > 0)
+				document = EventCollapser.withRepeatCount(document, repeatCount);
+			IndexTarget target = this.router != null ? this.router.resolve(event) : null;
+			if(target == null)
+				target = this.indexResolver.resolve(event.getTimeMillis());
+			if(!this.pipeline.offer(target, document, event.getLevel().getStandardLevel())
+					&& !this.dropsOnOverflow)
 				LOGGER.warn("Log swallowed due to exhausted consumer. Try exceeding maxUnprocessedLogs or setting to 0?");
-				this.swallowedLogs.incrementAndGet();
-			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.metrics.onDropped(DropReason.QUEUE_FULL, event.getLevel().getStandardLevel(), 1);
 		} catch(Exception e) {
 			LOGGER.error("Error during stashing log: ", e);
+			this.metrics.onDropped(DropReason.SERIALIZATION_FAILED, event.getLevel().getStandardLevel(), 1);
 		}
 	}
 
@@ -271,6 +412,9 @@ public class L4JElasticAppender extends AbstractAppender {
 		@PluginBuilderAttribute
 		private int bulkSize = 10;
 
+		@PluginBuilderAttribute
+		private long maxBulkBytes = 5 * 1024 * 1024;
+
 		@PluginBuilderAttribute
 		private String user;
 
@@ -280,9 +424,129 @@ public class L4JElasticAppender extends AbstractAppender {
 		@PluginBuilderAttribute
 		private int maxUnprocessedLogs = 0; // 0 means unlimited
 
+		@PluginBuilderAttribute
+		private String overflowPolicy = "wait";
+
+		@PluginBuilderAttribute
+		private long overflowWaitMicros = TimeUnit.SECONDS.toMicros(1);
+
 		@PluginBuilderAttribute
 		private String dateFormat = "yyyyMMdd";
 
+		@PluginBuilderAttribute
+		private String indexPattern;
+
+		@PluginBuilderAttribute
+		private boolean dataStream = false;
+
+		@PluginBuilderAttribute
+		private long lingerMs = AbstractBatcher.DEFAULT_LINGER_MS;
+
+		@PluginBuilderAttribute
+		private String batcher = "blockingQueue";
+
+		@PluginBuilderAttribute
+		private String waitStrategy = WaitStrategy.PARK.name();
+
+		@PluginBuilderAttribute
+		private boolean garbageFree = false;
+
+		@PluginBuilderAttribute
+		private String compression = "none";
+
+		@PluginBuilderAttribute
+		private int compressionLevel = 6;
+
+		@PluginBuilderAttribute
+		private int maxRetries = 5;
+
+		@PluginBuilderAttribute
+		private long retryInitialBackoffMs = 200;
+
+		@PluginBuilderAttribute
+		private long retryMaxBackoffMs = 30000;
+
+		@PluginBuilderAttribute
+		private int deadLetterCapacity = 1000;
+
+		private DeadLetterSink deadLetterSink;
+
+		@PluginBuilderAttribute
+		private String spillDirectory;
+
+		@PluginBuilderAttribute
+		private int maxInFlightBulks = 8;
+
+		@PluginBuilderAttribute
+		private boolean adaptiveConcurrency = false;
+
+		@PluginBuilderAttribute
+		private long targetBulkLatencyMs = 1000;
+
+		private MetricsListener metricsListener;
+
+		@PluginBuilderAttribute
+		private boolean jmx = true;
+
+		@PluginBuilderAttribute
+		private long shutdownTimeoutMs = 10000;
+
+		@PluginBuilderAttribute
+		private String nodeSelection = "roundRobin";
+
+		@PluginBuilderAttribute
+		private boolean sniff = false;
+
+		@PluginBuilderAttribute
+		private long sniffIntervalMs = 5 * 60 * 1000;
+
+		@PluginBuilderAttribute
+		private long healthCheckIntervalMs = 0;
+
+		@PluginBuilderAttribute
+		private String dispatch = DispatchExecutors.DIRECT;
+
+		@PluginBuilderAttribute
+		private int dispatchThreads = 2;
+
+		private Executor dispatchExecutor;
+
+		@PluginBuilderAttribute
+		private String laneCapacities;
+
+		@PluginBuilderAttribute
+		private String laneWeights = "8,4,2,1";
+
+		@PluginBuilderAttribute
+		private double rateLimit = 0;
+
+		@PluginBuilderAttribute
+		private int rateLimitBurst = 0;
+
+		@PluginBuilderAttribute
+		private long collapseWindowMs = 0;
+
+		@PluginBuilderAttribute
+		private int maxFingerprints = 1000;
+
+		@PluginBuilderAttribute
+		private boolean sharedPipeline = false;
+
+		@PluginBuilderAttribute
+		private int stackTraceCacheSize = 0;
+
+		@PluginBuilderAttribute
+		private long offHeapBytes = 0;
+
+		@PluginBuilderAttribute
+		private int offHeapChunkBytes = OffHeapArena.DEFAULT_CHUNK_BYTES;
+
+		@PluginBuilderAttribute
+		private int spillSegmentBytes = SpillingBatcher.DEFAULT_SEGMENT_BYTES;
+
+		@PluginBuilderAttribute
+		private long maxSpillBytes = 1024L * 1024 * 1024;
+
 		/**
 		 * @param index Base of the index name used for the logging.
 		 */
@@ -290,6 +554,25 @@ public class L4JElasticAppender extends AbstractAppender {
 			this.index = index;
 		}
 
+		/**
+		 * @param indexPattern Routes every log to the index given by the pattern, e.g. "logs-${ctx:tenant}-${date}".
+		 * "${ctx:key}" is the ThreadContext value of the key, "${marker}" the name of the log's marker and "${date}"
+		 * the log's timestamp in the dateFormat. Missing values may have a default, e.g. "${ctx:tenant:-shared}",
+		 * logs missing a value without a default go to the index. Resolved indices are cached, so the logs of many
+		 * indices are mixed in the same bulks without building the names for every log.
+		 */
+		public void setIndexPattern(String indexPattern) {
+			this.indexPattern = indexPattern;
+		}
+
+		/**
+		 * @param dataStream If {@code true} the logs are written by the "create" action, so the index and the
+		 * indices of the indexPattern may be data streams.
+		 */
+		public void setDataStream(boolean dataStream) {
+			this.dataStream = dataStream;
+		}
+
 		/**
 		 * @param connectionNodes {@link NodeConnection}s of pointing to the Elasticsearch node.
 		 */
@@ -313,6 +596,15 @@ public class L4JElasticAppender extends AbstractAppender {
 			this.bulkSize = bulkSize;
 		}
 
+		/**
+		 * @param maxBulkBytes Maximum size of the bulk body in bytes before compression. The bulk is sent as soon as
+		 * either bulkSize or maxBulkBytes is reached. Log bigger than this is sent alone in its own bulk instead
+		 * of enlarging a bulk with other logs. Setting it to 0 means unlimited size. Defaults to 5 MB.
+		 */
+		public void setMaxBulkBytes(long maxBulkBytes) {
+			this.maxBulkBytes = maxBulkBytes;
+		}
+
 		/**
 		 * @param user It will try to authenticate using the username and password if it is not null.
 		 */
@@ -344,9 +636,327 @@ public class L4JElasticAppender extends AbstractAppender {
 			this.dateFormat = dateFormat;
 		}
 
+		/**
+		 * @param overflowPolicy What happens to a log when the batcher is full. "wait" (default) waits up to
+		 * overflowWaitMicros for the space, "block" waits for as long as it takes, "dropNewest" swallows the log
+		 * right away and "dropOldest" evicts the oldest waiting logs to make room for it. The dropping policies
+		 * never wait for the space, but only the "ringBuffer" batcher is lock-free. The other batchers take
+		 * their lock to drop the log too, so the logging thread may still briefly wait for the lock.
+		 */
+		public void setOverflowPolicy(String overflowPolicy) {
+			this.overflowPolicy = overflowPolicy;
+		}
+
+		/**
+		 * @param overflowWaitMicros Maximum time in microseconds a log waits for the space in the full batcher
+		 * with the "wait" overflow policy. Default is a second.
+		 */
+		public void setOverflowWaitMicros(long overflowWaitMicros) {
+			this.overflowWaitMicros = overflowWaitMicros;
+		}
+
+		/**
+		 * @param lingerMs Maximum time in milliseconds to wait for the batch to fill before
+		 * persisting it anyway, so the last logs of a quiet application are not held back.
+		 */
+		public void setLingerMs(long lingerMs) {
+			this.lingerMs = lingerMs;
+		}
+
+		/**
+		 * @param batcher Batching algorithm. "blockingQueue" (default) uses a blocking queue, "ringBuffer"
+		 * uses a lock-free pre-allocated ring buffer better suited for many concurrently logging threads,
+		 * "spilling" overflows the logs into files on the disk which survive the restart, "priorityLanes" keeps
+		 * the logs in lanes by level, so a flood of unimportant logs does not push out the important ones.
+		 */
+		public void setBatcher(String batcher) {
+			this.batcher = batcher;
+		}
+
+		/**
+		 * @param waitStrategy How the threads wait on the "ringBuffer" batcher. One of "spin", "yield" or "park" (default).
+		 */
+		public void setWaitStrategy(String waitStrategy) {
+			this.waitStrategy = waitStrategy;
+		}
+
+		/**
+		 * @param garbageFree If {@code true} events are serialized into reusable thread-local buffers
+		 * and handed to the batcher without creating intermediate Strings. JsonLayout is streamed as UTF-8
+		 * regardless of its charset.
+		 */
+		public void setGarbageFree(boolean garbageFree) {
+			this.garbageFree = garbageFree;
+		}
+
+		/**
+		 * @param compression Compression of the bulk bodies. Either "none" (default) or "gzip".
+		 */
+		public void setCompression(String compression) {
+			this.compression = compression;
+		}
+
+		/**
+		 * @param compressionLevel Gzip compression level from 1 (fastest) to 9 (best compression). Defaults to 6.
+		 */
+		public void setCompressionLevel(int compressionLevel) {
+			this.compressionLevel = compressionLevel;
+		}
+
+		/**
+		 * @param maxRetries Maximum number of retries of a log failed temporarily, e.g. rejected due to
+		 * full write queue of the node. Defaults to 5.
+		 */
+		public void setMaxRetries(int maxRetries) {
+			this.maxRetries = maxRetries;
+		}
+
+		/**
+		 * @param retryInitialBackoffMs Upper bound of the random wait in milliseconds before the first retry.
+		 * It doubles with every further retry. Defaults to 200.
+		 */
+		public void setRetryInitialBackoffMs(long retryInitialBackoffMs) {
+			this.retryInitialBackoffMs = retryInitialBackoffMs;
+		}
+
+		/**
+		 * @param retryMaxBackoffMs Upper bound of the random wait in milliseconds before any retry. Defaults to 30000.
+		 */
+		public void setRetryMaxBackoffMs(long retryMaxBackoffMs) {
+			this.retryMaxBackoffMs = retryMaxBackoffMs;
+		}
+
+		/**
+		 * @param deadLetterCapacity Number of the most recent permanently failed logs kept in memory
+		 * when no custom {@link DeadLetterSink} is set. Defaults to 1000.
+		 */
+		public void setDeadLetterCapacity(int deadLetterCapacity) {
+			this.deadLetterCapacity = deadLetterCapacity;
+		}
+
+		/**
+		 * @param deadLetterSink Custom sink receiving the logs which failed permanently.
+		 */
+		public void setDeadLetterSink(DeadLetterSink deadLetterSink) {
+			this.deadLetterSink = deadLetterSink;
+		}
+
+		/**
+		 * @param spillDirectory Directory of the spill files used by the "spilling" batcher. Defaults to
+		 * "elasticappender-&lt;appender name&gt;" in the temporary directory. Must not be shared by two appenders.
+		 */
+		public void setSpillDirectory(String spillDirectory) {
+			this.spillDirectory = spillDirectory;
+		}
+
+		/**
+		 * @param spillSegmentBytes Size of one memory-mapped spill file. Defaults to 64 MB.
+		 */
+		public void setSpillSegmentBytes(int spillSegmentBytes) {
+			this.spillSegmentBytes = spillSegmentBytes;
+		}
+
+		/**
+		 * @param maxSpillBytes Maximum size of all the spill files together. Logs are swallowed
+		 * when both the memory and the spill files are full. Defaults to 1 GB.
+		 */
+		public void setMaxSpillBytes(long maxSpillBytes) {
+			this.maxSpillBytes = maxSpillBytes;
+		}
+
+		/**
+		 * @param maxInFlightBulks Maximum number of the bulk requests sent and not yet answered. When reached
+		 * the logs stay in the batcher, so the batcher's limits apply to the logging threads. Setting it
+		 * to 0 means unlimited. Defaults to 8.
+		 */
+		public void setMaxInFlightBulks(int maxInFlightBulks) {
+			this.maxInFlightBulks = maxInFlightBulks;
+		}
+
+		/**
+		 * @param adaptiveConcurrency If {@code true} the limit of the bulk requests in flight adapts between 1 and
+		 * maxInFlightBulks (AIMD). It halves when the cluster throttles the requests or they are slower than
+		 * targetBulkLatencyMs and slowly grows back otherwise.
+		 */
+		public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+			this.adaptiveConcurrency = adaptiveConcurrency;
+		}
+
+		/**
+		 * @param targetBulkLatencyMs Bulk latency in milliseconds above which the adaptive limit decreases. Defaults to 1000.
+		 */
+		public void setTargetBulkLatencyMs(long targetBulkLatencyMs) {
+			this.targetBulkLatencyMs = targetBulkLatencyMs;
+		}
+
+		/**
+		 * @param nodeSelection How the node receiving the next bulk is chosen. One of "roundRobin" (default),
+		 * "leastOutstanding" (fewest bulks in flight) or "latencyWeighted" (lowest latency times bulks in flight).
+		 * Dead nodes are skipped by the latter two.
+		 */
+		public void setNodeSelection(String nodeSelection) {
+			this.nodeSelection = nodeSelection;
+		}
+
+		/**
+		 * @param sniff If {@code true} the HTTP nodes of the cluster are periodically discovered and replace
+		 * the configured ones. Dedicated master nodes are skipped.
+		 */
+		public void setSniff(boolean sniff) {
+			this.sniff = sniff;
+		}
+
+		/**
+		 * @param sniffIntervalMs Interval of the node discovery in milliseconds. Defaults to 5 minutes.
+		 */
+		public void setSniffIntervalMs(long sniffIntervalMs) {
+			this.sniffIntervalMs = sniffIntervalMs;
+		}
+
+		/**
+		 * @param healthCheckIntervalMs Interval in milliseconds of the health checks marking the nodes dead or alive.
+		 * Setting it to 0 (default) disables them, the nodes are then marked dead only by the failed bulks.
+		 */
+		public void setHealthCheckIntervalMs(long healthCheckIntervalMs) {
+			this.healthCheckIntervalMs = healthCheckIntervalMs;
+		}
+
+		/**
+		 * @param metricsListener Custom listener receiving the events of the pipeline, e.g. to export them.
+		 */
+		public void setMetricsListener(MetricsListener metricsListener) {
+			this.metricsListener = metricsListener;
+		}
+
+		/**
+		 * @param jmx If {@code true} (default) the metrics are registered as an MXBean named
+		 * "com.jkubinyi.elasticappender:type=ElasticAppender,name=&lt;appender name&gt;".
+		 */
+		public void setJmx(boolean jmx) {
+			this.jmx = jmx;
+		}
+
+		/**
+		 * @param shutdownTimeoutMs Maximum time in milliseconds to deliver the pending logs when the appender
+		 * stops and Log4J does not set the timeout itself. Defaults to 10000.
+		 */
+		public void setShutdownTimeoutMs(long shutdownTimeoutMs) {
+			this.shutdownTimeoutMs = shutdownTimeoutMs;
+		}
+
+		/**
+		 * @param dispatch Threads writing and sending the bulks and handling the responses. "direct" (default) uses
+		 * the flusher thread and the HTTP client's IO threads, "pool" a fixed pool of dispatchThreads threads and
+		 * "virtual" a virtual thread per task on Java 21 and newer, falling back to the pool otherwise.
+		 */
+		public void setDispatch(String dispatch) {
+			this.dispatch = dispatch;
+		}
+
+		/**
+		 * @param dispatchThreads Number of the threads of the "pool" dispatch. Defaults to 2.
+		 */
+		public void setDispatchThreads(int dispatchThreads) {
+			this.dispatchThreads = dispatchThreads;
+		}
+
+		/**
+		 * @param dispatchExecutor Custom executor writing and sending the bulks and handling the responses. Replaces
+		 * the dispatch setting and is not shut down by the appender.
+		 */
+		public void setDispatchExecutor(Executor dispatchExecutor) {
+			this.dispatchExecutor = dispatchExecutor;
+		}
+
+		/**
+		 * @param laneCapacities Comma separated capacities of the lanes of the "priorityLanes" batcher: FATAL and ERROR,
+		 * WARN, INFO and the rest. 0 means unlimited. Defaults to maxUnprocessedLogs split evenly. When a lane or the whole
+		 * batcher is full, the log sheds the oldest log of the least important non-empty lane below its own.
+		 */
+		public void setLaneCapacities(String laneCapacities) {
+			this.laneCapacities = laneCapacities;
+		}
+
+		/**
+		 * @param laneWeights Comma separated number of the logs taken from each lane of the "priorityLanes" batcher
+		 * in one round while more lanes are waiting. Defaults to "8,4,2,1".
+		 */
+		public void setLaneWeights(String laneWeights) {
+			this.laneWeights = laneWeights;
+		}
+
+		/**
+		 * @param rateLimit Sustained number of the logs per second allowed for every logger and level.
+		 * Logs above it are dropped before they are serialized. Setting it to 0 (default) means unlimited.
+		 */
+		public void setRateLimit(double rateLimit) {
+			this.rateLimit = rateLimit;
+		}
+
+		/**
+		 * @param rateLimitBurst Number of the logs of a logger and level allowed at once above the rate limit.
+		 * Defaults to one second worth of the logs.
+		 */
+		public void setRateLimitBurst(int rateLimitBurst) {
+			this.rateLimitBurst = rateLimitBurst;
+		}
+
+		/**
+		 * @param collapseWindowMs If positive, logs with the same logger, level, message and exception are folded
+		 * within the window of this many milliseconds. The first one is persisted right away and the rest as a
+		 * single document with the "repeat_count" field when the window closes. Setting it to 0 (default) disables it.
+		 */
+		public void setCollapseWindowMs(long collapseWindowMs) {
+			this.collapseWindowMs = collapseWindowMs;
+		}
+
+		/**
+		 * @param maxFingerprints Maximum number of the distinct logs folded at once. Logs are not folded
+		 * above it. Defaults to 1000.
+		 */
+		public void setMaxFingerprints(int maxFingerprints) {
+			this.maxFingerprints = maxFingerprints;
+		}
+
+		/**
+		 * @param sharedPipeline If {@code true} the appender shares the batcher, the client and its threads with
+		 * the other appenders having the same nodes, user and password and this set as well. Their logs are mixed
+		 * in the same bulks, each sent to its own index. The batching, sending and metrics settings of the first
+		 * appender creating the pipeline are used, the metrics are registered in JMX under the name of the pipeline.
+		 */
+		public void setSharedPipeline(boolean sharedPipeline) {
+			this.sharedPipeline = sharedPipeline;
+		}
+
+		/**
+		 * @param stackTraceCacheSize If positive, up to this many distinct exceptions are cached serialized, so the same
+		 * exception repeating is not walked and serialized by the layout again. Works with any layout writing the exception
+		 * into its own top-level fields, e.g. "thrown" of JsonLayout. Setting it to 0 (default) disables the cache.
+		 */
+		public void setStackTraceCacheSize(int stackTraceCacheSize) {
+			this.stackTraceCacheSize = stackTraceCacheSize;
+		}
+
+		/**
+		 * @param offHeapBytes If positive, the pending logs are stored in direct memory of at most this many bytes
+		 * instead of the heap, so a slow cluster does not fill the old generation. Logs are swallowed when it is full.
+		 * Reserved lazily by 1 MB. Not supported by the "spilling" batcher. Setting it to 0 (default) keeps them on the heap.
+		 */
+		public void setOffHeapBytes(long offHeapBytes) {
+			this.offHeapBytes = offHeapBytes;
+		}
+
+		/**
+		 * @param offHeapChunkBytes Size of the chunks of the direct memory the logs are stored in. A log takes
+		 * as many chunks as it needs. Defaults to 256.
+		 */
+		public void setOffHeapChunkBytes(int offHeapChunkBytes) {
+			this.offHeapChunkBytes = offHeapChunkBytes;
+		}
+
 		@Override
 		public Layout<? extends Serializable> getOrCreateLayout() {
-			return this.getOrCreateLayout(Charset.defaultCharset());
+			return this.getOrCreateLayout(StandardCharsets.UTF_8);
 		}
 
 		@Override
@@ -370,13 +980,135 @@ public class L4JElasticAppender extends AbstractAppender {
 				this.dateFormat = "yyyyMMdd";
 			}
 
+			if (!"blockingQueue".equalsIgnoreCase(this.batcher) && !"ringBuffer".equalsIgnoreCase(this.batcher)
+					&& !"spilling".equalsIgnoreCase(this.batcher) && !"priorityLanes".equalsIgnoreCase(this.batcher)) {
+				LOGGER.warn("Unknown batcher {} for appender {}. Using blockingQueue.", this.batcher, this.getName());
+				this.batcher = "blockingQueue";
+			}
+
+			if (!"none".equalsIgnoreCase(this.compression) && !"gzip".equalsIgnoreCase(this.compression)) {
+				LOGGER.warn("Unknown compression {} for appender {}. Using none.", this.compression, this.getName());
+				this.compression = "none";
+			}
+
+			if (this.spillDirectory == null) {
+				this.spillDirectory = Paths.get(System.getProperty("java.io.tmpdir"), "elasticappender-" + this.getName()).toString();
+			}
+
+			WaitStrategy strategy;
+			try {
+				strategy = WaitStrategy.valueOf(this.waitStrategy.toUpperCase());
+			} catch(IllegalArgumentException | NullPointerException e) {
+				LOGGER.warn("Unknown wait strategy {} for appender {}. Using park.", this.waitStrategy, this.getName());
+				strategy = WaitStrategy.PARK;
+			}
+
+			OverflowPolicy overflow = this.overflowPolicy == null ? null : OverflowPolicy.fromName(this.overflowPolicy);
+			if (overflow == null) {
+				LOGGER.warn("Unknown overflow policy {} for appender {}. Using wait.", this.overflowPolicy, this.getName());
+				overflow = OverflowPolicy.WAIT;
+			}
+
+			NodeSelectionStrategy selection = this.nodeSelection == null ? null : NodeSelectionStrategy.fromName(this.nodeSelection);
+			if (selection == null) {
+				LOGGER.warn("Unknown node selection {} for appender {}. Using roundRobin.", this.nodeSelection, this.getName());
+				selection = NodeSelectionStrategy.ROUND_ROBIN;
+			}
+
+			if (!DispatchExecutors.isKnown(this.dispatch)) {
+				LOGGER.warn("Unknown dispatch {} for appender {}. Using direct.", this.dispatch, this.getName());
+				this.dispatch = DispatchExecutors.DIRECT;
+			}
+
+			if (this.offHeapChunkBytes < 16 || this.offHeapChunkBytes > OffHeapArena.SEGMENT_BYTES) {
+				LOGGER.warn("Invalid off-heap chunk size {} for appender {}. Using {}.", this.offHeapChunkBytes, this.getName(), OffHeapArena.DEFAULT_CHUNK_BYTES);
+				this.offHeapChunkBytes = OffHeapArena.DEFAULT_CHUNK_BYTES;
+			}
+
+			int[] capacities = null;
+			if (this.laneCapacities != null) {
+				capacities = parseLanes(this.laneCapacities);
+				if (capacities == null)
+					LOGGER.warn("Invalid lane capacities {} for appender {}. Splitting maxUnprocessedLogs evenly.", this.laneCapacities, this.getName());
+			}
+			int[] weights = this.laneWeights != null ? parseLanes(this.laneWeights) : null;
+			if (weights == null) {
+				LOGGER.warn("Invalid lane weights {} for appender {}. Using 8,4,2,1.", this.laneWeights, this.getName());
+				weights = new int[] { 8, 4, 2, 1 };
+			}
+
+			if (this.indexPattern != null && !this.indexPattern.isEmpty()) {
+				try {
+					RoutingIndexResolver.validate(this.indexPattern);
+				} catch(IllegalArgumentException e) {
+					LOGGER.warn("{} for appender {}. All the logs go to the index.", e.getMessage(), this.getName());
+					this.indexPattern = null;
+				}
+			}
+
 			if (this.connectionNodes == null || this.connectionNodes.length == 0) {
 				LOGGER.warn("No NodeConnections found for ElasticAppender {}. Using localhost with default port without https. (http://localhost:9200)", getName());
 				this.connectionNodes = new NodeConnection[] { NodeConnection.fromLocalhost() };
 			}
 
-			return new L4JElasticAppender(this.getName(), this.getFilter(), this.getOrCreateLayout(), this.isIgnoreExceptions(), this.index, this.connectionNodes,
-					this.useBulk, this.bulkSize, this.user, this.password, this.maxUnprocessedLogs, new SimpleDateFormat(dateFormat));
+			ElasticPipeline.Config pipeline = new ElasticPipeline.Config();
+			pipeline.nodeConnections = this.connectionNodes;
+			pipeline.user = this.user;
+			pipeline.password = this.password;
+			pipeline.bulkSize = this.useBulk ? this.bulkSize : 1;
+			pipeline.maxBulkBytes = this.maxBulkBytes;
+			pipeline.maxUnprocessedLogs = this.maxUnprocessedLogs;
+			pipeline.lingerMs = this.lingerMs;
+			pipeline.batcher = this.batcher;
+			pipeline.waitStrategy = strategy;
+			pipeline.overflowPolicy = overflow;
+			pipeline.overflowWaitMicros = Math.max(0, this.overflowWaitMicros);
+			pipeline.compression = this.compression;
+			pipeline.compressionLevel = this.compressionLevel;
+			pipeline.retryPolicy = new RetryPolicy(this.maxRetries, this.retryInitialBackoffMs, this.retryMaxBackoffMs);
+			pipeline.deadLetterSink = this.deadLetterSink != null ? this.deadLetterSink : new BoundedDeadLetterQueue(this.deadLetterCapacity);
+			pipeline.spillDirectory = this.spillDirectory;
+			pipeline.spillSegmentBytes = this.spillSegmentBytes;
+			pipeline.maxSpillBytes = this.maxSpillBytes;
+			pipeline.limiter = new ConcurrencyLimiter(this.maxInFlightBulks, this.adaptiveConcurrency, this.targetBulkLatencyMs);
+			pipeline.nodeSelection = selection;
+			pipeline.sniff = this.sniff;
+			pipeline.sniffIntervalMs = this.sniffIntervalMs;
+			pipeline.healthCheckIntervalMs = this.healthCheckIntervalMs;
+			pipeline.metricsListener = this.metricsListener;
+			pipeline.jmx = this.jmx;
+			pipeline.metricsName = this.sharedPipeline ? ElasticPipeline.keyOf(pipeline) : this.getName();
+			pipeline.shutdownTimeoutMs = this.shutdownTimeoutMs;
+			pipeline.laneCapacities = capacities;
+			pipeline.laneWeights = weights;
+			pipeline.dispatch = this.dispatch;
+			pipeline.dispatchThreads = this.dispatchThreads;
+			pipeline.dispatchExecutor = this.dispatchExecutor;
+			pipeline.offHeapBytes = this.offHeapBytes;
+			pipeline.offHeapChunkBytes = this.offHeapChunkBytes;
+
+			return new L4JElasticAppender(this.getName(), this.getFilter(), this.getOrCreateLayout(), this.isIgnoreExceptions(), this.index,
+					this.useBulk, new SimpleDateFormat(dateFormat), this.indexPattern, this.dataStream, this.garbageFree, this.stackTraceCacheSize,
+					this.rateLimit > 0 ? new RateLimiter(this.rateLimit, this.rateLimitBurst, RateLimiter.DEFAULT_MAX_LOGGERS) : null,
+					this.collapseWindowMs, this.maxFingerprints, pipeline, this.sharedPipeline);
+		}
+
+		/**
+		 * @return Non-negative values of all the lanes or {@code null} if the value is invalid.
+		 */
+		private static int[] parseLanes(String value) {
+			String[] parts = value.split(",");
+			if (parts.length != PRIORITY_LANES) return null;
+			int[] lanes = new int[PRIORITY_LANES];
+			try {
+				for (int i = 0; i < PRIORITY_LANES; i++) {
+					lanes[i] = Integer.parseInt(parts[i].trim());
+					if (lanes[i] < 0) return null;
+				}
+			} catch(NumberFormatException e) {
+				return null;
+			}
+			return lanes;
 		}
 	}
 }
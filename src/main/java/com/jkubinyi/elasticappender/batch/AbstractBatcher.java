@@ -0,0 +1,373 @@
+package com.jkubinyi.elasticappender.batch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * Base of the {@link Batcher}s processing the batches on a dedicated flusher
+ * thread. Producers only enqueue the elements while the flusher thread drains
+ * them and processes the batch using defined {@link BatchProcessor} implementation
+ * as soon as there are enough elements, the batch reaches its maximum size in bytes
+ * or the linger time of the oldest element in the batch elapses, whichever comes first.
+ * 
+ * On stop the flusher drains the elements left in full batches without waiting for
+ * the linger time, till the batcher is empty or the stop timeout elapses.
+ * 
+ * Producers finding the batcher full are handled by the {@link OverflowPolicy} they offer
+ * the element with. Only the {@link OverflowPolicy#BLOCK} and {@link OverflowPolicy#WAIT}
+ * policies wait, the dropping ones give up right away and just count the drop.
+ * 
+ * Implementations only provide the storage of the elements.
+ * 
+ * @author jurajkubinyi
+ * @param <Q> Type of object which will be batched.
+ */
+public abstract class AbstractBatcher<Q> implements Batcher<Q> {
+
+	protected static final Logger LOGGER = StatusLogger.getLogger();
+
+	/** Default time in milliseconds to wait for the batch to fill before processing it anyway. */
+	public static final long DEFAULT_LINGER_MS = 1000;
+
+	/** Maximum number of the elements evicted to make room for one element by the {@link OverflowPolicy#DROP_OLDEST} policy. */
+	private static final int MAX_EVICTIONS = 4;
+
+	private static final OverflowPolicy[] OVERFLOW_POLICIES = OverflowPolicy.values();
+
+	private final int batchSize;
+	private final long lingerNanos;
+	private final BatchProcessor<Q> batchProcessor;
+	private final ToIntFunction<Q> weigher;
+	private final long maxBatchBytes;
+	private final LongAdder[] overflows = new LongAdder[OVERFLOW_POLICIES.length];
+	private final LongAdder[] overflowDrops = new LongAdder[OVERFLOW_POLICIES.length];
+
+	private volatile boolean running;
+	private Thread flusher;
+
+	/** {@link System#nanoTime()} till which the flusher drains the elements left after stop. */
+	private volatile long drainDeadline;
+
+	/** Element which did not fit into the previous batch. Accessed only by the flusher thread. */
+	private Q carried;
+
+	/** Receives the element which could not be put back after the drain, may be {@code null}. */
+	private volatile Consumer<? super Q> lostListener;
+
+	/**
+	 * @param batchProcessor Instance of processor class having logic to process batches of elements.
+	 * @param batchSize Count of the elements in one group (batch) processed by the processor.
+	 * @param lingerMs Maximum time in milliseconds the first element of not yet full batch waits before the batch is processed anyway.
+	 */
+	protected AbstractBatcher(BatchProcessor<Q> batchProcessor, int batchSize, long lingerMs) {
+		this(batchProcessor, batchSize, lingerMs, null, 0);
+	}
+
+	/**
+	 * @param batchProcessor Instance of processor class having logic to process batches of elements.
+	 * @param batchSize Count of the elements in one group (batch) processed by the processor.
+	 * @param lingerMs Maximum time in milliseconds the first element of not yet full batch waits before the batch is processed anyway.
+	 * @param weigher Function returning size of the element in bytes. May be {@code null} if maxBatchBytes is 0.
+	 * @param maxBatchBytes Maximum size of the batch in bytes. Element bigger than this is processed alone in its own batch.
+	 * Setting it to 0 means unlimited size.
+	 */
+	protected AbstractBatcher(BatchProcessor<Q> batchProcessor, int batchSize, long lingerMs, ToIntFunction<Q> weigher,
+			long maxBatchBytes) {
+		this.batchProcessor = batchProcessor;
+		this.batchSize = Math.max(1, batchSize);
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, lingerMs));
+		this.weigher = weigher;
+		this.maxBatchBytes = weigher != null ? Math.max(0, maxBatchBytes) : 0;
+		for(int i = 0; i < OVERFLOW_POLICIES.length; i++) {
+			this.overflows[i] = new LongAdder();
+			this.overflowDrops[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Waits till an element is available and removes it.
+	 * Called only from the flusher thread.
+	 * 
+	 * @return The oldest element in the batcher.
+	 * @throws InterruptedException When the flusher thread is interrupted.
+	 */
+	protected abstract Q take() throws InterruptedException;
+
+	/**
+	 * Waits at most the given time for an element to be available and removes it.
+	 * Called only from the flusher thread.
+	 * 
+	 * @param timeoutNanos Maximum number of nanoseconds to wait.
+	 * @return The oldest element in the batcher or {@code null} if timed out.
+	 * @throws InterruptedException When the flusher thread is interrupted.
+	 */
+	protected abstract Q poll(long timeoutNanos) throws InterruptedException;
+
+	/**
+	 * Removes immediately available elements without waiting.
+	 * Called only from the flusher thread.
+	 * 
+	 * @param collection Collection to move the elements into.
+	 * @param maxElements Maximum number of elements to move.
+	 * @return Number of elements moved.
+	 */
+	protected abstract int drainTo(Collection<Q> collection, int maxElements);
+
+	public boolean offer(Q obj, OverflowPolicy policy, long waitMicros, Consumer<? super Q> evicted) throws InterruptedException {
+		if(this.tryAdd(obj)) return true;
+
+		this.overflows[policy.ordinal()].increment();
+		boolean added;
+		switch(policy) {
+		case BLOCK:
+			added = this.add(obj);
+			break;
+		case WAIT:
+			added = waitMicros > 0 && this.offer(obj, waitMicros, TimeUnit.MICROSECONDS);
+			break;
+		case DROP_OLDEST:
+			added = this.evictAndAdd(obj, evicted);
+			break;
+		default:
+			added = false;
+		}
+		if(!added) this.overflowDrops[policy.ordinal()].increment();
+		return added;
+	}
+
+	/**
+	 * Evicts the oldest elements till the element fits. Other producers may take the freed
+	 * space first, so it gives up after {@value #MAX_EVICTIONS} evictions.
+	 * 
+	 * @return {@code false} if the element still did not fit.
+	 */
+	private boolean evictAndAdd(Q obj, Consumer<? super Q> evicted) {
+		for(int i = 0; i < MAX_EVICTIONS; i++) {
+			Q oldest = this.evictFor(obj);
+			if(oldest != null) {
+				this.overflowDrops[OverflowPolicy.DROP_OLDEST.ordinal()].increment();
+				try {
+					evicted.accept(oldest);
+				} catch(RuntimeException e) {
+					LOGGER.error("Eviction listener failed.", e);
+				}
+			}
+			if(this.tryAdd(obj)) return true;
+			if(oldest == null) return false;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the oldest element to make room for the given one by the {@link OverflowPolicy#DROP_OLDEST}
+	 * policy. Batchers ranking the elements must not evict the more important ones.
+	 * 
+	 * @param obj Element waiting for the space.
+	 * @return Evicted element or {@code null} if there is nothing the element may take the place of.
+	 */
+	protected Q evictFor(Q obj) {
+		return this.evictOldest();
+	}
+
+	public long getOverflows(OverflowPolicy policy) {
+		return this.overflows[policy.ordinal()].sum();
+	}
+
+	public long getOverflowDrops(OverflowPolicy policy) {
+		return this.overflowDrops[policy.ordinal()].sum();
+	}
+
+	public synchronized void start() {
+		if(this.running) return;
+		this.running = true;
+		this.flusher = new Thread(this::flushLoop, "ElasticAppender-flusher");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/**
+	 * Stops the flusher thread after it drained the elements left in the batcher, or the timeout elapsed.
+	 */
+	public boolean stop(long timeout, TimeUnit unit) throws InterruptedException {
+		return this.stop(timeout, unit, null);
+	}
+
+	public boolean stop(long timeout, TimeUnit unit, Consumer<? super Q> lost) throws InterruptedException {
+		Thread thread;
+		synchronized(this) {
+			if(!this.running) return true;
+			this.lostListener = lost;
+			this.drainDeadline = System.nanoTime() + unit.toNanos(timeout);
+			this.running = false;
+			thread = this.flusher;
+			this.flusher = null;
+		}
+		thread.interrupt();
+		thread.join(Math.max(1, unit.toMillis(timeout)));
+		if(thread.isAlive()) {
+			// Wake up the processor if it blocks, the flusher exits after the current batch.
+			thread.interrupt();
+			thread.join(Math.max(1, unit.toMillis(timeout) / 10));
+		}
+		return !thread.isAlive();
+	}
+
+	/**
+	 * Main loop of the flusher thread. Waits for the first element, then keeps
+	 * collecting elements till the batch is full or the linger time elapses and
+	 * hands the batch over to the processor.
+	 */
+	private void flushLoop() {
+		while(this.running) {
+			List<Q> batch = new ArrayList<>(this.batchSize);
+			try {
+				this.fillBatch(batch);
+			} catch(InterruptedException e) {
+				// Woken up by stop(), loop condition decides whether to exit.
+			}
+			if(!batch.isEmpty()) this.processBatch(batch);
+		}
+		this.drain();
+	}
+
+	/**
+	 * Processes the elements left in the batcher in full batches till it is empty or the drain deadline
+	 * elapses. Element carried over from the last batch is put back if the deadline elapsed, if it does
+	 * not fit it is handed to the lost listener.
+	 */
+	private void drain() {
+		// Interrupt only woke the flusher up, the processor may need to wait for a free slot.
+		Thread.interrupted();
+		while(System.nanoTime() - this.drainDeadline < 0) {
+			List<Q> batch = new ArrayList<>(this.batchSize);
+			long batchBytes = 0;
+			if(this.carried != null) {
+				batch.add(this.carried);
+				batchBytes = this.weigh(this.carried);
+				this.carried = null;
+			}
+			if(this.maxBatchBytes > 0) {
+				Q next;
+				while(batch.size() < this.batchSize && batchBytes < this.maxBatchBytes && (next = this.pollNow()) != null) {
+					int bytes = this.weigh(next);
+					if(!batch.isEmpty() && batchBytes + bytes > this.maxBatchBytes) {
+						this.carried = next;
+						break;
+					}
+					batch.add(next);
+					batchBytes += bytes;
+				}
+			} else {
+				this.drainTo(batch, this.batchSize - batch.size());
+			}
+			if(batch.isEmpty()) return;
+			this.processBatch(batch);
+			if(Thread.interrupted()) break;
+		}
+		if(this.carried != null) {
+			if(!this.addAll(Collections.singletonList(this.carried))) {
+				LOGGER.warn("Element carried over from the last batch did not fit back into the batcher and was lost.");
+				Consumer<? super Q> lost = this.lostListener;
+				if(lost != null) lost.accept(this.carried);
+			}
+			this.carried = null;
+		}
+	}
+
+	private Q pollNow() {
+		try {
+			return this.poll(0);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	private int weigh(Q element) {
+		return this.weigher != null ? this.weigher.applyAsInt(element) : 0;
+	}
+
+	/**
+	 * Blocks till at least one element is present and then drains the batcher
+	 * into the batch till it is full or the linger time elapses.
+	 * 
+	 * @param batch Collection to drain the elements into.
+	 * @throws InterruptedException When the flusher thread is interrupted.
+	 */
+	private void fillBatch(List<Q> batch) throws InterruptedException {
+		Q first = this.carried;
+		this.carried = null;
+		batch.add(first != null ? first : this.take());
+		if(this.maxBatchBytes > 0) {
+			this.fillBatchUpToBytes(batch);
+			return;
+		}
+
+		long deadline = System.nanoTime() + this.lingerNanos;
+		while(batch.size() < this.batchSize) {
+			if(this.drainTo(batch, this.batchSize - batch.size()) > 0) continue;
+
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0) return;
+
+			Q next = this.poll(remaining);
+			if(next == null) return;
+			batch.add(next);
+		}
+	}
+
+	/**
+	 * Same as {@link #fillBatch(List)} while also keeping the batch under the maximum
+	 * size in bytes. Element which would overflow the batch is carried over to the
+	 * next batch, element bigger than the limit on its own is processed alone.
+	 * 
+	 * @param batch Collection with the first element to drain the elements into.
+	 * @throws InterruptedException When the flusher thread is interrupted.
+	 */
+	private void fillBatchUpToBytes(List<Q> batch) throws InterruptedException {
+		long batchBytes = this.weigher.applyAsInt(batch.get(0));
+		long deadline = System.nanoTime() + this.lingerNanos;
+		while(batch.size() < this.batchSize && batchBytes < this.maxBatchBytes) {
+			Q next = this.poll(0);
+			if(next == null) {
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0) return;
+
+				next = this.poll(remaining);
+				if(next == null) return;
+			}
+
+			int bytes = this.weigher.applyAsInt(next);
+			if(batchBytes + bytes > this.maxBatchBytes) {
+				this.carried = next;
+				return;
+			}
+			batch.add(next);
+			batchBytes += bytes;
+		}
+	}
+
+	private void processBatch(List<Q> batch) {
+		try {
+			this.batchProcessor.process(batch);
+		} catch(RuntimeException e) {
+			LOGGER.error("Error during processing batch of {} elements.", batch.size(), e);
+		}
+		this.processed();
+	}
+
+	/**
+	 * Called on the flusher thread once the batch was handed over to the processor.
+	 */
+	protected void processed() {
+	}
+}
@@ -2,6 +2,7 @@ package com.jkubinyi.elasticappender.batch;
 
 import java.util.Collection;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * Used to "prettify" and abstract away underlying batching algorithm.
@@ -63,4 +64,80 @@ public interface Batcher<Q> {
 	 * or timed out while trying to add element to the batcher.
 	 */
 	public boolean offer(Q obj, long timeout, TimeUnit unit) throws InterruptedException;
+
+	/**
+	 * Adds an element to the batcher only if there is space for it right away.
+	 *
+	 * @param obj Element to be added to the batch.
+	 * @return {@code false} if the batcher is full.
+	 */
+	public boolean tryAdd(Q obj);
+
+	/**
+	 * Removes the oldest element waiting in the batcher, so a newer one fits. Unlike the
+	 * batching it is called by the producers, so it must not wait.
+	 *
+	 * @return The removed element or {@code null} if there is none which could be removed.
+	 */
+	public Q evictOldest();
+
+	/**
+	 * Adds an element to the batcher, handling the full batcher according to the policy.
+	 *
+	 * @param obj Element to be added to the batch.
+	 * @param policy What to do when the batcher is full.
+	 * @param waitMicros Maximum number of microseconds to wait for the space with the {@link OverflowPolicy#WAIT} policy.
+	 * @param evicted Receives the older elements removed by the {@link OverflowPolicy#DROP_OLDEST} policy.
+	 * @return {@code false} if the element could not be added to the batcher.
+	 * @throws InterruptedException When interrupted while waiting for the space.
+	 */
+	public boolean offer(Q obj, OverflowPolicy policy, long waitMicros, Consumer<? super Q> evicted) throws InterruptedException;
+
+	/**
+	 * @param policy Policy the elements were offered with.
+	 * @return Number of the elements which found the batcher full.
+	 */
+	public long getOverflows(OverflowPolicy policy);
+
+	/**
+	 * @param policy Policy the elements were offered with.
+	 * @return Number of the elements dropped by the policy, i.e. not added or evicted.
+	 */
+	public long getOverflowDrops(OverflowPolicy policy);
+
+	/**
+	 * @return Approximate number of the elements waiting in the {@link Batcher}
+	 * to be put into a batch.
+	 */
+	public int size();
+
+	/**
+	 * Starts the background processing of the batches. Elements added before
+	 * the batcher is started are kept and processed once it starts.
+	 */
+	public void start();
+
+	/**
+	 * Stops the background processing of the batches. Elements still present
+	 * in the batcher are processed till the timeout elapses, the rest of them
+	 * is left in the batcher, see {@link #size()}.
+	 * 
+	 * @param timeout Maximum number of units to wait for the background processing to finish.
+	 * @param unit Unit of time to wait
+	 * @return {@code true} if the background processing finished in time.
+	 * @throws InterruptedException
+	 */
+	public boolean stop(long timeout, TimeUnit unit) throws InterruptedException;
+
+	/**
+	 * Same as {@link #stop(long, TimeUnit)}, handing the elements which were taken for the drain
+	 * and could not be put back to the listener, e.g. to release them and count them as dropped.
+	 * 
+	 * @param timeout Maximum number of units to wait for the background processing to finish.
+	 * @param unit Unit of time to wait
+	 * @param lost Receives the elements lost by the drain, may be {@code null}.
+	 * @return {@code true} if the background processing finished in time.
+	 * @throws InterruptedException
+	 */
+	public boolean stop(long timeout, TimeUnit unit, Consumer<? super Q> lost) throws InterruptedException;
 }
\ No newline at end of file
@@ -1,13 +1,11 @@
 package com.jkubinyi.elasticappender.batch;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
 
 import com.jkubinyi.elasticappender.batch.Batcher.BatchProcessor;
 
@@ -16,18 +14,15 @@ import com.jkubinyi.elasticappender.batch.Batcher.BatchProcessor;
  * blocking queue. Concrete queue implementation backing the batcher
  * will vary depending on the constructor parameter 'maxUnprocessed'.
  * 
- * When there are enough elements it will create a new batch of the
- * elements and process it using defined {@link BatchProcessor} implementation.
+ * Producers only enqueue the elements, the batches are processed using
+ * defined {@link BatchProcessor} implementation on the flusher thread.
  * 
  * @author jurajkubinyi
  * @param <Q> Type of object which will be batched.
  */
-public class BlockingQueueBatcher<Q> implements Batcher<Q> {
+public class BlockingQueueBatcher<Q> extends AbstractBatcher<Q> {
 
-	private final int batchSize;
 	private final BlockingQueue<Q> queue;
-	private final BatchProcessor<Q> batchProcessor;
-	private final ReentrantLock lock = new ReentrantLock();
 
 	/**
 	 * @param batchProcessor Instance of processor class having logic to process batches of elements.
@@ -43,8 +38,31 @@ public class BlockingQueueBatcher<Q> implements Batcher<Q> {
 	 * @param maxUnprocessed Maximum number of unprocessed elements which could be present at the same time in the batcher. Setting it to 0 means unlimited number.
 	 */
 	public BlockingQueueBatcher(BatchProcessor<Q> batchProcessor, int batchSize, int maxUnprocessed) {
-		this.batchProcessor = batchProcessor;
-		this.batchSize = batchSize;
+		this(batchProcessor, batchSize, maxUnprocessed, DEFAULT_LINGER_MS);
+	}
+
+	/**
+	 * @param batchProcessor Instance of processor class having logic to process batches of elements.
+	 * @param batchSize Count of the elements in one group (batch) processed by the processor.
+	 * @param maxUnprocessed Maximum number of unprocessed elements which could be present at the same time in the batcher. Setting it to 0 means unlimited number.
+	 * @param lingerMs Maximum time in milliseconds the first element of not yet full batch waits before the batch is processed anyway.
+	 */
+	public BlockingQueueBatcher(BatchProcessor<Q> batchProcessor, int batchSize, int maxUnprocessed, long lingerMs) {
+		this(batchProcessor, batchSize, maxUnprocessed, lingerMs, null, 0);
+	}
+
+	/**
+	 * @param batchProcessor Instance of processor class having logic to process batches of elements.
+	 * @param batchSize Count of the elements in one group (batch) processed by the processor.
+	 * @param maxUnprocessed Maximum number of unprocessed elements which could be present at the same time in the batcher. Setting it to 0 means unlimited number.
+	 * @param lingerMs Maximum time in milliseconds the first element of not yet full batch waits before the batch is processed anyway.
+	 * @param weigher Function returning size of the element in bytes. May be {@code null} if maxBatchBytes is 0.
+	 * @param maxBatchBytes Maximum size of the batch in bytes. Element bigger than this is processed alone in its own batch.
+	 * Setting it to 0 means unlimited size.
+	 */
+	public BlockingQueueBatcher(BatchProcessor<Q> batchProcessor, int batchSize, int maxUnprocessed, long lingerMs,
+			ToIntFunction<Q> weigher, long maxBatchBytes) {
+		super(batchProcessor, batchSize, lingerMs, weigher, maxBatchBytes);
 		if(maxUnprocessed > 0)
 			this.queue = new ArrayBlockingQueue<>(maxUnprocessed);
 		else
@@ -52,44 +70,49 @@ public class BlockingQueueBatcher<Q> implements Batcher<Q> {
 	}
 	
 	public boolean addAll(Collection<Q> collection) {
-		synchronized(this.lock) {
-			return this.queue.addAll(collection);
+		boolean allAdded = true;
+		for(Q obj : collection) {
+			if(!this.queue.offer(obj)) allAdded = false;
 		}
+		return allAdded;
 	}
 	
 	public boolean offer(Q obj, long timeout, TimeUnit unit) throws InterruptedException {
-		if(this.lock.tryLock(timeout, unit)) {
-			try {
-				if(this.queue.offer(obj)) {
-					if (this.queue.size() >= this.batchSize) this.batchAll();
-					return true;
-				}
-			} finally {
-				this.lock.unlock();
-			}
-		}
-		return false;
+		return this.queue.offer(obj, timeout, unit);
 	}
 	
 	public boolean add(Q obj) throws InterruptedException {
-		this.lock.lockInterruptibly();
-		try {
-			if(this.queue.offer(obj)) {
-				if(this.queue.size() >= this.batchSize) this.batchAll();
-				return true;
-			}
-		} finally {
-			this.lock.unlock();
-		}
-		return false;
+		this.queue.put(obj);
+		return true;
 	}
-	
+
 	/**
-	 * Will drain entire queue into the collection and run the processor on the same thread.
+	 * The queue holds its lock only while the element is copied in, it never waits for the space.
 	 */
-	private void batchAll() {
-		List<Q> array = new ArrayList<>();
-		this.queue.drainTo(array);
-		this.batchProcessor.process(array);
+	public boolean tryAdd(Q obj) {
+		return this.queue.offer(obj);
+	}
+
+	public Q evictOldest() {
+		return this.queue.poll();
+	}
+
+	public int size() {
+		return this.queue.size();
+	}
+
+	@Override
+	protected Q take() throws InterruptedException {
+		return this.queue.take();
+	}
+
+	@Override
+	protected Q poll(long timeoutNanos) throws InterruptedException {
+		return this.queue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	protected int drainTo(Collection<Q> collection, int maxElements) {
+		return this.queue.drainTo(collection, maxElements);
 	}
 }
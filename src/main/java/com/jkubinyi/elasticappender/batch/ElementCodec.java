@@ -0,0 +1,23 @@
+package com.jkubinyi.elasticappender.batch;
+
+/**
+ * Converts the batched elements from and to bytes, so they can be stored
+ * outside of the heap, e.g. by {@link SpillingBatcher}.
+ * 
+ * @author jurajkubinyi
+ * @param <Q> Type of object which will be batched.
+ */
+public interface ElementCodec<Q> {
+
+	/**
+	 * @param obj Element to encode.
+	 * @return Bytes fully describing the element.
+	 */
+	public byte[] encode(Q obj);
+
+	/**
+	 * @param bytes Bytes produced by {@link #encode(Object)}.
+	 * @return Decoded element.
+	 */
+	public Q decode(byte[] bytes);
+}
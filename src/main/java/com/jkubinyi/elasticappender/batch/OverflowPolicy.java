@@ -0,0 +1,38 @@
+package com.jkubinyi.elasticappender.batch;
+
+/**
+ * Defines what happens to an element added to a full {@link Batcher}, see
+ * {@link Batcher#offer(Object, OverflowPolicy, long, java.util.function.Consumer)}.
+ * 
+ * The dropping policies never wait for the space, but they are lock-free only on the
+ * {@link RingBufferBatcher}. The {@link BlockingQueueBatcher}, {@link PriorityLaneBatcher} and
+ * {@link SpillingBatcher} take their lock to add or evict the element, so a producer may still
+ * be held up briefly by the others holding it.
+ *
+ * @author jurajkubinyi
+ */
+public enum OverflowPolicy {
+
+	/** Producer waits for as long as it takes for the space. Nothing is dropped, the logging threads may stall. */
+	BLOCK,
+
+	/** Producer waits at most the configured number of microseconds, then the element is dropped. */
+	WAIT,
+
+	/** Element is dropped right away. Producer never waits for the space. */
+	DROP_NEWEST,
+
+	/** Oldest waiting elements are evicted to make room for the element. Producer never waits for the space. */
+	DROP_OLDEST;
+
+	/**
+	 * @param name Name of the policy in camel case, e.g. "dropOldest", or as the constant.
+	 * @return Policy or {@code null} if no policy has the name.
+	 */
+	public static OverflowPolicy fromName(String name) {
+		String normalized = name.replaceAll("([a-z])([A-Z])", "$1_$2").replace('-', '_').toUpperCase();
+		for(OverflowPolicy policy : values())
+			if(policy.name().equals(normalized)) return policy;
+		return null;
+	}
+}
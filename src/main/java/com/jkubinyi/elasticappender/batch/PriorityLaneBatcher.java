@@ -0,0 +1,356 @@
+package com.jkubinyi.elasticappender.batch;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+import com.jkubinyi.elasticappender.batch.Batcher.BatchProcessor;
+
+/**
+ * Batching class keeping the elements in several lanes of different priority, lane 0
+ * being the most important. Every lane has its own capacity, so a flood of the elements
+ * of one lane does not block the producers of the others.
+ * 
+ * The capacity of a lane is reserved against the more important lanes only. A full lane
+ * borrows the space of a less important lane by shedding its element, so the lane may
+ * grow over its capacity, while the sum of the capacities is never exceeded.
+ * 
+ * The flusher drains the lanes by weighted round robin: out of every round each non-empty
+ * lane gives at most its weight of the elements, the more important lanes first. Lanes
+ * without elements do not hold back the others.
+ * 
+ * When a lane is full, or all the lanes together are, the element sheds the oldest element
+ * of the least important non-empty lane below its own and takes its place. Shed elements are
+ * handed over to the shed listener once the lock is released. When there is nothing less
+ * important to shed, the producer waits for the space like with the other batchers, or drops
+ * per its {@link OverflowPolicy}.
+ * The lanes are guarded by a lock, which the dropping policies take as well.
+ * 
+ * @author jurajkubinyi
+ * @param <Q> Type of object which will be batched.
+ */
+public class PriorityLaneBatcher<Q> extends AbstractBatcher<Q> {
+
+	/** Returned by the insert when there is no space for the element. */
+	private static final Object NO_SPACE = new Object();
+
+	private final ToIntFunction<Q> laneOf;
+	private final int[] capacities;
+	private final int[] weights;
+	private final long totalCapacity;
+	private final Consumer<Q> shedListener;
+
+	private final ArrayDeque<Q>[] lanes;
+	private final int[] credits;
+	private final LongAdder[] shed;
+	private final LongAdder[] rejected;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = this.lock.newCondition();
+	private final Condition notFull = this.lock.newCondition();
+
+	/** Number of the elements in all the lanes. Written under the lock. */
+	private volatile int size;
+
+	/**
+	 * @param batchProcessor Instance of processor class having logic to process batches of elements.
+	 * @param batchSize Count of the elements in one group (batch) processed by the processor.
+	 * @param lingerMs Maximum time in milliseconds the first element of not yet full batch waits before the batch is processed anyway.
+	 * @param laneOf Function returning the lane of the element. Values out of range are put into the nearest lane.
+	 * @param capacities Maximum number of the elements in every lane, 0 means unlimited. Its length is the number of the lanes.
+	 * @param weights Number of the elements drained from every lane in one round, at least 1.
+	 * @param shedListener Receives the elements shed to make room for the more important ones, may be {@code null}.
+	 * @param weigher Function returning size of the element in bytes. May be {@code null} if maxBatchBytes is 0.
+	 * @param maxBatchBytes Maximum size of the batch in bytes. Element bigger than this is processed alone in its own batch.
+	 * Setting it to 0 means unlimited size.
+	 */
+	@SuppressWarnings("unchecked")
+	public PriorityLaneBatcher(BatchProcessor<Q> batchProcessor, int batchSize, long lingerMs, ToIntFunction<Q> laneOf,
+			int[] capacities, int[] weights, Consumer<Q> shedListener, ToIntFunction<Q> weigher, long maxBatchBytes) {
+		super(batchProcessor, batchSize, lingerMs, weigher, maxBatchBytes);
+		if(capacities.length == 0 || capacities.length != weights.length)
+			throw new IllegalArgumentException("Every lane must have a capacity and a weight.");
+		this.laneOf = laneOf;
+		this.capacities = new int[capacities.length];
+		this.weights = new int[weights.length];
+		long total = 0;
+		for(int i = 0; i < capacities.length; i++) {
+			this.capacities[i] = capacities[i] > 0 ? capacities[i] : Integer.MAX_VALUE;
+			this.weights[i] = Math.max(1, weights[i]);
+			total += this.capacities[i];
+		}
+		this.totalCapacity = total;
+		this.shedListener = shedListener;
+		this.lanes = (ArrayDeque<Q>[]) new ArrayDeque<?>[capacities.length];
+		this.credits = this.weights.clone();
+		this.shed = new LongAdder[capacities.length];
+		this.rejected = new LongAdder[capacities.length];
+		for(int i = 0; i < capacities.length; i++) {
+			this.lanes[i] = new ArrayDeque<>();
+			this.shed[i] = new LongAdder();
+			this.rejected[i] = new LongAdder();
+		}
+	}
+
+	private int lane(Q obj) {
+		int lane = this.laneOf.applyAsInt(obj);
+		return lane < 0 ? 0 : lane >= this.lanes.length ? this.lanes.length - 1 : lane;
+	}
+
+	/**
+	 * Puts the element into its lane. When the lane or all the lanes together are full, the element
+	 * takes the place of a shed less important element, so the lane may grow over its capacity.
+	 * Called under the lock, the shed element must be handed to {@link #shed(Object)} after unlocking.
+	 * 
+	 * @return {@link #NO_SPACE} if there is no space for the element, otherwise the shed element
+	 * or {@code null} if none was shed.
+	 */
+	private Object insert(Q obj, int lane) {
+		Q victim = null;
+		if(this.lanes[lane].size() >= this.capacities[lane] || this.size >= this.totalCapacity) {
+			int victimLane = this.lanes.length - 1;
+			while(victimLane > lane && this.lanes[victimLane].isEmpty())
+				victimLane--;
+			if(victimLane == lane) return NO_SPACE;
+			victim = this.lanes[victimLane].poll();
+			this.shed[victimLane].increment();
+			this.size--;
+		}
+		this.lanes[lane].add(obj);
+		this.size++;
+		this.notEmpty.signal();
+		return victim;
+	}
+
+	/**
+	 * Hands the element shed by {@link #insert(Object, int)} to the shed listener. Called without the lock.
+	 * 
+	 * @param inserted Result of the insert.
+	 * @return {@code false} if the element was not inserted.
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean shed(Object inserted) {
+		if(inserted == NO_SPACE) return false;
+		if(inserted != null && this.shedListener != null) {
+			try {
+				this.shedListener.accept((Q) inserted);
+			} catch(RuntimeException e) {
+				LOGGER.error("Shed listener failed.", e);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes the next element by weighted round robin. Called under the lock.
+	 * 
+	 * @return The element or {@code null} if all the lanes are empty.
+	 */
+	private Q remove() {
+		if(this.size == 0) return null;
+		for(int round = 0; round < 2; round++) {
+			for(int i = 0; i < this.lanes.length; i++) {
+				if(this.credits[i] > 0 && !this.lanes[i].isEmpty()) {
+					this.credits[i]--;
+					this.size--;
+					return this.lanes[i].poll();
+				}
+			}
+			System.arraycopy(this.weights, 0, this.credits, 0, this.weights.length);
+		}
+		return null;
+	}
+
+	public boolean addAll(Collection<Q> collection) {
+		boolean allAdded = true;
+		List<Object> shed = null;
+		this.lock.lock();
+		try {
+			for(Q obj : collection) {
+				Object inserted = this.insert(obj, this.lane(obj));
+				if(inserted == NO_SPACE) {
+					allAdded = false;
+				} else if(inserted != null) {
+					if(shed == null) shed = new ArrayList<>();
+					shed.add(inserted);
+				}
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		if(shed != null)
+			for(Object victim : shed)
+				this.shed(victim);
+		return allAdded;
+	}
+
+	public boolean offer(Q obj, long timeout, TimeUnit unit) throws InterruptedException {
+		int lane = this.lane(obj);
+		long remaining = unit.toNanos(timeout);
+		Object inserted;
+		this.lock.lockInterruptibly();
+		try {
+			while((inserted = this.insert(obj, lane)) == NO_SPACE) {
+				if(remaining <= 0) {
+					this.rejected[lane].increment();
+					return false;
+				}
+				remaining = this.notFull.awaitNanos(remaining);
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		return this.shed(inserted);
+	}
+
+	public boolean add(Q obj) throws InterruptedException {
+		int lane = this.lane(obj);
+		Object inserted;
+		this.lock.lockInterruptibly();
+		try {
+			while((inserted = this.insert(obj, lane)) == NO_SPACE)
+				this.notFull.await();
+		} finally {
+			this.lock.unlock();
+		}
+		return this.shed(inserted);
+	}
+
+	public boolean tryAdd(Q obj) {
+		int lane = this.lane(obj);
+		Object inserted;
+		this.lock.lock();
+		try {
+			inserted = this.insert(obj, lane);
+		} finally {
+			this.lock.unlock();
+		}
+		if(inserted == NO_SPACE) this.rejected[lane].increment();
+		return this.shed(inserted);
+	}
+
+	/**
+	 * Removes the oldest element of the least important non-empty lane.
+	 */
+	public Q evictOldest() {
+		return this.evict(0);
+	}
+
+	/**
+	 * Evicts only from the element's own lane or the less important ones, so the element
+	 * never takes the place of a more important one and is dropped instead.
+	 */
+	@Override
+	protected Q evictFor(Q obj) {
+		return this.evict(this.lane(obj));
+	}
+
+	/**
+	 * @param lowest Most important lane to evict from.
+	 * @return The oldest element of the least important non-empty lane not above the given one,
+	 * or {@code null} if these lanes are empty.
+	 */
+	private Q evict(int lowest) {
+		this.lock.lock();
+		try {
+			for(int lane = this.lanes.length - 1; lane >= lowest; lane--) {
+				if(!this.lanes[lane].isEmpty()) {
+					this.size--;
+					this.notFull.signalAll();
+					return this.lanes[lane].poll();
+				}
+			}
+			return null;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @param lane Lane of the elements.
+	 * @return Number of the elements of the lane waiting in the batcher.
+	 */
+	public int size(int lane) {
+		this.lock.lock();
+		try {
+			return this.lanes[lane].size();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @param lane Lane of the elements.
+	 * @return Number of the elements of the lane shed to make room for the more important ones.
+	 */
+	public long getShed(int lane) {
+		return this.shed[lane].sum();
+	}
+
+	/**
+	 * @param lane Lane of the elements.
+	 * @return Number of the times an element of the lane was not accepted, right away or in time, because there was no space.
+	 */
+	public long getRejected(int lane) {
+		return this.rejected[lane].sum();
+	}
+
+	@Override
+	protected Q take() throws InterruptedException {
+		this.lock.lockInterruptibly();
+		try {
+			Q obj;
+			while((obj = this.remove()) == null)
+				this.notEmpty.await();
+			this.notFull.signalAll();
+			return obj;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	protected Q poll(long timeoutNanos) throws InterruptedException {
+		this.lock.lockInterruptibly();
+		try {
+			Q obj;
+			long remaining = timeoutNanos;
+			while((obj = this.remove()) == null) {
+				if(remaining <= 0) return null;
+				remaining = this.notEmpty.awaitNanos(remaining);
+			}
+			this.notFull.signalAll();
+			return obj;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	protected int drainTo(Collection<Q> collection, int maxElements) {
+		this.lock.lock();
+		try {
+			int drained = 0;
+			Q obj;
+			while(drained < maxElements && (obj = this.remove()) != null) {
+				collection.add(obj);
+				drained++;
+			}
+			if(drained > 0) this.notFull.signalAll();
+			return drained;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+}
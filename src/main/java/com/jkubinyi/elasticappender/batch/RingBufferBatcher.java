@@ -0,0 +1,209 @@
+package com.jkubinyi.elasticappender.batch;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToIntFunction;
+
+import com.jkubinyi.elasticappender.batch.Batcher.BatchProcessor;
+
+/**
+ * Lock-free batching class backed by a pre-allocated multi-producer/single-consumer
+ * ring buffer. Producers claim a sequence using CAS and publish the element into
+ * the slot of the claimed sequence, the flusher thread is the only consumer. Producers
+ * evicting the oldest element claim it from the consumer using CAS as well, so none
+ * of the {@link OverflowPolicy} paths ever takes a lock.
+ * 
+ * Capacity of the ring buffer is always a power of two. When the ring buffer
+ * is full (producers) or empty (consumer) threads wait using configured {@link WaitStrategy}.
+ * 
+ * @author jurajkubinyi
+ * @param <Q> Type of object which will be batched.
+ */
+public class RingBufferBatcher<Q> extends AbstractBatcher<Q> {
+
+	/** Capacity used when the batcher should be unbounded. Ring buffer always needs to be bounded. */
+	public static final int DEFAULT_CAPACITY = 65536;
+
+	private final int mask;
+	private final int capacity;
+	private final WaitStrategy waitStrategy;
+
+	/** Elements of the ring buffer. */
+	private final AtomicReferenceArray<Q> elements;
+
+	/** Sequence published in the slot. Slot is readable when it holds the sequence consumer waits for. */
+	private final AtomicLongArray published;
+
+	/** Next sequence to be claimed by the producers. */
+	private final AtomicLong tail = new AtomicLong();
+
+	/** Next sequence to be consumed by the flusher thread. */
+	private final AtomicLong head = new AtomicLong();
+
+	/**
+	 * @param batchProcessor Instance of processor class having logic to process batches of elements.
+	 * @param batchSize Count of the elements in one group (batch) processed by the processor.
+	 * @param maxUnprocessed Maximum number of unprocessed elements, rounded up to the power of two.
+	 * Setting it to 0 means {@value #DEFAULT_CAPACITY}.
+	 * @param lingerMs Maximum time in milliseconds the first element of not yet full batch waits before the batch is processed anyway.
+	 * @param waitStrategy Strategy used when waiting for the ring buffer to become available.
+	 */
+	public RingBufferBatcher(BatchProcessor<Q> batchProcessor, int batchSize, int maxUnprocessed, long lingerMs,
+			WaitStrategy waitStrategy) {
+		this(batchProcessor, batchSize, maxUnprocessed, lingerMs, waitStrategy, null, 0);
+	}
+
+	/**
+	 * @param batchProcessor Instance of processor class having logic to process batches of elements.
+	 * @param batchSize Count of the elements in one group (batch) processed by the processor.
+	 * @param maxUnprocessed Maximum number of unprocessed elements, rounded up to the power of two.
+	 * Setting it to 0 means {@value #DEFAULT_CAPACITY}.
+	 * @param lingerMs Maximum time in milliseconds the first element of not yet full batch waits before the batch is processed anyway.
+	 * @param waitStrategy Strategy used when waiting for the ring buffer to become available.
+	 * @param weigher Function returning size of the element in bytes. May be {@code null} if maxBatchBytes is 0.
+	 * @param maxBatchBytes Maximum size of the batch in bytes. Element bigger than this is processed alone in its own batch.
+	 * Setting it to 0 means unlimited size.
+	 */
+	public RingBufferBatcher(BatchProcessor<Q> batchProcessor, int batchSize, int maxUnprocessed, long lingerMs,
+			WaitStrategy waitStrategy, ToIntFunction<Q> weigher, long maxBatchBytes) {
+		super(batchProcessor, batchSize, lingerMs, weigher, maxBatchBytes);
+		this.capacity = powerOfTwo(maxUnprocessed > 0 ? maxUnprocessed : DEFAULT_CAPACITY);
+		this.mask = this.capacity - 1;
+		this.waitStrategy = waitStrategy;
+		this.elements = new AtomicReferenceArray<>(this.capacity);
+		this.published = new AtomicLongArray(this.capacity);
+		for(int i = 0; i < this.capacity; i++)
+			this.published.set(i, -1);
+	}
+
+	private static int powerOfTwo(int value) {
+		if(value >= 1 << 30) return 1 << 30;
+		int highest = Integer.highestOneBit(Math.max(2, value));
+		return highest == value ? value : highest << 1;
+	}
+
+	/**
+	 * @return Number of the slots in the ring buffer.
+	 */
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	public int size() {
+		return (int) Math.max(0, this.tail.get() - this.head.get());
+	}
+
+	/**
+	 * Tries to claim a sequence and publish the element without waiting.
+	 * 
+	 * @param obj Element to be added to the batch.
+	 * @return {@code false} if the ring buffer is full.
+	 */
+	private boolean tryPublish(Q obj) {
+		long sequence;
+		do {
+			sequence = this.tail.get();
+			if(sequence - this.head.get() >= this.capacity) return false;
+		} while(!this.tail.compareAndSet(sequence, sequence + 1));
+
+		int index = (int) sequence & this.mask;
+		this.elements.lazySet(index, obj);
+		this.published.lazySet(index, sequence);
+		return true;
+	}
+
+	/**
+	 * Takes the element with the next sequence if it was already published. Called by the
+	 * consumer thread and by the producers evicting the oldest element, so the sequence
+	 * is claimed using CAS and the winner owns the element.
+	 * 
+	 * @return Published element or {@code null} if there is none.
+	 */
+	private Q tryConsume() {
+		long sequence;
+		int index;
+		Q obj;
+		do {
+			sequence = this.head.get();
+			index = (int) sequence & this.mask;
+			if(this.published.get(index) != sequence) return null;
+			obj = this.elements.get(index);
+		} while(!this.head.compareAndSet(sequence, sequence + 1));
+
+		// Producer may have already reused the slot for the next lap.
+		this.elements.compareAndSet(index, obj, null);
+		return obj;
+	}
+
+	public boolean addAll(Collection<Q> collection) {
+		boolean allAdded = true;
+		for(Q obj : collection) {
+			if(!this.tryPublish(obj)) allAdded = false;
+		}
+		return allAdded;
+	}
+
+	public boolean offer(Q obj, long timeout, TimeUnit unit) throws InterruptedException {
+		if(this.tryPublish(obj)) return true;
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while(!this.tryPublish(obj)) {
+			if(Thread.interrupted()) throw new InterruptedException();
+			if(deadline - System.nanoTime() <= 0) return false;
+			this.waitStrategy.idle();
+		}
+		return true;
+	}
+
+	public boolean add(Q obj) throws InterruptedException {
+		while(!this.tryPublish(obj)) {
+			if(Thread.interrupted()) throw new InterruptedException();
+			this.waitStrategy.idle();
+		}
+		return true;
+	}
+
+	public boolean tryAdd(Q obj) {
+		return this.tryPublish(obj);
+	}
+
+	public Q evictOldest() {
+		return this.tryConsume();
+	}
+
+	@Override
+	protected Q take() throws InterruptedException {
+		Q obj;
+		while((obj = this.tryConsume()) == null) {
+			if(Thread.interrupted()) throw new InterruptedException();
+			this.waitStrategy.idle();
+		}
+		return obj;
+	}
+
+	@Override
+	protected Q poll(long timeoutNanos) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		Q obj;
+		while((obj = this.tryConsume()) == null) {
+			if(Thread.interrupted()) throw new InterruptedException();
+			if(deadline - System.nanoTime() <= 0) return null;
+			this.waitStrategy.idle();
+		}
+		return obj;
+	}
+
+	@Override
+	protected int drainTo(Collection<Q> collection, int maxElements) {
+		int drained = 0;
+		Q obj;
+		while(drained < maxElements && (obj = this.tryConsume()) != null) {
+			collection.add(obj);
+			drained++;
+		}
+		return drained;
+	}
+}
@@ -0,0 +1,380 @@
+package com.jkubinyi.elasticappender.batch;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * Append-only log of records stored in memory-mapped segment files of a fixed size.
+ * Records are read in the same order they were appended. Read position is persisted
+ * in the header of the segment only on {@link #commit()}, so the records read but not yet
+ * committed are read again after the restart of the JVM, like the not yet read ones.
+ * Fully read segments are unmapped and deleted on the commit. Records older than all the
+ * records in the log can be put in front of them, see {@link #prepend(List)}.
+ * 
+ * Only one log may use the directory at a time. The log holds a lock on the "spill.lock" file
+ * of the directory until it is closed, see {@link #tryOpen(Path, int, long)}.
+ * 
+ * Segment layout: magic (4 bytes), reserved (4 bytes), read position (8 bytes) followed
+ * by the records. Record is its length (4 bytes) followed by its bytes. Length is written
+ * after the bytes, so partially written record is never read. Length 0 means no more records
+ * were written yet, -1 marks the end of the segment.
+ * 
+ * Not thread safe.
+ * 
+ * @author jurajkubinyi
+ */
+class SpillLog {
+
+	private static final Logger LOGGER = StatusLogger.getLogger();
+
+	private static final int MAGIC = 0x45415350;
+	private static final int HEADER_BYTES = 16;
+	private static final int READ_POSITION_OFFSET = 8;
+	private static final int END_OF_SEGMENT = -1;
+	private static final String PREFIX = "spill-";
+	private static final String SUFFIX = ".seg";
+	private static final String LOCK_FILE = "spill.lock";
+
+	/** Number of the first segment of an empty directory, leaves room for the segments put in front of it. */
+	private static final long FIRST_SEGMENT = 1L << 32;
+
+	/**
+	 * Single memory-mapped segment file.
+	 */
+	private static final class Segment {
+		private final long number;
+		private final Path path;
+		private final MappedByteBuffer map;
+		private int readPosition;
+		private int writePosition;
+
+		private Segment(long number, Path path, MappedByteBuffer map) {
+			this.number = number;
+			this.path = path;
+			this.map = map;
+		}
+	}
+
+	private final Path directory;
+	private final int segmentBytes;
+	private final int maxSegments;
+	private final FileChannel lockChannel;
+	private final FileLock lock;
+	private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+	private long nextSegment = FIRST_SEGMENT;
+
+	private SpillLog(Path directory, int segmentBytes, long maxBytes, FileChannel lockChannel, FileLock lock) {
+		this.directory = directory;
+		this.segmentBytes = Math.max(HEADER_BYTES + 1024, segmentBytes);
+		this.maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / this.segmentBytes));
+		this.lockChannel = lockChannel;
+		this.lock = lock;
+	}
+
+	/**
+	 * Opens the log and recovers the records not read before the previous shutdown.
+	 * 
+	 * @param directory Directory of the segment files. Created if it does not exist.
+	 * @param segmentBytes Size of one segment file.
+	 * @param maxBytes Maximum size of all the segment files together.
+	 * @return The log or {@code null} if the directory is locked by another log, in this or another JVM.
+	 * @throws IOException When the directory or existing segments could not be opened.
+	 */
+	static SpillLog tryOpen(Path directory, int segmentBytes, long maxBytes) throws IOException {
+		Files.createDirectories(directory);
+		FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock lock;
+		try {
+			lock = channel.tryLock();
+		} catch(OverlappingFileLockException e) {
+			lock = null;
+		} catch(IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		if(lock == null) {
+			channel.close();
+			return null;
+		}
+
+		SpillLog log = new SpillLog(directory, segmentBytes, maxBytes, channel, lock);
+		try {
+			log.recover();
+		} catch(IOException | RuntimeException e) {
+			log.close();
+			throw e;
+		}
+		return log;
+	}
+
+	private void recover() throws IOException {
+		List<Path> paths = new ArrayList<>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, PREFIX + "*" + SUFFIX)) {
+			stream.forEach(paths::add);
+		}
+		Collections.sort(paths);
+
+		for(Path path : paths) {
+			String name = path.getFileName().toString();
+			long number;
+			try {
+				number = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+			} catch(NumberFormatException e) {
+				LOGGER.warn("Ignoring unknown spill file {}.", path);
+				continue;
+			}
+			this.nextSegment = number + 1;
+
+			Segment segment = new Segment(number, path, map(path));
+			if(segment.map.getInt(0) != MAGIC) {
+				LOGGER.warn("Ignoring corrupted spill file {}.", path);
+				unmap(segment.map);
+				continue;
+			}
+			segment.readPosition = (int) segment.map.getLong(READ_POSITION_OFFSET);
+			// Segments cut short by a crash end at their last complete record, like the segments with the end marker.
+			segment.writePosition = this.scan(segment);
+			this.segments.addLast(segment);
+		}
+
+		if(!this.isEmpty())
+			LOGGER.info("Recovered {} bytes of spilled records from {}.", this.size(), this.directory);
+	}
+
+	/**
+	 * @return Position after the last valid record of the segment.
+	 */
+	private int scan(Segment segment) {
+		int position = segment.readPosition;
+		while(position + 4 <= this.segmentBytes) {
+			int length = segment.map.getInt(position);
+			if(length <= 0 || position + 4 + length > this.segmentBytes) break;
+			position += 4 + length;
+		}
+		return position;
+	}
+
+	private MappedByteBuffer map(Path path) throws IOException {
+		try(RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw"); FileChannel channel = file.getChannel()) {
+			if(file.length() < this.segmentBytes) file.setLength(this.segmentBytes);
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentBytes);
+		}
+	}
+
+	private Segment createSegment(long number) throws IOException {
+		Path path = this.directory.resolve(String.format("%s%020d%s", PREFIX, number, SUFFIX));
+		Segment segment = new Segment(number, path, map(path));
+		segment.map.putLong(READ_POSITION_OFFSET, HEADER_BYTES);
+		segment.map.putInt(0, MAGIC);
+		segment.readPosition = HEADER_BYTES;
+		segment.writePosition = HEADER_BYTES;
+		return segment;
+	}
+
+	/**
+	 * @param record Bytes of the record.
+	 * @return {@code false} if the record does not fit into the maximum size of the log.
+	 * @throws IOException When a new segment file could not be created.
+	 */
+	boolean append(byte[] record) throws IOException {
+		int required = 4 + record.length;
+		// Keeps the space for the end of segment marker.
+		if(HEADER_BYTES + required + 4 > this.segmentBytes) return false;
+
+		Segment segment = this.segments.peekLast();
+		if(segment == null || segment.writePosition + required + 4 > this.segmentBytes) {
+			if(this.segments.size() >= this.maxSegments) return false;
+			Segment next = this.createSegment(this.nextSegment++);
+			if(segment != null && segment.writePosition + 4 <= this.segmentBytes)
+				segment.map.putInt(segment.writePosition, END_OF_SEGMENT);
+			this.segments.addLast(next);
+			segment = next;
+		}
+
+		write(segment, record);
+		return true;
+	}
+
+	/**
+	 * Puts the records in front of all the records in the log, keeping their order. The records
+	 * go to new segments numbered below the first segment, so they are read first after the
+	 * restart as well.
+	 * 
+	 * @param records Bytes of the records, the oldest first.
+	 * @return Number of the records put in front, from the oldest. The rest did not fit into
+	 * the maximum size of the log.
+	 * @throws IOException When a new segment file could not be created.
+	 */
+	int prepend(List<byte[]> records) throws IOException {
+		List<List<byte[]>> chunks = new ArrayList<>();
+		List<byte[]> chunk = null;
+		int chunkBytes = 0;
+		for(byte[] record : records) {
+			int required = 4 + record.length;
+			// Keeps the space for the end of segment marker.
+			if(HEADER_BYTES + required + 4 > this.segmentBytes) break;
+			if(chunk == null || chunkBytes + required + 4 > this.segmentBytes) {
+				if(this.segments.size() + chunks.size() >= this.maxSegments) break;
+				chunk = new ArrayList<>();
+				chunks.add(chunk);
+				chunkBytes = HEADER_BYTES;
+			}
+			chunk.add(record);
+			chunkBytes += required;
+		}
+
+		Segment first = this.segments.peekFirst();
+		long number = first != null ? first.number : this.nextSegment;
+		if(number - chunks.size() < 0) return 0;
+
+		int prepended = 0;
+		boolean last = first == null;
+		for(int i = chunks.size() - 1; i >= 0; i--) {
+			Segment segment = this.createSegment(--number);
+			for(byte[] record : chunks.get(i)) {
+				write(segment, record);
+				prepended++;
+			}
+			if(!last) segment.map.putInt(segment.writePosition, END_OF_SEGMENT);
+			last = false;
+			this.segments.addFirst(segment);
+		}
+		return prepended;
+	}
+
+	/**
+	 * Writes the record at the write position of the segment, which must have the space for it.
+	 */
+	private static void write(Segment segment, byte[] record) {
+		ByteBuffer target = segment.map.duplicate();
+		target.position(segment.writePosition + 4);
+		target.put(record);
+		segment.map.putInt(segment.writePosition, record.length);
+		segment.writePosition += 4 + record.length;
+	}
+
+	/**
+	 * @return Oldest not yet read record or {@code null} if all were read.
+	 */
+	byte[] read() {
+		for(Segment segment : this.segments) {
+			if(segment.readPosition >= segment.writePosition) continue;
+
+			int length = segment.map.getInt(segment.readPosition);
+			byte[] record = new byte[length];
+			ByteBuffer source = segment.map.duplicate();
+			source.position(segment.readPosition + 4);
+			source.get(record);
+			segment.readPosition += 4 + length;
+			return record;
+		}
+		return null;
+	}
+
+	/**
+	 * Persists the read position, so the records read so far are not read again after the restart.
+	 * Deletes the fully read segments except for the last one, which is still written to.
+	 * 
+	 * @throws IOException When a fully read segment file could not be deleted.
+	 */
+	void commit() throws IOException {
+		Segment segment;
+		while((segment = this.segments.peekFirst()) != null) {
+			segment.map.putLong(READ_POSITION_OFFSET, segment.readPosition);
+			if(segment.readPosition < segment.writePosition || segment == this.segments.peekLast()) return;
+
+			this.segments.pollFirst();
+			// Mapped file can not be deleted on some platforms.
+			unmap(segment.map);
+			Files.deleteIfExists(segment.path);
+		}
+	}
+
+	/**
+	 * @return {@code true} if all the appended records were read.
+	 */
+	boolean isEmpty() {
+		for(Segment segment : this.segments)
+			if(segment.readPosition < segment.writePosition)
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return Approximate number of bytes of the records not read yet.
+	 */
+	long size() {
+		long size = 0;
+		for(Segment segment : this.segments)
+			size += Math.max(0, segment.writePosition - segment.readPosition);
+		return size;
+	}
+
+	/**
+	 * Flushes the segments to the storage device.
+	 */
+	void force() {
+		for(Segment segment : this.segments)
+			segment.map.force();
+	}
+
+	/**
+	 * Flushes and unmaps the segments and releases the lock of the directory. Not yet committed
+	 * records are kept in the segment files for the next log opening the directory.
+	 */
+	void close() throws IOException {
+		Segment segment;
+		while((segment = this.segments.pollFirst()) != null) {
+			segment.map.force();
+			unmap(segment.map);
+		}
+		try {
+			this.lock.release();
+		} finally {
+			this.lockChannel.close();
+		}
+	}
+
+	/**
+	 * Releases the mapping right away instead of waiting for the garbage collector. The buffer
+	 * must not be used afterwards. Does nothing if the JVM does not allow it.
+	 */
+	private static void unmap(MappedByteBuffer map) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			try {
+				// Java 9 and newer.
+				Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				invokeCleaner.invoke(theUnsafe.get(null), map);
+			} catch(NoSuchMethodException e) {
+				// Java 8.
+				Method cleanerMethod = map.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(map);
+				if(cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch(ReflectiveOperationException | RuntimeException e) {
+			LOGGER.debug("Spill segment could not be unmapped, it is released by the garbage collector.", e);
+		}
+	}
+}
@@ -0,0 +1,341 @@
+package com.jkubinyi.elasticappender.batch;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+import com.jkubinyi.elasticappender.batch.Batcher.BatchProcessor;
+
+/**
+ * Batching class keeping the elements in a bounded in-memory queue which overflows
+ * into append-only memory-mapped segment files on the disk. Once the elements start
+ * to overflow, all the following elements are written to the disk too until the
+ * flusher thread replays all of them in order, so the order of the elements is kept.
+ * The order is kept between the elements added one after another. Elements added at the
+ * same time as the memory overflows may go to the memory while the concurrently added
+ * ones already go to the disk, so they are replayed in either order between themselves.
+ * 
+ * Elements still on the disk survive the restart of the JVM and are replayed after
+ * the batcher is created again with the same directory. Elements left in the memory
+ * when the batcher is stopped are written to the disk as well, in front of the newer
+ * elements already waiting there. Elements read from the disk stay there until the flusher thread
+ * hands over the batch they were read for to the processor, so a crash before that replays
+ * them again and they may be processed twice. Elements of the batches already handed over
+ * are not on the disk anymore, the processor is responsible for them.
+ * 
+ * Producers take a lock only when the memory is full and the elements go to the disk.
+ * Blocking adds wait only when the disk is full too, or not available yet, polling for
+ * the space freed by the flusher thread.
+ * 
+ * Only one batcher may use the directory at a time. A batcher created while another one
+ * still uses it, e.g. by the new configuration during a reconfiguration, keeps the elements
+ * only in the memory till the other one is stopped, then it takes the directory over and
+ * replays the elements left there.
+ * 
+ * @author jurajkubinyi
+ * @param <Q> Type of object which will be batched.
+ */
+public class SpillingBatcher<Q> extends AbstractBatcher<Q> {
+
+	/** Capacity of the in-memory queue used when the batcher should be unbounded. */
+	public static final int DEFAULT_MEMORY_CAPACITY = 10000;
+
+	/** Default size of one segment file. */
+	public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+	/** How often the flusher thread checks the disk while waiting for the in-memory elements. */
+	private static final long SPILL_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final BlockingQueue<Q> memory;
+	private final ElementCodec<Q> codec;
+	private final Path directory;
+	private final int segmentBytes;
+	private final long maxSpillBytes;
+	private final Object spillLock = new Object();
+
+	/** Log of the elements on the disk, {@code null} while the directory is used by another batcher or after stop. */
+	private volatile SpillLog spillLog;
+
+	/** {@link System#nanoTime()} of the next attempt to open the directory. Guarded by the spill lock. */
+	private long nextOpenAttempt;
+
+	/** Set on stop, so the directory is not opened again. Guarded by the spill lock. */
+	private boolean closed;
+
+	/** {@code true} while there are elements on the disk, all new elements go to the disk too. */
+	private volatile boolean spilling;
+
+	/** {@code true} if elements were read from the disk since the last commit. Accessed only by the flusher thread. */
+	private boolean uncommitted;
+
+	/**
+	 * @param batchProcessor Instance of processor class having logic to process batches of elements.
+	 * @param batchSize Count of the elements in one group (batch) processed by the processor.
+	 * @param maxUnprocessed Maximum number of elements kept in the memory. Setting it to 0 means {@value #DEFAULT_MEMORY_CAPACITY}.
+	 * @param lingerMs Maximum time in milliseconds the first element of not yet full batch waits before the batch is processed anyway.
+	 * @param weigher Function returning size of the element in bytes. May be {@code null} if maxBatchBytes is 0.
+	 * @param maxBatchBytes Maximum size of the batch in bytes. Element bigger than this is processed alone in its own batch.
+	 * Setting it to 0 means unlimited size.
+	 * @param codec Converts the elements from and to bytes stored on the disk.
+	 * @param directory Directory of the segment files.
+	 * @param segmentBytes Size of one segment file.
+	 * @param maxSpillBytes Maximum size of all the segment files together. Elements are rejected when reached.
+	 * @throws IOException When the directory or the segments left by the previous run could not be opened.
+	 */
+	public SpillingBatcher(BatchProcessor<Q> batchProcessor, int batchSize, int maxUnprocessed, long lingerMs,
+			ToIntFunction<Q> weigher, long maxBatchBytes, ElementCodec<Q> codec, Path directory, int segmentBytes,
+			long maxSpillBytes) throws IOException {
+		super(batchProcessor, batchSize, lingerMs, weigher, maxBatchBytes);
+		this.memory = new ArrayBlockingQueue<>(maxUnprocessed > 0 ? maxUnprocessed : DEFAULT_MEMORY_CAPACITY);
+		this.codec = codec;
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.maxSpillBytes = maxSpillBytes;
+		this.spillLog = SpillLog.tryOpen(directory, segmentBytes, maxSpillBytes);
+		if(this.spillLog != null)
+			this.spilling = !this.spillLog.isEmpty();
+		else
+			LOGGER.info("Spill directory {} is used by another batcher. Elements are kept in the memory till it is released.", directory);
+	}
+
+	/**
+	 * Opens the directory if it is not open yet, trying at most once per 100 ms.
+	 * Called under the spill lock.
+	 * 
+	 * @return Log of the elements on the disk or {@code null} if the directory is still used by another batcher.
+	 */
+	private SpillLog openSpillLog() {
+		if(this.spillLog != null || this.closed || System.nanoTime() - this.nextOpenAttempt < 0) return this.spillLog;
+
+		this.nextOpenAttempt = System.nanoTime() + SPILL_CHECK_NANOS;
+		try {
+			SpillLog log = SpillLog.tryOpen(this.directory, this.segmentBytes, this.maxSpillBytes);
+			if(log != null) {
+				LOGGER.info("Spill directory {} was released by the previous batcher.", this.directory);
+				this.spilling = !log.isEmpty();
+				this.spillLog = log;
+			}
+		} catch(IOException e) {
+			LOGGER.error("Spill directory {} could not be opened.", this.directory, e);
+		}
+		return this.spillLog;
+	}
+
+	/**
+	 * Adds the element to the memory, or to the disk when the memory is full or
+	 * the older elements are still on the disk. The unlocked check of the spilling flag
+	 * may let the element into the memory while a concurrent add switches to the disk,
+	 * which reorders only these two concurrent elements.
+	 * 
+	 * @return {@code false} if the disk is full as well.
+	 */
+	private boolean enqueue(Q obj) {
+		if(!this.spilling && this.memory.offer(obj)) return true;
+
+		byte[] record = this.codec.encode(obj);
+		synchronized(this.spillLock) {
+			if(!this.spilling && this.memory.offer(obj)) return true;
+			SpillLog log = this.openSpillLog();
+			if(log == null) return false;
+			try {
+				if(!log.append(record)) return false;
+				this.spilling = true;
+				return true;
+			} catch(IOException e) {
+				LOGGER.error("Error during spilling element to the disk.", e);
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return Oldest element on the disk or {@code null} if there is none.
+	 */
+	private Q readSpilled() {
+		if(!this.spilling && this.spillLog != null) return null;
+
+		byte[] record;
+		synchronized(this.spillLock) {
+			SpillLog log = this.openSpillLog();
+			if(log == null || !this.spilling) return null;
+			record = log.read();
+			if(record == null) {
+				this.spilling = false;
+				return null;
+			}
+		}
+		this.uncommitted = true;
+		return this.codec.decode(record);
+	}
+
+	/**
+	 * Removes the elements of the batch handed over to the processor from the disk.
+	 */
+	@Override
+	protected void processed() {
+		if(!this.uncommitted) return;
+
+		this.uncommitted = false;
+		synchronized(this.spillLock) {
+			if(this.spillLog == null) return;
+			try {
+				this.spillLog.commit();
+			} catch(IOException e) {
+				LOGGER.error("Fully read spill file could not be deleted.", e);
+			}
+		}
+	}
+
+	public boolean addAll(Collection<Q> collection) {
+		boolean allAdded = true;
+		for(Q obj : collection) {
+			if(!this.enqueue(obj)) allAdded = false;
+		}
+		return allAdded;
+	}
+
+	/**
+	 * Waits for the space only when both the memory and the disk are full, or the memory is full
+	 * while the directory is used by another batcher.
+	 */
+	public boolean offer(Q obj, long timeout, TimeUnit unit) throws InterruptedException {
+		if(this.enqueue(obj)) return true;
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while(!this.enqueue(obj)) {
+			if(Thread.interrupted()) throw new InterruptedException();
+			if(deadline - System.nanoTime() <= 0) return false;
+			WaitStrategy.PARK.idle();
+		}
+		return true;
+	}
+
+	/**
+	 * Waits for the space only when both the memory and the disk are full, or the memory is full
+	 * while the directory is used by another batcher.
+	 */
+	public boolean add(Q obj) throws InterruptedException {
+		while(!this.enqueue(obj)) {
+			if(Thread.interrupted()) throw new InterruptedException();
+			WaitStrategy.PARK.idle();
+		}
+		return true;
+	}
+
+	public boolean tryAdd(Q obj) {
+		return this.enqueue(obj);
+	}
+
+	/**
+	 * Only the elements in the memory can be evicted. While spilling the oldest elements are
+	 * on the disk, so nothing is evicted and the new element is dropped.
+	 */
+	public Q evictOldest() {
+		return this.spilling ? null : this.memory.poll();
+	}
+
+	/**
+	 * @return Number of the elements waiting in the memory. Elements spilled to the disk
+	 * are not counted, see {@link #getSpilledBytes()}.
+	 */
+	public int size() {
+		return this.memory.size();
+	}
+
+	@Override
+	protected Q take() throws InterruptedException {
+		Q obj;
+		while((obj = this.poll(SPILL_CHECK_NANOS)) == null);
+		return obj;
+	}
+
+	@Override
+	protected Q poll(long timeoutNanos) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		while(true) {
+			Q obj = this.memory.poll();
+			if(obj == null) obj = this.readSpilled();
+			if(obj != null) return obj;
+
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0) return null;
+			obj = this.memory.poll(Math.min(remaining, SPILL_CHECK_NANOS), TimeUnit.NANOSECONDS);
+			if(obj != null) return obj;
+		}
+	}
+
+	@Override
+	protected int drainTo(Collection<Q> collection, int maxElements) {
+		int drained = this.memory.drainTo(collection, maxElements);
+		Q obj;
+		while(drained < maxElements && (obj = this.readSpilled()) != null) {
+			collection.add(obj);
+			drained++;
+		}
+		return drained;
+	}
+
+	@Override
+	public synchronized void start() {
+		synchronized(this.spillLock) {
+			this.closed = false;
+		}
+		super.start();
+	}
+
+	/**
+	 * Stops the flusher thread and writes the elements left in the memory to the disk,
+	 * so they are replayed after the restart before the elements already on the disk,
+	 * which are newer. Releases the directory for the next batcher.
+	 */
+	@Override
+	public boolean stop(long timeout, TimeUnit unit, Consumer<? super Q> lost) throws InterruptedException {
+		boolean stopped = super.stop(timeout, unit, lost);
+		List<Q> left = new ArrayList<>();
+		this.memory.drainTo(left);
+		synchronized(this.spillLock) {
+			this.nextOpenAttempt = System.nanoTime();
+			SpillLog log = this.openSpillLog();
+			this.closed = true;
+			if(log == null) {
+				if(!left.isEmpty())
+					LOGGER.warn("Spill directory {} is used by another batcher, {} elements left in the memory were lost.", this.directory, left.size());
+				return stopped;
+			}
+			List<byte[]> records = new ArrayList<>(left.size());
+			for(Q obj : left)
+				records.add(this.codec.encode(obj));
+			try {
+				int written = records.isEmpty() ? 0 : log.prepend(records);
+				if(written < records.size())
+					LOGGER.warn("Spill files are full, {} elements left in the memory were lost.", records.size() - written);
+			} catch(IOException e) {
+				LOGGER.error("Error during spilling element to the disk.", e);
+			}
+			try {
+				log.close();
+			} catch(IOException e) {
+				LOGGER.error("Spill directory {} could not be released.", this.directory, e);
+			}
+			this.spillLog = null;
+			this.spilling = false;
+		}
+		return stopped;
+	}
+
+	/**
+	 * @return Approximate number of bytes of the elements waiting on the disk.
+	 */
+	public long getSpilledBytes() {
+		synchronized(this.spillLock) {
+			return this.spillLog != null ? this.spillLog.size() : 0;
+		}
+	}
+}
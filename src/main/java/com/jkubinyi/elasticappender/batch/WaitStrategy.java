@@ -0,0 +1,45 @@
+package com.jkubinyi.elasticappender.batch;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Defines how a thread waits for a lock-free {@link Batcher} to become
+ * available, either for the producer when it is full or for the consumer
+ * when it is empty. Strategies trade CPU usage for latency.
+ * 
+ * @author jurajkubinyi
+ */
+public enum WaitStrategy {
+
+	/** Busy spins. Lowest latency, burns an entire core while waiting. Use only with spare cores. */
+	SPIN {
+		@Override
+		public void idle() {
+			// Just retry.
+		}
+	},
+
+	/** Gives up the rest of the time slice to the other threads. */
+	YIELD {
+		@Override
+		public void idle() {
+			Thread.yield();
+		}
+	},
+
+	/** Sleeps for a short fixed time. Lowest CPU usage, adds up to {@value #PARK_NANOS}ns of latency. */
+	PARK {
+		@Override
+		public void idle() {
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+	};
+
+	/** Number of nanoseconds the {@link #PARK} strategy sleeps at once. */
+	public static final long PARK_NANOS = 100_000;
+
+	/**
+	 * Called repeatedly for as long as the waiting thread is not able to proceed.
+	 */
+	public abstract void idle();
+}
@@ -0,0 +1,65 @@
+package com.jkubinyi.elasticappender.bulk;
+
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link DeadLetterSink} keeping the most recent dead letters in memory so they can be
+ * inspected or drained. When full the oldest dead letter is evicted.
+ * 
+ * @author jurajkubinyi
+ */
+public class BoundedDeadLetterQueue implements DeadLetterSink {
+
+	private final BlockingQueue<DeadLetter> queue;
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+
+	/**
+	 * @param capacity Maximum number of the dead letters kept.
+	 */
+	public BoundedDeadLetterQueue(int capacity) {
+		this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+	}
+
+	@Override
+	public void accept(DeadLetter deadLetter) {
+		this.accepted.incrementAndGet();
+		while(!this.queue.offer(deadLetter)) {
+			if(this.queue.poll() != null) this.evicted.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Moves the kept dead letters into the collection, oldest first.
+	 * 
+	 * @param collection Collection to move the dead letters into.
+	 * @return Number of the dead letters moved.
+	 */
+	public int drainTo(Collection<DeadLetter> collection) {
+		return this.queue.drainTo(collection);
+	}
+
+	/**
+	 * @return Number of the dead letters currently kept.
+	 */
+	public int size() {
+		return this.queue.size();
+	}
+
+	/**
+	 * @return Number of all the dead letters ever received.
+	 */
+	public long getNumAccepted() {
+		return this.accepted.get();
+	}
+
+	/**
+	 * @return Number of the dead letters evicted because the queue was full.
+	 */
+	public long getNumEvicted() {
+		return this.evicted.get();
+	}
+}
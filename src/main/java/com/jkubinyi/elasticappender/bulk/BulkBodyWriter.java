@@ -0,0 +1,100 @@
+package com.jkubinyi.elasticappender.bulk;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the batches of {@link BulkItem}s as NDJSON bulk bodies straight into
+ * pooled {@link BulkBuffer}s. Action lines are pre-encoded by {@link IndexTarget}
+ * and documents are copied as they were produced by the layout. When compression
+ * is enabled the body is gzipped into another pooled buffer.
+ * 
+ * @author jurajkubinyi
+ */
+public class BulkBodyWriter {
+
+	private final BulkBufferPool pool;
+	private final GzipCompressor compressor;
+
+	/** Number of bytes of the bodies before compression. */
+	private final AtomicLong uncompressedBytes = new AtomicLong();
+
+	/** Number of bytes of the bodies as they are sent. */
+	private final AtomicLong compressedBytes = new AtomicLong();
+
+	/**
+	 * @param pool Pool of the buffers the bodies are written into.
+	 */
+	public BulkBodyWriter(BulkBufferPool pool) {
+		this(pool, null);
+	}
+
+	/**
+	 * @param pool Pool of the buffers the bodies are written into.
+	 * @param compressor Compressor of the bodies, {@code null} to send them uncompressed.
+	 */
+	public BulkBodyWriter(BulkBufferPool pool, GzipCompressor compressor) {
+		this.pool = pool;
+		this.compressor = compressor;
+	}
+
+	/**
+	 * @param items Documents to write into the body.
+	 * @return Buffer holding the body. It must be returned using {@link #release(BulkBuffer)}
+	 * once the request is finished.
+	 */
+	public BulkBuffer write(Collection<BulkItem> items) {
+		BulkBuffer buffer = this.pool.acquire();
+		for(BulkItem item : items)
+			item.writeTo(buffer);
+		this.uncompressedBytes.addAndGet(buffer.length());
+		if(this.compressor == null) {
+			this.compressedBytes.addAndGet(buffer.length());
+			return buffer;
+		}
+
+		BulkBuffer compressed = this.pool.acquire();
+		try {
+			this.compressor.compress(buffer, compressed);
+		} finally {
+			this.pool.release(buffer);
+		}
+		this.compressedBytes.addAndGet(compressed.length());
+		return compressed;
+	}
+
+	/**
+	 * @param buffer Buffer returned by {@link #write(Collection)} not used anymore.
+	 */
+	public void release(BulkBuffer buffer) {
+		this.pool.release(buffer);
+	}
+
+	/**
+	 * @return Value of the Content-Encoding header of the written bodies, {@code null} if not compressed.
+	 */
+	public String getContentEncoding() {
+		return this.compressor != null ? "gzip" : null;
+	}
+
+	/**
+	 * @return Number of bytes of all the written bodies before compression.
+	 */
+	public long getUncompressedBytes() {
+		return this.uncompressedBytes.get();
+	}
+
+	/**
+	 * @return Number of bytes of all the written bodies as they are sent, after compression.
+	 */
+	public long getCompressedBytes() {
+		return this.compressedBytes.get();
+	}
+
+	/**
+	 * Releases resources held by the writer.
+	 */
+	public void close() {
+		if(this.compressor != null) this.compressor.close();
+	}
+}
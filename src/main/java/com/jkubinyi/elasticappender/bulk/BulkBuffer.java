@@ -0,0 +1,86 @@
+package com.jkubinyi.elasticappender.bulk;
+
+import java.util.Arrays;
+
+/**
+ * Growable, reusable byte buffer the NDJSON bulk bodies are written into.
+ * Not thread safe, it is meant to be owned by a single bulk request at a time
+ * and returned to the {@link BulkBufferPool} once the request is finished.
+ * 
+ * @author jurajkubinyi
+ */
+public final class BulkBuffer {
+
+	private byte[] bytes;
+	private int length;
+
+	/**
+	 * @param initialCapacity Initial size of the buffer in bytes.
+	 */
+	public BulkBuffer(int initialCapacity) {
+		this.bytes = new byte[Math.max(16, initialCapacity)];
+	}
+
+	public void write(int b) {
+		this.ensureCapacity(this.length + 1);
+		this.bytes[this.length++] = (byte) b;
+	}
+
+	public void write(byte[] src, int offset, int len) {
+		this.ensureCapacity(this.length + len);
+		System.arraycopy(src, offset, this.bytes, this.length, len);
+		this.length += len;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if(capacity > this.bytes.length)
+			this.bytes = Arrays.copyOf(this.bytes, Math.max(capacity, this.bytes.length << 1));
+	}
+
+	/**
+	 * Makes sure at least given number of bytes can be written directly into
+	 * the {@link #array()} starting at {@link #length()}.
+	 * 
+	 * @param bytes Number of bytes to be written.
+	 */
+	void ensureRemaining(int bytes) {
+		this.ensureCapacity(this.length + bytes);
+	}
+
+	/**
+	 * Marks bytes written directly into the {@link #array()} as written.
+	 * 
+	 * @param bytes Number of bytes written.
+	 */
+	void advance(int bytes) {
+		this.length += bytes;
+	}
+
+	/**
+	 * @return Backing array. Only first {@link #length()} bytes are valid.
+	 */
+	public byte[] array() {
+		return this.bytes;
+	}
+
+	/**
+	 * @return Number of bytes written.
+	 */
+	public int length() {
+		return this.length;
+	}
+
+	/**
+	 * @return Size of the backing array.
+	 */
+	public int capacity() {
+		return this.bytes.length;
+	}
+
+	/**
+	 * Discards the content keeping the backing array.
+	 */
+	public void reset() {
+		this.length = 0;
+	}
+}
@@ -0,0 +1,48 @@
+package com.jkubinyi.elasticappender.bulk;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded pool of {@link BulkBuffer}s so the bulk bodies do not need to be allocated
+ * for every request. Buffers which grew too big are not returned to the pool
+ * to not keep rare huge bulks in the memory forever.
+ * 
+ * @author jurajkubinyi
+ */
+public final class BulkBufferPool {
+
+	private final BlockingQueue<BulkBuffer> buffers;
+	private final int initialCapacity;
+	private final int maxRetainedCapacity;
+
+	/**
+	 * @param maxPooled Maximum number of buffers kept in the pool.
+	 * @param initialCapacity Initial size of newly created buffers in bytes.
+	 * @param maxRetainedCapacity Buffers bigger than this number of bytes are discarded instead of pooled.
+	 */
+	public BulkBufferPool(int maxPooled, int initialCapacity, int maxRetainedCapacity) {
+		this.buffers = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+		this.initialCapacity = initialCapacity;
+		this.maxRetainedCapacity = maxRetainedCapacity;
+	}
+
+	/**
+	 * @return Empty buffer, either pooled or a newly created one.
+	 */
+	public BulkBuffer acquire() {
+		BulkBuffer buffer = this.buffers.poll();
+		return buffer != null ? buffer : new BulkBuffer(this.initialCapacity);
+	}
+
+	/**
+	 * Returns the buffer to the pool. The buffer must not be used by the caller anymore.
+	 * 
+	 * @param buffer Buffer acquired using {@link #acquire()}.
+	 */
+	public void release(BulkBuffer buffer) {
+		if(buffer.capacity() > this.maxRetainedCapacity) return;
+		buffer.reset();
+		this.buffers.offer(buffer);
+	}
+}
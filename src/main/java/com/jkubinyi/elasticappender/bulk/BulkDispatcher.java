@@ -0,0 +1,339 @@
+package com.jkubinyi.elasticappender.bulk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+
+import com.jkubinyi.elasticappender.batch.Batcher.BatchProcessor;
+import com.jkubinyi.elasticappender.metrics.DropReason;
+import com.jkubinyi.elasticappender.metrics.MetricsListener;
+import com.jkubinyi.elasticappender.node.HealthAwareNodeSelector;
+import com.jkubinyi.elasticappender.node.NodeStats;
+
+/**
+ * Batching logic sending the batches as NDJSON bodies to the bulk endpoint using
+ * {@link RestClient}'s asynchronous requests. The body is written directly from
+ * the serialized documents and does not go through any request object model.
+ * 
+ * Results of the individual items are inspected. Only the items which failed
+ * temporarily (e.g. rejected execution) are retried after a jittered exponential
+ * backoff defined by {@link RetryPolicy}. Permanently failed items and items
+ * which ran out of retries are handed over to the {@link DeadLetterSink}. Items are
+ * {@link BulkItem#release() released} once delivered or dead-lettered, the sink gets their copy on the heap.
+ * 
+ * Number of the requests in flight is bounded by {@link ConcurrencyLimiter}. While the
+ * limit is reached the flusher thread waits, so the batcher applies backpressure.
+ * 
+ * If {@link HealthAwareNodeSelector} is given, each bulk is routed to the node it picks
+ * and the outcome is reported back to it.
+ * 
+ * Without a dispatch executor the bulks are written and sent on the flusher thread and
+ * the responses handled on the HTTP client's IO threads. With it, both run as tasks of the
+ * executor, only waiting for the free slot stays on the flusher thread. Tasks the executor
+ * rejects, e.g. when it was shut down, run on the calling thread.
+ * 
+ * @author jurajkubinyi
+ */
+public class BulkDispatcher implements BatchProcessor<BulkItem> {
+
+	private static final Logger LOGGER = StatusLogger.getLogger();
+
+	/** Content type required by the bulk API. */
+	public static final ContentType NDJSON = ContentType.create("application/x-ndjson");
+
+	private final RestClient restClient;
+	private final BulkBodyWriter bodyWriter;
+	private final Consumer<Collection<BulkItem>> requeue;
+	private final RetryPolicy retryPolicy;
+	private final ScheduledExecutorService retryScheduler;
+	private final DeadLetterSink deadLetterSink;
+	private final ConcurrencyLimiter limiter;
+	private final HealthAwareNodeSelector nodeSelector;
+	private final MetricsListener metrics;
+	private final Executor executor;
+
+	/** Number of the items in the requests in flight. */
+	private final AtomicInteger inFlightItems = new AtomicInteger();
+
+	/**
+	 * @param restClient Client used to send the requests.
+	 * @param bodyWriter Writer of the bulk bodies.
+	 * @param requeue Called with the items which should be retried, so they can be batched again.
+	 * @param retryPolicy Decides which failures are retried and when.
+	 * @param retryScheduler Executor delaying the retries.
+	 * @param deadLetterSink Receives the items which failed permanently.
+	 * @param limiter Limits the number of the requests in flight.
+	 * @param nodeSelector Routes the requests to the nodes, {@code null} leaves it up to the client.
+	 * @param metrics Receives the outcomes of the requests and items.
+	 * @param executor Writes and sends the bulks and handles the responses, {@code null} to do it directly.
+	 */
+	public BulkDispatcher(RestClient restClient, BulkBodyWriter bodyWriter, Consumer<Collection<BulkItem>> requeue,
+			RetryPolicy retryPolicy, ScheduledExecutorService retryScheduler, DeadLetterSink deadLetterSink,
+			ConcurrencyLimiter limiter, HealthAwareNodeSelector nodeSelector, MetricsListener metrics, Executor executor) {
+		this.restClient = restClient;
+		this.bodyWriter = bodyWriter;
+		this.requeue = requeue;
+		this.retryPolicy = retryPolicy;
+		this.retryScheduler = retryScheduler;
+		this.deadLetterSink = deadLetterSink;
+		this.limiter = limiter;
+		this.nodeSelector = nodeSelector;
+		this.metrics = metrics;
+		this.executor = executor;
+	}
+
+	/**
+	 * Runs the task on the dispatch executor or directly if there is none or it rejects the task.
+	 */
+	private void dispatch(Runnable task) {
+		if(this.executor != null) {
+			try {
+				this.executor.execute(task);
+				return;
+			} catch(RejectedExecutionException e) {
+				// Shutting down, run it here.
+			}
+		}
+		task.run();
+	}
+
+	@Override
+	public void process(Collection<BulkItem> work) {
+		try {
+			this.limiter.acquire();
+		} catch(InterruptedException e) {
+			// Stopping, the batch is sent regardless of the limit.
+			Thread.currentThread().interrupt();
+			this.limiter.acquireNow();
+		}
+		this.dispatch(() -> this.send(work));
+	}
+
+	/**
+	 * Writes the bulk body and sends it. The slot of the limiter is already taken.
+	 */
+	private void send(Collection<BulkItem> work) {
+		long start = System.nanoTime();
+		BulkBuffer body = null;
+		NodeStats node = null;
+		boolean sent = false;
+		try {
+			body = this.bodyWriter.write(work);
+			Request request = new Request("POST", "/_bulk");
+			NByteArrayEntity entity = new NByteArrayEntity(body.array(), 0, body.length(), NDJSON);
+			entity.setContentEncoding(this.bodyWriter.getContentEncoding());
+			request.setEntity(entity);
+			// Routed right before sending, the selector is called on this thread.
+			if(this.nodeSelector != null) node = this.nodeSelector.route();
+			this.metrics.onBulkSent(work.size(), body.length());
+			this.inFlightItems.addAndGet(work.size());
+			sent = true;
+			this.restClient.performRequestAsync(request, new BulkListener(work, body, start, node));
+		} catch(RuntimeException e) {
+			if(body != null) this.bodyWriter.release(body);
+			if(sent) this.inFlightItems.addAndGet(-work.size());
+			if(this.nodeSelector != null) this.nodeSelector.finished(node, null, System.nanoTime() - start, false);
+			this.limiter.release(System.nanoTime() - start, false);
+			this.metrics.onBulkCompleted(work.size(), System.nanoTime() - start, true);
+			this.handleFailure(work, e);
+		}
+	}
+
+	/**
+	 * Handles the outcome of a single bulk request.
+	 */
+	private class BulkListener implements ResponseListener {
+
+		private final Collection<BulkItem> work;
+		private final BulkBuffer body;
+		private final long start;
+		private final NodeStats node;
+
+		private BulkListener(Collection<BulkItem> work, BulkBuffer body, long start, NodeStats node) {
+			this.work = work;
+			this.body = body;
+			this.start = start;
+			this.node = node;
+		}
+
+		@Override
+		public void onSuccess(Response response) {
+			dispatch(() -> this.succeeded(response));
+		}
+
+		@Override
+		public void onFailure(Exception e) {
+			dispatch(() -> this.failed(e));
+		}
+
+		private void succeeded(Response response) {
+			bodyWriter.release(this.body);
+			inFlightItems.addAndGet(-this.work.size());
+			long latency = System.nanoTime() - this.start;
+			if(nodeSelector != null) nodeSelector.finished(this.node, response.getHost(), latency, false);
+			metrics.onBulkCompleted(this.work.size(), latency, false);
+			boolean throttled = false;
+			try {
+				throttled = handleResponse(this.work, response);
+			} finally {
+				limiter.release(latency, throttled);
+			}
+		}
+
+		private void failed(Exception e) {
+			bodyWriter.release(this.body);
+			inFlightItems.addAndGet(-this.work.size());
+			long latency = System.nanoTime() - this.start;
+			if(nodeSelector != null) {
+				// Error responses come from a live node, other failures are blamed on the routed one.
+				boolean answered = e instanceof ResponseException;
+				nodeSelector.finished(this.node, answered ? ((ResponseException) e).getResponse().getHost() : null,
+						latency, !answered);
+			}
+			metrics.onBulkCompleted(this.work.size(), latency, true);
+			try {
+				handleFailure(this.work, e);
+			} finally {
+				limiter.release(latency, retryPolicy.isRetryable(statusOf(e)));
+			}
+		}
+	}
+
+	private static int statusOf(Exception e) {
+		return e instanceof ResponseException ? ((ResponseException) e).getResponse().getStatusLine().getStatusCode() : 0;
+	}
+
+	/**
+	 * Inspects the results of the individual items and retries or dead-letters the failed ones.
+	 * The rest is released as delivered.
+	 * 
+	 * @return {@code true} if any of the items was throttled by the cluster.
+	 */
+	private boolean handleResponse(Collection<BulkItem> work, Response response) {
+		BulkResult result;
+		try(InputStream in = response.getEntity().getContent()) {
+			result = BulkResponseParser.parse(in);
+		} catch(IOException | RuntimeException e) {
+			LOGGER.warn("Bulk response could not be parsed. Results of {} items are unknown.", work.size(), e);
+			release(work);
+			return false;
+		}
+		if(!result.hasFailures()) {
+			release(work);
+			return false;
+		}
+
+		List<BulkItem> items = work instanceof List ? (List<BulkItem>) work : new ArrayList<>(work);
+		boolean[] failed = new boolean[items.size()];
+		List<BulkItem> retry = new ArrayList<>();
+		int lastRetryableStatus = 0;
+		boolean throttled = false;
+		for(BulkResult.ItemFailure failure : result.getFailures()) {
+			if(failure.getIndex() >= items.size() || failed[failure.getIndex()]) continue;
+			failed[failure.getIndex()] = true;
+			BulkItem item = items.get(failure.getIndex());
+			if(this.retryPolicy.isRetryable(failure.getStatus())) {
+				retry.add(item);
+				lastRetryableStatus = failure.getStatus();
+				throttled |= failure.getStatus() == 429;
+			} else {
+				this.deadLetter(item, DropReason.REJECTED, failure.getStatus(), failure.getType() + ": " + failure.getReason());
+			}
+		}
+		LOGGER.warn("{} of {} items of the bulk failed, {} will be retried. Last failure: {}", result.getFailures().size(),
+				items.size(), retry.size(), result.getFailures().get(result.getFailures().size() - 1));
+		for(int i = 0; i < failed.length; i++)
+			if(!failed[i]) items.get(i).release();
+		this.scheduleRetry(retry, lastRetryableStatus);
+		return throttled;
+	}
+
+	private static void release(Collection<BulkItem> items) {
+		for(BulkItem item : items)
+			item.release();
+	}
+
+	/**
+	 * Retries entire batch if the failure is temporary, otherwise dead-letters it.
+	 */
+	private void handleFailure(Collection<BulkItem> work, Exception e) {
+		int status = statusOf(e);
+		if(this.retryPolicy.isRetryable(status)) {
+			LOGGER.error("Error during persisting batch. Will retry later.", e);
+			this.scheduleRetry(new ArrayList<>(work), status);
+		} else {
+			LOGGER.error("Batch was rejected with status {} and will not be retried.", status, e);
+			for(BulkItem item : work)
+				this.deadLetter(item, DropReason.REJECTED, status, e.getMessage());
+		}
+	}
+
+	/**
+	 * Puts the items back to the batcher after the backoff. Items which ran out
+	 * of retries are dead-lettered instead.
+	 */
+	private void scheduleRetry(List<BulkItem> items, int status) {
+		List<BulkItem> retry = new ArrayList<>(items.size());
+		int attempt = 0;
+		for(BulkItem item : items) {
+			int attempts = item.incrementAttempts();
+			if(this.retryPolicy.canRetry(attempts)) {
+				retry.add(item);
+				attempt = Math.max(attempt, attempts);
+			} else {
+				this.deadLetter(item, DropReason.RETRIES_EXHAUSTED, status, "Retries exhausted after " + (attempts - 1) + " retries.");
+			}
+		}
+		if(retry.isEmpty()) return;
+
+		this.metrics.onRetried(retry.size());
+		try {
+			this.retryScheduler.schedule(() -> this.requeue.accept(retry), this.retryPolicy.backoffMillis(attempt), TimeUnit.MILLISECONDS);
+		} catch(RejectedExecutionException e) {
+			this.requeue.accept(retry);
+		}
+	}
+
+	private void deadLetter(BulkItem item, DropReason dropReason, int status, String reason) {
+		this.metrics.onDropped(dropReason, item.getLevel(), 1);
+		try {
+			this.deadLetterSink.accept(new DeadLetter(item.onHeap(), status, reason));
+		} catch(RuntimeException e) {
+			LOGGER.error("Dead letter sink failed.", e);
+		} finally {
+			item.release();
+		}
+	}
+
+	/**
+	 * @return Number of the items in the requests in flight.
+	 */
+	public int getNumInFlightItems() {
+		return this.inFlightItems.get();
+	}
+
+	/**
+	 * @return Limiter of the requests in flight.
+	 */
+	public ConcurrencyLimiter getLimiter() {
+		return this.limiter;
+	}
+}
@@ -0,0 +1,136 @@
+package com.jkubinyi.elasticappender.bulk;
+
+import org.apache.logging.log4j.spi.StandardLevel;
+
+/**
+ * Single document waiting to be persisted using the bulk API. Holds the bytes
+ * of the serialized document exactly as produced by the layout, so they can be
+ * written into the bulk body without any further conversion. Items holding their
+ * bytes elsewhere, e.g. {@link OffHeapBulkItem}, must be {@link #release() released}
+ * once the document is delivered or given up on.
+ * 
+ * @author jurajkubinyi
+ */
+public class BulkItem {
+
+	private final IndexTarget target;
+	private final byte[] source;
+	private final int length;
+	private final StandardLevel level;
+
+	/** Number of failed attempts to persist the document. The item is owned by one thread at a time. */
+	private int attempts;
+
+	/**
+	 * @param target Index the document is persisted into.
+	 * @param source UTF-8 encoded JSON document. Trailing line separators and null delimiters are ignored.
+	 */
+	public BulkItem(IndexTarget target, byte[] source) {
+		this(target, source, null);
+	}
+
+	/**
+	 * @param target Index the document is persisted into.
+	 * @param source UTF-8 encoded JSON document. Trailing line separators and null delimiters are ignored.
+	 * @param level Level of the log, may be {@code null} if unknown.
+	 */
+	public BulkItem(IndexTarget target, byte[] source, StandardLevel level) {
+		this.target = target;
+		this.source = source;
+		this.level = level;
+		int length = source.length;
+		while(length > 0 && (source[length - 1] == '\n' || source[length - 1] == '\r' || source[length - 1] == 0))
+			length--;
+		this.length = length;
+	}
+
+	/**
+	 * For the items not holding the document on the heap.
+	 *
+	 * @param target Index the document is persisted into.
+	 * @param length Length of the document in bytes.
+	 * @param level Level of the log, may be {@code null} if unknown.
+	 */
+	protected BulkItem(IndexTarget target, int length, StandardLevel level) {
+		this.target = target;
+		this.source = null;
+		this.level = level;
+		this.length = length;
+	}
+
+	/**
+	 * @return Index the document is persisted into.
+	 */
+	public IndexTarget getTarget() {
+		return this.target;
+	}
+
+	/**
+	 * @return Level of the log or {@code null} if unknown, e.g. for the logs read back from the spill files.
+	 */
+	public StandardLevel getLevel() {
+		return this.level;
+	}
+
+	/**
+	 * @return Serialized document. Only the first {@link #getLength()} bytes belong to the document.
+	 */
+	public byte[] getSource() {
+		return this.source;
+	}
+
+	/**
+	 * @return Length of the serialized document in bytes.
+	 */
+	public int getLength() {
+		return this.length;
+	}
+
+	/**
+	 * @return Number of failed attempts to persist the document.
+	 */
+	public int getAttempts() {
+		return this.attempts;
+	}
+
+	/**
+	 * Records a failed attempt to persist the document.
+	 * 
+	 * @return Number of failed attempts including this one.
+	 */
+	public int incrementAttempts() {
+		return ++this.attempts;
+	}
+
+	/**
+	 * @return Number of bytes the item occupies in the bulk body including its action line.
+	 */
+	public int getBulkLength() {
+		return this.target.getActionLineLength() + this.length + 1;
+	}
+
+	/**
+	 * Writes the bulk action line followed by the document and a new line.
+	 * 
+	 * @param buffer Buffer to write the document into.
+	 */
+	public void writeTo(BulkBuffer buffer) {
+		this.target.writeActionLine(buffer);
+		buffer.write(this.source, 0, this.length);
+		buffer.write('\n');
+	}
+
+	/**
+	 * Frees the resources holding the document. Called once the document reached its final outcome,
+	 * the item must not be used afterwards. Does nothing for the items on the heap.
+	 */
+	public void release() {
+	}
+
+	/**
+	 * @return Item holding the document on the heap, so it can be kept after {@link #release()}. This item itself if it already does.
+	 */
+	public BulkItem onHeap() {
+		return this;
+	}
+}
@@ -0,0 +1,47 @@
+package com.jkubinyi.elasticappender.bulk;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.jkubinyi.elasticappender.batch.ElementCodec;
+
+/**
+ * Stores {@link BulkItem} as the name of its index followed by the document.
+ * Format: length of the index name (2 bytes), UTF-8 index name, document. The highest
+ * bit of the length is set for the targets written by the "create" action.
+ * Consecutive items of the same index share one decoded {@link IndexTarget}.
+ * 
+ * @author jurajkubinyi
+ */
+public class BulkItemCodec implements ElementCodec<BulkItem> {
+
+	private static final int CREATE_FLAG = 0x8000;
+
+	/** Target of the last decoded item. Decoding is done by a single thread. */
+	private IndexTarget lastTarget;
+
+	@Override
+	public byte[] encode(BulkItem item) {
+		byte[] name = item.getTarget().getName().getBytes(StandardCharsets.UTF_8);
+		return ByteBuffer.allocate(2 + name.length + item.getLength())
+				.putShort((short) (name.length | (item.getTarget().isCreate() ? CREATE_FLAG : 0)))
+				.put(name)
+				.put(item.getSource(), 0, item.getLength())
+				.array();
+	}
+
+	@Override
+	public BulkItem decode(byte[] bytes) {
+		int header = ((bytes[0] & 0xff) << 8) | (bytes[1] & 0xff);
+		int nameLength = header & ~CREATE_FLAG;
+		boolean create = (header & CREATE_FLAG) != 0;
+		String name = new String(bytes, 2, nameLength, StandardCharsets.UTF_8);
+		IndexTarget target = this.lastTarget;
+		if(target == null || !target.getName().equals(name) || target.isCreate() != create) {
+			target = new IndexTarget(name, create);
+			this.lastTarget = target;
+		}
+		return new BulkItem(target, Arrays.copyOfRange(bytes, 2 + nameLength, bytes.length));
+	}
+}
@@ -0,0 +1,99 @@
+package com.jkubinyi.elasticappender.bulk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Streaming parser of the bulk API responses. When the response reports no errors
+ * the items are not inspected at all, otherwise only the failed items are materialized.
+ * 
+ * @author jurajkubinyi
+ */
+public final class BulkResponseParser {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private BulkResponseParser() {}
+
+	/**
+	 * @param in Body of the bulk response.
+	 * @return Parsed outcome of the bulk.
+	 * @throws IOException When the body is not a valid bulk response.
+	 */
+	public static BulkResult parse(InputStream in) throws IOException {
+		try(JsonParser parser = JSON_FACTORY.createParser(in)) {
+			if(parser.nextToken() != JsonToken.START_OBJECT)
+				throw new IOException("Bulk response is not a JSON object.");
+
+			while(parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if("errors".equals(field)) {
+					if(value == JsonToken.VALUE_FALSE) return new BulkResult(0, null);
+				} else if("items".equals(field) && value == JsonToken.START_ARRAY) {
+					return parseItems(parser);
+				} else {
+					parser.skipChildren();
+				}
+			}
+			return new BulkResult(0, null);
+		}
+	}
+
+	private static BulkResult parseItems(JsonParser parser) throws IOException {
+		List<BulkResult.ItemFailure> failures = null;
+		int index = 0;
+		while(parser.nextToken() == JsonToken.START_OBJECT) {
+			// {"index": {...}}
+			while(parser.nextToken() == JsonToken.FIELD_NAME) {
+				if(parser.nextToken() != JsonToken.START_OBJECT) {
+					parser.skipChildren();
+					continue;
+				}
+				BulkResult.ItemFailure failure = parseItem(parser, index);
+				if(failure != null) {
+					if(failures == null) failures = new ArrayList<>();
+					failures.add(failure);
+				}
+			}
+			index++;
+		}
+		return new BulkResult(index, failures);
+	}
+
+	private static BulkResult.ItemFailure parseItem(JsonParser parser, int index) throws IOException {
+		int status = 0;
+		String type = null;
+		String reason = null;
+		boolean error = false;
+		while(parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if("status".equals(field)) {
+				status = parser.getIntValue();
+			} else if("error".equals(field)) {
+				error = true;
+				if(value == JsonToken.START_OBJECT) {
+					while(parser.nextToken() == JsonToken.FIELD_NAME) {
+						String errorField = parser.getCurrentName();
+						parser.nextToken();
+						if("type".equals(errorField)) type = parser.getValueAsString();
+						else if("reason".equals(errorField)) reason = parser.getValueAsString();
+						else parser.skipChildren();
+					}
+				} else {
+					reason = parser.getValueAsString();
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return error || status >= 300 ? new BulkResult.ItemFailure(index, status, type, reason) : null;
+	}
+}
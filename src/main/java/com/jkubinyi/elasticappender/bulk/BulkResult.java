@@ -0,0 +1,96 @@
+package com.jkubinyi.elasticappender.bulk;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a bulk request as reported by Elasticsearch. Only the failed items
+ * are kept, successful ones are just counted.
+ * 
+ * @author jurajkubinyi
+ */
+public final class BulkResult {
+
+	/**
+	 * Failure of a single item of the bulk.
+	 * 
+	 * @author jurajkubinyi
+	 */
+	public static final class ItemFailure {
+
+		private final int index;
+		private final int status;
+		private final String type;
+		private final String reason;
+
+		public ItemFailure(int index, int status, String type, String reason) {
+			this.index = index;
+			this.status = status;
+			this.type = type;
+			this.reason = reason;
+		}
+
+		/**
+		 * @return Position of the item in the bulk request.
+		 */
+		public int getIndex() {
+			return this.index;
+		}
+
+		/**
+		 * @return HTTP status of the item.
+		 */
+		public int getStatus() {
+			return this.status;
+		}
+
+		/**
+		 * @return Type of the error, e.g. "es_rejected_execution_exception". May be {@code null}.
+		 */
+		public String getType() {
+			return this.type;
+		}
+
+		/**
+		 * @return Human readable reason of the error. May be {@code null}.
+		 */
+		public String getReason() {
+			return this.reason;
+		}
+
+		@Override
+		public String toString() {
+			return this.status + " " + this.type + ": " + this.reason;
+		}
+	}
+
+	private final int itemCount;
+	private final List<ItemFailure> failures;
+
+	public BulkResult(int itemCount, List<ItemFailure> failures) {
+		this.itemCount = itemCount;
+		this.failures = failures != null ? failures : Collections.emptyList();
+	}
+
+	/**
+	 * @return {@code true} if at least one item failed.
+	 */
+	public boolean hasFailures() {
+		return !this.failures.isEmpty();
+	}
+
+	/**
+	 * @return Number of the items reported in the response. May be 0 when the response
+	 * reported no errors and the items were not inspected.
+	 */
+	public int getItemCount() {
+		return this.itemCount;
+	}
+
+	/**
+	 * @return Failed items in the order of the request.
+	 */
+	public List<ItemFailure> getFailures() {
+		return this.failures;
+	}
+}
@@ -0,0 +1,147 @@
+package com.jkubinyi.elasticappender.bulk;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of the bulk requests in flight. Caller waiting for a free slot
+ * blocks the flusher thread, so the logs pile up in the batcher and the producers
+ * get the backpressure defined by the batcher instead of unbounded buffering in
+ * the HTTP client.
+ * 
+ * In adaptive mode the limit follows AIMD: it grows by one per round of successful
+ * requests faster than the target latency and halves, at most once per observed
+ * latency, when a request is throttled (429), fails or is slower than the target.
+ * 
+ * @author jurajkubinyi
+ */
+public class ConcurrencyLimiter {
+
+	private final int maxLimit;
+	private final boolean adaptive;
+	private final long targetLatencyNanos;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = this.lock.newCondition();
+
+	private double limit;
+	private int inFlight;
+	private long lastDecreaseNanos = System.nanoTime();
+
+	/**
+	 * @param maxLimit Maximum number of the requests in flight. Setting it to 0 means unlimited.
+	 * @param adaptive If {@code true} the limit adapts between 1 and maxLimit from observed latency and throttling.
+	 * @param targetLatencyMs Latency in milliseconds above which the adaptive limit decreases.
+	 */
+	public ConcurrencyLimiter(int maxLimit, boolean adaptive, long targetLatencyMs) {
+		this.maxLimit = maxLimit > 0 ? maxLimit : Integer.MAX_VALUE;
+		this.adaptive = adaptive && maxLimit > 0;
+		this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, targetLatencyMs));
+		this.limit = this.adaptive ? Math.max(1, this.maxLimit / 2) : this.maxLimit;
+	}
+
+	/**
+	 * Waits till the number of the requests in flight is under the limit and takes a slot.
+	 * 
+	 * @throws InterruptedException When interrupted while waiting, no slot is taken then.
+	 */
+	public void acquire() throws InterruptedException {
+		this.lock.lockInterruptibly();
+		try {
+			while(this.inFlight >= (int) this.limit)
+				this.changed.await();
+			this.inFlight++;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes a slot even if the limit is reached. Used when the request must be sent anyway.
+	 */
+	public void acquireNow() {
+		this.lock.lock();
+		try {
+			this.inFlight++;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Frees the slot taken by a finished request.
+	 * 
+	 * @param latencyNanos Time the request took.
+	 * @param overloaded {@code true} if the request was throttled or failed because of the cluster.
+	 */
+	public void release(long latencyNanos, boolean overloaded) {
+		this.lock.lock();
+		try {
+			this.inFlight--;
+			if(this.adaptive) this.adapt(latencyNanos, overloaded);
+			this.changed.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private void adapt(long latencyNanos, boolean overloaded) {
+		long now = System.nanoTime();
+		if(overloaded || latencyNanos > this.targetLatencyNanos) {
+			// Requests sent before the previous decrease can not reflect it yet.
+			if(now - this.lastDecreaseNanos > latencyNanos) {
+				this.limit = Math.max(1, this.limit / 2);
+				this.lastDecreaseNanos = now;
+			}
+		} else {
+			this.limit = Math.min(this.maxLimit, this.limit + 1 / this.limit);
+		}
+	}
+
+	/**
+	 * Waits till there are no requests in flight.
+	 * 
+	 * @param timeout Maximum number of units to wait.
+	 * @param unit Unit of time to wait.
+	 * @return {@code true} if no requests are in flight.
+	 * @throws InterruptedException When interrupted while waiting.
+	 */
+	public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+		long remaining = unit.toNanos(timeout);
+		this.lock.lockInterruptibly();
+		try {
+			while(this.inFlight > 0) {
+				if(remaining <= 0) return false;
+				remaining = this.changed.awaitNanos(remaining);
+			}
+			return true;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Current limit of the requests in flight.
+	 */
+	public int getLimit() {
+		this.lock.lock();
+		try {
+			return (int) Math.min(Integer.MAX_VALUE, this.limit);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Number of the requests in flight.
+	 */
+	public int getInFlight() {
+		this.lock.lock();
+		try {
+			return this.inFlight;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package com.jkubinyi.elasticappender.bulk;
+
+/**
+ * Document which could not be persisted and will not be retried anymore.
+ * 
+ * @author jurajkubinyi
+ */
+public final class DeadLetter {
+
+	private final BulkItem item;
+	private final int status;
+	private final String reason;
+	private final long timeMillis;
+
+	/**
+	 * @param item Document which failed.
+	 * @param status HTTP status of the last failure, 0 if there was no response.
+	 * @param reason Reason of the last failure.
+	 */
+	public DeadLetter(BulkItem item, int status, String reason) {
+		this.item = item;
+		this.status = status;
+		this.reason = reason;
+		this.timeMillis = System.currentTimeMillis();
+	}
+
+	public BulkItem getItem() {
+		return this.item;
+	}
+
+	public int getStatus() {
+		return this.status;
+	}
+
+	public String getReason() {
+		return this.reason;
+	}
+
+	/**
+	 * @return Time the document was given up on.
+	 */
+	public long getTimeMillis() {
+		return this.timeMillis;
+	}
+}
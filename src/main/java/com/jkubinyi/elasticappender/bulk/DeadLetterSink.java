@@ -0,0 +1,17 @@
+package com.jkubinyi.elasticappender.bulk;
+
+/**
+ * Receives the documents which failed permanently, either because Elasticsearch
+ * rejected them (e.g. mapping errors) or because they ran out of retries.
+ * Implementations must not block, they are called from the HTTP client threads.
+ * 
+ * @author jurajkubinyi
+ */
+@FunctionalInterface
+public interface DeadLetterSink {
+
+	/**
+	 * @param deadLetter Document which failed permanently.
+	 */
+	public void accept(DeadLetter deadLetter);
+}
@@ -0,0 +1,78 @@
+package com.jkubinyi.elasticappender.bulk;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the bulk bodies into the gzip format. The {@link Deflater}s are reused
+ * between the requests instead of creating a new one (and its native memory) for
+ * every bulk.
+ * 
+ * @author jurajkubinyi
+ */
+public class GzipCompressor {
+
+	/** Gzip header: magic, deflate method, no flags, no modification time, no extra flags, unknown OS. */
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	/** Number of the deflaters kept for reuse. */
+	private static final int MAX_POOLED_DEFLATERS = 4;
+
+	private final int level;
+	private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(MAX_POOLED_DEFLATERS);
+
+	/**
+	 * @param level Compression level from 1 (fastest) to 9 (best compression).
+	 */
+	public GzipCompressor(int level) {
+		this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+	}
+
+	/**
+	 * Writes compressed content of the source buffer into the target buffer.
+	 * 
+	 * @param source Uncompressed data.
+	 * @param target Buffer to write the gzip data into.
+	 */
+	public void compress(BulkBuffer source, BulkBuffer target) {
+		Deflater deflater = this.deflaters.poll();
+		if(deflater == null) deflater = new Deflater(this.level, true);
+
+		try {
+			target.write(HEADER, 0, HEADER.length);
+			deflater.setInput(source.array(), 0, source.length());
+			deflater.finish();
+			while(!deflater.finished()) {
+				target.ensureRemaining(Math.max(512, source.length() >>> 3));
+				int written = deflater.deflate(target.array(), target.length(), target.array().length - target.length());
+				target.advance(written);
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(source.array(), 0, source.length());
+			writeIntLE(target, (int) crc.getValue());
+			writeIntLE(target, source.length());
+		} finally {
+			deflater.reset();
+			if(!this.deflaters.offer(deflater)) deflater.end();
+		}
+	}
+
+	private static void writeIntLE(BulkBuffer target, int value) {
+		target.write(value);
+		target.write(value >>> 8);
+		target.write(value >>> 16);
+		target.write(value >>> 24);
+	}
+
+	/**
+	 * Releases native memory of the pooled deflaters.
+	 */
+	public void close() {
+		Deflater deflater;
+		while((deflater = this.deflaters.poll()) != null)
+			deflater.end();
+	}
+}
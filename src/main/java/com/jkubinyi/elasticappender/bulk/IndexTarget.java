@@ -0,0 +1,77 @@
+package com.jkubinyi.elasticappender.bulk;
+
+import java.nio.charset.StandardCharsets;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+/**
+ * Index the documents are persisted into together with its pre-encoded
+ * bulk action line, so the action line does not need to be serialized
+ * for every single document.
+ * 
+ * @author jurajkubinyi
+ */
+public final class IndexTarget {
+
+	private final String name;
+	private final boolean create;
+	private final byte[] actionLine;
+
+	/**
+	 * @param name Name of the index.
+	 */
+	public IndexTarget(String name) {
+		this(name, false);
+	}
+
+	/**
+	 * @param name Name of the index or the data stream.
+	 * @param create If {@code true} the documents are written by the "create" action, as data streams require,
+	 * otherwise by the "index" action.
+	 */
+	public IndexTarget(String name, boolean create) {
+		this.name = name;
+		this.create = create;
+		this.actionLine = new StringBuilder()
+				.append(create ? "{\"create\":{\"_index\":\"" : "{\"index\":{\"_index\":\"")
+				.append(JsonStringEncoder.getInstance().quoteAsString(name))
+				.append("\"}}\n")
+				.toString()
+				.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return Name of the index.
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return {@code true} if the documents are written by the "create" action.
+	 */
+	public boolean isCreate() {
+		return this.create;
+	}
+
+	/**
+	 * @return Length of the bulk action line in bytes including the trailing new line.
+	 */
+	public int getActionLineLength() {
+		return this.actionLine.length;
+	}
+
+	/**
+	 * Writes the bulk action line including the trailing new line.
+	 * 
+	 * @param buffer Buffer to write the action line into.
+	 */
+	public void writeActionLine(BulkBuffer buffer) {
+		buffer.write(this.actionLine, 0, this.actionLine.length);
+	}
+
+	@Override
+	public String toString() {
+		return this.name;
+	}
+}
@@ -0,0 +1,154 @@
+package com.jkubinyi.elasticappender.bulk;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores the serialized documents in direct memory, so a long queue of pending logs does not
+ * fill the old generation of the application's heap. The memory is reserved lazily in segments
+ * of direct buffers divided into fixed-size chunks. A document occupies as many chunks as it
+ * needs, not necessarily adjacent ones, and only the numbers of its chunks stay on the heap.
+ * Chunks are returned to the arena when the document reaches its final outcome.
+ *
+ * Allocation and release are synchronized, copying the bytes is not: a chunk belongs to a single
+ * document until it is released, and the document is handed between the threads by the batcher.
+ *
+ * @author jurajkubinyi
+ */
+public final class OffHeapArena {
+
+	/** Size of the direct buffers the chunks are cut from. */
+	public static final int SEGMENT_BYTES = 1024 * 1024;
+
+	/** Default size of a chunk. Small enough to not waste much on short logs. */
+	public static final int DEFAULT_CHUNK_BYTES = 256;
+
+	private static final int[] NO_CHUNKS = new int[0];
+
+	private final int chunkBytes;
+	private final int chunksPerSegment;
+	private final ByteBuffer[] segments;
+
+	/** Stack of the free chunks. */
+	private final int[] free;
+	private int freeCount;
+	private int segmentCount;
+	private int usedChunks;
+
+	/**
+	 * @param capacityBytes Maximum number of bytes reserved by the arena. Rounded up to whole chunks.
+	 * @param chunkBytes Size of a chunk.
+	 */
+	public OffHeapArena(long capacityBytes, int chunkBytes) {
+		if(chunkBytes < 16 || chunkBytes > SEGMENT_BYTES)
+			throw new IllegalArgumentException("Chunk must have between 16 and " + SEGMENT_BYTES + " bytes.");
+		long chunks = Math.max(1, (capacityBytes + chunkBytes - 1) / chunkBytes);
+		this.chunkBytes = chunkBytes;
+		this.chunksPerSegment = (int) Math.min(SEGMENT_BYTES / chunkBytes, chunks);
+		long segments = (chunks + this.chunksPerSegment - 1) / this.chunksPerSegment;
+		if(segments * this.chunksPerSegment > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Arena of " + capacityBytes + " bytes has too many chunks, use bigger chunks.");
+		this.segments = new ByteBuffer[(int) segments];
+		this.free = new int[(int) (segments * this.chunksPerSegment)];
+	}
+
+	/**
+	 * Copies the document into the arena.
+	 *
+	 * @return Chunks holding the document or {@code null} if the arena is full.
+	 */
+	public int[] store(byte[] source, int length) {
+		int count = (length + this.chunkBytes - 1) / this.chunkBytes;
+		if(count == 0) return NO_CHUNKS;
+		int[] chunks = this.allocate(count);
+		if(chunks == null) return null;
+		int offset = 0;
+		for(int chunk : chunks) {
+			int n = Math.min(this.chunkBytes, length - offset);
+			this.slice(chunk).put(source, offset, n);
+			offset += n;
+		}
+		return chunks;
+	}
+
+	/**
+	 * Appends the document to the buffer.
+	 */
+	public void writeTo(int[] chunks, int length, BulkBuffer buffer) {
+		buffer.ensureRemaining(length);
+		this.read(chunks, length, buffer.array(), buffer.length());
+		buffer.advance(length);
+	}
+
+	/**
+	 * @return Copy of the document on the heap.
+	 */
+	public byte[] copy(int[] chunks, int length) {
+		byte[] bytes = new byte[length];
+		this.read(chunks, length, bytes, 0);
+		return bytes;
+	}
+
+	private void read(int[] chunks, int length, byte[] target, int targetOffset) {
+		int offset = 0;
+		for(int chunk : chunks) {
+			int n = Math.min(this.chunkBytes, length - offset);
+			this.slice(chunk).get(target, targetOffset + offset, n);
+			offset += n;
+		}
+	}
+
+	/**
+	 * @return View of the buffer positioned at the start of the chunk.
+	 */
+	private ByteBuffer slice(int chunk) {
+		ByteBuffer view = this.segments[chunk / this.chunksPerSegment].duplicate();
+		view.position((chunk % this.chunksPerSegment) * this.chunkBytes);
+		return view;
+	}
+
+	private synchronized int[] allocate(int count) {
+		while(this.freeCount < count && this.segmentCount < this.segments.length) {
+			int segment = this.segmentCount++;
+			this.segments[segment] = ByteBuffer.allocateDirect(this.chunksPerSegment * this.chunkBytes);
+			// Pushed in reverse, so the chunks are handed out in their order.
+			for(int i = this.chunksPerSegment - 1; i >= 0; i--)
+				this.free[this.freeCount++] = segment * this.chunksPerSegment + i;
+		}
+		if(this.freeCount < count) return null;
+		int[] chunks = new int[count];
+		for(int i = 0; i < count; i++)
+			chunks[i] = this.free[--this.freeCount];
+		this.usedChunks += count;
+		return chunks;
+	}
+
+	/**
+	 * Returns the chunks to the arena. They must not be used by the caller anymore.
+	 */
+	public synchronized void release(int[] chunks) {
+		for(int chunk : chunks)
+			this.free[this.freeCount++] = chunk;
+		this.usedChunks -= chunks.length;
+	}
+
+	/**
+	 * @return Number of bytes of the chunks holding the documents.
+	 */
+	public synchronized long getUsedBytes() {
+		return (long) this.usedChunks * this.chunkBytes;
+	}
+
+	/**
+	 * @return Number of bytes of direct memory reserved so far.
+	 */
+	public synchronized long getReservedBytes() {
+		return (long) this.segmentCount * this.chunksPerSegment * this.chunkBytes;
+	}
+
+	/**
+	 * @return Maximum number of bytes the arena reserves.
+	 */
+	public long getCapacityBytes() {
+		return (long) this.free.length * this.chunkBytes;
+	}
+}
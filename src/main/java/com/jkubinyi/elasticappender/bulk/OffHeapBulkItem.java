@@ -0,0 +1,77 @@
+package com.jkubinyi.elasticappender.bulk;
+
+import org.apache.logging.log4j.spi.StandardLevel;
+
+/**
+ * {@link BulkItem} whose document is stored in an {@link OffHeapArena}. Only the numbers
+ * of its chunks are kept on the heap. The document is copied from the chunks straight into
+ * the bulk body and the chunks are returned to the arena by {@link #release()}.
+ *
+ * @author jurajkubinyi
+ */
+public final class OffHeapBulkItem extends BulkItem {
+
+	private final OffHeapArena arena;
+
+	/** Chunks of the document, {@code null} once released. The item is owned by one thread at a time. */
+	private int[] chunks;
+
+	private OffHeapBulkItem(OffHeapArena arena, int[] chunks, IndexTarget target, int length, StandardLevel level) {
+		super(target, length, level);
+		this.arena = arena;
+		this.chunks = chunks;
+	}
+
+	/**
+	 * Copies the document into the arena.
+	 *
+	 * @param arena Arena storing the document.
+	 * @param target Index the document is persisted into.
+	 * @param source UTF-8 encoded JSON document. Trailing line separators and null delimiters are ignored.
+	 * @param level Level of the log, may be {@code null} if unknown.
+	 * @return Item or {@code null} if the arena is full.
+	 */
+	public static OffHeapBulkItem store(OffHeapArena arena, IndexTarget target, byte[] source, StandardLevel level) {
+		int length = source.length;
+		while(length > 0 && (source[length - 1] == '\n' || source[length - 1] == '\r' || source[length - 1] == 0))
+			length--;
+		int[] chunks = arena.store(source, length);
+		return chunks != null ? new OffHeapBulkItem(arena, chunks, target, length, level) : null;
+	}
+
+	/**
+	 * @return Copy of the document on the heap.
+	 */
+	@Override
+	public byte[] getSource() {
+		return this.arena.copy(this.chunks(), this.getLength());
+	}
+
+	@Override
+	public void writeTo(BulkBuffer buffer) {
+		this.getTarget().writeActionLine(buffer);
+		this.arena.writeTo(this.chunks(), this.getLength(), buffer);
+		buffer.write('\n');
+	}
+
+	@Override
+	public void release() {
+		if(this.chunks == null) return;
+		this.arena.release(this.chunks);
+		this.chunks = null;
+	}
+
+	@Override
+	public BulkItem onHeap() {
+		BulkItem item = new BulkItem(this.getTarget(), this.getSource(), this.getLevel());
+		for(int i = this.getAttempts(); i > 0; i--)
+			item.incrementAttempts();
+		return item;
+	}
+
+	private int[] chunks() {
+		if(this.chunks == null)
+			throw new IllegalStateException("Document was already released.");
+		return this.chunks;
+	}
+}
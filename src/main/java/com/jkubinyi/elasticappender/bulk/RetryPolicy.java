@@ -0,0 +1,62 @@
+package com.jkubinyi.elasticappender.bulk;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which failures are worth retrying and how long to wait before the retry.
+ * Uses exponential backoff with full jitter, so the retries of many instances
+ * do not hit the struggling cluster at the same moment.
+ * 
+ * @author jurajkubinyi
+ */
+public class RetryPolicy {
+
+	private final int maxRetries;
+	private final long initialBackoffMs;
+	private final long maxBackoffMs;
+
+	/**
+	 * @param maxRetries Maximum number of retries of a single item.
+	 * @param initialBackoffMs Upper bound of the wait before the first retry.
+	 * @param maxBackoffMs Upper bound of the wait before any retry.
+	 */
+	public RetryPolicy(int maxRetries, long initialBackoffMs, long maxBackoffMs) {
+		this.maxRetries = Math.max(0, maxRetries);
+		this.initialBackoffMs = Math.max(1, initialBackoffMs);
+		this.maxBackoffMs = Math.max(this.initialBackoffMs, maxBackoffMs);
+	}
+
+	/**
+	 * @param status HTTP status of the failed item or request, 0 if the request did not get any response.
+	 * @return {@code true} if the failure is temporary and the item can succeed later.
+	 */
+	public boolean isRetryable(int status) {
+		return status == 0 || status == 429 || status == 502 || status == 503 || status == 504;
+	}
+
+	/**
+	 * @param attempts Number of the failed attempts of the item so far.
+	 * @return {@code true} if the item can be retried once more.
+	 */
+	public boolean canRetry(int attempts) {
+		return attempts <= this.maxRetries;
+	}
+
+	/**
+	 * @param attempt Number of the failed attempts so far, starting with 1.
+	 * @return Random time in milliseconds to wait before the next attempt.
+	 */
+	public long backoffMillis(int attempt) {
+		int shift = Math.min(Math.max(0, attempt - 1), 30);
+		long ceiling = Math.min(this.maxBackoffMs, this.initialBackoffMs << shift);
+		if(ceiling <= 0) ceiling = this.maxBackoffMs;
+		return ThreadLocalRandom.current().nextLong(ceiling) + 1;
+	}
+
+	/**
+	 * @return Maximum number of retries of a single item.
+	 */
+	public int getMaxRetries() {
+		return this.maxRetries;
+	}
+}
@@ -0,0 +1,67 @@
+package com.jkubinyi.elasticappender.dispatch;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * Creates the executors writing and sending the bulks and handling their responses.
+ * 
+ * @author jurajkubinyi
+ */
+public final class DispatchExecutors {
+
+	private static final Logger LOGGER = StatusLogger.getLogger();
+
+	/** Bulks are sent by the flusher thread and the responses handled by the HTTP client's threads. */
+	public static final String DIRECT = "direct";
+
+	/** Fixed pool of daemon threads. */
+	public static final String POOL = "pool";
+
+	/** New virtual thread per task on Java 21 and newer, pool otherwise. */
+	public static final String VIRTUAL = "virtual";
+
+	private static final String THREAD_NAME = "ElasticAppender-dispatch";
+
+	private DispatchExecutors() {}
+
+	/**
+	 * @param name One of {@link #DIRECT}, {@link #POOL} or {@link #VIRTUAL}, case insensitive.
+	 * @return {@code true} if the name is known.
+	 */
+	public static boolean isKnown(String name) {
+		return DIRECT.equalsIgnoreCase(name) || POOL.equalsIgnoreCase(name) || VIRTUAL.equalsIgnoreCase(name);
+	}
+
+	/**
+	 * @return {@code true} if the virtual threads are available on this Java version.
+	 */
+	public static boolean isVirtualSupported() {
+		return VirtualThreads.isSupported();
+	}
+
+	/**
+	 * @param name One of {@link #DIRECT}, {@link #POOL} or {@link #VIRTUAL}, case insensitive.
+	 * @param threads Number of the threads of the pool.
+	 * @return New executor or {@code null} for {@link #DIRECT}.
+	 */
+	public static ExecutorService create(String name, int threads) {
+		if(VIRTUAL.equalsIgnoreCase(name)) {
+			if(VirtualThreads.isSupported())
+				return VirtualThreads.newExecutor(THREAD_NAME + "-");
+			LOGGER.warn("Virtual threads require Java 21 or newer. Using pool of {} dispatch threads.", threads);
+			return newPool(threads);
+		}
+		if(POOL.equalsIgnoreCase(name))
+			return newPool(threads);
+		return null;
+	}
+
+	private static ExecutorService newPool(int threads) {
+		return Executors.newFixedThreadPool(Math.max(1, threads), Log4jThreadFactory.createDaemonThreadFactory(THREAD_NAME));
+	}
+}
@@ -0,0 +1,30 @@
+package com.jkubinyi.elasticappender.dispatch;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Access to the virtual threads. They are not available on this Java version,
+ * the jar carries a variant for Java 21 and newer in META-INF/versions/21.
+ * 
+ * @author jurajkubinyi
+ */
+final class VirtualThreads {
+
+	private VirtualThreads() {}
+
+	/**
+	 * @return {@code true} if the virtual threads are available.
+	 */
+	static boolean isSupported() {
+		return false;
+	}
+
+	/**
+	 * @param namePrefix Prefix of the names of the threads.
+	 * @return Executor starting a new virtual thread for every task.
+	 * @throws UnsupportedOperationException When the virtual threads are not available.
+	 */
+	static ExecutorService newExecutor(String namePrefix) {
+		throw new UnsupportedOperationException("Virtual threads require Java 21 or newer.");
+	}
+}
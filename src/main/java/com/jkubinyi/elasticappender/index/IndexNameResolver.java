@@ -0,0 +1,188 @@
+package com.jkubinyi.elasticappender.index;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+
+import com.jkubinyi.elasticappender.bulk.IndexTarget;
+
+/**
+ * Resolves the index of the event from its timestamp as "index_date", where the date
+ * is formatted by the configured {@link SimpleDateFormat} pattern.
+ * 
+ * Formatted index is cached for the whole time bucket the formatted date does not change
+ * in, e.g. one day for "yyyyMMdd", so resolving is only a range check. Buckets are immutable
+ * and swapped without locking on rollover. The previous bucket is kept as well, so late
+ * events from just before the rollover do not cause formatting either.
+ * 
+ * @author jurajkubinyi
+ */
+public class IndexNameResolver {
+
+	/**
+	 * Time range with the same formatted index.
+	 */
+	private static final class Bucket {
+		private final long start;
+		private final long end;
+		private final String date;
+		private final IndexTarget target;
+
+		private Bucket(long start, long end, String date, IndexTarget target) {
+			this.start = start;
+			this.end = end;
+			this.date = date;
+			this.target = target;
+		}
+
+		private boolean contains(long timeMillis) {
+			return timeMillis >= this.start && timeMillis < this.end;
+		}
+	}
+
+	/**
+	 * Current and previous bucket swapped at once.
+	 */
+	private static final class Buckets {
+		private final Bucket current;
+		private final Bucket previous;
+
+		private Buckets(Bucket current, Bucket previous) {
+			this.current = current;
+			this.previous = previous;
+		}
+	}
+
+	private final String index;
+	private final boolean create;
+	private final DateFormat dateFormat;
+	private final ZoneId zone;
+	private final ChronoUnit unit;
+
+	private volatile Buckets buckets;
+
+	/**
+	 * @param index Base of the index name.
+	 * @param dateFormat Format of the date appended to the index name. Used only when crossing the buckets.
+	 */
+	public IndexNameResolver(String index, DateFormat dateFormat) {
+		this(index, dateFormat, false);
+	}
+
+	/**
+	 * @param index Base of the index name.
+	 * @param dateFormat Format of the date appended to the index name. Used only when crossing the buckets.
+	 * @param create If {@code true} the logs are written by the "create" action, see {@link IndexTarget#isCreate()}.
+	 */
+	public IndexNameResolver(String index, DateFormat dateFormat, boolean create) {
+		this.index = index;
+		this.create = create;
+		this.dateFormat = (DateFormat) dateFormat.clone();
+		this.zone = this.dateFormat.getTimeZone().toZoneId();
+		this.unit = dateFormat instanceof SimpleDateFormat
+				? smallestUnit(((SimpleDateFormat) dateFormat).toPattern())
+				: ChronoUnit.MILLIS;
+		Bucket bucket = this.createBucket(System.currentTimeMillis());
+		this.buckets = new Buckets(bucket, bucket);
+	}
+
+	/**
+	 * @param pattern {@link SimpleDateFormat} pattern.
+	 * @return The finest unit of time the pattern displays. The formatted date does not change within it.
+	 */
+	static ChronoUnit smallestUnit(String pattern) {
+		ChronoUnit smallest = ChronoUnit.FOREVER;
+		boolean quoted = false;
+		for(int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if(c == '\'') {
+				quoted = !quoted;
+				continue;
+			}
+			if(quoted) continue;
+
+			ChronoUnit unit;
+			switch(c) {
+			case 'S': unit = ChronoUnit.MILLIS; break;
+			case 's': unit = ChronoUnit.SECONDS; break;
+			case 'm': unit = ChronoUnit.MINUTES; break;
+			case 'H': case 'k': case 'K': case 'h': case 'a': unit = ChronoUnit.HOURS; break;
+			// Week based fields use days, the formatted date is constant within a day for sure.
+			case 'd': case 'D': case 'E': case 'u': case 'F': case 'w': case 'W': case 'Y': unit = ChronoUnit.DAYS; break;
+			case 'M': case 'L': unit = ChronoUnit.MONTHS; break;
+			case 'y': case 'G': unit = ChronoUnit.YEARS; break;
+			default:
+				// Time zone and other letters do not change the value over time, non-letters are literals.
+				continue;
+			}
+			if(unit.compareTo(smallest) < 0) smallest = unit;
+		}
+		return smallest;
+	}
+
+	/**
+	 * @param timeMillis Timestamp of the event.
+	 * @return Index the event belongs to.
+	 */
+	public IndexTarget resolve(long timeMillis) {
+		return this.bucket(timeMillis).target;
+	}
+
+	/**
+	 * @param timeMillis Timestamp of the event.
+	 * @return Formatted date of the event. The same instance is returned for the whole bucket.
+	 */
+	public String resolveDate(long timeMillis) {
+		return this.bucket(timeMillis).date;
+	}
+
+	private Bucket bucket(long timeMillis) {
+		Buckets buckets = this.buckets;
+		if(buckets.current.contains(timeMillis)) return buckets.current;
+		if(buckets.previous.contains(timeMillis)) return buckets.previous;
+
+		Bucket bucket = this.createBucket(timeMillis);
+		// Only moving forward in time replaces the current bucket, late events are served without caching.
+		if(bucket.start >= buckets.current.end)
+			this.buckets = new Buckets(bucket, buckets.current);
+		return bucket;
+	}
+
+	/**
+	 * @return Date part of the index of the most recent bucket.
+	 */
+	public String getCurrentDate() {
+		return this.buckets.current.date;
+	}
+
+	/**
+	 * @return Index of the most recent bucket.
+	 */
+	public IndexTarget getCurrentTarget() {
+		return this.buckets.current.target;
+	}
+
+	private Bucket createBucket(long timeMillis) {
+		String date;
+		synchronized(this.dateFormat) {
+			date = this.dateFormat.format(new Date(timeMillis));
+		}
+		IndexTarget target = new IndexTarget(new StringBuilder().append(this.index).append("_").append(date).toString(), this.create);
+		if(this.unit == ChronoUnit.FOREVER)
+			return new Bucket(Long.MIN_VALUE, Long.MAX_VALUE, date, target);
+
+		ZonedDateTime time = Instant.ofEpochMilli(timeMillis).atZone(this.zone);
+		ZonedDateTime start;
+		switch(this.unit) {
+		case YEARS: start = time.withDayOfYear(1).truncatedTo(ChronoUnit.DAYS); break;
+		case MONTHS: start = time.withDayOfMonth(1).truncatedTo(ChronoUnit.DAYS); break;
+		default: start = time.truncatedTo(this.unit); break;
+		}
+		long end = start.plus(1, this.unit).toInstant().toEpochMilli();
+		return new Bucket(start.toInstant().toEpochMilli(), end, date, target);
+	}
+}
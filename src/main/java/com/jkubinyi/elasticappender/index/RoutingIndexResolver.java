@@ -0,0 +1,318 @@
+package com.jkubinyi.elasticappender.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import com.jkubinyi.elasticappender.bulk.IndexTarget;
+
+/**
+ * Resolves the index of the event from a routing pattern, e.g. "logs-${ctx:tenant}-${date}".
+ * Supported variables are "${ctx:key}" for the ThreadContext value of the key, "${marker}" for
+ * the name of the event's marker and "${date}" for the event's timestamp formatted by the
+ * {@link IndexNameResolver}'s date format. Context and marker variables may have a default
+ * used when the event has no value, e.g. "${ctx:tenant:-shared}".
+ *
+ * Resolved targets are interned per date bucket, keyed by the values of the variables, so
+ * the index name and its action line are built once and the events of the same target share
+ * one {@link IndexTarget}. Values and the literal parts of the pattern are lower-cased and the
+ * characters not allowed in index names are replaced by '_'. Leading '_', '-' and '+' are stripped
+ * from the values and the index name, a value with nothing left is replaced by its default. When the
+ * cache holds the maximum number of the targets, new targets are still resolved, just not cached.
+ *
+ * @author jurajkubinyi
+ */
+public class RoutingIndexResolver {
+
+	private static final Logger LOGGER = StatusLogger.getLogger();
+
+	/** Default maximum number of the targets cached per date bucket. */
+	public static final int DEFAULT_MAX_TARGETS = 1024;
+
+	private static final String CONTEXT_PREFIX = "ctx:";
+	private static final String DEFAULT_SEPARATOR = ":-";
+
+	/** Characters Elasticsearch does not allow in the index names. */
+	private static final String INVALID_CHARS = "\\/*?\"<>| ,#:";
+
+	/** Characters Elasticsearch does not allow at the start of the index names. */
+	private static final String INVALID_START_CHARS = "_-+";
+
+	private enum Type {
+		LITERAL, CONTEXT, MARKER, DATE
+	}
+
+	/**
+	 * Part of the pattern.
+	 */
+	private static final class Segment {
+		private final Type type;
+		/** Literal text or the context key. */
+		private final String text;
+		private final String defaultValue;
+
+		private Segment(Type type, String text, String defaultValue) {
+			this.type = type;
+			this.text = text;
+			this.defaultValue = defaultValue;
+		}
+	}
+
+	/**
+	 * Targets of one date bucket.
+	 */
+	private static final class Targets {
+		private final String date;
+		private final ConcurrentHashMap<Object, IndexTarget> cache = new ConcurrentHashMap<>();
+
+		private Targets(String date) {
+			this.date = date;
+		}
+	}
+
+	/**
+	 * Current and previous targets swapped at once.
+	 */
+	private static final class Generations {
+		private final Targets current;
+		private final Targets previous;
+
+		private Generations(Targets current, Targets previous) {
+			this.current = current;
+			this.previous = previous;
+		}
+	}
+
+	/**
+	 * Values of several variables used as the key of a target.
+	 */
+	private static final class Values {
+		private final String[] values;
+		private final int hash;
+
+		private Values(String[] values) {
+			this.values = values;
+			this.hash = Arrays.hashCode(values);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Values && Arrays.equals(this.values, ((Values) obj).values);
+		}
+	}
+
+	private final String pattern;
+	private final Segment[] segments;
+	/** Context and marker segments in the order of the pattern. */
+	private final Segment[] variables;
+	private final boolean dated;
+	private final IndexNameResolver dates;
+	private final boolean create;
+	private final int maxTargets;
+
+	private volatile Generations generations;
+	private volatile boolean full;
+
+	/**
+	 * @param pattern Routing pattern.
+	 * @param dates Resolver formatting the "${date}" variable.
+	 * @param create If {@code true} the logs are written by the "create" action, see {@link IndexTarget#isCreate()}.
+	 * @param maxTargets Maximum number of the targets cached per date bucket.
+	 * @throws IllegalArgumentException If the pattern has an unclosed or unknown variable.
+	 */
+	public RoutingIndexResolver(String pattern, IndexNameResolver dates, boolean create, int maxTargets) {
+		this.pattern = pattern;
+		this.segments = parse(pattern);
+		this.variables = Arrays.stream(this.segments)
+				.filter(segment -> segment.type == Type.CONTEXT || segment.type == Type.MARKER)
+				.toArray(Segment[]::new);
+		this.dated = Arrays.stream(this.segments).anyMatch(segment -> segment.type == Type.DATE);
+		this.dates = dates;
+		this.create = create;
+		this.maxTargets = Math.max(1, maxTargets);
+		Targets targets = new Targets(this.dated ? dates.resolveDate(System.currentTimeMillis()) : "");
+		this.generations = new Generations(targets, targets);
+	}
+
+	/**
+	 * @param pattern Routing pattern.
+	 * @throws IllegalArgumentException If the pattern has an unclosed or unknown variable.
+	 */
+	public static void validate(String pattern) {
+		parse(pattern);
+	}
+
+	private static Segment[] parse(String pattern) {
+		List<Segment> segments = new ArrayList<>();
+		int position = 0;
+		while(position < pattern.length()) {
+			int start = pattern.indexOf("${", position);
+			if(start < 0) {
+				segments.add(new Segment(Type.LITERAL, sanitizeLiteral(pattern.substring(position)), null));
+				break;
+			}
+			if(start > position)
+				segments.add(new Segment(Type.LITERAL, sanitizeLiteral(pattern.substring(position, start)), null));
+			int end = pattern.indexOf('}', start);
+			if(end < 0) throw new IllegalArgumentException("Unclosed variable in index pattern " + pattern);
+
+			String variable = pattern.substring(start + 2, end);
+			String defaultValue = null;
+			int separator = variable.indexOf(DEFAULT_SEPARATOR);
+			if(separator >= 0) {
+				defaultValue = sanitize(variable.substring(separator + DEFAULT_SEPARATOR.length()));
+				variable = variable.substring(0, separator);
+			}
+			if("date".equals(variable) && defaultValue == null)
+				segments.add(new Segment(Type.DATE, null, null));
+			else if("marker".equals(variable))
+				segments.add(new Segment(Type.MARKER, null, defaultValue));
+			else if(variable.startsWith(CONTEXT_PREFIX) && variable.length() > CONTEXT_PREFIX.length())
+				segments.add(new Segment(Type.CONTEXT, variable.substring(CONTEXT_PREFIX.length()), defaultValue));
+			else
+				throw new IllegalArgumentException("Unknown variable ${" + variable + "} in index pattern " + pattern);
+			position = end + 1;
+		}
+		return segments.toArray(new Segment[0]);
+	}
+
+	/**
+	 * @return Literal lower-cased with the characters not allowed in the index names replaced.
+	 */
+	private static String sanitizeLiteral(String literal) {
+		StringBuilder sanitized = new StringBuilder(literal.length());
+		for(int i = 0; i < literal.length(); i++) {
+			char c = literal.charAt(i);
+			sanitized.append(INVALID_CHARS.indexOf(c) >= 0 || Character.isISOControl(c) ? '_' : c);
+		}
+		return sanitized.toString().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * @return Value sanitized like a literal, without the leading characters an index name must not start with.
+	 * The value may end up empty.
+	 */
+	private static String sanitize(String value) {
+		return stripInvalidStart(sanitizeLiteral(value));
+	}
+
+	private static String stripInvalidStart(String name) {
+		int start = 0;
+		while(start < name.length() && INVALID_START_CHARS.indexOf(name.charAt(start)) >= 0)
+			start++;
+		return name.substring(start);
+	}
+
+	/**
+	 * @return Routing pattern.
+	 */
+	public String getPattern() {
+		return this.pattern;
+	}
+
+	/**
+	 * @param event Event to route.
+	 * @return Index the event belongs to, or {@code null} if a variable without a default has no value.
+	 */
+	public IndexTarget resolve(LogEvent event) {
+		Object key;
+		if(this.variables.length == 1) {
+			key = this.valueOf(this.variables[0], event);
+			if(key == null) return null;
+		} else if(this.variables.length == 0) {
+			key = "";
+		} else {
+			String[] values = new String[this.variables.length];
+			for(int i = 0; i < values.length; i++) {
+				values[i] = this.valueOf(this.variables[i], event);
+				if(values[i] == null) return null;
+			}
+			key = new Values(values);
+		}
+
+		Targets targets = this.targetsOf(this.dated ? this.dates.resolveDate(event.getTimeMillis()) : "");
+		IndexTarget target = targets.cache.get(key);
+		if(target != null) return target;
+
+		String name = this.format(key, targets.date);
+		if(name == null) return null;
+		target = new IndexTarget(name, this.create);
+		if(targets.cache.size() < this.maxTargets) {
+			IndexTarget cached = targets.cache.putIfAbsent(key, target);
+			return cached != null ? cached : target;
+		}
+		if(!this.full) {
+			this.full = true;
+			LOGGER.warn("Index pattern {} resolved more than {} indices, the rest of them is not cached.", this.pattern, this.maxTargets);
+		}
+		return target;
+	}
+
+	/**
+	 * @return Raw value of the variable, its default if missing, or {@code null} if there is none.
+	 */
+	private String valueOf(Segment variable, LogEvent event) {
+		String value;
+		if(variable.type == Type.CONTEXT) {
+			Object data = event.getContextData().getValue(variable.text);
+			value = data != null ? data.toString() : null;
+		} else {
+			Marker marker = event.getMarker();
+			value = marker != null ? marker.getName() : null;
+		}
+		return value != null && !value.isEmpty() ? value : variable.defaultValue;
+	}
+
+	/**
+	 * @return Targets of the date. Only the most recent date of the date resolver replaces the current
+	 * targets, like in the {@link IndexNameResolver}. Late dates older than the previous one are served
+	 * without caching.
+	 */
+	private Targets targetsOf(String date) {
+		Generations generations = this.generations;
+		if(generations.current.date.equals(date)) return generations.current;
+		if(generations.previous.date.equals(date)) return generations.previous;
+
+		Targets targets = new Targets(date);
+		if(date.equals(this.dates.getCurrentDate()))
+			this.generations = new Generations(targets, generations.current);
+		return targets;
+	}
+
+	/**
+	 * @return Index name, or {@code null} if a variable without a default has nothing left after sanitizing.
+	 */
+	private String format(Object key, String date) {
+		StringBuilder name = new StringBuilder();
+		int variable = 0;
+		for(Segment segment : this.segments) {
+			switch(segment.type) {
+			case LITERAL:
+				name.append(segment.text);
+				break;
+			case DATE:
+				name.append(date);
+				break;
+			default:
+				String value = sanitize(key instanceof Values ? ((Values) key).values[variable] : (String) key);
+				if(value.isEmpty()) value = segment.defaultValue;
+				if(value == null) return null;
+				name.append(value);
+				variable++;
+			}
+		}
+		return stripInvalidStart(name.toString());
+	}
+}
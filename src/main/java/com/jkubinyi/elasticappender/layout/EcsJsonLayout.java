@@ -0,0 +1,404 @@
+package com.jkubinyi.elasticappender.layout;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.layout.AbstractStringLayout;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.core.util.StringBuilderWriter;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.Constants;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.apache.logging.log4j.util.TriConsumer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * Layout writing the events as Elastic Common Schema (ECS) documents. The document is streamed
+ * by a {@link JsonGenerator} into a thread-local buffer reused for the next event. Field names are
+ * pre-encoded, the message is formatted into a reusable builder and the context data are written
+ * as "labels" while being iterated, so no intermediate objects or maps are created.
+ * 
+ * Field names use the dotted form, e.g. "log.level", which Elasticsearch maps to objects.
+ * 
+ * @author jurajkubinyi
+ */
+@Plugin(name = "EcsJsonLayout", category = Node.CATEGORY, elementType = Layout.ELEMENT_TYPE, printObject = true)
+public class EcsJsonLayout extends AbstractStringLayout {
+
+	/** Version of the ECS the documents follow. */
+	public static final String ECS_VERSION = "1.2.0";
+
+	private static final String CONTENT_TYPE = "application/json; charset=UTF-8";
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private static final SerializedString TIMESTAMP = new SerializedString("@timestamp");
+	private static final SerializedString LEVEL = new SerializedString("log.level");
+	private static final SerializedString MESSAGE = new SerializedString("message");
+	private static final SerializedString ECS_VERSION_FIELD = new SerializedString("ecs.version");
+	private static final SerializedString ECS_VERSION_VALUE = new SerializedString(ECS_VERSION);
+	private static final SerializedString SERVICE_NAME = new SerializedString("service.name");
+	private static final SerializedString THREAD_NAME = new SerializedString("process.thread.name");
+	private static final SerializedString LOGGER = new SerializedString("log.logger");
+	private static final SerializedString ORIGIN_FILE = new SerializedString("log.origin.file.name");
+	private static final SerializedString ORIGIN_LINE = new SerializedString("log.origin.file.line");
+	private static final SerializedString ORIGIN_FUNCTION = new SerializedString("log.origin.function");
+	private static final SerializedString LABELS = new SerializedString("labels");
+	private static final SerializedString TAGS = new SerializedString("tags");
+	private static final SerializedString ERROR_TYPE = new SerializedString("error.type");
+	private static final SerializedString ERROR_MESSAGE = new SerializedString("error.message");
+	private static final SerializedString ERROR_STACK_TRACE = new SerializedString("error.stack_trace");
+
+	/** Initial size of the thread-local buffer. */
+	private static final int INITIAL_BUFFER_BYTES = 1024;
+
+	/** Thread-local buffers and builders which grew above this size are shrunk after use. */
+	private static final int MAX_RETAINED_BYTES = 64 * 1024;
+
+	/** Writes a context data entry as a label. */
+	private static final TriConsumer<String, Object, JsonGenerator> WRITE_LABEL = (key, value, generator) -> {
+		try {
+			generator.writeFieldName(key);
+			if(value == null) generator.writeNull();
+			else generator.writeString(value.toString());
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	};
+
+	private final SerializedString serviceName;
+	private final boolean locationInfo;
+	private final boolean includeStacktrace;
+	private final boolean properties;
+	private final ThreadLocal<State> states;
+
+	private EcsJsonLayout(String serviceName, boolean locationInfo, boolean includeStacktrace, boolean properties) {
+		super(StandardCharsets.UTF_8);
+		this.serviceName = serviceName == null || serviceName.isEmpty() ? null : new SerializedString(serviceName);
+		this.locationInfo = locationInfo;
+		this.includeStacktrace = includeStacktrace;
+		this.properties = properties;
+		this.states = Constants.ENABLE_THREADLOCALS ? ThreadLocal.withInitial(State::new) : null;
+	}
+
+	/**
+	 * Reusable buffers of a single thread.
+	 */
+	private static final class State {
+		private final Output output = new Output(INITIAL_BUFFER_BYTES);
+		private JsonGenerator generator;
+		private StringBuilder text = new StringBuilder(256);
+		private char[] chars = new char[256];
+		private long timestampSecond = Long.MIN_VALUE;
+		private final char[] timestamp = "0000-00-00T00:00:00.000Z".toCharArray();
+
+		private JsonGenerator generator() throws IOException {
+			if(this.generator == null) {
+				this.generator = JSON_FACTORY.createGenerator(this.output);
+				this.generator.setRootValueSeparator(null);
+			}
+			return this.generator;
+		}
+
+		/**
+		 * Generator may be left in the middle of the document by an error, so a new one is created.
+		 */
+		private void discardGenerator() {
+			this.generator = null;
+		}
+
+		private void reset() {
+			this.output.reset();
+			if(this.text.capacity() > MAX_RETAINED_BYTES) this.text = new StringBuilder(256);
+			else this.text.setLength(0);
+			if(this.chars.length > MAX_RETAINED_BYTES) this.chars = new char[256];
+		}
+	}
+
+	/**
+	 * Growable byte array output.
+	 */
+	private static final class Output extends OutputStream {
+		private byte[] buffer;
+		private int count;
+
+		private Output(int capacity) {
+			this.buffer = new byte[capacity];
+		}
+
+		@Override
+		public void write(int b) {
+			if(this.count == this.buffer.length) this.grow(1);
+			this.buffer[this.count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if(this.count + len > this.buffer.length) this.grow(len);
+			System.arraycopy(b, off, this.buffer, this.count, len);
+			this.count += len;
+		}
+
+		private void grow(int needed) {
+			this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.count + needed));
+		}
+
+		private void reset() {
+			this.count = 0;
+			if(this.buffer.length > MAX_RETAINED_BYTES) this.buffer = new byte[INITIAL_BUFFER_BYTES];
+		}
+	}
+
+	@Override
+	public String getContentType() {
+		return CONTENT_TYPE;
+	}
+
+	@Override
+	public String toSerializable(LogEvent event) {
+		State state = this.state();
+		try {
+			this.write(event, state);
+			return new String(state.output.buffer, 0, state.output.count, StandardCharsets.UTF_8);
+		} finally {
+			state.reset();
+		}
+	}
+
+	@Override
+	public byte[] toByteArray(LogEvent event) {
+		State state = this.state();
+		try {
+			this.write(event, state);
+			return Arrays.copyOf(state.output.buffer, state.output.count);
+		} finally {
+			state.reset();
+		}
+	}
+
+	@Override
+	public void encode(LogEvent event, ByteBufferDestination destination) {
+		State state = this.state();
+		try {
+			this.write(event, state);
+			destination.writeBytes(state.output.buffer, 0, state.output.count);
+		} finally {
+			state.reset();
+		}
+	}
+
+	private State state() {
+		return this.states != null ? this.states.get() : new State();
+	}
+
+	private void write(LogEvent event, State state) {
+		try {
+			JsonGenerator generator = state.generator();
+			generator.writeStartObject();
+			generator.writeFieldName(TIMESTAMP);
+			generator.writeString(this.formatTimestamp(event.getTimeMillis(), state), 0, state.timestamp.length);
+			generator.writeFieldName(LEVEL);
+			generator.writeString(event.getLevel().name());
+			generator.writeFieldName(MESSAGE);
+			this.writeMessage(event.getMessage(), generator, state);
+			generator.writeFieldName(ECS_VERSION_FIELD);
+			generator.writeString(ECS_VERSION_VALUE);
+			if(this.serviceName != null) {
+				generator.writeFieldName(SERVICE_NAME);
+				generator.writeString(this.serviceName);
+			}
+			generator.writeFieldName(THREAD_NAME);
+			generator.writeString(event.getThreadName());
+			generator.writeFieldName(LOGGER);
+			generator.writeString(event.getLoggerName());
+			if(this.locationInfo) this.writeSource(event.getSource(), generator);
+			if(this.properties) this.writeLabels(event.getContextData(), generator);
+			if(event.getMarker() != null) this.writeTags(event.getMarker(), generator);
+			if(event.getThrown() != null) this.writeError(event.getThrown(), generator, state);
+			generator.writeEndObject();
+			generator.flush();
+		} catch(IOException e) {
+			state.discardGenerator();
+			throw new UncheckedIOException(e);
+		} catch(RuntimeException e) {
+			state.discardGenerator();
+			throw e;
+		}
+	}
+
+	/**
+	 * Formats the time as ISO 8601 in UTC with milliseconds. Date and time are recomputed only when the second changes.
+	 */
+	private char[] formatTimestamp(long timeMillis, State state) {
+		long second = Math.floorDiv(timeMillis, 1000);
+		char[] chars = state.timestamp;
+		if(second != state.timestampSecond) {
+			LocalDateTime time = LocalDateTime.ofEpochSecond(second, 0, ZoneOffset.UTC);
+			writeDigits(chars, 0, time.getYear(), 4);
+			writeDigits(chars, 5, time.getMonthValue(), 2);
+			writeDigits(chars, 8, time.getDayOfMonth(), 2);
+			writeDigits(chars, 11, time.getHour(), 2);
+			writeDigits(chars, 14, time.getMinute(), 2);
+			writeDigits(chars, 17, time.getSecond(), 2);
+			state.timestampSecond = second;
+		}
+		writeDigits(chars, 20, (int) Math.floorMod(timeMillis, 1000), 3);
+		return chars;
+	}
+
+	private static void writeDigits(char[] chars, int offset, int value, int digits) {
+		for(int i = offset + digits - 1; i >= offset; i--) {
+			chars[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+
+	private void writeMessage(Message message, JsonGenerator generator, State state) throws IOException {
+		if(message instanceof StringBuilderFormattable) {
+			StringBuilder text = state.text;
+			text.setLength(0);
+			((StringBuilderFormattable) message).formatTo(text);
+			this.writeText(text, generator, state);
+		} else {
+			generator.writeString(message.getFormattedMessage());
+		}
+	}
+
+	private void writeText(StringBuilder text, JsonGenerator generator, State state) throws IOException {
+		int length = text.length();
+		if(state.chars.length < length) state.chars = new char[Math.max(length, state.chars.length * 2)];
+		text.getChars(0, length, state.chars, 0);
+		generator.writeString(state.chars, 0, length);
+	}
+
+	private void writeSource(StackTraceElement source, JsonGenerator generator) throws IOException {
+		if(source == null) return;
+		if(source.getFileName() != null) {
+			generator.writeFieldName(ORIGIN_FILE);
+			generator.writeString(source.getFileName());
+		}
+		generator.writeFieldName(ORIGIN_LINE);
+		generator.writeNumber(source.getLineNumber());
+		generator.writeFieldName(ORIGIN_FUNCTION);
+		generator.writeString(source.getMethodName());
+	}
+
+	private void writeLabels(ReadOnlyStringMap contextData, JsonGenerator generator) throws IOException {
+		if(contextData == null || contextData.isEmpty()) return;
+		generator.writeFieldName(LABELS);
+		generator.writeStartObject();
+		contextData.forEach(WRITE_LABEL, generator);
+		generator.writeEndObject();
+	}
+
+	private void writeTags(Marker marker, JsonGenerator generator) throws IOException {
+		generator.writeFieldName(TAGS);
+		generator.writeStartArray();
+		generator.writeString(marker.getName());
+		if(marker.hasParents()) {
+			for(Marker parent : marker.getParents())
+				generator.writeString(parent.getName());
+		}
+		generator.writeEndArray();
+	}
+
+	private void writeError(Throwable thrown, JsonGenerator generator, State state) throws IOException {
+		generator.writeFieldName(ERROR_TYPE);
+		generator.writeString(thrown.getClass().getName());
+		if(thrown.getMessage() != null) {
+			generator.writeFieldName(ERROR_MESSAGE);
+			generator.writeString(thrown.getMessage());
+		}
+		if(this.includeStacktrace) {
+			StringBuilder text = state.text;
+			text.setLength(0);
+			thrown.printStackTrace(new PrintWriter(new StringBuilderWriter(text)));
+			generator.writeFieldName(ERROR_STACK_TRACE);
+			this.writeText(text, generator, state);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "EcsJsonLayout[serviceName=" + this.serviceName + ", locationInfo=" + this.locationInfo + "]";
+	}
+
+	@PluginBuilderFactory
+	public static Builder newBuilder() {
+		return new Builder();
+	}
+
+	/**
+	 * Builder of the layout used by the Log4J according to the configuration.
+	 * 
+	 * @author jurajkubinyi
+	 */
+	public static class Builder implements org.apache.logging.log4j.core.util.Builder<EcsJsonLayout> {
+
+		@PluginBuilderAttribute
+		private String serviceName;
+
+		@PluginBuilderAttribute
+		private boolean locationInfo = false;
+
+		@PluginBuilderAttribute
+		private boolean includeStacktrace = true;
+
+		@PluginBuilderAttribute
+		private boolean properties = true;
+
+		/**
+		 * @param serviceName Written as "service.name" if set.
+		 */
+		public Builder setServiceName(String serviceName) {
+			this.serviceName = serviceName;
+			return this;
+		}
+
+		/**
+		 * @param locationInfo If {@code true} the origin of the log is written. Expensive, see Log4J's location info.
+		 */
+		public Builder setLocationInfo(boolean locationInfo) {
+			this.locationInfo = locationInfo;
+			return this;
+		}
+
+		/**
+		 * @param includeStacktrace If {@code true} (default) the stack trace of the exception is written.
+		 */
+		public Builder setIncludeStacktrace(boolean includeStacktrace) {
+			this.includeStacktrace = includeStacktrace;
+			return this;
+		}
+
+		/**
+		 * @param properties If {@code true} (default) the context data are written as "labels".
+		 */
+		public Builder setProperties(boolean properties) {
+			this.properties = properties;
+			return this;
+		}
+
+		@Override
+		public EcsJsonLayout build() {
+			return new EcsJsonLayout(this.serviceName, this.locationInfo, this.includeStacktrace, this.properties);
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package com.jkubinyi.elasticappender.layout;
+
+import java.util.Arrays;
+
+/**
+ * Adds fields to the already serialized JSON documents without parsing them.
+ *
+ * @author jurajkubinyi
+ */
+public final class JsonFields {
+
+	private JsonFields() {
+	}
+
+	/**
+	 * Adds the fields as the last fields of the JSON object.
+	 *
+	 * @param document Serialized JSON object, trailing whitespace is allowed.
+	 * @param fields UTF-8 encoded fields separated by commas, e.g. {@code "a":1,"b":2}.
+	 * @return New document with the fields, or the same document if it does not end with an object.
+	 */
+	public static byte[] append(byte[] document, byte[] fields) {
+		int end = document.length - 1;
+		while(end >= 0 && document[end] != '}') {
+			if(!isWhitespace(document[end]))
+				return document;
+			end--;
+		}
+		if(end < 0) return document;
+		int last = end - 1;
+		while(last >= 0 && isWhitespace(document[last]))
+			last--;
+		if(last < 0) return document;
+		int separator = document[last] == '{' ? 0 : 1;
+
+		byte[] result = Arrays.copyOf(document, document.length + separator + fields.length);
+		if(separator > 0) result[end] = ',';
+		System.arraycopy(fields, 0, result, end + separator, fields.length);
+		System.arraycopy(document, end, result, end + separator + fields.length, document.length - end);
+		return result;
+	}
+
+	static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+	}
+}
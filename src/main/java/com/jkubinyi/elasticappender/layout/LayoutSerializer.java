@@ -0,0 +1,138 @@
+package com.jkubinyi.elasticappender.layout;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.Writer;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.layout.JsonLayout;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.Constants;
+
+/**
+ * Serializes the events into the bytes of the documents using the appender's {@link Layout}.
+ * 
+ * In garbage-free mode the event is written into a thread-local {@link ReusableByteBufferDestination}
+ * either by {@link Layout#encode(Object, org.apache.logging.log4j.core.layout.ByteBufferDestination)}
+ * or, for JsonLayout, by streaming the JSON as UTF-8 straight into the buffer.
+ * No intermediate String is created and the only allocation made by the serializer itself is
+ * the resulting array sized exactly to the document. {@link EcsJsonLayout} reuses its own buffers
+ * so it is always asked for the bytes directly.
+ * 
+ * With a {@link StackTraceCache} the events with an exception seen before are serialized without it
+ * and the cached exception fields are appended, so the stack trace is not walked and serialized again.
+ * The exception fields then come last in the document. Layouts mixing the exception into the other
+ * fields are detected on the first exception and serialized in full from then on.
+ * 
+ * @author jurajkubinyi
+ */
+public class LayoutSerializer {
+
+	private static final Logger LOGGER = StatusLogger.getLogger();
+
+	/** Initial size of the thread-local buffer. */
+	private static final int INITIAL_BUFFER_BYTES = 2048;
+
+	/** Thread-local buffers which grew above this size are shrunk after use. */
+	private static final int MAX_RETAINED_BUFFER_BYTES = 256 * 1024;
+
+	private final Layout<? extends Serializable> layout;
+	private final boolean garbageFree;
+	private final ThreadLocal<ReusableByteBufferDestination> destinations;
+	private final StackTraceCache stackTraceCache;
+
+	/** Set to {@code false} once the layout turns out to write the exception into the other fields. */
+	private volatile boolean cacheable = true;
+
+	/**
+	 * @param layout Layout producing the documents.
+	 * @param garbageFree If {@code true} events are serialized using thread-local buffers.
+	 * Thread-locals are not used when disabled by Log4J's "log4j2.enable.threadlocals" property.
+	 */
+	public LayoutSerializer(Layout<? extends Serializable> layout, boolean garbageFree) {
+		this(layout, garbageFree, null);
+	}
+
+	/**
+	 * @param layout Layout producing the documents.
+	 * @param garbageFree If {@code true} events are serialized using thread-local buffers.
+	 * Thread-locals are not used when disabled by Log4J's "log4j2.enable.threadlocals" property.
+	 * @param stackTraceCache Cache of the serialized exceptions, {@code null} to serialize them every time.
+	 */
+	public LayoutSerializer(Layout<? extends Serializable> layout, boolean garbageFree, StackTraceCache stackTraceCache) {
+		this.layout = layout;
+		this.garbageFree = garbageFree;
+		this.stackTraceCache = stackTraceCache;
+		this.destinations = garbageFree && Constants.ENABLE_THREADLOCALS
+				? ThreadLocal.withInitial(LayoutSerializer::newDestination)
+				: null;
+	}
+
+	private static ReusableByteBufferDestination newDestination() {
+		return new ReusableByteBufferDestination(INITIAL_BUFFER_BYTES, MAX_RETAINED_BUFFER_BYTES);
+	}
+
+	/**
+	 * @return {@code true} if the events are serialized without creating intermediate objects.
+	 */
+	public boolean isGarbageFree() {
+		return this.garbageFree;
+	}
+
+	/**
+	 * @return Cache of the serialized exceptions, {@code null} if not used.
+	 */
+	public StackTraceCache getStackTraceCache() {
+		return this.stackTraceCache;
+	}
+
+	/**
+	 * @param event Event to serialize.
+	 * @return Serialized document.
+	 * @throws IOException When the layout fails to serialize the event.
+	 */
+	public byte[] serialize(LogEvent event) throws IOException {
+		Throwable thrown = this.stackTraceCache != null && this.cacheable ? event.getThrown() : null;
+		if(thrown == null) return this.serializeEvent(event);
+
+		long fingerprint = StackTraceCache.fingerprint(thrown);
+		byte[] fields = this.stackTraceCache.get(fingerprint);
+		if(fields != null)
+			return JsonFields.append(this.serializeEvent(new ThrowableFreeLogEvent(event)), fields);
+
+		byte[] document = this.serializeEvent(event);
+		try {
+			fields = StackTraceCache.exceptionFields(document, this.serializeEvent(new ThrowableFreeLogEvent(event)));
+		} catch(IOException e) {
+			fields = null;
+		}
+		if(fields != null) {
+			this.stackTraceCache.put(fingerprint, fields);
+		} else if(this.cacheable) {
+			this.cacheable = false;
+			LOGGER.warn("Layout {} does not write the exceptions into separate top-level fields. Stack trace cache is disabled.", this.layout);
+		}
+		return document;
+	}
+
+	private byte[] serializeEvent(LogEvent event) throws IOException {
+		// EcsJsonLayout already streams into its own thread-local buffer
+		if(!this.garbageFree || this.layout instanceof EcsJsonLayout) return this.layout.toByteArray(event);
+
+		ReusableByteBufferDestination destination = this.destinations != null ? this.destinations.get() : newDestination();
+		try {
+			if(this.layout instanceof JsonLayout) {
+				Writer writer = destination.asWriter();
+				((JsonLayout) this.layout).toSerializable(event, writer);
+				writer.close();
+			} else {
+				this.layout.encode(event, destination);
+			}
+			return destination.toByteArray();
+		} finally {
+			destination.reset();
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package com.jkubinyi.elasticappender.layout;
+
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+
+/**
+ * Growable heap {@link ByteBufferDestination} meant to be reused by a single thread
+ * for serializing one event after another. Instead of draining the content somewhere
+ * else it grows, so the whole serialized event ends up in one buffer and can be
+ * copied out exactly once.
+ * 
+ * Besides being a destination of {@link org.apache.logging.log4j.core.Layout#encode(Object, ByteBufferDestination)}
+ * it provides a {@link Writer} encoding the characters as UTF-8 directly into the buffer.
+ * 
+ * Not thread safe.
+ * 
+ * @author jurajkubinyi
+ */
+public final class ReusableByteBufferDestination implements ByteBufferDestination {
+
+	private ByteBuffer buffer;
+	private final int initialCapacity;
+	private final int maxRetainedCapacity;
+	private final Utf8Writer writer = new Utf8Writer();
+
+	/**
+	 * @param initialCapacity Initial size of the buffer in bytes.
+	 * @param maxRetainedCapacity When the buffer grew above this size it is shrunk to
+	 * the initial size on {@link #reset()}.
+	 */
+	public ReusableByteBufferDestination(int initialCapacity, int maxRetainedCapacity) {
+		this.initialCapacity = initialCapacity;
+		this.maxRetainedCapacity = maxRetainedCapacity;
+		this.buffer = ByteBuffer.allocate(initialCapacity);
+	}
+
+	@Override
+	public ByteBuffer getByteBuffer() {
+		return this.buffer;
+	}
+
+	@Override
+	public ByteBuffer drain(ByteBuffer buf) {
+		return this.ensureRemaining(Math.max(1, this.buffer.capacity()));
+	}
+
+	@Override
+	public void writeBytes(ByteBuffer data) {
+		this.ensureRemaining(data.remaining()).put(data);
+	}
+
+	@Override
+	public void writeBytes(byte[] data, int offset, int length) {
+		this.ensureRemaining(length).put(data, offset, length);
+	}
+
+	/**
+	 * @return Writer encoding the characters as UTF-8 into this destination.
+	 */
+	public Writer asWriter() {
+		return this.writer;
+	}
+
+	/**
+	 * @return Number of bytes written so far.
+	 */
+	public int size() {
+		return this.buffer.position();
+	}
+
+	/**
+	 * @return Copy of the bytes written so far.
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(this.buffer.array(), this.buffer.position());
+	}
+
+	/**
+	 * Discards the content so the destination can be used for the next event.
+	 */
+	public void reset() {
+		if(this.buffer.capacity() > this.maxRetainedCapacity)
+			this.buffer = ByteBuffer.allocate(this.initialCapacity);
+		else
+			((Buffer) this.buffer).clear();
+	}
+
+	private ByteBuffer ensureRemaining(int bytes) {
+		if(this.buffer.remaining() < bytes) {
+			int required = this.buffer.position() + bytes;
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(required, this.buffer.capacity() << 1));
+			((Buffer) this.buffer).flip();
+			grown.put(this.buffer);
+			this.buffer = grown;
+		}
+		return this.buffer;
+	}
+
+	/**
+	 * Writer encoding the characters as UTF-8 straight into the buffer.
+	 */
+	private final class Utf8Writer extends Writer {
+
+		/** High surrogate waiting for its low pair when split between two writes. */
+		private char pendingHighSurrogate;
+
+		@Override
+		public void write(int c) {
+			this.writeChar((char) c);
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			ensureRemaining(len);
+			for(int i = off; i < off + len; i++)
+				this.writeChar(cbuf[i]);
+		}
+
+		@Override
+		public void write(String str, int off, int len) {
+			ensureRemaining(len);
+			for(int i = off; i < off + len; i++)
+				this.writeChar(str.charAt(i));
+		}
+
+		private void writeChar(char c) {
+			if(this.pendingHighSurrogate != 0) {
+				char high = this.pendingHighSurrogate;
+				this.pendingHighSurrogate = 0;
+				if(Character.isLowSurrogate(c)) {
+					int codePoint = Character.toCodePoint(high, c);
+					ensureRemaining(4)
+							.put((byte) (0xF0 | (codePoint >> 18)))
+							.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)))
+							.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)))
+							.put((byte) (0x80 | (codePoint & 0x3F)));
+					return;
+				}
+				ensureRemaining(1).put((byte) '?');
+			}
+
+			if(c < 0x80) {
+				ensureRemaining(1).put((byte) c);
+			} else if(c < 0x800) {
+				ensureRemaining(2)
+						.put((byte) (0xC0 | (c >> 6)))
+						.put((byte) (0x80 | (c & 0x3F)));
+			} else if(Character.isHighSurrogate(c)) {
+				this.pendingHighSurrogate = c;
+			} else if(Character.isLowSurrogate(c)) {
+				ensureRemaining(1).put((byte) '?');
+			} else {
+				ensureRemaining(3)
+						.put((byte) (0xE0 | (c >> 12)))
+						.put((byte) (0x80 | ((c >> 6) & 0x3F)))
+						.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+
+		@Override
+		public void flush() {
+			// Nothing buffered outside of the destination.
+		}
+
+		@Override
+		public void close() {
+			if(this.pendingHighSurrogate != 0) {
+				this.pendingHighSurrogate = 0;
+				ensureRemaining(1).put((byte) '?');
+			}
+		}
+	}
+}
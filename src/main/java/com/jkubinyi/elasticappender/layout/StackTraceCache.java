@@ -0,0 +1,213 @@
+package com.jkubinyi.elasticappender.layout;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Bounded cache of the serialized exceptions. Exceptions repeating during an incident are
+ * serialized by the layout once and the following events only get the cached fields appended.
+ *
+ * Exceptions are identified by a fingerprint of their type, message and stack frames including
+ * the causes and the suppressed exceptions, as all of them end up in the document. Fingerprints
+ * are 64-bit hashes, so two different exceptions may collide, though very unlikely.
+ *
+ * The cached fields are the top-level fields the layout adds for the exception, found by comparing
+ * the document of the event with the document of the same event without the exception. Layouts
+ * which write the exception into the other fields can not be cached, see {@link #exceptionFields(byte[], byte[])}.
+ * When full, an arbitrary entry is evicted for each new one.
+ *
+ * @author jurajkubinyi
+ */
+public final class StackTraceCache {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/** Maximum number of the chained causes and nested suppressed exceptions included in the fingerprint. */
+	private static final int MAX_DEPTH = 8;
+
+	private final int maxEntries;
+	private final ConcurrentHashMap<Long, byte[]> entries = new ConcurrentHashMap<>();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param maxEntries Maximum number of the cached exceptions.
+	 */
+	public StackTraceCache(int maxEntries) {
+		this.maxEntries = Math.max(1, maxEntries);
+	}
+
+	/**
+	 * @return Cached fields of the exception or {@code null} if it is not cached.
+	 */
+	public byte[] get(long fingerprint) {
+		byte[] fields = this.entries.get(fingerprint);
+		if(fields != null) this.hits.increment();
+		else this.misses.increment();
+		return fields;
+	}
+
+	/**
+	 * Caches the fields of the exception, evicting other exceptions if the cache is full.
+	 */
+	public void put(long fingerprint, byte[] fields) {
+		if(this.entries.put(fingerprint, fields) != null || this.entries.size() <= this.maxEntries) return;
+		Iterator<Long> keys = this.entries.keySet().iterator();
+		while(this.entries.size() > this.maxEntries && keys.hasNext()) {
+			Long key = keys.next();
+			if(key.longValue() != fingerprint && this.entries.remove(key) != null)
+				this.evictions.increment();
+		}
+	}
+
+	/**
+	 * @return Fingerprint of the exception with its causes and suppressed exceptions.
+	 */
+	public static long fingerprint(Throwable thrown) {
+		return mix(FNV_OFFSET, thrown, 0);
+	}
+
+	private static long mix(long hash, Throwable thrown, int depth) {
+		for(; thrown != null && depth < MAX_DEPTH; depth++, thrown = thrown.getCause()) {
+			hash = mix(hash, thrown.getClass().getName().hashCode());
+			hash = mix(hash, thrown.getMessage() != null ? thrown.getMessage().hashCode() : 0);
+			String localized = thrown.getLocalizedMessage();
+			if(localized != thrown.getMessage())
+				hash = mix(hash, localized != null ? localized.hashCode() : 0);
+			for(StackTraceElement element : thrown.getStackTrace())
+				hash = mix(hash, element.hashCode());
+			for(Throwable suppressed : thrown.getSuppressed())
+				hash = mix(hash, suppressed, depth + 1);
+			// Separates the cause from the suppressed exceptions.
+			hash = mix(hash, -1);
+		}
+		return hash;
+	}
+
+	private static long mix(long hash, int value) {
+		return (hash ^ value) * FNV_PRIME;
+	}
+
+	/**
+	 * Finds the fields the layout added for the exception.
+	 *
+	 * @param document Document of the event.
+	 * @param withoutException Document of the same event without the exception.
+	 * @return Top-level fields present only in the document, separated by commas, or {@code null} if there are
+	 * none or the documents differ in the other fields too.
+	 * @throws IOException If either of the documents is not a JSON object.
+	 */
+	static byte[] exceptionFields(byte[] document, byte[] withoutException) throws IOException {
+		List<Field> fields = fields(document);
+		Map<String, Field> common = new HashMap<>();
+		for(Field field : fields(withoutException))
+			common.put(field.name, field);
+
+		ByteArrayOutputStream added = new ByteArrayOutputStream(document.length - withoutException.length);
+		int matched = 0;
+		for(Field field : fields) {
+			Field other = common.get(field.name);
+			if(other == null) {
+				if(added.size() > 0) added.write(',');
+				added.write(document, field.start, field.end - field.start);
+			} else if(Arrays.equals(Arrays.copyOfRange(document, field.start, field.end),
+					Arrays.copyOfRange(withoutException, other.start, other.end))) {
+				matched++;
+			} else {
+				return null;
+			}
+		}
+		return added.size() > 0 && matched == common.size() ? added.toByteArray() : null;
+	}
+
+	/**
+	 * @return Top-level fields of the JSON object, each spanning from its name to the end of its value.
+	 */
+	private static List<Field> fields(byte[] document) throws IOException {
+		List<Field> fields = new ArrayList<>();
+		try(JsonParser parser = JSON_FACTORY.createParser(document)) {
+			if(parser.nextToken() != JsonToken.START_OBJECT)
+				throw new IOException("Document is not a JSON object.");
+			Field previous = null;
+			JsonToken token;
+			while((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+				int start = (int) parser.getTokenLocation().getByteOffset();
+				if(previous != null) previous.end = trimSeparator(document, start);
+				previous = new Field(parser.getCurrentName(), start);
+				fields.add(previous);
+				parser.nextToken();
+				parser.skipChildren();
+			}
+			if(token != JsonToken.END_OBJECT)
+				throw new IOException("Document is not a JSON object.");
+			if(previous != null) previous.end = trimSeparator(document, (int) parser.getTokenLocation().getByteOffset());
+		}
+		return fields;
+	}
+
+	/**
+	 * @return End of the value preceding the comma or the closing brace at the position.
+	 */
+	private static int trimSeparator(byte[] document, int next) {
+		int end = next;
+		while(end > 0 && JsonFields.isWhitespace(document[end - 1])) end--;
+		if(end > 0 && document[end - 1] == ',') end--;
+		while(end > 0 && JsonFields.isWhitespace(document[end - 1])) end--;
+		return end;
+	}
+
+	private static final class Field {
+		private final String name;
+		private final int start;
+		private int end;
+
+		private Field(String name, int start) {
+			this.name = name;
+			this.start = start;
+		}
+	}
+
+	/**
+	 * @return Number of the exceptions found in the cache.
+	 */
+	public long getHits() {
+		return this.hits.sum();
+	}
+
+	/**
+	 * @return Number of the exceptions not found in the cache.
+	 */
+	public long getMisses() {
+		return this.misses.sum();
+	}
+
+	/**
+	 * @return Number of the exceptions evicted to make room for the new ones.
+	 */
+	public long getEvictions() {
+		return this.evictions.sum();
+	}
+
+	/**
+	 * @return Number of the cached exceptions.
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+}
@@ -0,0 +1,134 @@
+package com.jkubinyi.elasticappender.layout;
+
+import java.util.Map;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.ThreadContext.ContextStack;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.impl.ThrowableProxy;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+
+/**
+ * View of the event without its exception, so the layout serializes everything except the stack trace.
+ *
+ * @author jurajkubinyi
+ */
+final class ThrowableFreeLogEvent implements LogEvent {
+
+	private static final long serialVersionUID = 1L;
+
+	private final LogEvent event;
+
+	ThrowableFreeLogEvent(LogEvent event) {
+		this.event = event;
+	}
+
+	@Override
+	public LogEvent toImmutable() {
+		return new Log4jLogEvent.Builder(this).build();
+	}
+
+	@Override
+	@SuppressWarnings("deprecation")
+	public Map<String, String> getContextMap() {
+		return this.event.getContextMap();
+	}
+
+	@Override
+	public ReadOnlyStringMap getContextData() {
+		return this.event.getContextData();
+	}
+
+	@Override
+	public ContextStack getContextStack() {
+		return this.event.getContextStack();
+	}
+
+	@Override
+	public String getLoggerFqcn() {
+		return this.event.getLoggerFqcn();
+	}
+
+	@Override
+	public Level getLevel() {
+		return this.event.getLevel();
+	}
+
+	@Override
+	public String getLoggerName() {
+		return this.event.getLoggerName();
+	}
+
+	@Override
+	public Marker getMarker() {
+		return this.event.getMarker();
+	}
+
+	@Override
+	public Message getMessage() {
+		return this.event.getMessage();
+	}
+
+	@Override
+	public long getTimeMillis() {
+		return this.event.getTimeMillis();
+	}
+
+	@Override
+	public StackTraceElement getSource() {
+		return this.event.getSource();
+	}
+
+	@Override
+	public String getThreadName() {
+		return this.event.getThreadName();
+	}
+
+	@Override
+	public long getThreadId() {
+		return this.event.getThreadId();
+	}
+
+	@Override
+	public int getThreadPriority() {
+		return this.event.getThreadPriority();
+	}
+
+	@Override
+	public Throwable getThrown() {
+		return null;
+	}
+
+	@Override
+	public ThrowableProxy getThrownProxy() {
+		return null;
+	}
+
+	@Override
+	public boolean isEndOfBatch() {
+		return this.event.isEndOfBatch();
+	}
+
+	@Override
+	public boolean isIncludeLocation() {
+		return this.event.isIncludeLocation();
+	}
+
+	@Override
+	public void setEndOfBatch(boolean endOfBatch) {
+		this.event.setEndOfBatch(endOfBatch);
+	}
+
+	@Override
+	public void setIncludeLocation(boolean locationRequired) {
+		this.event.setIncludeLocation(locationRequired);
+	}
+
+	@Override
+	public long getNanoTime() {
+		return this.event.getNanoTime();
+	}
+}
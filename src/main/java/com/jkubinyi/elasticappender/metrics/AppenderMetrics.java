@@ -0,0 +1,439 @@
+package com.jkubinyi.elasticappender.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.spi.StandardLevel;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * Metrics of a single appender's pipeline. Counters are striped and histograms lock-free,
+ * so the recording is cheap enough to stay always on. The metrics are exposed as an MXBean
+ * and forwarded to the optional {@link MetricsListener}.
+ * 
+ * @author jurajkubinyi
+ */
+public class AppenderMetrics implements MetricsListener, AppenderMetricsMXBean {
+
+	private static final Logger LOGGER = StatusLogger.getLogger();
+
+	/** JMX domain of the appender MXBeans. */
+	public static final String JMX_DOMAIN = "com.jkubinyi.elasticappender";
+
+	private static final DropReason[] DROP_REASONS = DropReason.values();
+
+	private static final StandardLevel[] LEVELS = StandardLevel.values();
+
+	private final IntSupplier queueDepth;
+	private final IntSupplier inFlight;
+	private final IntSupplier inFlightLimit;
+	private final MetricsListener delegate;
+
+	private final Rate events = new Rate();
+	private final Rate bytes = new Rate();
+	private final LongAdder bulksSent = new LongAdder();
+	private final LongAdder bulksFailed = new LongAdder();
+	private final LongAdder retried = new LongAdder();
+	private final LongAdder oversized = new LongAdder();
+	private final LongAdder collapsed = new LongAdder();
+	private final LongAdder[] dropped = new LongAdder[DROP_REASONS.length];
+	private final LongAdder[] droppedByLevel = new LongAdder[LEVELS.length];
+
+	private final Histogram enqueueWait = new Histogram();
+	private final Histogram batchSize = new Histogram();
+	private final Histogram batchBytes = new Histogram();
+	private final Histogram bulkLatency = new Histogram();
+
+	private ObjectName objectName;
+
+	/**
+	 * @param queueDepth Supplies the number of the logs waiting in the batcher.
+	 * @param inFlight Supplies the number of the bulk requests in flight.
+	 * @param inFlightLimit Supplies the current limit of the bulk requests in flight.
+	 * @param delegate Listener receiving all the events as well, may be {@code null}.
+	 */
+	public AppenderMetrics(IntSupplier queueDepth, IntSupplier inFlight, IntSupplier inFlightLimit, MetricsListener delegate) {
+		this.queueDepth = queueDepth;
+		this.inFlight = inFlight;
+		this.inFlightLimit = inFlightLimit;
+		this.delegate = delegate;
+		for(int i = 0; i < this.dropped.length; i++)
+			this.dropped[i] = new LongAdder();
+		for(int i = 0; i < this.droppedByLevel.length; i++)
+			this.droppedByLevel[i] = new LongAdder();
+	}
+
+	/**
+	 * Total and the rate of a counter since the last read.
+	 */
+	private static final class Rate {
+		private static final long MIN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+		private final LongAdder total = new LongAdder();
+		private long lastTotal;
+		private long lastNanos = System.nanoTime();
+		private double lastRate;
+
+		private synchronized double get() {
+			long now = System.nanoTime();
+			long elapsed = now - this.lastNanos;
+			if(elapsed >= MIN_INTERVAL_NANOS) {
+				long total = this.total.sum();
+				this.lastRate = (total - this.lastTotal) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+				this.lastTotal = total;
+				this.lastNanos = now;
+			}
+			return this.lastRate;
+		}
+	}
+
+	/**
+	 * Registers the MXBean in the platform MBean server. Bean left registered
+	 * under the same name, e.g. by a previous configuration, is replaced.
+	 * 
+	 * @param appenderName Name of the appender used in the object name.
+	 */
+	public void register(String appenderName) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(JMX_DOMAIN + ":type=ElasticAppender,name=" + ObjectName.quote(appenderName));
+			try {
+				server.registerMBean(this, name);
+			} catch(InstanceAlreadyExistsException e) {
+				server.unregisterMBean(name);
+				server.registerMBean(this, name);
+			}
+			this.objectName = name;
+		} catch(JMException | RuntimeException e) {
+			LOGGER.warn("Metrics of appender {} could not be registered in JMX.", appenderName, e);
+		}
+	}
+
+	/**
+	 * Unregisters the MXBean if it was registered.
+	 */
+	public void unregister() {
+		if(this.objectName == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+		} catch(JMException | RuntimeException e) {
+			LOGGER.debug("Metrics {} could not be unregistered from JMX.", this.objectName, e);
+		}
+		this.objectName = null;
+	}
+
+	@Override
+	public void onEnqueued(int bytes, long waitNanos) {
+		this.events.total.increment();
+		this.bytes.total.add(bytes);
+		this.enqueueWait.record(waitNanos);
+		if(this.delegate != null) {
+			try {
+				this.delegate.onEnqueued(bytes, waitNanos);
+			} catch(RuntimeException e) {
+				this.delegateFailed(e);
+			}
+		}
+	}
+
+	@Override
+	public void onCollapsed() {
+		this.collapsed.increment();
+		if(this.delegate != null) {
+			try {
+				this.delegate.onCollapsed();
+			} catch(RuntimeException e) {
+				this.delegateFailed(e);
+			}
+		}
+	}
+
+	@Override
+	public void onOversized() {
+		this.oversized.increment();
+		if(this.delegate != null) {
+			try {
+				this.delegate.onOversized();
+			} catch(RuntimeException e) {
+				this.delegateFailed(e);
+			}
+		}
+	}
+
+	@Override
+	public void onDropped(DropReason reason, int count) {
+		this.dropped[reason.ordinal()].add(count);
+		if(this.delegate != null) {
+			try {
+				this.delegate.onDropped(reason, count);
+			} catch(RuntimeException e) {
+				this.delegateFailed(e);
+			}
+		}
+	}
+
+	@Override
+	public void onDropped(DropReason reason, StandardLevel level, int count) {
+		this.dropped[reason.ordinal()].add(count);
+		if(level != null) this.droppedByLevel[level.ordinal()].add(count);
+		if(this.delegate != null) {
+			try {
+				this.delegate.onDropped(reason, level, count);
+			} catch(RuntimeException e) {
+				this.delegateFailed(e);
+			}
+		}
+	}
+
+	@Override
+	public void onBulkSent(int items, long bytes) {
+		this.bulksSent.increment();
+		this.batchSize.record(items);
+		this.batchBytes.record(bytes);
+		if(this.delegate != null) {
+			try {
+				this.delegate.onBulkSent(items, bytes);
+			} catch(RuntimeException e) {
+				this.delegateFailed(e);
+			}
+		}
+	}
+
+	@Override
+	public void onBulkCompleted(int items, long latencyNanos, boolean failed) {
+		if(failed) this.bulksFailed.increment();
+		this.bulkLatency.record(latencyNanos);
+		if(this.delegate != null) {
+			try {
+				this.delegate.onBulkCompleted(items, latencyNanos, failed);
+			} catch(RuntimeException e) {
+				this.delegateFailed(e);
+			}
+		}
+	}
+
+	@Override
+	public void onRetried(int count) {
+		this.retried.add(count);
+		if(this.delegate != null) {
+			try {
+				this.delegate.onRetried(count);
+			} catch(RuntimeException e) {
+				this.delegateFailed(e);
+			}
+		}
+	}
+
+	private void delegateFailed(RuntimeException e) {
+		LOGGER.error("Metrics listener failed.", e);
+	}
+
+	/**
+	 * @param reason Reason of the drop.
+	 * @return Number of the logs dropped for the reason.
+	 */
+	public long getDropped(DropReason reason) {
+		return this.dropped[reason.ordinal()].sum();
+	}
+
+	/**
+	 * @param level Level of the logs.
+	 * @return Number of the dropped logs of the level.
+	 */
+	public long getDropped(StandardLevel level) {
+		return this.droppedByLevel[level.ordinal()].sum();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return this.queueDepth.getAsInt();
+	}
+
+	@Override
+	public int getInFlight() {
+		return this.inFlight.getAsInt();
+	}
+
+	@Override
+	public int getInFlightLimit() {
+		return this.inFlightLimit.getAsInt();
+	}
+
+	@Override
+	public long getEventsEnqueued() {
+		return this.events.total.sum();
+	}
+
+	@Override
+	public long getBytesEnqueued() {
+		return this.bytes.total.sum();
+	}
+
+	@Override
+	public double getEventsPerSecond() {
+		return this.events.get();
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		return this.bytes.get();
+	}
+
+	@Override
+	public long getEnqueueWaitP50Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(this.enqueueWait.getPercentile(0.5));
+	}
+
+	@Override
+	public long getEnqueueWaitP99Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(this.enqueueWait.getPercentile(0.99));
+	}
+
+	@Override
+	public long getEnqueueWaitMaxMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(this.enqueueWait.getMax());
+	}
+
+	@Override
+	public long getBulksSent() {
+		return this.bulksSent.sum();
+	}
+
+	@Override
+	public long getBulksFailed() {
+		return this.bulksFailed.sum();
+	}
+
+	@Override
+	public long getBatchSizeP50() {
+		return this.batchSize.getPercentile(0.5);
+	}
+
+	@Override
+	public long getBatchSizeP99() {
+		return this.batchSize.getPercentile(0.99);
+	}
+
+	@Override
+	public double getBatchSizeMean() {
+		return this.batchSize.getMean();
+	}
+
+	@Override
+	public long getBatchBytesP50() {
+		return this.batchBytes.getPercentile(0.5);
+	}
+
+	@Override
+	public long getBatchBytesP99() {
+		return this.batchBytes.getPercentile(0.99);
+	}
+
+	@Override
+	public double getBulkLatencyP50Millis() {
+		return this.bulkLatency.getPercentile(0.5) / 1e6;
+	}
+
+	@Override
+	public double getBulkLatencyP99Millis() {
+		return this.bulkLatency.getPercentile(0.99) / 1e6;
+	}
+
+	@Override
+	public double getBulkLatencyP999Millis() {
+		return this.bulkLatency.getPercentile(0.999) / 1e6;
+	}
+
+	@Override
+	public double getBulkLatencyMaxMillis() {
+		return this.bulkLatency.getMax() / 1e6;
+	}
+
+	@Override
+	public long getRetried() {
+		return this.retried.sum();
+	}
+
+	@Override
+	public long getItemFailures() {
+		return this.getDropped(DropReason.REJECTED) + this.getDropped(DropReason.RETRIES_EXHAUSTED);
+	}
+
+	@Override
+	public long getOversized() {
+		return this.oversized.sum();
+	}
+
+	@Override
+	public long getDroppedQueueFull() {
+		return this.getDropped(DropReason.QUEUE_FULL);
+	}
+
+	@Override
+	public long getCollapsed() {
+		return this.collapsed.sum();
+	}
+
+	@Override
+	public long getDroppedRateLimited() {
+		return this.getDropped(DropReason.RATE_LIMITED);
+	}
+
+	@Override
+	public long getDroppedSerializationFailed() {
+		return this.getDropped(DropReason.SERIALIZATION_FAILED);
+	}
+
+	@Override
+	public long getDroppedRejected() {
+		return this.getDropped(DropReason.REJECTED);
+	}
+
+	@Override
+	public long getDroppedRetriesExhausted() {
+		return this.getDropped(DropReason.RETRIES_EXHAUSTED);
+	}
+
+	@Override
+	public long getDroppedShutdown() {
+		return this.getDropped(DropReason.SHUTDOWN);
+	}
+
+	@Override
+	public long getDroppedShed() {
+		return this.getDropped(DropReason.SHED);
+	}
+
+	@Override
+	public long getDroppedEvicted() {
+		return this.getDropped(DropReason.EVICTED);
+	}
+
+	@Override
+	public Map<String, Long> getDroppedByLevel() {
+		Map<String, Long> dropped = new LinkedHashMap<>();
+		for(StandardLevel level : LEVELS) {
+			if(level != StandardLevel.OFF && level != StandardLevel.ALL)
+				dropped.put(level.name(), this.getDropped(level));
+		}
+		return dropped;
+	}
+
+	@Override
+	public void resetHistograms() {
+		this.enqueueWait.reset();
+		this.batchSize.reset();
+		this.batchBytes.reset();
+		this.bulkLatency.reset();
+	}
+}
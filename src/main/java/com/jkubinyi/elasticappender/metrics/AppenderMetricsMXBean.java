@@ -0,0 +1,89 @@
+package com.jkubinyi.elasticappender.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link AppenderMetrics}. Latencies are in milliseconds
+ * and wait times in microseconds. Rates are computed over the time since they were
+ * read the last time, at least one second.
+ * 
+ * @author jurajkubinyi
+ */
+public interface AppenderMetricsMXBean {
+
+	int getQueueDepth();
+
+	int getInFlight();
+
+	int getInFlightLimit();
+
+	long getEventsEnqueued();
+
+	long getBytesEnqueued();
+
+	double getEventsPerSecond();
+
+	double getBytesPerSecond();
+
+	long getEnqueueWaitP50Micros();
+
+	long getEnqueueWaitP99Micros();
+
+	long getEnqueueWaitMaxMicros();
+
+	long getBulksSent();
+
+	long getBulksFailed();
+
+	long getBatchSizeP50();
+
+	long getBatchSizeP99();
+
+	double getBatchSizeMean();
+
+	long getBatchBytesP50();
+
+	long getBatchBytesP99();
+
+	double getBulkLatencyP50Millis();
+
+	double getBulkLatencyP99Millis();
+
+	double getBulkLatencyP999Millis();
+
+	double getBulkLatencyMaxMillis();
+
+	long getRetried();
+
+	long getItemFailures();
+
+	long getOversized();
+
+	long getCollapsed();
+
+	long getDroppedQueueFull();
+
+	long getDroppedRateLimited();
+
+	long getDroppedSerializationFailed();
+
+	long getDroppedRejected();
+
+	long getDroppedRetriesExhausted();
+
+	long getDroppedShutdown();
+
+	long getDroppedShed();
+
+	long getDroppedEvicted();
+
+	/**
+	 * @return Number of the dropped logs of known level by the name of the level.
+	 */
+	Map<String, Long> getDroppedByLevel();
+
+	/**
+	 * Clears the histograms, so the percentiles describe only the following period.
+	 */
+	void resetHistograms();
+}
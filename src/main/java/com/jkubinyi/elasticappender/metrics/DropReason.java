@@ -0,0 +1,33 @@
+package com.jkubinyi.elasticappender.metrics;
+
+/**
+ * Reason why a log was not persisted.
+ * 
+ * @author jurajkubinyi
+ */
+public enum DropReason {
+
+	/** Batcher was full and the log could not be enqueued in time. */
+	QUEUE_FULL,
+
+	/** Logger exceeded its rate limit. */
+	RATE_LIMITED,
+
+	/** Log was evicted from the full batcher to make room for a more important one. */
+	SHED,
+
+	/** Log was evicted from the full batcher to make room for a newer one, see the "dropOldest" overflow policy. */
+	EVICTED,
+
+	/** Log could not be serialized by the layout. */
+	SERIALIZATION_FAILED,
+
+	/** Elasticsearch rejected the log permanently. */
+	REJECTED,
+
+	/** Log failed temporarily more times than retries allowed. */
+	RETRIES_EXHAUSTED,
+
+	/** Log was still waiting or in flight when the appender stopped. */
+	SHUTDOWN
+}
@@ -0,0 +1,109 @@
+package com.jkubinyi.elasticappender.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values with log-linear buckets. Every power of two
+ * is split into {@value #SUB_BUCKETS} buckets, so the reported percentiles are at most
+ * 12.5% above the real value. Recording is a single atomic increment plus striped counters.
+ * 
+ * @author jurajkubinyi
+ */
+public class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param value Value to record, negative values are recorded as 0.
+	 */
+	public void record(long value) {
+		if(value < 0) value = 0;
+		this.counts.incrementAndGet(index(value));
+		this.count.increment();
+		this.sum.add(value);
+		long current;
+		while(value > (current = this.max.get()) && !this.max.compareAndSet(current, value));
+	}
+
+	static int index(long value) {
+		if(value < SUB_BUCKETS) return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return The highest value falling into the bucket.
+	 */
+	static long upperBound(int index) {
+		if(index < SUB_BUCKETS) return index;
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		if(exponent >= 62) return Long.MAX_VALUE;
+		int shift = exponent - SUB_BUCKET_BITS;
+		return ((long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift) + (1L << shift) - 1;
+	}
+
+	/**
+	 * @param quantile Quantile between 0 and 1, e.g. 0.99.
+	 * @return Value the given portion of the recorded values is lower or equal to, 0 if nothing was recorded.
+	 */
+	public long getPercentile(double quantile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = this.counts.get(i);
+			total += snapshot[i];
+		}
+		if(total == 0) return 0;
+
+		long target = Math.max(1, (long) Math.ceil(quantile * total));
+		long cumulative = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			cumulative += snapshot[i];
+			if(cumulative >= target) return Math.min(upperBound(i), this.max.get());
+		}
+		return this.max.get();
+	}
+
+	/**
+	 * @return Number of the recorded values.
+	 */
+	public long getCount() {
+		return this.count.sum();
+	}
+
+	/**
+	 * @return Mean of the recorded values, 0 if nothing was recorded.
+	 */
+	public double getMean() {
+		long count = this.count.sum();
+		return count == 0 ? 0 : (double) this.sum.sum() / count;
+	}
+
+	/**
+	 * @return The highest recorded value.
+	 */
+	public long getMax() {
+		return this.max.get();
+	}
+
+	/**
+	 * Clears the recorded values. Values recorded concurrently may be partially kept.
+	 */
+	public void reset() {
+		for(int i = 0; i < BUCKETS; i++)
+			this.counts.set(i, 0);
+		this.count.reset();
+		this.sum.reset();
+		this.max.set(0);
+	}
+}
@@ -0,0 +1,75 @@
+package com.jkubinyi.elasticappender.metrics;
+
+import org.apache.logging.log4j.spi.StandardLevel;
+
+/**
+ * Receives the events of the appender's pipeline, e.g. to export them to a metrics
+ * library. Methods are called on the logging, flusher and HTTP client threads,
+ * so they must be thread-safe and fast. All of them do nothing by default.
+ * 
+ * @author jurajkubinyi
+ */
+public interface MetricsListener {
+
+	/**
+	 * Log was put into the batcher.
+	 * 
+	 * @param bytes Size of the log in the bulk body.
+	 * @param waitNanos Time spent waiting for the batcher to accept the log.
+	 */
+	default void onEnqueued(int bytes, long waitNanos) {}
+
+	/**
+	 * Log was folded into the document of an identical log.
+	 */
+	default void onCollapsed() {}
+
+	/**
+	 * Log was bigger than maximum bulk size and will be sent alone.
+	 */
+	default void onOversized() {}
+
+	/**
+	 * Logs were not persisted.
+	 * 
+	 * @param reason Why the logs were dropped.
+	 * @param count Number of the logs.
+	 */
+	default void onDropped(DropReason reason, int count) {}
+
+	/**
+	 * Logs of a known level were not persisted. Called instead of {@link #onDropped(DropReason, int)},
+	 * which it calls by default.
+	 * 
+	 * @param reason Why the logs were dropped.
+	 * @param level Level of the logs, {@code null} if unknown.
+	 * @param count Number of the logs.
+	 */
+	default void onDropped(DropReason reason, StandardLevel level, int count) {
+		this.onDropped(reason, count);
+	}
+
+	/**
+	 * Bulk request was sent.
+	 * 
+	 * @param items Number of the logs in the bulk.
+	 * @param bytes Size of the bulk body as sent.
+	 */
+	default void onBulkSent(int items, long bytes) {}
+
+	/**
+	 * Bulk request finished.
+	 * 
+	 * @param items Number of the logs in the bulk.
+	 * @param latencyNanos Time from sending the request till the response.
+	 * @param failed {@code true} if the whole request failed.
+	 */
+	default void onBulkCompleted(int items, long latencyNanos, boolean failed) {}
+
+	/**
+	 * Logs failed temporarily and were scheduled for a retry.
+	 * 
+	 * @param count Number of the logs.
+	 */
+	default void onRetried(int count) {}
+}
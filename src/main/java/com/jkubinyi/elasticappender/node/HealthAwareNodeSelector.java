@@ -0,0 +1,111 @@
+package com.jkubinyi.elasticappender.node;
+
+import java.util.Iterator;
+
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
+
+/**
+ * Routes each bulk request to the node chosen by {@link NodeSelectionStrategy} from {@link NodePool}.
+ * 
+ * The caller picks the node with {@link #route()} right before sending the request on the same thread.
+ * {@link org.elasticsearch.client.RestClient} calls {@link #select(Iterable)} synchronously while sending,
+ * which leaves only the picked node. The client rotates the selected nodes afterwards, so the other nodes
+ * can not be kept as fallback. A failed request is retried by the appender and routed again instead.
+ * Requests sent without routing only skip the nodes known to be dead.
+ * 
+ * @author jurajkubinyi
+ */
+public class HealthAwareNodeSelector implements NodeSelector {
+
+	private final NodePool pool;
+	private final NodeSelectionStrategy strategy;
+	private final ThreadLocal<HttpHost> routed = new ThreadLocal<>();
+
+	/**
+	 * @param pool Known nodes.
+	 * @param strategy Strategy picking the node.
+	 */
+	public HealthAwareNodeSelector(NodePool pool, NodeSelectionStrategy strategy) {
+		this.pool = pool;
+		this.strategy = strategy;
+	}
+
+	/**
+	 * Picks the node for the next request sent by the current thread and counts the request as outstanding.
+	 * Must be followed by exactly one {@link #finished(NodeStats, HttpHost, long, boolean)}.
+	 * 
+	 * @return The picked node or {@code null} if the pool is empty.
+	 */
+	public NodeStats route() {
+		NodeStats node = this.pool.best(this.strategy);
+		if(node == null) {
+			this.routed.remove();
+			return null;
+		}
+		node.requestStarted();
+		this.routed.set(node.getHost());
+		return node;
+	}
+
+	/**
+	 * Records the outcome of the request.
+	 * 
+	 * @param routed Node returned by {@link #route()}, may be {@code null}.
+	 * @param answered Node which answered the request or {@code null} if none did.
+	 * @param latencyNanos Duration of the request.
+	 * @param failed {@code true} if the request failed because of the node.
+	 */
+	public void finished(NodeStats routed, HttpHost answered, long latencyNanos, boolean failed) {
+		if(routed != null) {
+			routed.requestFinished();
+			if(failed && answered == null) routed.markDead();
+		}
+		NodeStats node = this.pool.get(answered);
+		if(node != null && !failed) node.recordLatency(latencyNanos);
+	}
+
+	@Override
+	public void select(Iterable<Node> nodes) {
+		HttpHost routed = this.routed.get();
+		this.routed.remove();
+
+		boolean found = false;
+		if(routed != null) {
+			for(Node node : nodes) {
+				if(routed.equals(node.getHost())) {
+					found = true;
+					break;
+				}
+			}
+		}
+
+		// Keep just the routed node, or the alive ones if the client already considers it dead.
+		int kept = 0;
+		for(Iterator<Node> it = nodes.iterator(); it.hasNext();) {
+			Node node = it.next();
+			boolean keep;
+			if(found) {
+				keep = routed.equals(node.getHost());
+			} else {
+				NodeStats stats = this.pool.get(node.getHost());
+				keep = stats == null || stats.isAlive();
+			}
+			if(keep) kept++;
+			else if(kept > 0 || it.hasNext()) it.remove();
+		}
+	}
+
+	/**
+	 * @return Strategy picking the node.
+	 */
+	public NodeSelectionStrategy getStrategy() {
+		return this.strategy;
+	}
+
+	@Override
+	public String toString() {
+		return "HealthAware[" + this.strategy + "]";
+	}
+}
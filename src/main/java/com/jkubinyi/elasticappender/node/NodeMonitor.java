@@ -0,0 +1,146 @@
+package com.jkubinyi.elasticappender.node;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.RestClient;
+
+/**
+ * Periodically discovers the cluster nodes and checks their health. Discovered nodes
+ * replace the nodes of the {@link RestClient} and of the {@link NodePool}. Health checks
+ * are plain requests to the root endpoint of each node, a node which does not answer
+ * or answers with a server error is marked dead until it passes a check again.
+ * 
+ * @author jurajkubinyi
+ */
+public class NodeMonitor {
+
+	private static final Logger LOGGER = StatusLogger.getLogger();
+
+	/** Upper bound of the health check timeout. */
+	private static final int MAX_PROBE_TIMEOUT_MS = 5000;
+
+	private final RestClient restClient;
+	private final NodePool pool;
+	private final String scheme;
+	private final String authorization;
+	private final long sniffIntervalMs;
+	private final long healthCheckIntervalMs;
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * @param restClient Client whose nodes are updated by sniffing.
+	 * @param pool Pool whose nodes are sniffed and checked.
+	 * @param scheme Scheme used to connect to the discovered nodes.
+	 * @param user User used by the health checks, {@code null} if none.
+	 * @param password Password used by the health checks.
+	 * @param sniffIntervalMs Interval of the sniffing, 0 disables it.
+	 * @param healthCheckIntervalMs Interval of the health checks, 0 disables them.
+	 */
+	public NodeMonitor(RestClient restClient, NodePool pool, String scheme, String user, String password,
+			long sniffIntervalMs, long healthCheckIntervalMs) {
+		this.restClient = restClient;
+		this.pool = pool;
+		this.scheme = scheme;
+		this.authorization = user == null || user.isEmpty() ? null : "Basic " + Base64.getEncoder()
+				.encodeToString((user + ":" + (password == null ? "" : password)).getBytes(StandardCharsets.UTF_8));
+		this.sniffIntervalMs = sniffIntervalMs;
+		this.healthCheckIntervalMs = healthCheckIntervalMs;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(Log4jThreadFactory.createDaemonThreadFactory("ElasticAppender-nodes"));
+	}
+
+	/**
+	 * Starts sniffing and health checking. The first sniffing runs immediately.
+	 */
+	public void start() {
+		if(this.sniffIntervalMs > 0)
+			this.scheduler.scheduleWithFixedDelay(this::sniff, 0, this.sniffIntervalMs, TimeUnit.MILLISECONDS);
+		if(this.healthCheckIntervalMs > 0)
+			this.scheduler.scheduleWithFixedDelay(this::checkHealth, this.healthCheckIntervalMs, this.healthCheckIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops sniffing and health checking.
+	 */
+	public void stop() {
+		this.scheduler.shutdownNow();
+	}
+
+	/**
+	 * Replaces the nodes by the ones currently in the cluster. Nodes are kept if none were found.
+	 */
+	public void sniff() {
+		try {
+			List<HttpHost> hosts = NodeSniffer.sniff(this.restClient, this.scheme);
+			if(hosts.isEmpty()) {
+				LOGGER.warn("Sniffing found no HTTP nodes. Keeping {}.", this.pool.getNodes());
+				return;
+			}
+			List<Node> nodes = new ArrayList<>(hosts.size());
+			for(HttpHost host : hosts)
+				nodes.add(new Node(host));
+			this.pool.setHosts(hosts);
+			this.restClient.setNodes(nodes);
+			LOGGER.debug("Sniffed nodes {}.", hosts);
+		} catch(IOException | RuntimeException e) {
+			LOGGER.warn("Sniffing the nodes failed.", e);
+		}
+	}
+
+	/**
+	 * Checks the health of all the nodes in the pool.
+	 */
+	public void checkHealth() {
+		int timeout = (int) Math.min(this.healthCheckIntervalMs, MAX_PROBE_TIMEOUT_MS);
+		for(NodeStats node : this.pool.getNodes()) {
+			if(Thread.currentThread().isInterrupted()) return;
+			long start = System.nanoTime();
+			boolean wasAlive = node.isAlive();
+			String failure = this.probe(node.getHost(), timeout);
+			node.recordProbe(failure == null, System.nanoTime() - start);
+			if(wasAlive && failure != null)
+				LOGGER.warn("Health check of {} failed, node is marked dead: {}", node.getHost(), failure);
+			else if(!wasAlive && failure == null)
+				LOGGER.info("Health check of {} passed, node is alive again.", node.getHost());
+		}
+	}
+
+	/**
+	 * @return Reason of the failure or {@code null} if the node is healthy.
+	 */
+	private String probe(HttpHost host, int timeoutMs) {
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) new URL(host.toURI() + "/").openConnection();
+			connection.setConnectTimeout(timeoutMs);
+			connection.setReadTimeout(timeoutMs);
+			if(this.authorization != null) connection.setRequestProperty("Authorization", this.authorization);
+			int status = connection.getResponseCode();
+			InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+			if(in != null) {
+				// Drain so the connection can be reused.
+				byte[] skip = new byte[1024];
+				while(in.read(skip) >= 0);
+				in.close();
+			}
+			return status < 500 ? null : "status " + status;
+		} catch(IOException e) {
+			if(connection != null) connection.disconnect();
+			return e.toString();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.jkubinyi.elasticappender.node;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.HttpHost;
+
+/**
+ * Nodes the appender may send the requests to together with their {@link NodeStats}.
+ * The set of nodes is replaced as a whole, so the readers never lock.
+ * 
+ * @author jurajkubinyi
+ */
+public class NodePool {
+
+	private volatile Map<HttpHost, NodeStats> nodes;
+
+	/**
+	 * @param hosts Initially known nodes.
+	 */
+	public NodePool(Collection<HttpHost> hosts) {
+		this.nodes = Collections.emptyMap();
+		this.setHosts(hosts);
+	}
+
+	/**
+	 * Replaces the known nodes. Statistics of the nodes which stay are kept.
+	 * 
+	 * @param hosts New set of the nodes.
+	 */
+	public synchronized void setHosts(Collection<HttpHost> hosts) {
+		Map<HttpHost, NodeStats> current = this.nodes;
+		Map<HttpHost, NodeStats> next = new LinkedHashMap<>();
+		for(HttpHost host : hosts) {
+			NodeStats stats = current.get(host);
+			next.put(host, stats != null ? stats : new NodeStats(host));
+		}
+		this.nodes = Collections.unmodifiableMap(next);
+	}
+
+	/**
+	 * @param host Address of the node.
+	 * @return Statistics of the node or {@code null} if the node is not in the pool.
+	 */
+	public NodeStats get(HttpHost host) {
+		return host == null ? null : this.nodes.get(host);
+	}
+
+	/**
+	 * @return Statistics of all the nodes.
+	 */
+	public Collection<NodeStats> getNodes() {
+		return this.nodes.values();
+	}
+
+	/**
+	 * @param strategy Strategy scoring the nodes.
+	 * @return Alive node with the lowest score. If all the nodes are dead the best of them is returned anyway.
+	 * {@code null} if the pool is empty.
+	 */
+	public NodeStats best(NodeSelectionStrategy strategy) {
+		long now = System.nanoTime();
+		NodeStats best = null;
+		double bestScore = Double.MAX_VALUE;
+		boolean bestAlive = false;
+		for(NodeStats node : this.nodes.values()) {
+			boolean alive = node.isAlive();
+			if(bestAlive && !alive) continue;
+			double score = strategy.score(node, now);
+			if(best == null || (alive && !bestAlive) || score < bestScore) {
+				best = node;
+				bestScore = score;
+				bestAlive = alive;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @param host Node which failed.
+	 */
+	public void markDead(HttpHost host) {
+		NodeStats node = this.get(host);
+		if(node != null) node.markDead();
+	}
+}
@@ -0,0 +1,54 @@
+package com.jkubinyi.elasticappender.node;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which node receives the next bulk request. The node with the lowest score wins.
+ * 
+ * @author jurajkubinyi
+ */
+public enum NodeSelectionStrategy {
+
+	/** Nodes take turns, selection is left up to the {@link org.elasticsearch.client.RestClient}. */
+	ROUND_ROBIN {
+		@Override
+		double score(NodeStats node, long now) {
+			return 0;
+		}
+	},
+
+	/** Node with the fewest requests in flight, ties broken by lower latency. */
+	LEAST_OUTSTANDING {
+		@Override
+		double score(NodeStats node, long now) {
+			long latencyMs = TimeUnit.NANOSECONDS.toMillis(node.effectiveLatencyNanos(now));
+			return node.getOutstanding() + Math.min(latencyMs, 999) / 1000d;
+		}
+	},
+
+	/** Node with the lowest expected wait, i.e. latency multiplied by the requests in flight including the new one. */
+	LATENCY_WEIGHTED {
+		@Override
+		double score(NodeStats node, long now) {
+			return (node.getOutstanding() + 1) * (double) node.effectiveLatencyNanos(now);
+		}
+	};
+
+	/**
+	 * @param node Candidate node.
+	 * @param now Current {@link System#nanoTime()}.
+	 * @return Score of the node, lower is better.
+	 */
+	abstract double score(NodeStats node, long now);
+
+	/**
+	 * @param name Name of the strategy in camel case, e.g. "leastOutstanding", or as the constant.
+	 * @return Strategy or {@code null} if no strategy has the name.
+	 */
+	public static NodeSelectionStrategy fromName(String name) {
+		String normalized = name.replaceAll("([a-z])([A-Z])", "$1_$2").replace('-', '_').toUpperCase();
+		for(NodeSelectionStrategy strategy : values())
+			if(strategy.name().equals(normalized)) return strategy;
+		return null;
+	}
+}
@@ -0,0 +1,119 @@
+package com.jkubinyi.elasticappender.node;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Discovers the HTTP addresses of the cluster nodes using the nodes info API.
+ * Dedicated master nodes are skipped as they should not receive the bulk requests.
+ * 
+ * @author jurajkubinyi
+ */
+public final class NodeSniffer {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private NodeSniffer() {}
+
+	/**
+	 * @param restClient Client connected to the cluster.
+	 * @param scheme Scheme used to connect to the discovered nodes.
+	 * @return HTTP addresses of the nodes.
+	 * @throws IOException When the request or parsing failed.
+	 */
+	public static List<HttpHost> sniff(RestClient restClient, String scheme) throws IOException {
+		Request request = new Request("GET", "/_nodes/http");
+		request.addParameter("filter_path", "nodes.*.http.publish_address,nodes.*.roles");
+		Response response = restClient.performRequest(request);
+		try(InputStream in = response.getEntity().getContent()) {
+			return parse(in, scheme);
+		}
+	}
+
+	/**
+	 * @param in Body of the nodes info response.
+	 * @param scheme Scheme used to connect to the discovered nodes.
+	 * @return HTTP addresses of the nodes.
+	 * @throws IOException When the body is malformed.
+	 */
+	public static List<HttpHost> parse(InputStream in, String scheme) throws IOException {
+		List<HttpHost> hosts = new ArrayList<>();
+		try(JsonParser parser = JSON_FACTORY.createParser(in)) {
+			if(parser.nextToken() != JsonToken.START_OBJECT) throw new IOException("Nodes info response is not an object.");
+			while(parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if("nodes".equals(field) && value == JsonToken.START_OBJECT) {
+					while(parser.nextToken() == JsonToken.FIELD_NAME) {
+						parser.nextToken();
+						HttpHost host = parseNode(parser, scheme);
+						if(host != null) hosts.add(host);
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+		return hosts;
+	}
+
+	/**
+	 * @return Address of the node the parser is at or {@code null} if it has none or is a dedicated master.
+	 */
+	private static HttpHost parseNode(JsonParser parser, String scheme) throws IOException {
+		String address = null;
+		boolean hasRoles = false;
+		boolean masterOnly = false;
+		while(parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if("roles".equals(field) && value == JsonToken.START_ARRAY) {
+				hasRoles = true;
+				masterOnly = true;
+				while(parser.nextToken() == JsonToken.VALUE_STRING) {
+					if(!"master".equals(parser.getText())) masterOnly = false;
+				}
+			} else if("http".equals(field) && value == JsonToken.START_OBJECT) {
+				while(parser.nextToken() == JsonToken.FIELD_NAME) {
+					String httpField = parser.getCurrentName();
+					parser.nextToken();
+					if("publish_address".equals(httpField)) address = parser.getText();
+					else parser.skipChildren();
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if(address == null || (hasRoles && masterOnly)) return null;
+		return parseAddress(address, scheme);
+	}
+
+	/**
+	 * @param address Publish address as "host:port", "hostname/ip:port" or "[ipv6]:port".
+	 */
+	static HttpHost parseAddress(String address, String scheme) throws IOException {
+		int slash = address.indexOf('/');
+		String hostname = slash > 0 ? address.substring(0, slash) : null;
+		String rest = slash >= 0 ? address.substring(slash + 1) : address;
+		int colon = rest.lastIndexOf(':');
+		if(colon < 0) throw new IOException("Publish address " + address + " has no port.");
+		String host = hostname != null ? hostname : rest.substring(0, colon);
+		if(host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+		try {
+			return new HttpHost(host, Integer.parseInt(rest.substring(colon + 1)), scheme);
+		} catch(NumberFormatException e) {
+			throw new IOException("Publish address " + address + " has invalid port.", e);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.jkubinyi.elasticappender.node;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpHost;
+
+/**
+ * Health and load of a single Elasticsearch node as observed by the appender.
+ * All updates are lock-free.
+ * 
+ * @author jurajkubinyi
+ */
+public class NodeStats {
+
+	/** Weight of a new sample in the latency moving average is 1 / {@value}. */
+	private static final int EWMA_DIVISOR = 5;
+
+	/** Latency of a node without new samples halves every this many nanoseconds, so slow nodes get tried again. */
+	private static final long LATENCY_DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	/** Node marked dead is tried again after this many nanoseconds if no health check revived it sooner. */
+	private static final long DEAD_RETRY_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+	private final HttpHost host;
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private final AtomicLong latencyNanos = new AtomicLong();
+	private volatile long lastSampleNanos = System.nanoTime();
+	private volatile long probeLatencyNanos;
+	private volatile boolean alive = true;
+	private volatile long deadSinceNanos;
+
+	NodeStats(HttpHost host) {
+		this.host = host;
+	}
+
+	/**
+	 * @return Address of the node.
+	 */
+	public HttpHost getHost() {
+		return this.host;
+	}
+
+	/**
+	 * @return Number of the bulk requests sent to the node and not finished yet.
+	 */
+	public int getOutstanding() {
+		return this.outstanding.get();
+	}
+
+	/**
+	 * @return Moving average of the bulk latency in nanoseconds, 0 if unknown.
+	 */
+	public long getLatencyNanos() {
+		return this.latencyNanos.get();
+	}
+
+	/**
+	 * @return Latency of the last successful health check in nanoseconds, 0 if unknown.
+	 */
+	public long getProbeLatencyNanos() {
+		return this.probeLatencyNanos;
+	}
+
+	/**
+	 * @return {@code false} if the node is considered dead.
+	 */
+	public boolean isAlive() {
+		return this.alive || System.nanoTime() - this.deadSinceNanos > DEAD_RETRY_NANOS;
+	}
+
+	/**
+	 * @param now Current {@link System#nanoTime()}.
+	 * @return Bulk latency decayed by the time since the last sample.
+	 */
+	long effectiveLatencyNanos(long now) {
+		long periods = (now - this.lastSampleNanos) / LATENCY_DECAY_NANOS;
+		return periods >= 63 ? 0 : this.latencyNanos.get() >> periods;
+	}
+
+	void requestStarted() {
+		this.outstanding.incrementAndGet();
+	}
+
+	void requestFinished() {
+		this.outstanding.decrementAndGet();
+	}
+
+	void recordLatency(long sampleNanos) {
+		long current;
+		long next;
+		do {
+			current = this.latencyNanos.get();
+			next = current == 0 ? sampleNanos : current + (sampleNanos - current) / EWMA_DIVISOR;
+		} while(!this.latencyNanos.compareAndSet(current, next));
+		this.lastSampleNanos = System.nanoTime();
+		this.alive = true;
+	}
+
+	void recordProbe(boolean success, long sampleNanos) {
+		if(success) {
+			this.probeLatencyNanos = sampleNanos;
+			this.alive = true;
+		} else {
+			this.markDead();
+		}
+	}
+
+	void markDead() {
+		if(this.alive) this.deadSinceNanos = System.nanoTime();
+		this.alive = false;
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuilder().append(this.host).append("[alive=").append(this.isAlive())
+				.append(", outstanding=").append(this.outstanding.get())
+				.append(", latencyMs=").append(TimeUnit.NANOSECONDS.toMillis(this.latencyNanos.get()))
+				.append("]").toString();
+	}
+}
@@ -0,0 +1,233 @@
+package com.jkubinyi.elasticappender.throttle;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.Constants;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+
+import com.jkubinyi.elasticappender.layout.JsonFields;
+
+/**
+ * Folds repeated logs into a single document. Logs are identified by a fingerprint of their
+ * logger, level, formatted message and the type and stack trace of their exception. The first
+ * log of a fingerprint opens a window and is persisted as usual. Identical logs within the window
+ * are only counted and, when the window closes, the first of them is emitted once with
+ * the number of the folded logs, see {@link #withRepeatCount(byte[], long)}.
+ * 
+ * Windows are kept in a concurrent map bounded by maxFingerprints. When it is full and no window
+ * expired, logs with new fingerprints are not collapsed. Fingerprints are 64-bit hashes,
+ * so two different logs may collide, though very unlikely.
+ * 
+ * @author jurajkubinyi
+ */
+public class EventCollapser {
+
+	private static final Logger LOGGER = StatusLogger.getLogger();
+
+	/** Name of the field added to the document of the folded logs. */
+	public static final String REPEAT_COUNT_FIELD = "repeat_count";
+
+	/** Maximum number of the chained causes included in the fingerprint. */
+	private static final int MAX_CAUSES = 8;
+
+	/** Thread-local builders which grew above this size are not reused. */
+	private static final int MAX_RETAINED_CHARS = 64 * 1024;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/** Marks the count of a closed window. */
+	private static final long CLOSED = Long.MIN_VALUE;
+
+	private static final String REPEAT_COUNT_PREFIX = "\"" + REPEAT_COUNT_FIELD + "\":";
+
+	/**
+	 * Receives the folded logs when their window closes.
+	 */
+	@FunctionalInterface
+	public interface Emitter {
+
+		/**
+		 * @param event First of the folded logs.
+		 * @param repeatCount Number of the folded logs.
+		 */
+		void emit(LogEvent event, long repeatCount);
+	}
+
+	private final long windowNanos;
+	private final int maxFingerprints;
+	private final Emitter emitter;
+	private final ConcurrentHashMap<Long, Window> windows = new ConcurrentHashMap<>();
+	private final ThreadLocal<StringBuilder> texts;
+
+	/**
+	 * @param windowMs Length of the window in milliseconds.
+	 * @param maxFingerprints Maximum number of the open windows.
+	 * @param emitter Receives the folded logs.
+	 */
+	public EventCollapser(long windowMs, int maxFingerprints, Emitter emitter) {
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+		this.maxFingerprints = maxFingerprints;
+		this.emitter = emitter;
+		this.texts = Constants.ENABLE_THREADLOCALS ? ThreadLocal.withInitial(() -> new StringBuilder(256)) : null;
+	}
+
+	/**
+	 * Logs having the same fingerprint within the window.
+	 */
+	private static final class Window {
+		private final long endNanos;
+		private final AtomicLong count = new AtomicLong();
+		private volatile LogEvent sample;
+
+		private Window(long endNanos) {
+			this.endNanos = endNanos;
+		}
+
+		private boolean isOpen(long nowNanos) {
+			return nowNanos - this.endNanos < 0;
+		}
+
+		/**
+		 * @return {@code false} if the window was closed meanwhile.
+		 */
+		private boolean fold(LogEvent event) {
+			// Sample is published before the count, so the closing thread sees it whenever the count is positive.
+			if(this.sample == null)
+				this.sample = event.toImmutable();
+			while(true) {
+				long count = this.count.get();
+				if(count == CLOSED) return false;
+				if(this.count.compareAndSet(count, count + 1)) return true;
+			}
+		}
+	}
+
+	/**
+	 * @param event Log to persist.
+	 * @return {@code true} if the log should be persisted, {@code false} if it was folded.
+	 */
+	public boolean admit(LogEvent event) {
+		Long fingerprint = this.fingerprint(event);
+		long now = System.nanoTime();
+		Window window = this.windows.get(fingerprint);
+		if(window != null && window.isOpen(now) && window.fold(event))
+			return false;
+
+		if(window == null && this.windows.size() >= this.maxFingerprints) {
+			this.closeExpired(now);
+			if(this.windows.size() >= this.maxFingerprints) return true;
+		}
+
+		Window opened = new Window(now + this.windowNanos);
+		if(window == null ? this.windows.putIfAbsent(fingerprint, opened) == null : this.windows.replace(fingerprint, window, opened)) {
+			if(window != null) this.close(window);
+			return true;
+		}
+		// Another thread opened the window first.
+		Window current = this.windows.get(fingerprint);
+		return current == null || !current.isOpen(now) || !current.fold(event);
+	}
+
+	/**
+	 * Closes the expired windows and emits their folded logs. Should be called periodically,
+	 * otherwise the folded logs are emitted only by the next identical log.
+	 */
+	public void closeExpired() {
+		this.closeExpired(System.nanoTime());
+	}
+
+	private void closeExpired(long nowNanos) {
+		for(Iterator<Map.Entry<Long, Window>> it = this.windows.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Long, Window> entry = it.next();
+			if(!entry.getValue().isOpen(nowNanos) && this.windows.remove(entry.getKey(), entry.getValue()))
+				this.close(entry.getValue());
+		}
+	}
+
+	/**
+	 * Closes all the windows and emits their folded logs.
+	 */
+	public void closeAll() {
+		for(Iterator<Map.Entry<Long, Window>> it = this.windows.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Long, Window> entry = it.next();
+			if(this.windows.remove(entry.getKey(), entry.getValue()))
+				this.close(entry.getValue());
+		}
+	}
+
+	private void close(Window window) {
+		long count = window.count.getAndSet(CLOSED);
+		if(count > 0) {
+			try {
+				this.emitter.emit(window.sample, count);
+			} catch(RuntimeException e) {
+				LOGGER.error("Folded logs could not be emitted.", e);
+			}
+		}
+	}
+
+	/**
+	 * @return Number of the open windows.
+	 */
+	public int size() {
+		return this.windows.size();
+	}
+
+	private long fingerprint(LogEvent event) {
+		long hash = FNV_OFFSET;
+		hash = mix(hash, event.getLoggerName() != null ? event.getLoggerName().hashCode() : 0);
+		hash = mix(hash, event.getLevel().intLevel());
+		hash = this.mixMessage(hash, event.getMessage());
+		Throwable thrown = event.getThrown();
+		for(int i = 0; thrown != null && i < MAX_CAUSES; i++, thrown = thrown.getCause()) {
+			hash = mix(hash, thrown.getClass().getName().hashCode());
+			for(StackTraceElement element : thrown.getStackTrace())
+				hash = mix(hash, element.hashCode());
+		}
+		return hash;
+	}
+
+	private long mixMessage(long hash, Message message) {
+		if(message == null) return hash;
+		if(message instanceof StringBuilderFormattable) {
+			StringBuilder text = this.texts != null ? this.texts.get() : new StringBuilder(256);
+			text.setLength(0);
+			((StringBuilderFormattable) message).formatTo(text);
+			for(int i = 0, length = text.length(); i < length; i++)
+				hash = mix(hash, text.charAt(i));
+			if(text.capacity() > MAX_RETAINED_CHARS && this.texts != null)
+				this.texts.remove();
+			return hash;
+		}
+		String text = message.getFormattedMessage();
+		if(text == null) return hash;
+		for(int i = 0, length = text.length(); i < length; i++)
+			hash = mix(hash, text.charAt(i));
+		return hash;
+	}
+
+	private static long mix(long hash, int value) {
+		return (hash ^ value) * FNV_PRIME;
+	}
+
+	/**
+	 * Adds the repeat count field as the last field of the JSON object.
+	 * 
+	 * @param document Serialized JSON object, trailing whitespace is allowed.
+	 * @param repeatCount Number of the folded logs.
+	 * @return New document with the field, or the same document if it does not end with an object.
+	 */
+	public static byte[] withRepeatCount(byte[] document, long repeatCount) {
+		return JsonFields.append(document, (REPEAT_COUNT_PREFIX + repeatCount).getBytes(StandardCharsets.UTF_8));
+	}
+}
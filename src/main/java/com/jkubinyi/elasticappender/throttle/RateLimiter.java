@@ -0,0 +1,84 @@
+package com.jkubinyi.elasticappender.throttle;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.spi.StandardLevel;
+
+/**
+ * Limits the rate of the logs separately for every logger and level, so a single
+ * flooding call site does not starve the others. Buckets are created on the first
+ * log of the logger. When maxLoggers is reached the further loggers share one set
+ * of buckets, so the memory stays bounded.
+ * 
+ * @author jurajkubinyi
+ */
+public class RateLimiter {
+
+	/** Default maximum number of the loggers having their own buckets. */
+	public static final int DEFAULT_MAX_LOGGERS = 10000;
+
+	private static final int LEVELS = StandardLevel.values().length;
+
+	private final double permitsPerSecond;
+	private final int burst;
+	private final int maxLoggers;
+	private final ConcurrentHashMap<String, TokenBucket[]> buckets = new ConcurrentHashMap<>();
+	private final TokenBucket[] shared;
+
+	/**
+	 * @param permitsPerSecond Sustained number of the logs per second allowed for every logger and level.
+	 * @param burst Number of the logs allowed at once above the sustained rate. If less than 1
+	 * one second worth of the logs is allowed.
+	 * @param maxLoggers Maximum number of the loggers having their own buckets.
+	 */
+	public RateLimiter(double permitsPerSecond, int burst, int maxLoggers) {
+		if(!(permitsPerSecond > 0))
+			throw new IllegalArgumentException("Rate must be positive.");
+		this.permitsPerSecond = permitsPerSecond;
+		this.burst = burst > 0 ? burst : (int) Math.max(1, Math.ceil(permitsPerSecond));
+		this.maxLoggers = maxLoggers;
+		this.shared = this.newBuckets();
+	}
+
+	private TokenBucket[] newBuckets() {
+		TokenBucket[] buckets = new TokenBucket[LEVELS];
+		long now = System.nanoTime();
+		for(int i = 0; i < buckets.length; i++)
+			buckets[i] = new TokenBucket(this.permitsPerSecond, this.burst, now);
+		return buckets;
+	}
+
+	/**
+	 * @param event Log to persist.
+	 * @return {@code true} if the log is within the rate of its logger and level.
+	 */
+	public boolean tryAcquire(LogEvent event) {
+		return this.tryAcquire(event.getLoggerName(), event.getLevel());
+	}
+
+	/**
+	 * @param loggerName Name of the logger, may be {@code null}.
+	 * @param level Level of the log.
+	 * @return {@code true} if the log is within the rate of the logger and level.
+	 */
+	public boolean tryAcquire(String loggerName, Level level) {
+		String key = loggerName != null ? loggerName : "";
+		TokenBucket[] levels = this.buckets.get(key);
+		if(levels == null) {
+			if(this.buckets.size() < this.maxLoggers)
+				levels = this.buckets.computeIfAbsent(key, name -> this.newBuckets());
+			else
+				levels = this.shared;
+		}
+		return levels[level.getStandardLevel().ordinal()].tryAcquire(System.nanoTime());
+	}
+
+	/**
+	 * @return Number of the loggers having their own buckets.
+	 */
+	public int getNumLoggers() {
+		return this.buckets.size();
+	}
+}
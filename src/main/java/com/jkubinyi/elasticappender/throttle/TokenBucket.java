@@ -0,0 +1,46 @@
+package com.jkubinyi.elasticappender.throttle;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket implemented as the generic cell rate algorithm. Instead of counting
+ * the tokens it keeps the time the bucket is refilled by the next token, so acquiring
+ * a token is a single compare-and-set.
+ * 
+ * @author jurajkubinyi
+ */
+final class TokenBucket {
+
+	private final long intervalNanos;
+	private final long toleranceNanos;
+
+	/** Time at which the next token is refilled when all the previous ones were used. */
+	private final AtomicLong refilledNanos;
+
+	/**
+	 * @param permitsPerSecond Sustained rate of the tokens.
+	 * @param burst Maximum number of the tokens available at once.
+	 * @param nowNanos Current time, the bucket starts full.
+	 */
+	TokenBucket(double permitsPerSecond, int burst, long nowNanos) {
+		this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+		this.toleranceNanos = this.intervalNanos * (Math.max(1, burst) - 1);
+		this.refilledNanos = new AtomicLong(nowNanos);
+	}
+
+	/**
+	 * @param nowNanos Current time.
+	 * @return {@code true} if a token was taken.
+	 */
+	boolean tryAcquire(long nowNanos) {
+		while(true) {
+			long refilled = this.refilledNanos.get();
+			long start = refilled - nowNanos > 0 ? refilled : nowNanos;
+			if(start - nowNanos > this.toleranceNanos)
+				return false;
+			if(this.refilledNanos.compareAndSet(refilled, start + this.intervalNanos))
+				return true;
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package com.jkubinyi.elasticappender.dispatch;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to the virtual threads available since Java 21.
+ * 
+ * @author jurajkubinyi
+ */
+final class VirtualThreads {
+
+	private VirtualThreads() {}
+
+	/**
+	 * @return {@code true} if the virtual threads are available.
+	 */
+	static boolean isSupported() {
+		return true;
+	}
+
+	/**
+	 * @param namePrefix Prefix of the names of the threads.
+	 * @return Executor starting a new virtual thread for every task.
+	 */
+	static ExecutorService newExecutor(String namePrefix) {
+		return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix, 0).factory());
+	}
+}
@@ -0,0 +1,110 @@
+package com.jkubinyi.elasticappender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.spi.StandardLevel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jkubinyi.elasticappender.batch.OverflowPolicy;
+import com.jkubinyi.elasticappender.batch.WaitStrategy;
+import com.jkubinyi.elasticappender.bulk.BoundedDeadLetterQueue;
+import com.jkubinyi.elasticappender.bulk.ConcurrencyLimiter;
+import com.jkubinyi.elasticappender.bulk.IndexTarget;
+import com.jkubinyi.elasticappender.bulk.RetryPolicy;
+import com.jkubinyi.elasticappender.metrics.AppenderMetrics;
+import com.jkubinyi.elasticappender.metrics.DropReason;
+import com.jkubinyi.elasticappender.node.NodeSelectionStrategy;
+
+public class ElasticPipelineAccountingTest {
+
+	private static final IndexTarget TARGET = new IndexTarget("logs");
+	private static final byte[] DOCUMENT = "{\"message\":\"test\"}".getBytes(StandardCharsets.UTF_8);
+
+	private StubElasticsearch node;
+
+	@Before
+	public void setUp() throws Exception {
+		this.node = new StubElasticsearch();
+	}
+
+	@After
+	public void tearDown() {
+		this.node.close();
+	}
+
+	private ElasticPipeline pipeline(int maxRetries) {
+		ElasticPipeline.Config config = new ElasticPipeline.Config();
+		config.nodeConnections = new NodeConnection[] { this.node.getNodeConnection() };
+		config.bulkSize = 10;
+		config.maxUnprocessedLogs = 20;
+		config.lingerMs = 10;
+		config.batcher = "blockingQueue";
+		config.waitStrategy = WaitStrategy.PARK;
+		config.overflowPolicy = OverflowPolicy.DROP_NEWEST;
+		config.retryPolicy = new RetryPolicy(maxRetries, 20, 50);
+		config.deadLetterSink = new BoundedDeadLetterQueue(10);
+		config.limiter = new ConcurrencyLimiter(2, false, 0);
+		config.nodeSelection = NodeSelectionStrategy.ROUND_ROBIN;
+		config.shutdownTimeoutMs = 5000;
+		config.dispatch = "platform";
+		config.dispatchThreads = 2;
+		ElasticPipeline pipeline = ElasticPipeline.dedicated("accounting", config);
+		pipeline.start();
+		return pipeline;
+	}
+
+	private static long dropped(AppenderMetrics metrics) {
+		long dropped = 0;
+		for(DropReason reason : DropReason.values())
+			dropped += metrics.getDropped(reason);
+		return dropped;
+	}
+
+	/**
+	 * Retries put back into the full batcher compete with the new logs, every log which
+	 * does not make it must be counted as dropped.
+	 */
+	@Test
+	public void everyLostLogIsCounted() throws Exception {
+		ElasticPipeline pipeline = this.pipeline(5);
+		this.node.setStatus(429);
+		int offered = 0;
+		long throttledUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+		while(System.nanoTime() < throttledUntil) {
+			for(int i = 0; i < 10; i++, offered++)
+				pipeline.offer(TARGET, DOCUMENT, StandardLevel.INFO);
+			Thread.sleep(5);
+		}
+		this.node.setStatus(200);
+		for(int i = 0; i < 10; i++, offered++)
+			pipeline.offer(TARGET, DOCUMENT, StandardLevel.INFO);
+
+		assertTrue(pipeline.stop(5, TimeUnit.SECONDS));
+
+		AppenderMetrics metrics = pipeline.getMetrics();
+		assertTrue(metrics.getRetried() > 0);
+		assertTrue(metrics.getDropped(DropReason.QUEUE_FULL) > 0);
+		assertEquals(offered, this.node.getDocuments() + dropped(metrics));
+	}
+
+	@Test
+	public void exhaustedRetriesAreCounted() throws Exception {
+		ElasticPipeline pipeline = this.pipeline(0);
+		this.node.setStatus(429);
+		for(int i = 0; i < 10; i++)
+			assertTrue(pipeline.offer(TARGET, DOCUMENT, StandardLevel.WARN));
+
+		assertTrue(pipeline.stop(5, TimeUnit.SECONDS));
+
+		AppenderMetrics metrics = pipeline.getMetrics();
+		assertEquals(0, this.node.getDocuments());
+		assertEquals(10, metrics.getDropped(DropReason.RETRIES_EXHAUSTED));
+		assertEquals(10, metrics.getDropped(StandardLevel.WARN));
+	}
+}
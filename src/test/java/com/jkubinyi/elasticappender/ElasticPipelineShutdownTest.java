@@ -0,0 +1,131 @@
+package com.jkubinyi.elasticappender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.spi.StandardLevel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jkubinyi.elasticappender.batch.OverflowPolicy;
+import com.jkubinyi.elasticappender.batch.WaitStrategy;
+import com.jkubinyi.elasticappender.bulk.BoundedDeadLetterQueue;
+import com.jkubinyi.elasticappender.bulk.ConcurrencyLimiter;
+import com.jkubinyi.elasticappender.bulk.IndexTarget;
+import com.jkubinyi.elasticappender.bulk.RetryPolicy;
+import com.jkubinyi.elasticappender.metrics.DropReason;
+import com.jkubinyi.elasticappender.node.NodeSelectionStrategy;
+
+public class ElasticPipelineShutdownTest {
+
+	private static final IndexTarget TARGET = new IndexTarget("logs");
+	private static final byte[] DOCUMENT = "{\"message\":\"test\"}".getBytes(StandardCharsets.UTF_8);
+
+	private StubElasticsearch node;
+
+	@Before
+	public void setUp() throws Exception {
+		this.node = new StubElasticsearch();
+	}
+
+	@After
+	public void tearDown() {
+		this.node.close();
+	}
+
+	private ElasticPipeline pipeline(String batcher) {
+		return this.pipeline(batcher, 0);
+	}
+
+	private ElasticPipeline pipeline(String batcher, int maxRetries) {
+		ElasticPipeline.Config config = new ElasticPipeline.Config();
+		config.nodeConnections = new NodeConnection[] { this.node.getNodeConnection() };
+		config.bulkSize = 10;
+		config.maxUnprocessedLogs = 1000;
+		// Nothing is sent before the stop unless a batch fills up.
+		config.lingerMs = 60_000;
+		config.batcher = batcher;
+		config.waitStrategy = WaitStrategy.PARK;
+		config.overflowPolicy = OverflowPolicy.DROP_NEWEST;
+		config.retryPolicy = new RetryPolicy(maxRetries, 10, 10);
+		config.deadLetterSink = new BoundedDeadLetterQueue(10);
+		config.limiter = new ConcurrencyLimiter(2, false, 0);
+		config.nodeSelection = NodeSelectionStrategy.ROUND_ROBIN;
+		config.shutdownTimeoutMs = 5000;
+		config.dispatch = "platform";
+		config.dispatchThreads = 2;
+		ElasticPipeline pipeline = ElasticPipeline.dedicated("shutdown", config);
+		pipeline.start();
+		return pipeline;
+	}
+
+	private static void offer(ElasticPipeline pipeline, int count) throws InterruptedException {
+		for(int i = 0; i < count; i++)
+			assertTrue(pipeline.offer(TARGET, DOCUMENT, StandardLevel.INFO));
+	}
+
+	@Test
+	public void stopDeliversPendingLogs() throws Exception {
+		ElasticPipeline pipeline = this.pipeline("blockingQueue");
+		offer(pipeline, 25);
+
+		assertTrue(pipeline.stop(5, TimeUnit.SECONDS));
+
+		assertEquals(25, this.node.getDocuments());
+		assertEquals(0, pipeline.getMetrics().getDropped(DropReason.SHUTDOWN));
+	}
+
+	@Test
+	public void stopDeliversPendingLogsOfRingBuffer() throws Exception {
+		ElasticPipeline pipeline = this.pipeline("ringBuffer");
+		offer(pipeline, 25);
+
+		assertTrue(pipeline.stop(5, TimeUnit.SECONDS));
+
+		assertEquals(25, this.node.getDocuments());
+	}
+
+	@Test
+	public void stopAwaitsBulksInFlight() throws Exception {
+		this.node.setLatencyMs(300);
+		ElasticPipeline pipeline = this.pipeline("blockingQueue");
+		offer(pipeline, 20);
+
+		long start = System.nanoTime();
+		assertTrue(pipeline.stop(5, TimeUnit.SECONDS));
+
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(250));
+		assertEquals(20, this.node.getDocuments());
+	}
+
+	@Test
+	public void stopGivesUpAfterTimeout() throws Exception {
+		this.node.setLatencyMs(2000);
+		ElasticPipeline pipeline = this.pipeline("blockingQueue");
+		offer(pipeline, 50);
+
+		long start = System.nanoTime();
+		assertFalse(pipeline.stop(300, TimeUnit.MILLISECONDS));
+
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1500));
+		assertTrue(pipeline.getMetrics().getDropped(DropReason.SHUTDOWN) > 0);
+	}
+
+	@Test
+	public void pendingRetriesAreCountedAsDropped() throws Exception {
+		this.node.setStatus(429);
+		ElasticPipeline pipeline = this.pipeline("blockingQueue", 3);
+		for(int i = 0; i < 10; i++)
+			assertTrue(pipeline.offer(TARGET, DOCUMENT, StandardLevel.WARN));
+
+		assertTrue(pipeline.stop(5, TimeUnit.SECONDS));
+
+		assertEquals(0, this.node.getDocuments());
+		assertEquals(10, pipeline.getMetrics().getDropped(DropReason.SHUTDOWN));
+	}
+}
@@ -0,0 +1,122 @@
+package com.jkubinyi.elasticappender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.appender.AbstractManager;
+import org.apache.logging.log4j.spi.StandardLevel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jkubinyi.elasticappender.batch.OverflowPolicy;
+import com.jkubinyi.elasticappender.batch.WaitStrategy;
+import com.jkubinyi.elasticappender.bulk.BoundedDeadLetterQueue;
+import com.jkubinyi.elasticappender.bulk.ConcurrencyLimiter;
+import com.jkubinyi.elasticappender.bulk.IndexTarget;
+import com.jkubinyi.elasticappender.bulk.RetryPolicy;
+import com.jkubinyi.elasticappender.metrics.DropReason;
+import com.jkubinyi.elasticappender.node.NodeSelectionStrategy;
+
+public class ElasticPipelineTest {
+
+	private static final IndexTarget TARGET = new IndexTarget("logs");
+	private static final byte[] DOCUMENT = "{\"message\":\"test\"}".getBytes(StandardCharsets.UTF_8);
+
+	private StubElasticsearch node;
+
+	@Before
+	public void setUp() throws Exception {
+		this.node = new StubElasticsearch();
+	}
+
+	@After
+	public void tearDown() {
+		this.node.close();
+	}
+
+	private ElasticPipeline.Config config(long lingerMs) {
+		ElasticPipeline.Config config = new ElasticPipeline.Config();
+		config.nodeConnections = new NodeConnection[] { this.node.getNodeConnection() };
+		config.bulkSize = 100;
+		config.maxUnprocessedLogs = 1000;
+		config.lingerMs = lingerMs;
+		config.batcher = "blockingQueue";
+		config.waitStrategy = WaitStrategy.PARK;
+		config.overflowPolicy = OverflowPolicy.DROP_NEWEST;
+		config.retryPolicy = new RetryPolicy(0, 10, 10);
+		config.deadLetterSink = new BoundedDeadLetterQueue(10);
+		config.limiter = new ConcurrencyLimiter(2, false, 0);
+		config.nodeSelection = NodeSelectionStrategy.ROUND_ROBIN;
+		config.shutdownTimeoutMs = 5000;
+		config.dispatch = "platform";
+		config.dispatchThreads = 1;
+		return config;
+	}
+
+	@Test
+	public void sharedPipelineIsClosedByLastAppender() throws Exception {
+		ElasticPipeline.Config config = this.config(60_000);
+		ElasticPipeline first = ElasticPipeline.shared(config);
+		ElasticPipeline second = ElasticPipeline.shared(config);
+		assertSame(first, second);
+		first.start();
+
+		assertTrue(first.offer(TARGET, DOCUMENT, StandardLevel.INFO));
+		first.stop(5, TimeUnit.SECONDS);
+		assertTrue(AbstractManager.hasManager(ElasticPipeline.keyOf(config)));
+		assertEquals("Pipeline still in use is not drained", 0, this.node.getDocuments());
+
+		assertTrue(second.offer(TARGET, DOCUMENT, StandardLevel.INFO));
+		assertTrue(second.stop(5, TimeUnit.SECONDS));
+		assertFalse(AbstractManager.hasManager(ElasticPipeline.keyOf(config)));
+		assertEquals(2, this.node.getDocuments());
+		assertEquals(0, second.getMetrics().getDropped(DropReason.SHUTDOWN));
+	}
+
+	@Test
+	public void appenderAcquiringDrainedPipelineRestartsIt() throws Exception {
+		ElasticPipeline.Config config = this.config(10);
+		ElasticPipeline first = ElasticPipeline.shared(config);
+		first.start();
+		this.node.setLatencyMs(300);
+		assertTrue(first.offer(TARGET, DOCUMENT, StandardLevel.INFO));
+		Thread.sleep(50);
+
+		// New appender acquires the pipeline while the last one waits for the bulk in flight.
+		Thread stopping = new Thread(() -> first.stop(5, TimeUnit.SECONDS));
+		stopping.start();
+		Thread.sleep(100);
+		assertSame(first, ElasticPipeline.shared(config));
+		stopping.join();
+		assertTrue(AbstractManager.hasManager(ElasticPipeline.keyOf(config)));
+		this.node.setLatencyMs(0);
+
+		assertTrue(first.offer(TARGET, DOCUMENT, StandardLevel.INFO));
+		assertTrue(this.node.awaitDocuments(2, 5000));
+		assertTrue(first.stop(5, TimeUnit.SECONDS));
+		assertFalse(AbstractManager.hasManager(ElasticPipeline.keyOf(config)));
+	}
+
+	@Test
+	public void dedicatedPipelinesAreNotShared() throws Exception {
+		ElasticPipeline first = ElasticPipeline.dedicated("appender", this.config(10));
+		ElasticPipeline second = ElasticPipeline.dedicated("appender", this.config(10));
+		assertNotSame(first, second);
+		assertTrue(AbstractManager.hasManager(first.getName()));
+
+		first.start();
+		assertTrue(first.offer(TARGET, DOCUMENT, StandardLevel.INFO));
+		assertTrue(first.stop(5, TimeUnit.SECONDS));
+		assertFalse(AbstractManager.hasManager(first.getName()));
+		assertTrue(AbstractManager.hasManager(second.getName()));
+		assertEquals(1, this.node.getDocuments());
+		assertTrue(second.stop(5, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,198 @@
+package com.jkubinyi.elasticappender;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.HttpHost;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for an Elasticsearch node used by the tests. Answers the bulk requests
+ * as successful, the root endpoint for the health checks and "/_nodes/http" with the nodes set
+ * by {@link #setSniffedNodes(StubElasticsearch...)}. Its status, latency and bulk response can be changed.
+ * Gzipped bulk bodies are decompressed before they are recorded.
+ * 
+ * @author jurajkubinyi
+ */
+public class StubElasticsearch implements AutoCloseable {
+
+	private static final byte[] SUCCESS = "{\"took\":1,\"errors\":false,\"items\":[]}".getBytes(StandardCharsets.UTF_8);
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final List<String> bulkBodies = new CopyOnWriteArrayList<>();
+	private final List<String> bulkContentTypes = new CopyOnWriteArrayList<>();
+	private final AtomicInteger requests = new AtomicInteger();
+	private volatile int status = 200;
+	private volatile long latencyMs;
+	private volatile byte[] bulkResponse = SUCCESS;
+	private volatile byte[] nodes = "{\"nodes\":{}}".getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Starts the node on a free port of the loopback interface.
+	 */
+	public StubElasticsearch() throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		this.executor = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "StubElasticsearch");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.server.setExecutor(this.executor);
+		this.server.createContext("/", this::handle);
+		this.server.start();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		boolean gzip = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+		try(InputStream in = gzip ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody()) {
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = in.read(buffer)) >= 0)
+				body.write(buffer, 0, read);
+		}
+		this.requests.incrementAndGet();
+		if(this.latencyMs > 0) {
+			try {
+				Thread.sleep(this.latencyMs);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		String path = exchange.getRequestURI().getPath();
+		byte[] response = "{}".getBytes(StandardCharsets.UTF_8);
+		if(path.endsWith("/_bulk")) {
+			this.bulkContentTypes.add(exchange.getRequestHeaders().getFirst("Content-Type") + (gzip ? "; gzip" : ""));
+			response = this.bulkResponse;
+			if(this.status == 200 && response == SUCCESS)
+				this.bulkBodies.add(new String(body.toByteArray(), StandardCharsets.UTF_8));
+		} else if(path.startsWith("/_nodes")) {
+			response = this.nodes;
+		}
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(this.status, response.length);
+		try(OutputStream out = exchange.getResponseBody()) {
+			out.write(response);
+		}
+	}
+
+	/**
+	 * @param status HTTP status of all the following responses.
+	 */
+	public void setStatus(int status) {
+		this.status = status;
+	}
+
+	/**
+	 * @param latencyMs Time to wait before each response.
+	 */
+	public void setLatencyMs(long latencyMs) {
+		this.latencyMs = latencyMs;
+	}
+
+	/**
+	 * @param bulkResponse Body of the following bulk responses, {@code null} to answer them as successful.
+	 * Bodies of the requests answered by other than the successful response are not recorded.
+	 */
+	public void setBulkResponse(String bulkResponse) {
+		this.bulkResponse = bulkResponse != null ? bulkResponse.getBytes(StandardCharsets.UTF_8) : SUCCESS;
+	}
+
+	/**
+	 * @param nodes Nodes returned by the nodes info API.
+	 */
+	public void setSniffedNodes(StubElasticsearch... nodes) {
+		StringBuilder json = new StringBuilder("{\"nodes\":{");
+		for(int i = 0; i < nodes.length; i++) {
+			if(i > 0) json.append(',');
+			json.append("\"node").append(i).append("\":{\"roles\":[\"data\",\"ingest\"],\"http\":{\"publish_address\":\"")
+					.append(nodes[i].getHttpHost().getHostName()).append(':').append(nodes[i].getHttpHost().getPort()).append("\"}}");
+		}
+		this.nodes = json.append("}}").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return Connection pointing to the node.
+	 */
+	public NodeConnection getNodeConnection() {
+		return NodeConnection.newBuilder()
+				.setScheme("http")
+				.setHost(InetAddress.getLoopbackAddress())
+				.setPort(this.server.getAddress().getPort())
+				.build();
+	}
+
+	/**
+	 * @return Address of the node by the host name only, as the sniffed nodes are.
+	 */
+	public HttpHost getHttpHost() {
+		return new HttpHost(InetAddress.getLoopbackAddress().getHostName(), this.server.getAddress().getPort(), "http");
+	}
+
+	/**
+	 * @return Bodies of the bulk requests answered as successful.
+	 */
+	public List<String> getBulkBodies() {
+		return this.bulkBodies;
+	}
+
+	/**
+	 * @return Content types of all the bulk requests, suffixed by "; gzip" if they were compressed.
+	 */
+	public List<String> getBulkContentTypes() {
+		return this.bulkContentTypes;
+	}
+
+	/**
+	 * @return Number of the documents in the successful bulk requests.
+	 */
+	public int getDocuments() {
+		int lines = 0;
+		for(String body : this.bulkBodies)
+			for(int i = 0; i < body.length(); i++)
+				if(body.charAt(i) == '\n') lines++;
+		return lines / 2;
+	}
+
+	/**
+	 * @return Number of all the requests received.
+	 */
+	public int getRequests() {
+		return this.requests.get();
+	}
+
+	/**
+	 * Waits till the node received at least the number of the documents.
+	 * 
+	 * @return {@code true} if it did within the timeout.
+	 */
+	public boolean awaitDocuments(int documents, long timeoutMs) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		while(this.getDocuments() < documents) {
+			if(System.nanoTime() - deadline > 0) return false;
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	@Override
+	public void close() {
+		this.server.stop(0);
+		this.executor.shutdownNow();
+	}
+}
@@ -0,0 +1,80 @@
+package com.jkubinyi.elasticappender.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AbstractBatcherTest {
+
+	private final List<List<String>> batches = new CopyOnWriteArrayList<>();
+
+	private static void awaitSize(List<?> list, int size) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while(list.size() < size && System.nanoTime() - deadline < 0)
+			Thread.sleep(10);
+	}
+
+	@Test
+	public void batchesAreLimitedByCountAndBytes() throws Exception {
+		BlockingQueueBatcher<String> batcher = new BlockingQueueBatcher<>(work -> this.batches.add(new ArrayList<>(work)),
+				3, 100, 10_000, String::length, 10);
+		for(String element : Arrays.asList("aaaa", "bbbb", "cc", "d", "e", "f", "gggggggggggg"))
+			batcher.add(element);
+		batcher.start();
+		assertTrue(batcher.stop(1, TimeUnit.SECONDS));
+
+		assertEquals(Arrays.asList(Arrays.asList("aaaa", "bbbb", "cc"), Arrays.asList("d", "e", "f"),
+				Collections.singletonList("gggggggggggg")), this.batches);
+	}
+
+	@Test
+	public void lingeringBatchIsProcessed() throws Exception {
+		BlockingQueueBatcher<String> batcher = new BlockingQueueBatcher<>(work -> this.batches.add(new ArrayList<>(work)), 100, 100, 20);
+		batcher.start();
+		batcher.add("a");
+		awaitSize(this.batches, 1);
+		assertEquals(Collections.singletonList(Collections.singletonList("a")), this.batches);
+		batcher.stop(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void carriedElementNotFittingBackIsLost() throws Exception {
+		// First batch takes longer than the drain timeout and ignores the interrupts.
+		BlockingQueueBatcher<String> batcher = new BlockingQueueBatcher<>(work -> {
+			if(work.contains("a")) {
+				long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+				boolean interrupted = false;
+				while(System.nanoTime() - end < 0) {
+					try {
+						Thread.sleep(10);
+					} catch(InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if(interrupted) Thread.currentThread().interrupt();
+			}
+			this.batches.add(new ArrayList<>(work));
+		}, 10, 2, 0, element -> 10, 15);
+		batcher.add("a");
+		batcher.add("b");
+		batcher.start();
+		// "b" is carried over while "a" is processed, then the queue is filled again.
+		Thread.sleep(100);
+		assertTrue(batcher.offer("c", 1, TimeUnit.SECONDS));
+		assertTrue(batcher.offer("d", 1, TimeUnit.SECONDS));
+
+		List<String> lost = new CopyOnWriteArrayList<>();
+		batcher.stop(50, TimeUnit.MILLISECONDS, lost::add);
+		awaitSize(lost, 1);
+		assertEquals(Collections.singletonList("b"), lost);
+		assertEquals(2, batcher.size());
+	}
+}
@@ -0,0 +1,142 @@
+package com.jkubinyi.elasticappender.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class OverflowPolicyTest {
+
+	private final List<String> evicted = new ArrayList<>();
+
+	/**
+	 * @return Full batcher holding "a" and "b". It is not started, so nothing frees the space.
+	 */
+	private static BlockingQueueBatcher<String> full() throws InterruptedException {
+		BlockingQueueBatcher<String> batcher = new BlockingQueueBatcher<>(work -> {}, 10, 2);
+		assertTrue(batcher.offer("a", OverflowPolicy.DROP_NEWEST, 0, null));
+		assertTrue(batcher.offer("b", OverflowPolicy.DROP_NEWEST, 0, null));
+		return batcher;
+	}
+
+	private static List<String> contents(Batcher<String> batcher) {
+		List<String> contents = new ArrayList<>();
+		String element;
+		while((element = batcher.evictOldest()) != null)
+			contents.add(element);
+		return contents;
+	}
+
+	@Test
+	public void resolvesNames() {
+		assertEquals(OverflowPolicy.BLOCK, OverflowPolicy.fromName("block"));
+		assertEquals(OverflowPolicy.WAIT, OverflowPolicy.fromName("WAIT"));
+		assertEquals(OverflowPolicy.DROP_NEWEST, OverflowPolicy.fromName("dropNewest"));
+		assertEquals(OverflowPolicy.DROP_OLDEST, OverflowPolicy.fromName("DROP_OLDEST"));
+		assertEquals(OverflowPolicy.DROP_OLDEST, OverflowPolicy.fromName("drop-oldest"));
+		assertNull(OverflowPolicy.fromName("dropAll"));
+	}
+
+	@Test
+	public void addsWithoutOverflowWhenThereIsSpace() throws InterruptedException {
+		BlockingQueueBatcher<String> batcher = full();
+
+		for(OverflowPolicy policy : OverflowPolicy.values()) {
+			assertEquals(0, batcher.getOverflows(policy));
+			assertEquals(0, batcher.getOverflowDrops(policy));
+		}
+	}
+
+	@Test
+	public void dropNewestRejectsRightAway() throws InterruptedException {
+		BlockingQueueBatcher<String> batcher = full();
+
+		assertFalse(batcher.offer("c", OverflowPolicy.DROP_NEWEST, 0, this.evicted::add));
+
+		assertEquals(1, batcher.getOverflows(OverflowPolicy.DROP_NEWEST));
+		assertEquals(1, batcher.getOverflowDrops(OverflowPolicy.DROP_NEWEST));
+		assertTrue(this.evicted.isEmpty());
+		assertEquals(Arrays.asList("a", "b"), contents(batcher));
+	}
+
+	@Test
+	public void dropOldestEvictsOldest() throws InterruptedException {
+		BlockingQueueBatcher<String> batcher = full();
+
+		assertTrue(batcher.offer("c", OverflowPolicy.DROP_OLDEST, 0, this.evicted::add));
+
+		assertEquals(Arrays.asList("a"), this.evicted);
+		assertEquals(1, batcher.getOverflows(OverflowPolicy.DROP_OLDEST));
+		assertEquals(1, batcher.getOverflowDrops(OverflowPolicy.DROP_OLDEST));
+		assertEquals(Arrays.asList("b", "c"), contents(batcher));
+	}
+
+	@Test
+	public void dropOldestSurvivesFailingListener() throws InterruptedException {
+		BlockingQueueBatcher<String> batcher = full();
+
+		assertTrue(batcher.offer("c", OverflowPolicy.DROP_OLDEST, 0, element -> {
+			throw new IllegalStateException("Failing listener.");
+		}));
+
+		assertEquals(Arrays.asList("b", "c"), contents(batcher));
+	}
+
+	@Test
+	public void waitGivesUpAfterTimeout() throws InterruptedException {
+		BlockingQueueBatcher<String> batcher = full();
+
+		long start = System.nanoTime();
+		assertFalse(batcher.offer("c", OverflowPolicy.WAIT, 20_000, null));
+
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+		assertFalse(batcher.offer("d", OverflowPolicy.WAIT, 0, null));
+		assertEquals(2, batcher.getOverflows(OverflowPolicy.WAIT));
+		assertEquals(2, batcher.getOverflowDrops(OverflowPolicy.WAIT));
+	}
+
+	@Test
+	public void waitAddsWhenSpaceIsFreed() throws Exception {
+		BlockingQueueBatcher<String> batcher = full();
+
+		CompletableFuture<Boolean> added = CompletableFuture.supplyAsync(() -> offer(batcher, "c", OverflowPolicy.WAIT, 5_000_000));
+		Thread.sleep(50);
+		batcher.evictOldest();
+
+		assertTrue(added.get(5, TimeUnit.SECONDS));
+		assertEquals(1, batcher.getOverflows(OverflowPolicy.WAIT));
+		assertEquals(0, batcher.getOverflowDrops(OverflowPolicy.WAIT));
+		assertEquals(Arrays.asList("b", "c"), contents(batcher));
+	}
+
+	@Test
+	public void blockWaitsForSpace() throws Exception {
+		BlockingQueueBatcher<String> batcher = full();
+
+		CompletableFuture<Boolean> added = CompletableFuture.supplyAsync(() -> offer(batcher, "c", OverflowPolicy.BLOCK, 0));
+		Thread.sleep(100);
+		assertFalse(added.isDone());
+		batcher.evictOldest();
+
+		assertTrue(added.get(5, TimeUnit.SECONDS));
+		assertEquals(1, batcher.getOverflows(OverflowPolicy.BLOCK));
+		assertEquals(0, batcher.getOverflowDrops(OverflowPolicy.BLOCK));
+	}
+
+	private static boolean offer(Batcher<String> batcher, String element, OverflowPolicy policy, long waitMicros) {
+		try {
+			return batcher.offer(element, policy, waitMicros, null);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package com.jkubinyi.elasticappender.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class PriorityLaneBatcherTest {
+
+	private final List<Integer> processed = new CopyOnWriteArrayList<>();
+	private final List<Integer> shed = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Elements are lanes themselves, two lanes with capacity 2 each, weights 2:1.
+	 */
+	private PriorityLaneBatcher<Integer> create(int batchSize) {
+		return new PriorityLaneBatcher<>(this.processed::addAll, batchSize, 10_000, Integer::intValue,
+				new int[] { 2, 2 }, new int[] { 2, 1 }, this.shed::add, null, 0);
+	}
+
+	@Test
+	public void lanesAreDrainedByWeight() throws Exception {
+		PriorityLaneBatcher<Integer> batcher = new PriorityLaneBatcher<>(this.processed::addAll, 100, 10_000, element -> element / 10,
+				new int[] { 10, 10 }, new int[] { 2, 1 }, this.shed::add, null, 0);
+		for(int element : Arrays.asList(10, 11, 12, 0, 1, 2, 3))
+			assertTrue(batcher.tryAdd(element));
+		batcher.start();
+		batcher.stop(1, TimeUnit.SECONDS);
+
+		assertEquals(Arrays.asList(0, 1, 10, 2, 3, 11, 12), this.processed);
+	}
+
+	@Test
+	public void fullLaneShedsLessImportantLane() {
+		PriorityLaneBatcher<Integer> batcher = this.create(10);
+		assertTrue(batcher.tryAdd(1));
+		assertTrue(batcher.tryAdd(0));
+		assertTrue(batcher.tryAdd(0));
+
+		// Lane 0 is full, it borrows the space of lane 1 while the total stays within 4.
+		assertTrue(batcher.tryAdd(0));
+		assertEquals(Arrays.asList(1), this.shed);
+		assertEquals(3, batcher.size(0));
+		assertEquals(0, batcher.size(1));
+		assertEquals(1, batcher.getShed(1));
+
+		// Nothing less important is left to shed.
+		assertFalse(batcher.tryAdd(0));
+		assertEquals(3, batcher.size());
+	}
+
+	@Test
+	public void lessImportantLaneDoesNotShedMoreImportant() throws Exception {
+		PriorityLaneBatcher<Integer> batcher = this.create(10);
+		assertTrue(batcher.tryAdd(1));
+		assertTrue(batcher.tryAdd(1));
+		assertFalse(batcher.tryAdd(1));
+		assertEquals(1, batcher.getRejected(1));
+		assertFalse(batcher.offer(1, 10, TimeUnit.MILLISECONDS));
+		assertEquals(2, batcher.getRejected(1));
+		assertEquals(0, batcher.getRejected(0));
+		assertTrue(this.shed.isEmpty());
+	}
+
+	@Test
+	public void shedListenerRunsWithoutLock() {
+		AtomicBoolean locked = new AtomicBoolean(true);
+		List<PriorityLaneBatcher<Integer>> holder = new ArrayList<>();
+		PriorityLaneBatcher<Integer> batcher = new PriorityLaneBatcher<>(this.processed::addAll, 10, 10_000, Integer::intValue,
+				new int[] { 1, 1 }, new int[] { 1, 1 }, element -> {
+					// Other thread would block on the lock if the listener held it.
+					Thread other = new Thread(() -> locked.set(holder.get(0).size(0) < 0));
+					other.start();
+					try {
+						other.join(1000);
+					} catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					if(other.isAlive()) other.interrupt();
+				}, null, 0);
+		holder.add(batcher);
+		assertTrue(batcher.tryAdd(1));
+		assertTrue(batcher.tryAdd(0));
+		assertTrue(batcher.tryAdd(0));
+		assertFalse(locked.get());
+	}
+
+	@Test
+	public void dropOldestEvictsOwnLane() throws Exception {
+		PriorityLaneBatcher<Integer> batcher = this.create(10);
+		List<Integer> evicted = new ArrayList<>();
+		assertTrue(batcher.tryAdd(1));
+		assertTrue(batcher.tryAdd(1));
+		assertTrue(batcher.offer(1, OverflowPolicy.DROP_OLDEST, 0, evicted::add));
+		assertEquals(Arrays.asList(1), evicted);
+		assertEquals(2, batcher.size(1));
+		assertEquals(1, batcher.getOverflowDrops(OverflowPolicy.DROP_OLDEST));
+	}
+
+	@Test
+	public void dropOldestDoesNotEvictMoreImportantLane() throws Exception {
+		PriorityLaneBatcher<Integer> batcher = new PriorityLaneBatcher<>(this.processed::addAll, 10, 10_000, Integer::intValue,
+				new int[] { 1, 1, 1, 1 }, new int[] { 1, 1, 1, 1 }, this.shed::add, null, 0);
+		for(int element : Arrays.asList(3, 2, 1, 0, 0, 0, 0))
+			assertTrue(batcher.tryAdd(element));
+		assertEquals(4, batcher.size(0));
+		List<Integer> evicted = new ArrayList<>();
+
+		// Lane 0 took all the space, the less important element is dropped instead of evicting it.
+		assertFalse(batcher.offer(3, OverflowPolicy.DROP_OLDEST, 0, evicted::add));
+		assertTrue(evicted.isEmpty());
+		assertEquals(4, batcher.size(0));
+		assertEquals(0, batcher.size(3));
+		assertEquals(1, batcher.getOverflowDrops(OverflowPolicy.DROP_OLDEST));
+	}
+}
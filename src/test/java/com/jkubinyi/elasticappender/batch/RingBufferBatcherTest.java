@@ -0,0 +1,97 @@
+package com.jkubinyi.elasticappender.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RingBufferBatcherTest {
+
+	private final ConcurrentLinkedQueue<Long> processed = new ConcurrentLinkedQueue<>();
+
+	@Test
+	public void capacityIsRoundedToPowerOfTwo() {
+		assertEquals(8, new RingBufferBatcher<Long>(this.processed::addAll, 10, 5, 10, WaitStrategy.PARK).getCapacity());
+		assertEquals(RingBufferBatcher.DEFAULT_CAPACITY, new RingBufferBatcher<Long>(this.processed::addAll, 10, 0, 10, WaitStrategy.PARK).getCapacity());
+	}
+
+	@Test
+	public void fullBufferRejectsAndEvicts() throws Exception {
+		RingBufferBatcher<Long> batcher = new RingBufferBatcher<>(this.processed::addAll, 10, 4, 10, WaitStrategy.YIELD);
+		for(long i = 0; i < 4; i++)
+			assertTrue(batcher.tryAdd(i));
+		assertFalse(batcher.tryAdd(4L));
+		assertFalse(batcher.offer(4L, 10, TimeUnit.MILLISECONDS));
+		assertEquals(4, batcher.size());
+
+		assertEquals(Long.valueOf(0), batcher.evictOldest());
+		assertTrue(batcher.tryAdd(4L));
+		batcher.start();
+		batcher.stop(1, TimeUnit.SECONDS);
+		assertEquals(Arrays.asList(1L, 2L, 3L, 4L), new ArrayList<>(this.processed));
+		assertNull(batcher.evictOldest());
+	}
+
+	@Test
+	public void producersDoNotLoseOrReorderElements() throws Exception {
+		int producers = 8;
+		int perProducer = 50_000;
+		RingBufferBatcher<Long> batcher = new RingBufferBatcher<>(this.processed::addAll, 100, 1024, 1, WaitStrategy.PARK);
+		batcher.start();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for(int p = 0; p < producers; p++) {
+			long producer = p;
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+					for(long i = 0; i < perProducer; i++)
+						batcher.add(producer * perProducer + i);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for(Thread thread : threads)
+			thread.join();
+		assertTrue(batcher.stop(5, TimeUnit.SECONDS));
+
+		assertEquals(producers * perProducer, this.processed.size());
+		long[] last = new long[producers];
+		Arrays.fill(last, -1);
+		for(long element : this.processed) {
+			int producer = (int) (element / perProducer);
+			assertTrue("Elements of a producer are processed in order", element > last[producer]);
+			last[producer] = element;
+		}
+	}
+
+	@Test
+	public void evictionRacesWithFlusher() throws Exception {
+		RingBufferBatcher<Long> batcher = new RingBufferBatcher<>(this.processed::addAll, 10, 64, 1, WaitStrategy.SPIN);
+		ConcurrentLinkedQueue<Long> evicted = new ConcurrentLinkedQueue<>();
+		batcher.start();
+		for(long i = 0; i < 100_000; i++)
+			batcher.offer(i, OverflowPolicy.DROP_OLDEST, 0, evicted::add);
+		batcher.stop(5, TimeUnit.SECONDS);
+
+		// Every element is either processed or evicted, never both.
+		List<Long> all = new ArrayList<>(this.processed);
+		all.addAll(evicted);
+		assertEquals(all.size(), all.stream().distinct().count());
+		// Drops are the evicted elements and the ones which did not fit even after the evictions.
+		assertEquals(100_000, this.processed.size() + batcher.getOverflowDrops(OverflowPolicy.DROP_OLDEST) + batcher.size());
+	}
+}
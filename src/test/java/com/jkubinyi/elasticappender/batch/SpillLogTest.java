@@ -0,0 +1,191 @@
+package com.jkubinyi.elasticappender.batch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillLogTest {
+
+	/** Smallest segment allowed, fits 9 records of 100 bytes. */
+	private static final int SEGMENT_BYTES = 16 + 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static byte[] record(int i) {
+		byte[] record = new byte[100];
+		byte[] text = Integer.toString(i).getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(text, 0, record, 0, text.length);
+		return record;
+	}
+
+	private List<Path> segments(Path directory) throws IOException {
+		List<Path> paths = new ArrayList<>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "spill-*.seg")) {
+			stream.forEach(paths::add);
+		}
+		Collections.sort(paths);
+		return paths;
+	}
+
+	@Test
+	public void readsRecordsInOrderAcrossSegments() throws IOException {
+		Path directory = this.folder.getRoot().toPath();
+		SpillLog log = SpillLog.tryOpen(directory, SEGMENT_BYTES, 10 * SEGMENT_BYTES);
+		for(int i = 0; i < 30; i++)
+			assertTrue(log.append(record(i)));
+		assertTrue(this.segments(directory).size() > 1);
+
+		for(int i = 0; i < 30; i++)
+			assertArrayEquals(record(i), log.read());
+		assertNull(log.read());
+		assertTrue(log.isEmpty());
+		assertTrue(this.segments(directory).size() > 1);
+		log.commit();
+		assertEquals("Fully read segments are deleted", 1, this.segments(directory).size());
+		log.close();
+	}
+
+	@Test
+	public void rejectsRecordsOverMaximumSize() throws IOException {
+		SpillLog log = SpillLog.tryOpen(this.folder.getRoot().toPath(), SEGMENT_BYTES, 2 * SEGMENT_BYTES);
+		int appended = 0;
+		while(log.append(record(appended))) appended++;
+		assertEquals(18, appended);
+		assertFalse(log.append(new byte[SEGMENT_BYTES]));
+		log.close();
+	}
+
+	@Test
+	public void recoversUnreadRecordsAfterClose() throws IOException {
+		Path directory = this.folder.getRoot().toPath();
+		SpillLog log = SpillLog.tryOpen(directory, SEGMENT_BYTES, 10 * SEGMENT_BYTES);
+		for(int i = 0; i < 20; i++)
+			log.append(record(i));
+		for(int i = 0; i < 5; i++)
+			log.read();
+		log.commit();
+		log.close();
+
+		log = SpillLog.tryOpen(directory, SEGMENT_BYTES, 10 * SEGMENT_BYTES);
+		assertEquals(15 * 104, log.size());
+		for(int i = 5; i < 20; i++)
+			assertArrayEquals(record(i), log.read());
+		assertNull(log.read());
+		log.close();
+	}
+
+	@Test
+	public void readsUncommittedRecordsAgainAfterClose() throws IOException {
+		Path directory = this.folder.getRoot().toPath();
+		SpillLog log = SpillLog.tryOpen(directory, SEGMENT_BYTES, 10 * SEGMENT_BYTES);
+		for(int i = 0; i < 20; i++)
+			log.append(record(i));
+		for(int i = 0; i < 5; i++)
+			log.read();
+		log.commit();
+		for(int i = 5; i < 15; i++)
+			log.read();
+		log.close();
+
+		log = SpillLog.tryOpen(directory, SEGMENT_BYTES, 10 * SEGMENT_BYTES);
+		for(int i = 5; i < 20; i++)
+			assertArrayEquals(record(i), log.read());
+		assertNull(log.read());
+		log.close();
+	}
+
+	@Test
+	public void prependsRecordsInFrontOfUnreadRecords() throws IOException {
+		Path directory = this.folder.getRoot().toPath();
+		SpillLog log = SpillLog.tryOpen(directory, SEGMENT_BYTES, 10 * SEGMENT_BYTES);
+		for(int i = 20; i < 30; i++)
+			log.append(record(i));
+		List<byte[]> older = new ArrayList<>();
+		for(int i = 0; i < 20; i++)
+			older.add(record(i));
+		assertEquals(20, log.prepend(older));
+		log.close();
+
+		log = SpillLog.tryOpen(directory, SEGMENT_BYTES, 10 * SEGMENT_BYTES);
+		for(int i = 0; i < 30; i++)
+			assertArrayEquals(record(i), log.read());
+		assertNull(log.read());
+		for(int i = 30; i < 35; i++)
+			assertTrue(log.append(record(i)));
+		for(int i = 30; i < 35; i++)
+			assertArrayEquals(record(i), log.read());
+		log.close();
+	}
+
+	@Test
+	public void prependsOnlyWhatFits() throws IOException {
+		SpillLog log = SpillLog.tryOpen(this.folder.getRoot().toPath(), SEGMENT_BYTES, 2 * SEGMENT_BYTES);
+		log.append(record(100));
+		List<byte[]> older = new ArrayList<>();
+		for(int i = 0; i < 20; i++)
+			older.add(record(i));
+
+		assertEquals(9, log.prepend(older));
+		for(int i = 0; i < 9; i++)
+			assertArrayEquals(record(i), log.read());
+		assertArrayEquals(record(100), log.read());
+		log.close();
+	}
+
+	@Test
+	public void recoversSegmentWithoutEndMarker() throws IOException {
+		Path directory = this.folder.getRoot().toPath();
+		SpillLog log = SpillLog.tryOpen(directory, SEGMENT_BYTES, 10 * SEGMENT_BYTES);
+		for(int i = 0; i < 12; i++)
+			log.append(record(i));
+		log.close();
+
+		// Crash before the end marker of the first segment was written.
+		Path first = this.segments(directory).get(0);
+		try(RandomAccessFile file = new RandomAccessFile(first.toFile(), "rw")) {
+			file.seek(16 + 9 * 104);
+			file.writeInt(0);
+		}
+
+		log = SpillLog.tryOpen(directory, SEGMENT_BYTES, 10 * SEGMENT_BYTES);
+		for(int i = 0; i < 12; i++)
+			assertArrayEquals(record(i), log.read());
+		assertNull(log.read());
+		log.commit();
+		assertFalse(Files.exists(first));
+		log.close();
+	}
+
+	@Test
+	public void directoryIsUsedByOneLogOnly() throws IOException {
+		Path directory = this.folder.getRoot().toPath();
+		SpillLog log = SpillLog.tryOpen(directory, SEGMENT_BYTES, 10 * SEGMENT_BYTES);
+		assertNotNull(log);
+		log.append(record(1));
+		assertNull(SpillLog.tryOpen(directory, SEGMENT_BYTES, 10 * SEGMENT_BYTES));
+
+		log.close();
+		SpillLog next = SpillLog.tryOpen(directory, SEGMENT_BYTES, 10 * SEGMENT_BYTES);
+		assertNotNull(next);
+		assertArrayEquals(record(1), next.read());
+		next.close();
+	}
+}
@@ -0,0 +1,135 @@
+package com.jkubinyi.elasticappender.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillingBatcherTest {
+
+	private static final ElementCodec<String> CODEC = new ElementCodec<String>() {
+		@Override
+		public byte[] encode(String obj) {
+			return obj.getBytes(StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public String decode(byte[] bytes) {
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<String> processed = Collections.synchronizedList(new ArrayList<>());
+
+	private SpillingBatcher<String> create(Path directory) throws IOException {
+		return new SpillingBatcher<>(this.processed::addAll, 10, 5, 10, null, 0, CODEC, directory, 64 * 1024, 1024 * 1024);
+	}
+
+	private void awaitProcessed(int count) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while(this.processed.size() < count && System.nanoTime() - deadline < 0)
+			Thread.sleep(10);
+	}
+
+	@Test
+	public void keepsOrderWhileSpilling() throws Exception {
+		SpillingBatcher<String> batcher = this.create(this.folder.getRoot().toPath());
+		for(int i = 0; i < 100; i++)
+			assertTrue(batcher.add("log-" + i));
+		assertTrue(batcher.getSpilledBytes() > 0);
+
+		batcher.start();
+		this.awaitProcessed(100);
+		assertTrue(batcher.stop(1, TimeUnit.SECONDS));
+		assertEquals(100, this.processed.size());
+		for(int i = 0; i < 100; i++)
+			assertEquals("log-" + i, this.processed.get(i));
+	}
+
+	@Test
+	public void replaysElementsLeftByPreviousRun() throws Exception {
+		Path directory = this.folder.getRoot().toPath();
+		SpillingBatcher<String> first = this.create(directory);
+		for(int i = 0; i < 20; i++)
+			first.add("log-" + i);
+		first.stop(1, TimeUnit.SECONDS);
+		assertTrue(this.processed.isEmpty());
+
+		SpillingBatcher<String> second = this.create(directory);
+		second.start();
+		this.awaitProcessed(20);
+		second.stop(1, TimeUnit.SECONDS);
+		assertEquals(20, this.processed.size());
+		// Elements left in the memory are older than the spilled ones and are replayed first.
+		for(int i = 0; i < 20; i++)
+			assertEquals("log-" + i, this.processed.get(i));
+	}
+
+	@Test
+	public void addWaitsForSpaceWhenDiskIsFull() throws Exception {
+		SpillingBatcher<String> batcher = new SpillingBatcher<>(this.processed::addAll, 10, 5, 10, null, 0, CODEC,
+				this.folder.getRoot().toPath(), 2048, 2048);
+		int added = 0;
+		while(batcher.tryAdd("log-" + added)) added++;
+		assertFalse(batcher.offer("log-" + added, 20, TimeUnit.MILLISECONDS));
+
+		CompletableFuture<Boolean> blocked = CompletableFuture.supplyAsync(() -> {
+			try {
+				return batcher.add("last");
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		});
+		Thread.sleep(50);
+		assertFalse(blocked.isDone());
+
+		batcher.start();
+		assertTrue(blocked.get(5, TimeUnit.SECONDS));
+		this.awaitProcessed(added + 1);
+		assertTrue(batcher.stop(1, TimeUnit.SECONDS));
+		assertEquals("last", this.processed.get(added));
+	}
+
+	@Test
+	public void takesDirectoryOverOnlyAfterPreviousBatcherStops() throws Exception {
+		Path directory = this.folder.getRoot().toPath();
+		SpillingBatcher<String> old = this.create(directory);
+		for(int i = 0; i < 20; i++)
+			old.add("old-" + i);
+
+		// Same directory as during a reconfiguration, the old batcher still owns it.
+		SpillingBatcher<String> next = this.create(directory);
+		for(int i = 0; i < 5; i++)
+			assertTrue(next.add("new-" + i));
+		assertFalse("Memory is full and the directory is not available", next.tryAdd("new-5"));
+		assertFalse(next.offer("new-5", 20, TimeUnit.MILLISECONDS));
+		assertEquals(0, next.getSpilledBytes());
+
+		next.start();
+		this.awaitProcessed(5);
+		old.stop(1, TimeUnit.SECONDS);
+		this.awaitProcessed(25);
+		next.stop(1, TimeUnit.SECONDS);
+
+		assertEquals(25, this.processed.size());
+		for(int i = 0; i < 20; i++)
+			assertTrue(this.processed.contains("old-" + i));
+		assertEquals(25, this.processed.stream().distinct().count());
+	}
+}
@@ -0,0 +1,148 @@
+package com.jkubinyi.elasticappender.bulk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.spi.StandardLevel;
+import org.elasticsearch.client.RestClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jkubinyi.elasticappender.StubElasticsearch;
+import com.jkubinyi.elasticappender.metrics.AppenderMetrics;
+import com.jkubinyi.elasticappender.metrics.DropReason;
+
+public class BulkDispatcherTest {
+
+	private static final IndexTarget LOGS = new IndexTarget("logs");
+	private static final IndexTarget STREAM = new IndexTarget("logs-stream", true);
+
+	private StubElasticsearch node;
+	private RestClient restClient;
+	private ScheduledExecutorService scheduler;
+	private ConcurrencyLimiter limiter;
+	private BoundedDeadLetterQueue deadLetters;
+	private AppenderMetrics metrics;
+	private BlockingQueue<Collection<BulkItem>> requeued;
+
+	@Before
+	public void setUp() throws Exception {
+		this.node = new StubElasticsearch();
+		this.restClient = RestClient.builder(this.node.getHttpHost()).build();
+		this.scheduler = Executors.newSingleThreadScheduledExecutor();
+		this.limiter = new ConcurrencyLimiter(2, false, 0);
+		this.deadLetters = new BoundedDeadLetterQueue(10);
+		this.metrics = new AppenderMetrics(() -> 0, () -> 0, () -> 0, null);
+		this.requeued = new LinkedBlockingQueue<>();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.restClient.close();
+		this.scheduler.shutdownNow();
+		this.node.close();
+	}
+
+	private BulkDispatcher dispatcher(GzipCompressor compressor) {
+		BulkBodyWriter bodyWriter = new BulkBodyWriter(new BulkBufferPool(2, 1024, 64 * 1024), compressor);
+		return new BulkDispatcher(this.restClient, bodyWriter, this.requeued::add, new RetryPolicy(3, 10, 10), this.scheduler,
+				this.deadLetters, this.limiter, null, this.metrics, null);
+	}
+
+	private static BulkItem item(IndexTarget target, String message) {
+		return new BulkItem(target, ("{\"message\":\"" + message + "\"}").getBytes(StandardCharsets.UTF_8), StandardLevel.INFO);
+	}
+
+	private void process(BulkDispatcher dispatcher, BulkItem... items) throws InterruptedException {
+		dispatcher.process(new ArrayList<>(Arrays.asList(items)));
+		assertTrue(this.limiter.awaitIdle(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void sendsNdjsonBulk() throws Exception {
+		this.process(this.dispatcher(null), item(LOGS, "first"), item(STREAM, "second"));
+
+		assertEquals(Arrays.asList("application/x-ndjson"), this.node.getBulkContentTypes());
+		assertEquals("{\"index\":{\"_index\":\"logs\"}}\n{\"message\":\"first\"}\n"
+				+ "{\"create\":{\"_index\":\"logs-stream\"}}\n{\"message\":\"second\"}\n", this.node.getBulkBodies().get(0));
+		assertEquals(1, this.metrics.getBulksSent());
+		assertEquals(0, this.metrics.getBulksFailed());
+	}
+
+	@Test
+	public void sendsCompressedBulk() throws Exception {
+		GzipCompressor compressor = new GzipCompressor(6);
+		try {
+			this.process(this.dispatcher(compressor), item(LOGS, "compressed"));
+		} finally {
+			compressor.close();
+		}
+
+		assertEquals(Arrays.asList("application/x-ndjson; gzip"), this.node.getBulkContentTypes());
+		assertEquals("{\"index\":{\"_index\":\"logs\"}}\n{\"message\":\"compressed\"}\n", this.node.getBulkBodies().get(0));
+	}
+
+	@Test
+	public void retriesOrDeadLettersFailedItems() throws Exception {
+		this.node.setBulkResponse("{\"took\":1,\"errors\":true,\"items\":["
+				+ "{\"index\":{\"_index\":\"logs\",\"status\":201}},"
+				+ "{\"index\":{\"_index\":\"logs\",\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"full\"}}},"
+				+ "{\"index\":{\"_index\":\"logs\",\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"bad\"}}}]}");
+		BulkItem delivered = item(LOGS, "delivered");
+		BulkItem throttled = item(LOGS, "throttled");
+		BulkItem rejected = item(LOGS, "rejected");
+
+		this.process(this.dispatcher(null), delivered, throttled, rejected);
+
+		Collection<BulkItem> retry = this.requeued.poll(5, TimeUnit.SECONDS);
+		assertNotNull(retry);
+		assertEquals(Arrays.asList(throttled), new ArrayList<>(retry));
+		assertEquals(1, throttled.getAttempts());
+		assertEquals(1, this.metrics.getRetried());
+
+		List<DeadLetter> dead = new ArrayList<>();
+		this.deadLetters.drainTo(dead);
+		assertEquals(1, dead.size());
+		assertEquals(400, dead.get(0).getStatus());
+		assertTrue(dead.get(0).getReason(), dead.get(0).getReason().startsWith("mapper_parsing_exception"));
+		assertEquals(1, this.metrics.getDropped(DropReason.REJECTED));
+	}
+
+	@Test
+	public void retriesWholeBulkOnRetryableStatus() throws Exception {
+		this.node.setStatus(503);
+
+		this.process(this.dispatcher(null), item(LOGS, "first"), item(LOGS, "second"));
+
+		Collection<BulkItem> retry = this.requeued.poll(5, TimeUnit.SECONDS);
+		assertNotNull(retry);
+		assertEquals(2, retry.size());
+		assertEquals(1, this.metrics.getBulksFailed());
+		assertEquals(0, this.deadLetters.size());
+	}
+
+	@Test
+	public void deadLettersWholeBulkOnPermanentStatus() throws Exception {
+		this.node.setStatus(401);
+
+		this.process(this.dispatcher(null), item(LOGS, "first"), item(LOGS, "second"));
+
+		assertNull(this.requeued.poll(100, TimeUnit.MILLISECONDS));
+		assertEquals(2, this.deadLetters.size());
+		assertEquals(2, this.metrics.getDropped(DropReason.REJECTED));
+	}
+}
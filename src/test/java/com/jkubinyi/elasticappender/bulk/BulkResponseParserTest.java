@@ -0,0 +1,62 @@
+package com.jkubinyi.elasticappender.bulk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class BulkResponseParserTest {
+
+	private static BulkResult parse(String json) throws IOException {
+		return BulkResponseParser.parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void stopsAtErrorsFalse() throws IOException {
+		BulkResult result = parse("{\"took\":3,\"errors\":false,\"items\":[{\"index\":{\"status\":201}}]}");
+
+		assertFalse(result.hasFailures());
+	}
+
+	@Test
+	public void parsesItemFailures() throws IOException {
+		BulkResult result = parse("{\"took\":3,\"errors\":true,\"items\":["
+				+ "{\"index\":{\"_index\":\"logs\",\"_id\":\"1\",\"status\":201,\"_shards\":{\"total\":2}}},"
+				+ "{\"create\":{\"_index\":\"logs\",\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\","
+				+ "\"reason\":\"queue full\",\"caused_by\":{\"type\":\"x\"}}}},"
+				+ "{\"index\":{\"_index\":\"logs\",\"status\":400,\"error\":\"plain reason\"}}]}");
+
+		assertTrue(result.hasFailures());
+		assertEquals(3, result.getItemCount());
+		assertEquals(2, result.getFailures().size());
+		BulkResult.ItemFailure throttled = result.getFailures().get(0);
+		assertEquals(1, throttled.getIndex());
+		assertEquals(429, throttled.getStatus());
+		assertEquals("es_rejected_execution_exception", throttled.getType());
+		assertEquals("queue full", throttled.getReason());
+		BulkResult.ItemFailure rejected = result.getFailures().get(1);
+		assertEquals(2, rejected.getIndex());
+		assertEquals(400, rejected.getStatus());
+		assertNull(rejected.getType());
+		assertEquals("plain reason", rejected.getReason());
+	}
+
+	@Test
+	public void parsesErrorsBeforeItemsInAnyOrder() throws IOException {
+		BulkResult result = parse("{\"items\":[{\"index\":{\"status\":503}}],\"errors\":true}");
+
+		assertEquals(1, result.getFailures().size());
+		assertEquals(503, result.getFailures().get(0).getStatus());
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsNonObject() throws IOException {
+		parse("[]");
+	}
+}
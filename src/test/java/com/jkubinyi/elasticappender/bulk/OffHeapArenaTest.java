@@ -0,0 +1,116 @@
+package com.jkubinyi.elasticappender.bulk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.logging.log4j.spi.StandardLevel;
+import org.junit.Test;
+
+public class OffHeapArenaTest {
+
+	private static byte[] document(Random random, int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	@Test
+	public void documentsSpanningChunksAreCopiedBack() {
+		OffHeapArena arena = new OffHeapArena(64 * 1024, 16);
+		Random random = new Random(1);
+		for(int length : new int[] { 0, 1, 15, 16, 17, 1000 }) {
+			byte[] source = document(random, length);
+			int[] chunks = arena.store(source, length);
+			assertEquals((length + 15) / 16, chunks.length);
+			assertArrayEquals(source, arena.copy(chunks, length));
+			arena.release(chunks);
+		}
+		assertEquals(0, arena.getUsedBytes());
+	}
+
+	@Test
+	public void arenaIsReservedLazilyAndBounded() {
+		OffHeapArena arena = new OffHeapArena(2 * OffHeapArena.SEGMENT_BYTES, 1024);
+		assertEquals(0, arena.getReservedBytes());
+		assertEquals(2 * OffHeapArena.SEGMENT_BYTES, arena.getCapacityBytes());
+
+		byte[] source = new byte[OffHeapArena.SEGMENT_BYTES];
+		int[] first = arena.store(source, source.length);
+		assertEquals(OffHeapArena.SEGMENT_BYTES, arena.getReservedBytes());
+		int[] second = arena.store(source, source.length);
+		assertNotNull(second);
+		assertNull("Arena is full", arena.store(source, 1));
+
+		arena.release(first);
+		assertNotNull(arena.store(source, 1));
+		assertEquals(2 * OffHeapArena.SEGMENT_BYTES, arena.getReservedBytes());
+	}
+
+	@Test
+	public void writeToAppendsDocumentToBulk() {
+		OffHeapArena arena = new OffHeapArena(1024, 16);
+		byte[] source = "{\"message\":\"stored off the heap\"}\n".getBytes(StandardCharsets.UTF_8);
+		IndexTarget target = new IndexTarget("logs");
+		OffHeapBulkItem item = OffHeapBulkItem.store(arena, target, source, StandardLevel.INFO);
+
+		BulkBuffer offHeap = new BulkBuffer(16);
+		item.writeTo(offHeap);
+		BulkBuffer onHeap = new BulkBuffer(16);
+		new BulkItem(target, source, StandardLevel.INFO).writeTo(onHeap);
+		assertEquals(new String(onHeap.array(), 0, onHeap.length(), StandardCharsets.UTF_8),
+				new String(offHeap.array(), 0, offHeap.length(), StandardCharsets.UTF_8));
+		assertEquals(onHeap.length(), item.getBulkLength());
+
+		item.release();
+		item.release();
+		assertEquals(0, arena.getUsedBytes());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void releasedItemCanNotBeRead() {
+		OffHeapArena arena = new OffHeapArena(1024, 16);
+		OffHeapBulkItem item = OffHeapBulkItem.store(arena, new IndexTarget("logs"), new byte[100], StandardLevel.INFO);
+		item.release();
+		item.getSource();
+	}
+
+	@Test
+	public void concurrentStoreAndReleaseKeepDocumentsIntact() throws Exception {
+		OffHeapArena arena = new OffHeapArena(256 * 1024, 64);
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for(int t = 0; t < 8; t++) {
+			long seed = t;
+			Thread thread = new Thread(() -> {
+				Random random = new Random(seed);
+				try {
+					for(int i = 0; i < 20_000; i++) {
+						byte[] source = document(random, random.nextInt(500));
+						int[] chunks = arena.store(source, source.length);
+						if(chunks == null) continue;
+						assertArrayEquals(source, arena.copy(chunks, source.length));
+						arena.release(chunks);
+					}
+				} catch(Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for(Thread thread : threads)
+			thread.join();
+		if(failure.get() != null) throw new AssertionError(failure.get());
+		assertEquals(0, arena.getUsedBytes());
+		assertTrue(arena.getReservedBytes() <= arena.getCapacityBytes());
+	}
+}
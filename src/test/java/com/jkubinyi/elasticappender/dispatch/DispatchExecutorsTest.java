@@ -0,0 +1,95 @@
+package com.jkubinyi.elasticappender.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class DispatchExecutorsTest {
+
+	@Test
+	public void knowsNames() {
+		assertTrue(DispatchExecutors.isKnown("direct"));
+		assertTrue(DispatchExecutors.isKnown("POOL"));
+		assertTrue(DispatchExecutors.isKnown("Virtual"));
+		assertFalse(DispatchExecutors.isKnown("forkJoin"));
+		assertFalse(DispatchExecutors.isKnown(null));
+	}
+
+	@Test
+	public void directHasNoExecutor() {
+		assertNull(DispatchExecutors.create(DispatchExecutors.DIRECT, 4));
+		assertNull(DispatchExecutors.create("unknown", 4));
+	}
+
+	@Test
+	public void poolRunsTasksOnDaemonThreads() throws Exception {
+		ExecutorService executor = DispatchExecutors.create(DispatchExecutors.POOL, 2);
+		try {
+			Set<String> names = ConcurrentHashMap.newKeySet();
+			assertTrue(this.run(executor, 20, names));
+
+			assertTrue(names.size() <= 2);
+			for(String name : names)
+				assertTrue(name, name.contains("ElasticAppender-dispatch"));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void poolHasAtLeastOneThread() throws Exception {
+		ExecutorService executor = DispatchExecutors.create(DispatchExecutors.POOL, 0);
+		try {
+			assertTrue(this.run(executor, 5, ConcurrentHashMap.newKeySet()));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void virtualFallsBackToPool() throws Exception {
+		ExecutorService executor = DispatchExecutors.create(DispatchExecutors.VIRTUAL, 2);
+		assertNotNull(executor);
+		try {
+			Set<String> names = ConcurrentHashMap.newKeySet();
+			assertTrue(this.run(executor, 20, names));
+
+			if(!DispatchExecutors.isVirtualSupported())
+				assertTrue(names.size() <= 2);
+			for(String name : names)
+				assertTrue(name, name.contains("ElasticAppender-dispatch"));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Runs the tasks and collects the names of the threads they ran on.
+	 *
+	 * @return {@code true} if all the tasks ran as daemons in time.
+	 */
+	private boolean run(ExecutorService executor, int tasks, Set<String> names) throws InterruptedException {
+		CountDownLatch done = new CountDownLatch(tasks);
+		Set<Boolean> daemons = ConcurrentHashMap.newKeySet();
+		for(int i = 0; i < tasks; i++) {
+			executor.execute(() -> {
+				names.add(Thread.currentThread().getName());
+				daemons.add(Thread.currentThread().isDaemon());
+				done.countDown();
+			});
+		}
+		boolean completed = done.await(5, TimeUnit.SECONDS);
+		assertEquals(1, daemons.size());
+		return completed && daemons.contains(true);
+	}
+}
@@ -0,0 +1,126 @@
+package com.jkubinyi.elasticappender.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.text.SimpleDateFormat;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import com.jkubinyi.elasticappender.bulk.IndexTarget;
+
+public class IndexNameResolverTest {
+
+	private static IndexNameResolver resolver(String pattern) {
+		return resolver(pattern, "UTC");
+	}
+
+	private static IndexNameResolver resolver(String pattern, String zone) {
+		SimpleDateFormat format = new SimpleDateFormat(pattern);
+		format.setTimeZone(TimeZone.getTimeZone(zone));
+		return new IndexNameResolver("logs", format);
+	}
+
+	private static long utc(int year, int month, int day, int hour, int minute) {
+		return ZonedDateTime.of(year, month, day, hour, minute, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli();
+	}
+
+	@Test
+	public void findsSmallestUnit() {
+		assertEquals(ChronoUnit.DAYS, IndexNameResolver.smallestUnit("yyyyMMdd"));
+		assertEquals(ChronoUnit.DAYS, IndexNameResolver.smallestUnit("yyyy.MM.dd"));
+		assertEquals(ChronoUnit.HOURS, IndexNameResolver.smallestUnit("yyyy-MM-dd-HH"));
+		assertEquals(ChronoUnit.MONTHS, IndexNameResolver.smallestUnit("yyyy-MM"));
+		assertEquals(ChronoUnit.YEARS, IndexNameResolver.smallestUnit("yyyy"));
+		assertEquals(ChronoUnit.DAYS, IndexNameResolver.smallestUnit("YYYY-'w'ww"));
+		assertEquals(ChronoUnit.MILLIS, IndexNameResolver.smallestUnit("HHmmssSSS"));
+		assertEquals(ChronoUnit.FOREVER, IndexNameResolver.smallestUnit("'static'"));
+		assertEquals(ChronoUnit.MONTHS, IndexNameResolver.smallestUnit("yyyyMM'_day'"));
+	}
+
+	@Test
+	public void resolvesIndexName() {
+		IndexNameResolver resolver = new IndexNameResolver("logs", utcFormat("yyyyMMdd"), true);
+
+		IndexTarget target = resolver.resolve(utc(2100, 2, 3, 4, 5));
+
+		assertEquals("logs_21000203", target.getName());
+		assertTrue(target.isCreate());
+		assertEquals("21000203", resolver.resolveDate(utc(2100, 2, 3, 4, 5)));
+	}
+
+	@Test
+	public void reusesTargetWithinBucket() {
+		IndexNameResolver resolver = resolver("yyyyMMdd");
+
+		IndexTarget first = resolver.resolve(utc(2100, 2, 3, 0, 0));
+
+		assertSame(first, resolver.resolve(utc(2100, 2, 3, 12, 30)));
+		assertSame(first, resolver.resolve(utc(2100, 2, 3, 23, 59)));
+		assertSame(resolver.resolveDate(utc(2100, 2, 3, 1, 0)), resolver.resolveDate(utc(2100, 2, 3, 22, 0)));
+		assertFalse(first.getName().equals(resolver.resolve(utc(2100, 2, 4, 0, 0)).getName()));
+	}
+
+	@Test
+	public void keepsPreviousBucketForLateEvents() {
+		IndexNameResolver resolver = resolver("yyyyMMdd");
+		IndexTarget monday = resolver.resolve(utc(2100, 2, 3, 23, 59));
+		IndexTarget tuesday = resolver.resolve(utc(2100, 2, 4, 0, 1));
+
+		assertSame(tuesday, resolver.getCurrentTarget());
+		assertSame(monday, resolver.resolve(utc(2100, 2, 3, 23, 58)));
+		assertSame(tuesday, resolver.getCurrentTarget());
+		assertEquals("21000204", resolver.getCurrentDate());
+	}
+
+	@Test
+	public void doesNotMoveBackForOlderEvents() {
+		IndexNameResolver resolver = resolver("yyyyMMdd");
+		resolver.resolve(utc(2100, 2, 3, 12, 0));
+		IndexTarget current = resolver.resolve(utc(2100, 2, 4, 12, 0));
+
+		IndexTarget old = resolver.resolve(utc(2020, 1, 1, 12, 0));
+
+		assertEquals("logs_20200101", old.getName());
+		assertSame(current, resolver.getCurrentTarget());
+		assertNotSame(old, resolver.resolve(utc(2020, 1, 1, 13, 0)));
+	}
+
+	@Test
+	public void respectsTimeZone() {
+		IndexNameResolver resolver = resolver("yyyyMMdd", "GMT+02:00");
+
+		assertEquals("logs_21000203", resolver.resolve(utc(2100, 2, 3, 21, 59)).getName());
+		assertEquals("logs_21000204", resolver.resolve(utc(2100, 2, 3, 22, 0)).getName());
+	}
+
+	@Test
+	public void rollsOverMonths() {
+		IndexNameResolver resolver = resolver("yyyy-MM");
+		IndexTarget january = resolver.resolve(utc(2100, 1, 1, 0, 0));
+
+		assertSame(january, resolver.resolve(utc(2100, 1, 31, 23, 59)));
+		assertEquals("logs_2100-02", resolver.resolve(utc(2100, 2, 1, 0, 0)).getName());
+	}
+
+	@Test
+	public void resolvesStaticPatternOnce() {
+		IndexNameResolver resolver = resolver("'static'");
+
+		assertSame(resolver.resolve(0), resolver.resolve(utc(2100, 1, 1, 0, 0)));
+		assertEquals("logs_static", resolver.getCurrentTarget().getName());
+	}
+
+	private static SimpleDateFormat utcFormat(String pattern) {
+		SimpleDateFormat format = new SimpleDateFormat(pattern);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format;
+	}
+}
@@ -0,0 +1,131 @@
+package com.jkubinyi.elasticappender.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.ContextDataFactory;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.StringMap;
+import org.junit.Test;
+
+import com.jkubinyi.elasticappender.bulk.IndexTarget;
+
+public class RoutingIndexResolverTest {
+
+	/** 2020-01-02T10:00:00Z */
+	private static final long TIME = 1577959200000L;
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+	/** 2100-01-02T10:00:00Z, ahead of the clock, so the date resolver moves forward to it. */
+	private static final long FUTURE = 4102567200000L;
+
+	private static IndexNameResolver dates() {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy.MM.dd");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return new IndexNameResolver("logs", format);
+	}
+
+	private static LogEvent event(long time, String tenant, String marker) {
+		StringMap context = ContextDataFactory.createContextData();
+		if(tenant != null) context.putValue("tenant", tenant);
+		return Log4jLogEvent.newBuilder()
+				.setLoggerName("test")
+				.setLevel(Level.INFO)
+				.setMessage(new SimpleMessage("message"))
+				.setTimeMillis(time)
+				.setContextData(context)
+				.setMarker(marker != null ? MarkerManager.getMarker(marker) : null)
+				.build();
+	}
+
+	private static RoutingIndexResolver resolver(String pattern) {
+		return new RoutingIndexResolver(pattern, dates(), false, RoutingIndexResolver.DEFAULT_MAX_TARGETS);
+	}
+
+	@Test
+	public void resolvesContextMarkerAndDate() {
+		RoutingIndexResolver resolver = resolver("logs-${ctx:tenant}-${marker}-${date}");
+
+		assertEquals("logs-acme-audit-2020.01.02", resolver.resolve(event(TIME, "acme", "AUDIT")).getName());
+		assertEquals("logs-acme-audit-2020.01.03", resolver.resolve(event(TIME + DAY, "acme", "AUDIT")).getName());
+	}
+
+	@Test
+	public void missingValueUsesDefault() {
+		RoutingIndexResolver resolver = resolver("logs-${ctx:tenant:-shared}");
+
+		assertEquals("logs-shared", resolver.resolve(event(TIME, null, null)).getName());
+		assertEquals("logs-shared", resolver.resolve(event(TIME, "", null)).getName());
+	}
+
+	@Test
+	public void missingValueWithoutDefaultIsNotRouted() {
+		assertNull(resolver("logs-${ctx:tenant}").resolve(event(TIME, null, null)));
+		assertNull(resolver("logs-${marker}").resolve(event(TIME, "acme", null)));
+	}
+
+	@Test
+	public void valuesAndLiteralsAreSanitized() {
+		RoutingIndexResolver resolver = resolver("Logs/${ctx:tenant}#");
+
+		assertEquals("logs_acme_corp_a_b_", resolver.resolve(event(TIME, "ACME Corp/a*b", null)).getName());
+	}
+
+	@Test
+	public void invalidStartIsStripped() {
+		RoutingIndexResolver resolver = resolver("${ctx:tenant:-shared}-logs");
+
+		assertEquals("acme-logs", resolver.resolve(event(TIME, "_-+Acme", null)).getName());
+		assertEquals("shared-logs", resolver.resolve(event(TIME, "+", null)).getName());
+		assertEquals("logs", resolver("_${ctx:tenant:-}-logs").resolve(event(TIME, "-", null)).getName());
+		assertNull(resolver("logs-${ctx:tenant}").resolve(event(TIME, "__", null)));
+	}
+
+	@Test
+	public void lateDatesDoNotReplaceCurrentTargets() {
+		RoutingIndexResolver resolver = resolver("logs-${ctx:tenant}-${date}");
+		resolver.resolve(event(FUTURE, "acme", null));
+		IndexTarget current = resolver.resolve(event(FUTURE + DAY, "acme", null));
+
+		assertEquals("logs-acme-2099.12.28", resolver.resolve(event(FUTURE - 5 * DAY, "acme", null)).getName());
+		assertEquals("logs-acme-2099.12.27", resolver.resolve(event(FUTURE - 6 * DAY, "acme", null)).getName());
+		assertSame(current, resolver.resolve(event(FUTURE + DAY, "acme", null)));
+	}
+
+	@Test
+	public void targetsAreInternedPerValue() {
+		RoutingIndexResolver resolver = resolver("logs-${ctx:tenant}-${marker}");
+		IndexTarget first = resolver.resolve(event(TIME, "acme", "AUDIT"));
+
+		assertSame(first, resolver.resolve(event(TIME, "acme", "AUDIT")));
+		assertEquals("logs-acme-security", resolver.resolve(event(TIME, "acme", "SECURITY")).getName());
+	}
+
+	@Test
+	public void targetsOverLimitAreStillResolved() {
+		RoutingIndexResolver resolver = new RoutingIndexResolver("logs-${ctx:tenant}", dates(), true, 2);
+		for(int i = 0; i < 5; i++) {
+			IndexTarget target = resolver.resolve(event(TIME, "t" + i, null));
+			assertEquals("logs-t" + i, target.getName());
+			assertTrue(target.isCreate());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unclosedVariableIsRejected() {
+		RoutingIndexResolver.validate("logs-${ctx:tenant");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownVariableIsRejected() {
+		RoutingIndexResolver.validate("logs-${thread}");
+	}
+}
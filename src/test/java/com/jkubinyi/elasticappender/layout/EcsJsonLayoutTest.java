@@ -0,0 +1,209 @@
+package com.jkubinyi.elasticappender.layout;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.ContextDataFactory;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.StringMap;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class EcsJsonLayoutTest {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	/** 2020-02-03T04:05:06.007Z */
+	private static final long TIME = 1580702706007L;
+
+	private static final StackTraceElement SOURCE = new StackTraceElement("com.example.Orders", "accept", "Orders.java", 42);
+
+	private static Log4jLogEvent.Builder event() {
+		return Log4jLogEvent.newBuilder()
+				.setLoggerName("com.example.Orders")
+				.setLevel(Level.WARN)
+				.setTimeMillis(TIME)
+				.setThreadName("worker-1")
+				.setMessage(new ParameterizedMessage("Order {} of {} rejected.", 17, "c-42"));
+	}
+
+	private static JsonNode parse(String json) throws IOException {
+		return MAPPER.readTree(json);
+	}
+
+	/**
+	 * Collects the encoded bytes through a small buffer, so the draining is exercised too.
+	 */
+	private static final class Destination implements ByteBufferDestination {
+		private final ByteBuffer buffer = ByteBuffer.allocate(16);
+		private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		@Override
+		public ByteBuffer getByteBuffer() {
+			return this.buffer;
+		}
+
+		@Override
+		public ByteBuffer drain(ByteBuffer buf) {
+			buf.flip();
+			while(buf.hasRemaining())
+				this.output.write(buf.get());
+			buf.clear();
+			return buf;
+		}
+
+		@Override
+		public void writeBytes(ByteBuffer data) {
+			while(data.hasRemaining()) {
+				if(!this.buffer.hasRemaining()) this.drain(this.buffer);
+				this.buffer.put(data.get());
+			}
+		}
+
+		@Override
+		public void writeBytes(byte[] data, int offset, int length) {
+			this.writeBytes(ByteBuffer.wrap(data, offset, length));
+		}
+
+		private byte[] toByteArray() {
+			this.drain(this.buffer);
+			return this.output.toByteArray();
+		}
+	}
+
+	@Test
+	public void writesEcsFields() throws IOException {
+		EcsJsonLayout layout = EcsJsonLayout.newBuilder().setServiceName("orders").build();
+
+		JsonNode document = parse(layout.toSerializable(event().build()));
+
+		assertEquals("2020-02-03T04:05:06.007Z", document.get("@timestamp").asText());
+		assertEquals("WARN", document.get("log.level").asText());
+		assertEquals("Order 17 of c-42 rejected.", document.get("message").asText());
+		assertEquals(EcsJsonLayout.ECS_VERSION, document.get("ecs.version").asText());
+		assertEquals("orders", document.get("service.name").asText());
+		assertEquals("worker-1", document.get("process.thread.name").asText());
+		assertEquals("com.example.Orders", document.get("log.logger").asText());
+		assertFalse(document.has("log.origin.function"));
+		assertFalse(document.has("labels"));
+		assertFalse(document.has("tags"));
+		assertFalse(document.has("error.type"));
+	}
+
+	@Test
+	public void omitsEmptyServiceName() throws IOException {
+		EcsJsonLayout layout = EcsJsonLayout.newBuilder().setServiceName("").build();
+
+		assertFalse(parse(layout.toSerializable(event().build())).has("service.name"));
+	}
+
+	@Test
+	public void escapesText() throws IOException {
+		String message = "quote \" backslash \\ newline \n tab \t control \u0001 unicode ž中 😀";
+		EcsJsonLayout layout = EcsJsonLayout.newBuilder().build();
+		LogEvent event = event().setMessage(new SimpleMessage(message)).build();
+
+		JsonNode document = parse(layout.toSerializable(event));
+
+		assertEquals(message, document.get("message").asText());
+	}
+
+	@Test
+	public void writesLocationLabelsAndTags() throws IOException {
+		StringMap contextData = ContextDataFactory.createContextData();
+		contextData.putValue("tenant", "acme");
+		contextData.putValue("request \"id\"", "r-1");
+		Marker marker = MarkerManager.getMarker("EcsJsonLayoutTest.AUDIT")
+				.setParents(MarkerManager.getMarker("EcsJsonLayoutTest.SECURITY"));
+		LogEvent event = event().setSource(SOURCE).setContextData(contextData).setMarker(marker).build();
+		EcsJsonLayout layout = EcsJsonLayout.newBuilder().setLocationInfo(true).build();
+
+		JsonNode document = parse(layout.toSerializable(event));
+
+		assertEquals("Orders.java", document.get("log.origin.file.name").asText());
+		assertEquals(42, document.get("log.origin.file.line").asInt());
+		assertEquals("accept", document.get("log.origin.function").asText());
+		assertEquals("acme", document.get("labels").get("tenant").asText());
+		assertEquals("r-1", document.get("labels").get("request \"id\"").asText());
+		assertEquals("EcsJsonLayoutTest.AUDIT", document.get("tags").get(0).asText());
+		assertEquals("EcsJsonLayoutTest.SECURITY", document.get("tags").get(1).asText());
+	}
+
+	@Test
+	public void skipsLabelsWhenDisabled() throws IOException {
+		StringMap contextData = ContextDataFactory.createContextData();
+		contextData.putValue("tenant", "acme");
+		EcsJsonLayout layout = EcsJsonLayout.newBuilder().setProperties(false).build();
+
+		assertFalse(parse(layout.toSerializable(event().setContextData(contextData).build())).has("labels"));
+	}
+
+	@Test
+	public void writesError() throws IOException {
+		LogEvent event = event().setThrown(new IllegalStateException("Broken \"order\".")).build();
+
+		JsonNode withStack = parse(EcsJsonLayout.newBuilder().build().toSerializable(event));
+		JsonNode withoutStack = parse(EcsJsonLayout.newBuilder().setIncludeStacktrace(false).build().toSerializable(event));
+
+		assertEquals(IllegalStateException.class.getName(), withStack.get("error.type").asText());
+		assertEquals("Broken \"order\".", withStack.get("error.message").asText());
+		assertTrue(withStack.get("error.stack_trace").asText().startsWith("java.lang.IllegalStateException: Broken \"order\"."));
+		assertEquals("Broken \"order\".", withoutStack.get("error.message").asText());
+		assertFalse(withoutStack.has("error.stack_trace"));
+	}
+
+	@Test
+	public void outputsAreEqual() {
+		EcsJsonLayout layout = EcsJsonLayout.newBuilder().setServiceName("orders").build();
+		LogEvent event = event().setThrown(new IllegalStateException("Broken.")).build();
+		Destination destination = new Destination();
+
+		byte[] serialized = layout.toSerializable(event).getBytes(StandardCharsets.UTF_8);
+		layout.encode(event, destination);
+
+		assertArrayEquals(serialized, layout.toByteArray(event));
+		assertArrayEquals(serialized, destination.toByteArray());
+	}
+
+	@Test
+	public void reusesBufferAfterFailure() throws IOException {
+		EcsJsonLayout layout = EcsJsonLayout.newBuilder().build();
+		LogEvent failing = event().setMessage(new SimpleMessage() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public String getFormattedMessage() {
+				throw new IllegalStateException("Formatting failed.");
+			}
+
+			@Override
+			public void formatTo(StringBuilder buffer) {
+				throw new IllegalStateException("Formatting failed.");
+			}
+		}).build();
+
+		try {
+			layout.toSerializable(failing);
+		} catch(IllegalStateException expected) {
+			// The document was left unfinished.
+		}
+
+		assertEquals("WARN", parse(layout.toSerializable(event().build())).get("log.level").asText());
+	}
+}
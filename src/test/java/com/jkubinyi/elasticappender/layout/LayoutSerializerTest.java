@@ -0,0 +1,99 @@
+package com.jkubinyi.elasticappender.layout;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.JsonLayout;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class LayoutSerializerTest {
+
+	private static final int WARMUP_EVENTS = 20_000;
+	private static final int MEASURED_EVENTS = 20_000;
+
+	private static final JsonLayout LAYOUT = JsonLayout.newBuilder()
+			.setCompact(true)
+			.setCharset(StandardCharsets.UTF_8)
+			.build();
+
+	private static LogEvent event() {
+		return event(null);
+	}
+
+	private static LogEvent event(Throwable thrown) {
+		return Log4jLogEvent.newBuilder()
+				.setLoggerName("com.example.orders.OrderService")
+				.setLoggerFqcn(LayoutSerializerTest.class.getName())
+				.setLevel(Level.INFO)
+				.setMessage(new ParameterizedMessage("Order {} of customer {} was accepted in {} ms.", 1234567, "c-0042", 17))
+				.setThreadName("http-nio-8080-exec-7")
+				.setTimeMillis(1_500_000_000_000L)
+				.setThrown(thrown)
+				.build();
+	}
+
+	/**
+	 * @return Bytes allocated by the current thread per serialized event.
+	 */
+	private static long allocatedPerEvent(LayoutSerializer serializer, LogEvent event) throws IOException {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		for(int i = 0; i < WARMUP_EVENTS; i++)
+			serializer.serialize(event);
+		long before = threads.getThreadAllocatedBytes(thread);
+		for(int i = 0; i < MEASURED_EVENTS; i++)
+			serializer.serialize(event);
+		return (threads.getThreadAllocatedBytes(thread) - before) / MEASURED_EVENTS;
+	}
+
+	@Test
+	public void garbageFreeProducesSameDocument() throws IOException {
+		LogEvent event = event();
+		assertArrayEquals(new LayoutSerializer(LAYOUT, false).serialize(event), new LayoutSerializer(LAYOUT, true).serialize(event));
+	}
+
+	@Test
+	public void garbageFreeAllocatesLessPerEvent() throws IOException {
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+		LogEvent event = event();
+		int documentBytes = LAYOUT.toByteArray(event).length;
+		long toByteArray = allocatedPerEvent(new LayoutSerializer(LAYOUT, false), event);
+		long garbageFree = allocatedPerEvent(new LayoutSerializer(LAYOUT, true), event);
+
+		// The intermediate String and its encoding take at least the size of the document.
+		assertTrue("toByteArray allocated " + toByteArray + " B, garbageFree " + garbageFree + " B per event of " + documentBytes + " B",
+				toByteArray - garbageFree >= documentBytes);
+	}
+
+	@Test
+	public void cachedExceptionProducesSameDocument() throws IOException {
+		StackTraceCache cache = new StackTraceCache(16);
+		LayoutSerializer serializer = new LayoutSerializer(LAYOUT, true, cache);
+		ObjectMapper mapper = new ObjectMapper();
+		Exception thrown = new IllegalStateException("Order could not be stored.", new IOException("Connection reset"));
+		LogEvent event = event(thrown);
+
+		byte[] first = serializer.serialize(event);
+		assertEquals(1, cache.size());
+		byte[] cached = serializer.serialize(event);
+		assertEquals(1, cache.getHits());
+		// Cached fields are appended at the end, so only the content is compared.
+		assertEquals(mapper.readTree(LAYOUT.toByteArray(event)), mapper.readTree(first));
+		assertEquals(mapper.readTree(first), mapper.readTree(cached));
+	}
+}
@@ -0,0 +1,92 @@
+package com.jkubinyi.elasticappender.layout;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class StackTraceCacheTest {
+
+	private static byte[] bytes(String json) {
+		return json.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static final StackTraceElement[] STACK = {
+			new StackTraceElement("com.example.OrderService", "store", "OrderService.java", 42),
+			new StackTraceElement("com.example.OrderController", "accept", "OrderController.java", 17) };
+
+	/**
+	 * @return Exception with the fixed stack trace, so only the given parts differ.
+	 */
+	private static Exception failure(String message, Throwable cause) {
+		Exception e = new IllegalStateException(message, cause);
+		e.setStackTrace(STACK);
+		return e;
+	}
+
+	private static Exception failure(String message) {
+		IOException cause = new IOException("Connection reset");
+		cause.setStackTrace(STACK);
+		return failure(message, cause);
+	}
+
+	@Test
+	public void sameExceptionHasSameFingerprint() {
+		assertEquals(StackTraceCache.fingerprint(failure("Order could not be stored.")),
+				StackTraceCache.fingerprint(failure("Order could not be stored.")));
+	}
+
+	@Test
+	public void fingerprintCoversMessageStackCauseAndSuppressed() {
+		long expected = StackTraceCache.fingerprint(failure("Order could not be stored."));
+
+		assertNotEquals(expected, StackTraceCache.fingerprint(failure("Order could not be read.")));
+		assertNotEquals(expected, StackTraceCache.fingerprint(failure("Order could not be stored.", null)));
+
+		Exception otherStack = failure("Order could not be stored.");
+		otherStack.setStackTrace(new StackTraceElement[] { STACK[0] });
+		assertNotEquals(expected, StackTraceCache.fingerprint(otherStack));
+
+		Exception suppressed = failure("Order could not be stored.");
+		suppressed.addSuppressed(new RuntimeException("Rollback failed"));
+		assertNotEquals(expected, StackTraceCache.fingerprint(suppressed));
+	}
+
+	@Test
+	public void cacheIsBounded() {
+		StackTraceCache cache = new StackTraceCache(2);
+		for(long fingerprint = 0; fingerprint < 5; fingerprint++)
+			cache.put(fingerprint, bytes("\"f\":" + fingerprint));
+
+		assertEquals(2, cache.size());
+		assertEquals(3, cache.getEvictions());
+		assertArrayEquals(bytes("\"f\":4"), cache.get(4));
+		assertEquals(1, cache.getHits());
+		assertNull(cache.get(100));
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void exceptionFieldsAreTheAddedTopLevelFields() throws IOException {
+		byte[] fields = StackTraceCache.exceptionFields(
+				bytes("{\"message\":\"m\", \"thrown\":{\"name\":\"E\"},\"level\":\"ERROR\",\"trace\":[1,2]}"),
+				bytes("{\"message\":\"m\",\"level\":\"ERROR\"}"));
+
+		assertEquals("\"thrown\":{\"name\":\"E\"},\"trace\":[1,2]", new String(fields, StandardCharsets.UTF_8));
+		assertEquals("{\"message\":\"m\",\"level\":\"ERROR\",\"thrown\":{\"name\":\"E\"},\"trace\":[1,2]}",
+				new String(JsonFields.append(bytes("{\"message\":\"m\",\"level\":\"ERROR\"}"), fields), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void exceptionInOtherFieldsIsNotCacheable() throws IOException {
+		assertNull(StackTraceCache.exceptionFields(
+				bytes("{\"message\":\"m: java.lang.IllegalStateException\"}"),
+				bytes("{\"message\":\"m\"}")));
+		assertNull(StackTraceCache.exceptionFields(bytes("{\"message\":\"m\"}"), bytes("{\"message\":\"m\"}")));
+	}
+}
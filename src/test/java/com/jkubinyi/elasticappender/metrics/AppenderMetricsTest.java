@@ -0,0 +1,123 @@
+package com.jkubinyi.elasticappender.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.spi.StandardLevel;
+import org.junit.Test;
+
+public class AppenderMetricsTest {
+
+	private static AppenderMetrics metrics(MetricsListener delegate) {
+		return new AppenderMetrics(() -> 3, () -> 2, () -> 8, delegate);
+	}
+
+	@Test
+	public void countsDropsByReasonAndLevel() {
+		AppenderMetrics metrics = metrics(null);
+
+		metrics.onDropped(DropReason.QUEUE_FULL, StandardLevel.DEBUG, 2);
+		metrics.onDropped(DropReason.QUEUE_FULL, StandardLevel.ERROR, 1);
+		metrics.onDropped(DropReason.REJECTED, 4);
+		metrics.onDropped(DropReason.RETRIES_EXHAUSTED, null, 5);
+
+		assertEquals(3, metrics.getDropped(DropReason.QUEUE_FULL));
+		assertEquals(3, metrics.getDroppedQueueFull());
+		assertEquals(2, metrics.getDropped(StandardLevel.DEBUG));
+		assertEquals(1, metrics.getDropped(StandardLevel.ERROR));
+		assertEquals(9, metrics.getItemFailures());
+		assertEquals(0, metrics.getDroppedShutdown());
+
+		Map<String, Long> byLevel = metrics.getDroppedByLevel();
+		assertEquals(Long.valueOf(2), byLevel.get("DEBUG"));
+		assertEquals(Long.valueOf(0), byLevel.get("INFO"));
+		assertFalse(byLevel.containsKey("OFF"));
+		assertFalse(byLevel.containsKey("ALL"));
+	}
+
+	@Test
+	public void recordsEnqueuesAndBulks() {
+		AppenderMetrics metrics = metrics(null);
+
+		metrics.onEnqueued(100, 2_000);
+		metrics.onEnqueued(300, 4_000);
+		metrics.onOversized();
+		metrics.onCollapsed();
+		metrics.onBulkSent(10, 1_000);
+		metrics.onBulkCompleted(10, 5_000_000, false);
+		metrics.onBulkCompleted(10, 5_000_000, true);
+		metrics.onRetried(3);
+
+		assertEquals(2, metrics.getEventsEnqueued());
+		assertEquals(400, metrics.getBytesEnqueued());
+		assertEquals(4, metrics.getEnqueueWaitMaxMicros());
+		assertEquals(1, metrics.getOversized());
+		assertEquals(1, metrics.getCollapsed());
+		assertEquals(1, metrics.getBulksSent());
+		assertEquals(1, metrics.getBulksFailed());
+		assertEquals(10, metrics.getBatchSizeP50());
+		assertEquals(10, metrics.getBatchSizeMean(), 0);
+		assertEquals(5, metrics.getBulkLatencyMaxMillis(), 0);
+		assertEquals(3, metrics.getRetried());
+		assertEquals(3, metrics.getQueueDepth());
+		assertEquals(2, metrics.getInFlight());
+		assertEquals(8, metrics.getInFlightLimit());
+
+		metrics.resetHistograms();
+
+		assertEquals(0, metrics.getBatchSizeP50());
+		assertEquals(1, metrics.getBulksSent());
+	}
+
+	@Test
+	public void forwardsToDelegate() {
+		List<String> calls = new ArrayList<>();
+		MetricsListener delegate = new MetricsListener() {
+			@Override
+			public void onDropped(DropReason reason, int count) {
+				calls.add(reason + ":" + count);
+			}
+
+			@Override
+			public void onRetried(int count) {
+				throw new IllegalStateException("Failing listener.");
+			}
+		};
+		AppenderMetrics metrics = metrics(delegate);
+
+		metrics.onDropped(DropReason.SHED, StandardLevel.INFO, 2);
+		metrics.onRetried(1);
+
+		assertEquals(1, calls.size());
+		assertEquals("SHED:2", calls.get(0));
+		assertEquals(1, metrics.getRetried());
+	}
+
+	@Test
+	public void registersInJmx() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(AppenderMetrics.JMX_DOMAIN + ":type=ElasticAppender,name=" + ObjectName.quote("metrics-test"));
+		AppenderMetrics first = metrics(null);
+		AppenderMetrics second = metrics(null);
+		second.onDropped(DropReason.SHUTDOWN, 7);
+
+		first.register("metrics-test");
+		second.register("metrics-test");
+
+		assertTrue(server.isRegistered(name));
+		assertEquals(7L, server.getAttribute(name, "DroppedShutdown"));
+
+		second.unregister();
+
+		assertFalse(server.isRegistered(name));
+	}
+}
@@ -0,0 +1,116 @@
+package com.jkubinyi.elasticappender.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void bucketsContainTheirValues() {
+		for(long value = 0; value < 100_000; value++)
+			assertBucket(value);
+		for(int shift = 17; shift < 62; shift++) {
+			assertBucket(1L << shift);
+			assertBucket((1L << shift) - 1);
+			assertBucket((1L << shift) + 1);
+		}
+		// The top buckets are capped at Long.MAX_VALUE.
+		assertEquals(Long.MAX_VALUE, Histogram.upperBound(Histogram.index(Long.MAX_VALUE)));
+	}
+
+	private static void assertBucket(long value) {
+		int index = Histogram.index(value);
+		long upper = Histogram.upperBound(index);
+		assertTrue("Value " + value + " above its bucket " + upper, value <= upper);
+		if(index > 0) assertTrue("Value " + value + " below its bucket", value > Histogram.upperBound(index - 1));
+		assertTrue("Bucket of " + value + " too wide", upper - value <= value / 8);
+	}
+
+	@Test
+	public void reportsNothingWhenEmpty() {
+		Histogram histogram = new Histogram();
+
+		assertEquals(0, histogram.getPercentile(0.99));
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMean(), 0);
+		assertEquals(0, histogram.getMax());
+	}
+
+	@Test
+	public void reportsPercentilesWithinError() {
+		Histogram histogram = new Histogram();
+		for(long value = 1; value <= 10_000; value++)
+			histogram.record(value);
+
+		assertWithin(5_000, histogram.getPercentile(0.5));
+		assertWithin(9_900, histogram.getPercentile(0.99));
+		assertEquals(10_000, histogram.getPercentile(1));
+		assertEquals(1, histogram.getPercentile(0));
+		assertEquals(10_000, histogram.getCount());
+		assertEquals(5_000.5, histogram.getMean(), 0.001);
+		assertEquals(10_000, histogram.getMax());
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue("Expected about " + expected + " but was " + actual, actual >= expected && actual <= expected * 1.125);
+	}
+
+	@Test
+	public void recordsNegativeAsZero() {
+		Histogram histogram = new Histogram();
+
+		histogram.record(-5);
+
+		assertEquals(0, histogram.getPercentile(0.5));
+		assertEquals(0, histogram.getMax());
+		assertEquals(1, histogram.getCount());
+	}
+
+	@Test
+	public void resets() {
+		Histogram histogram = new Histogram();
+		histogram.record(1_000);
+
+		histogram.reset();
+		histogram.record(3);
+
+		assertEquals(3, histogram.getPercentile(0.99));
+		assertEquals(3, histogram.getMax());
+		assertEquals(1, histogram.getCount());
+	}
+
+	@Test
+	public void recordsConcurrently() throws InterruptedException {
+		Histogram histogram = new Histogram();
+		int threads = 4;
+		int values = 50_000;
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> recorders = new ArrayList<>();
+		for(int i = 0; i < threads; i++) {
+			Thread recorder = new Thread(() -> {
+				try {
+					start.await();
+				} catch(InterruptedException e) {
+					return;
+				}
+				for(int value = 1; value <= values; value++)
+					histogram.record(value);
+			});
+			recorder.start();
+			recorders.add(recorder);
+		}
+		start.countDown();
+		for(Thread recorder : recorders)
+			recorder.join();
+
+		assertEquals(threads * values, histogram.getCount());
+		assertEquals(values, histogram.getMax());
+		assertEquals(values, histogram.getPercentile(1));
+	}
+}
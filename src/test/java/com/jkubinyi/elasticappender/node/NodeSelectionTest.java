@@ -0,0 +1,148 @@
+package com.jkubinyi.elasticappender.node;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.http.HttpHost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jkubinyi.elasticappender.StubElasticsearch;
+
+public class NodeSelectionTest {
+
+	private StubElasticsearch[] nodes;
+	private NodePool pool;
+	private HealthAwareNodeSelector selector;
+	private RestClient client;
+	private NodeMonitor monitor;
+
+	@Before
+	public void setUp() throws IOException {
+		this.nodes = new StubElasticsearch[] { new StubElasticsearch(), new StubElasticsearch(), new StubElasticsearch() };
+		for(StubElasticsearch node : this.nodes)
+			node.setSniffedNodes(this.nodes);
+		// Only the first node is configured, the others are sniffed.
+		HttpHost seed = this.nodes[0].getHttpHost();
+		this.pool = new NodePool(Arrays.asList(seed));
+		this.selector = new HealthAwareNodeSelector(this.pool, NodeSelectionStrategy.LATENCY_WEIGHTED);
+		this.client = RestClient.builder(seed).setNodeSelector(this.selector).build();
+		this.monitor = new NodeMonitor(this.client, this.pool, "http", null, null, 0, 1000);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.monitor.stop();
+		this.client.close();
+		for(StubElasticsearch node : this.nodes)
+			node.close();
+	}
+
+	/**
+	 * Sends a bulk request the way the dispatcher does.
+	 * 
+	 * @return Node which answered or {@code null} if none did.
+	 */
+	private HttpHost sendBulk() {
+		NodeStats routed = this.selector.route();
+		long start = System.nanoTime();
+		HttpHost answered = null;
+		boolean failed = false;
+		try {
+			Request request = new Request("POST", "/_bulk");
+			request.setEntity(new NStringEntity("{\"index\":{\"_index\":\"logs\"}}\n{}\n", ContentType.APPLICATION_JSON));
+			Response response = this.client.performRequest(request);
+			answered = response.getHost();
+		} catch(ResponseException e) {
+			answered = e.getResponse().getHost();
+			failed = e.getResponse().getStatusLine().getStatusCode() >= 500;
+		} catch(IOException e) {
+			failed = true;
+		}
+		this.selector.finished(routed, answered, System.nanoTime() - start, failed);
+		return failed ? null : answered;
+	}
+
+	private Set<HttpHost> hosts(StubElasticsearch... nodes) {
+		return Arrays.stream(nodes).map(StubElasticsearch::getHttpHost).collect(Collectors.toSet());
+	}
+
+	@Test
+	public void sniffingDiscoversAllNodes() {
+		this.monitor.sniff();
+
+		assertEquals(this.hosts(this.nodes), this.pool.getNodes().stream().map(NodeStats::getHost).collect(Collectors.toSet()));
+		assertEquals(this.hosts(this.nodes), this.client.getNodes().stream().map(Node::getHost).collect(Collectors.toSet()));
+	}
+
+	@Test
+	public void sniffingKeepsNodesWhenNoneFound() {
+		this.nodes[0].setSniffedNodes();
+		this.monitor.sniff();
+
+		assertEquals(1, this.pool.getNodes().size());
+	}
+
+	@Test
+	public void slowNodeGetsFewerRequests() {
+		this.monitor.sniff();
+		this.nodes[1].setLatencyMs(100);
+		for(int i = 0; i < 60; i++)
+			assertTrue(this.sendBulk() != null);
+
+		int slow = this.nodes[1].getBulkBodies().size();
+		int fast = this.nodes[0].getBulkBodies().size() + this.nodes[2].getBulkBodies().size();
+		assertEquals(60, slow + fast);
+		assertTrue("Slow node got " + slow + " of 60 requests", slow <= 3);
+		assertFalse("Both fast nodes are used", this.nodes[0].getBulkBodies().isEmpty() || this.nodes[2].getBulkBodies().isEmpty());
+	}
+
+	@Test
+	public void deadNodeIsSkippedTillItRecovers() {
+		this.monitor.sniff();
+		HttpHost failing = this.nodes[2].getHttpHost();
+		this.nodes[2].setStatus(503);
+		this.monitor.checkHealth();
+		assertFalse(this.pool.get(failing).isAlive());
+
+		Set<HttpHost> used = new HashSet<>();
+		for(int i = 0; i < 30; i++)
+			used.add(this.sendBulk());
+		assertEquals(this.hosts(this.nodes[0], this.nodes[1]), used);
+		assertTrue(this.nodes[2].getBulkBodies().isEmpty());
+
+		this.nodes[2].setStatus(200);
+		this.monitor.checkHealth();
+		assertTrue(this.pool.get(failing).isAlive());
+		for(int i = 0; i < 30; i++)
+			used.add(this.sendBulk());
+		assertTrue(used.contains(failing));
+	}
+
+	@Test
+	public void failedRequestMarksNodeDead() {
+		this.monitor.sniff();
+		HttpHost failing = this.nodes[0].getHttpHost();
+		this.nodes[0].close();
+
+		for(int i = 0; i < 10; i++)
+			assertNotEquals(failing, this.sendBulk());
+		assertFalse(this.pool.get(failing).isAlive());
+	}
+}
@@ -0,0 +1,116 @@
+package com.jkubinyi.elasticappender.throttle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.junit.Test;
+
+public class EventCollapserTest {
+
+	private final Map<String, Long> emitted = new ConcurrentHashMap<>();
+
+	private EventCollapser create(long windowMs, int maxFingerprints) {
+		return new EventCollapser(windowMs, maxFingerprints,
+				(event, count) -> this.emitted.merge(event.getMessage().getFormattedMessage(), count, Long::sum));
+	}
+
+	private static LogEvent event(String message, Object parameter) {
+		return Log4jLogEvent.newBuilder()
+				.setLoggerName("orders")
+				.setLevel(Level.ERROR)
+				.setMessage(new ParameterizedMessage(message, parameter))
+				.build();
+	}
+
+	@Test
+	public void repeatedLogsAreFoldedTillWindowCloses() {
+		EventCollapser collapser = this.create(60_000, 10);
+		assertTrue(collapser.admit(event("Order {} failed", 1)));
+		for(int i = 0; i < 5; i++)
+			assertFalse(collapser.admit(event("Order {} failed", 1)));
+		assertTrue("Different formatted message", collapser.admit(event("Order {} failed", 2)));
+		assertTrue(this.emitted.isEmpty());
+
+		collapser.closeAll();
+		assertEquals(1, this.emitted.size());
+		assertEquals(Long.valueOf(5), this.emitted.get("Order 1 failed"));
+		assertEquals(0, collapser.size());
+	}
+
+	@Test
+	public void expiredWindowIsReopened() throws InterruptedException {
+		EventCollapser collapser = this.create(200, 10);
+		assertTrue(collapser.admit(event("Order {} failed", 1)));
+		assertFalse(collapser.admit(event("Order {} failed", 1)));
+		Thread.sleep(300);
+
+		assertTrue(collapser.admit(event("Order {} failed", 1)));
+		assertEquals(Long.valueOf(1), this.emitted.get("Order 1 failed"));
+		Thread.sleep(300);
+		collapser.closeExpired();
+		assertEquals(0, collapser.size());
+		assertEquals(Long.valueOf(1), this.emitted.get("Order 1 failed"));
+	}
+
+	@Test
+	public void logsOverMaxFingerprintsAreNotCollapsed() {
+		EventCollapser collapser = this.create(60_000, 1);
+		assertTrue(collapser.admit(event("Order {} failed", 1)));
+		assertTrue(collapser.admit(event("Order {} failed", 2)));
+		assertTrue(collapser.admit(event("Order {} failed", 2)));
+		assertEquals(1, collapser.size());
+	}
+
+	@Test
+	public void noFoldedLogIsLostUnderContention() throws InterruptedException {
+		LongAdder admitted = new LongAdder();
+		AtomicLong folded = new AtomicLong();
+		EventCollapser collapser = new EventCollapser(1, 10, (event, count) -> folded.addAndGet(count));
+		int threads = 8;
+		int perThread = 20_000;
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> producers = new ArrayList<>();
+		for(int t = 0; t < threads; t++) {
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+				} catch(InterruptedException e) {
+					return;
+				}
+				for(int i = 0; i < perThread; i++) {
+					if(collapser.admit(event("Order {} failed", i % 3))) admitted.increment();
+					if(i % 1000 == 0) collapser.closeExpired();
+				}
+			});
+			thread.start();
+			producers.add(thread);
+		}
+		start.countDown();
+		for(Thread thread : producers)
+			thread.join();
+		collapser.closeAll();
+
+		assertEquals(threads * perThread, admitted.sum() + folded.get());
+	}
+
+	@Test
+	public void repeatCountIsAppendedAsLastField() {
+		byte[] document = "{\"message\":\"m\"}\n".getBytes(StandardCharsets.UTF_8);
+		assertEquals("{\"message\":\"m\",\"repeat_count\":42}",
+				new String(EventCollapser.withRepeatCount(document, 42), StandardCharsets.UTF_8).trim());
+	}
+}
@@ -0,0 +1,53 @@
+package com.jkubinyi.elasticappender.throttle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.logging.log4j.Level;
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+	@Test
+	public void burstIsAllowedThenLimited() {
+		RateLimiter limiter = new RateLimiter(0.001, 3, RateLimiter.DEFAULT_MAX_LOGGERS);
+		for(int i = 0; i < 3; i++)
+			assertTrue(limiter.tryAcquire("orders", Level.INFO));
+		assertFalse(limiter.tryAcquire("orders", Level.INFO));
+	}
+
+	@Test
+	public void loggersAndLevelsHaveOwnBuckets() {
+		RateLimiter limiter = new RateLimiter(0.001, 1, RateLimiter.DEFAULT_MAX_LOGGERS);
+		assertTrue(limiter.tryAcquire("orders", Level.INFO));
+		assertFalse(limiter.tryAcquire("orders", Level.INFO));
+		assertTrue("Flood of INFO does not limit ERROR", limiter.tryAcquire("orders", Level.ERROR));
+		assertTrue(limiter.tryAcquire("payments", Level.INFO));
+		assertTrue(limiter.tryAcquire(null, Level.INFO));
+		assertEquals(3, limiter.getNumLoggers());
+	}
+
+	@Test
+	public void tokensAreRefilled() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter(10, 1, RateLimiter.DEFAULT_MAX_LOGGERS);
+		assertTrue(limiter.tryAcquire("orders", Level.INFO));
+		assertFalse(limiter.tryAcquire("orders", Level.INFO));
+		Thread.sleep(150);
+		assertTrue(limiter.tryAcquire("orders", Level.INFO));
+	}
+
+	@Test
+	public void loggersOverLimitShareBuckets() {
+		RateLimiter limiter = new RateLimiter(0.001, 1, 1);
+		assertTrue(limiter.tryAcquire("orders", Level.INFO));
+		assertTrue(limiter.tryAcquire("payments", Level.INFO));
+		assertFalse("Shares the bucket with payments", limiter.tryAcquire("shipping", Level.INFO));
+		assertEquals(1, limiter.getNumLoggers());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rateMustBePositive() {
+		new RateLimiter(0, 1, 1);
+	}
+}